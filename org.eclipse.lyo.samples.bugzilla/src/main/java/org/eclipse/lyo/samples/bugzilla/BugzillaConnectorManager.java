@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.samples.bugzilla;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.j2bugzilla.base.BugzillaException;
+import com.j2bugzilla.base.ConnectionException;
+
+/**
+ * Keeps logged-in Bugzilla connectors so requests don't have to log in each
+ * time. Connectors are found by user for basic access authentication and by
+ * OAuth token for OAuth requests. One user's basic auth requests and OAuth
+ * tokens share a connector.
+ *
+ * <p>
+ * User connectors not used for {@link #getIdleTimeout()} ms are dropped by a
+ * background thread. A token keeps its connector until the token is revoked,
+ * even if the user's connector is dropped, since the connector logs in again
+ * when Bugzilla forgets the session. When there are more users and tokens
+ * than the limit, the least recently used are dropped until there are
+ * {@value #EVICTION_BATCH_PERCENT}% fewer than the limit, so the connectors
+ * aren't scanned again for every new one. Dropped tokens are passed to the
+ * {@link TokenEvictionListener} so they can be revoked.
+ *
+ * <p>
+ * When several requests for the same user arrive before the user has a
+ * connector, only one of them logs in and the others wait for its connector.
+ *
+ * <p>
+ * All connectors talk to Bugzilla through <code>HttpURLConnection</code>,
+ * which keeps connections to the server open and shares them between
+ * connectors.
+ *
+ * @see ManagedBugzillaConnector
+ */
+public class BugzillaConnectorManager {
+	/**
+	 * The default time an unused user connector is kept (2 hours).
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 2 * 60 * 60 * 1000;
+
+	/**
+	 * The default limit on the number of users and tokens with connectors.
+	 */
+	public static final int DEFAULT_MAX_CONNECTORS = 1000;
+
+	/**
+	 * How far below the limit, as a percentage, connectors are dropped once
+	 * the limit is passed.
+	 */
+	public static final int EVICTION_BATCH_PERCENT = 10;
+
+	private static final String USER_PREFIX = "user:";
+	private static final String TOKEN_PREFIX = "token:";
+
+	/**
+	 * A connector and, for OAuth tokens, the consumer the token was issued
+	 * to.
+	 */
+	private static class Entry {
+		final ManagedBugzillaConnector connector;
+		final String consumerKey;
+
+		Entry(ManagedBugzillaConnector connector, String consumerKey) {
+			this.connector = connector;
+			this.consumerKey = consumerKey;
+		}
+	}
+
+	/**
+	 * When a connector was last used, read once so sorting doesn't see it
+	 * change.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		final String key;
+		final long lastUsed;
+
+		Candidate(String key, long lastUsed) {
+			this.key = key;
+			this.lastUsed = lastUsed;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return (lastUsed < other.lastUsed) ? -1
+					: ((lastUsed == other.lastUsed) ? 0 : 1);
+		}
+	}
+
+	private final String url;
+	private final long idleTimeout;
+	private final int maxConnectors;
+	private final ConcurrentMap<String, Entry> connectors = new ConcurrentHashMap<String, Entry>();
+
+	// Locks held by the request logging in for a user, by user name.
+	private final ConcurrentMap<String, Object> logins = new ConcurrentHashMap<String, Object>();
+	private final ScheduledExecutorService reaper;
+	private volatile TokenEvictionListener evictionListener = null;
+
+	public BugzillaConnectorManager(String url) {
+		this(url, DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_CONNECTORS);
+	}
+
+	/**
+	 * Creates a connector manager and starts its eviction thread.
+	 *
+	 * @param url
+	 *            the Bugzilla XML-RPC URL
+	 * @param idleTimeout
+	 *            how long in milliseconds to keep a user connector that isn't
+	 *            used
+	 * @param maxConnectors
+	 *            the most users and tokens to keep connectors for. The least
+	 *            recently used are dropped when there are more.
+	 */
+	public BugzillaConnectorManager(String url, long idleTimeout,
+			int maxConnectors) {
+		if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("idleTimeout must be positive");
+		}
+		if (maxConnectors < 1) {
+			throw new IllegalArgumentException(
+					"maxConnectors must be positive");
+		}
+
+		this.url = url;
+		this.idleTimeout = idleTimeout;
+		this.maxConnectors = maxConnectors;
+		this.reaper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,
+								"Lyo Bugzilla Connector Reaper");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		long interval = Math.min(idleTimeout, 60 * 1000);
+		this.reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the listener told when a token's connector is dropped to make room
+	 * for others.
+	 *
+	 * @param listener
+	 *            the listener or null for none
+	 */
+	public void setTokenEvictionListener(TokenEvictionListener listener) {
+		this.evictionListener = listener;
+	}
+
+	/**
+	 * Gets a connector for a user, logging in only if there isn't one
+	 * already. The password must match the one the connector logged in with.
+	 *
+	 * @param username
+	 *            the Bugzilla user
+	 * @param password
+	 *            the user's password
+	 * @return the connector
+	 * @throws ConnectionException
+	 *             if the Bugzilla URL is invalid
+	 * @throws BugzillaException
+	 *             if the login fails
+	 */
+	public ManagedBugzillaConnector getConnector(String username,
+			String password) throws ConnectionException, BugzillaException {
+		String key = USER_PREFIX + username;
+		ManagedBugzillaConnector connector = getUserConnector(key, password);
+		if (connector != null) {
+			return connector;
+		}
+
+		// Either the first request for this user, the connector was dropped,
+		// or the password changed. Only one request for the user logs in.
+		// Others wait on its lock and then find its connector.
+		Object lock = new Object();
+		Object existing = logins.putIfAbsent(username, lock);
+		if (existing != null) {
+			lock = existing;
+		}
+
+		synchronized (lock) {
+			try {
+				connector = getUserConnector(key, password);
+				if (connector == null) {
+					connector = newConnector(username, password);
+					put(key, new Entry(connector, null));
+				}
+
+				return connector;
+			} finally {
+				logins.remove(username, lock);
+			}
+		}
+	}
+
+	private ManagedBugzillaConnector getUserConnector(String key,
+			String password) {
+		Entry entry = connectors.get(key);
+		if (entry != null && entry.connector.isPassword(password)) {
+			return entry.connector;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the connector for an OAuth token.
+	 *
+	 * @param token
+	 *            the request token or access token
+	 * @return the connector or null if there is none
+	 */
+	public ManagedBugzillaConnector getConnector(String token) {
+		Entry entry = connectors.get(TOKEN_PREFIX + token);
+		return (entry == null) ? null : entry.connector;
+	}
+
+	/**
+	 * Associates a connector with an OAuth token.
+	 *
+	 * @param token
+	 *            the request token or access token
+	 * @param consumerKey
+	 *            the consumer the token was issued to
+	 * @param connector
+	 *            the connector
+	 */
+	public void putConnector(String token, String consumerKey,
+			ManagedBugzillaConnector connector) {
+		put(TOKEN_PREFIX + token, new Entry(connector, consumerKey));
+	}
+
+	/**
+	 * Removes the connector for an OAuth token.
+	 *
+	 * @param token
+	 *            the request token or access token
+	 * @return the connector or null if there was none
+	 */
+	public ManagedBugzillaConnector removeConnector(String token) {
+		Entry entry = connectors.remove(TOKEN_PREFIX + token);
+		return (entry == null) ? null : entry.connector;
+	}
+
+	/**
+	 * Removes the connectors for all OAuth tokens issued to a consumer.
+	 *
+	 * @param consumerKey
+	 *            the consumer key
+	 */
+	public void removeConsumerConnectors(String consumerKey) {
+		for (Iterator<Entry> i = connectors.values().iterator(); i.hasNext();) {
+			if (consumerKey.equals(i.next().consumerKey)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes the connectors for all OAuth tokens. Users logged in with basic
+	 * access authentication keep their connectors.
+	 */
+	public void removeTokenConnectors() {
+		for (Iterator<String> i = connectors.keySet().iterator(); i.hasNext();) {
+			if (i.next().startsWith(TOKEN_PREFIX)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stops the eviction thread and drops all connectors.
+	 */
+	public void close() {
+		reaper.shutdownNow();
+		connectors.clear();
+	}
+
+	/**
+	 * Creates a connector and logs in. Tests override this so they don't
+	 * need a Bugzilla server.
+	 */
+	ManagedBugzillaConnector newConnector(String username, String password)
+			throws ConnectionException, BugzillaException {
+		return new ManagedBugzillaConnector(url, username, password);
+	}
+
+	/**
+	 * Drops user connectors that haven't been used for the idle timeout.
+	 * Tokens keep theirs.
+	 */
+	void evictIdle() {
+		long oldest = System.currentTimeMillis() - idleTimeout;
+		for (Iterator<Map.Entry<String, Entry>> i = connectors.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, Entry> entry = i.next();
+			if (entry.getKey().startsWith(USER_PREFIX)
+					&& entry.getValue().connector.getLastUsed() < oldest) {
+				i.remove();
+			}
+		}
+	}
+
+	private void put(String key, Entry entry) {
+		connectors.put(key, entry);
+		if (connectors.size() > maxConnectors) {
+			evictLeastRecentlyUsed();
+		}
+	}
+
+	/**
+	 * Drops the least recently used connectors until there are
+	 * {@link #EVICTION_BATCH_PERCENT}% fewer than the limit. This scans and
+	 * sorts every connector once, and the room it makes means the next puts
+	 * don't need to.
+	 */
+	private void evictLeastRecentlyUsed() {
+		List<String> evictedTokens = new ArrayList<String>();
+		synchronized (this) {
+			// Another thread may have made room while this one waited.
+			if (connectors.size() <= maxConnectors) {
+				return;
+			}
+
+			List<Candidate> candidates = new ArrayList<Candidate>(
+					connectors.size());
+			for (Map.Entry<String, Entry> entry : connectors.entrySet()) {
+				long lastUsed = entry.getValue().connector.getLastUsed();
+				candidates.add(new Candidate(entry.getKey(), lastUsed));
+			}
+			Collections.sort(candidates);
+
+			int target = maxConnectors - maxConnectors
+					* EVICTION_BATCH_PERCENT / 100;
+			int excess = candidates.size() - target;
+			for (int i = 0; i < excess; i++) {
+				String key = candidates.get(i).key;
+				if (connectors.remove(key) != null
+						&& key.startsWith(TOKEN_PREFIX)) {
+					evictedTokens.add(key.substring(TOKEN_PREFIX.length()));
+				}
+			}
+		}
+
+		// Call the listener outside the lock since it calls back into the
+		// token strategy.
+		TokenEvictionListener listener = evictionListener;
+		if (listener != null) {
+			for (String token : evictedTokens) {
+				listener.tokenEvicted(token);
+			}
+		}
+	}
+}
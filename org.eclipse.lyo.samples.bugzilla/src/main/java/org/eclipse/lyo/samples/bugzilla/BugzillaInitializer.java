@@ -29,7 +29,6 @@ import net.oauth.OAuth;
 import net.oauth.OAuthException;
 import net.oauth.OAuthMessage;
 import net.oauth.OAuthProblemException;
-import net.oauth.server.OAuthServlet;
 
 import org.eclipse.lyo.samples.bugzilla.exception.BugzillaOAuthException;
 import org.eclipse.lyo.samples.bugzilla.exception.UnauthroziedException;
@@ -38,14 +37,13 @@ import org.eclipse.lyo.server.oauth.consumerstore.RdfConsumerStore;
 import org.eclipse.lyo.server.oauth.core.Application;
 import org.eclipse.lyo.server.oauth.core.AuthenticationException;
 import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthFilter;
 import org.eclipse.lyo.server.oauth.core.OAuthRequest;
-import org.eclipse.lyo.server.oauth.core.token.LRUCache;
 import org.eclipse.lyo.server.oauth.core.token.SimpleTokenStrategy;
 
 import com.j2bugzilla.base.BugzillaConnector;
 import com.j2bugzilla.base.BugzillaException;
 import com.j2bugzilla.base.ConnectionException;
-import com.j2bugzilla.rpc.LogIn;
 
 public class BugzillaInitializer implements ServletContextListener {
 	/**
@@ -61,11 +59,11 @@ public class BugzillaInitializer implements ServletContextListener {
 	private static String admin = null;
 	
 	/*
-	 * We can't rely on session tracking always working for OAuth requests, so store the BugzillaConnector in a map
-	 * with the OAuth token as the key.
+	 * We can't rely on session tracking always working for OAuth requests, so
+	 * keep the logged-in connectors by OAuth token as well as by user. Created
+	 * on first use since the tests call getBugzillaConnector() directly.
 	 */
-	private static LRUCache<String, BugzillaConnector> keyToConnectorCache = new LRUCache<String, BugzillaConnector>(
-			200);
+	private static BugzillaConnectorManager connectorManager = null;
 	
 	@Override
 	public void contextInitialized(ServletContextEvent event) {
@@ -77,10 +75,8 @@ public class BugzillaInitializer implements ServletContextListener {
 			public void login(HttpServletRequest request, String id,
 					String password) throws AuthenticationException {
 				try {
-					BugzillaConnector bc = new BugzillaConnector();
-					bc.connectTo(bugzillaUri + "/xmlrpc.cgi");
-					LogIn login = new LogIn(id, password);
-					bc.executeMethod(login);
+					BugzillaConnector bc = getConnectorManager().getConnector(
+							id, password);
 					request.setAttribute(CONNECTOR_ATTRIBUTE, bc);
 
 					request.getSession().setAttribute(ADMIN_SESSION_ATTRIBUTE,
@@ -129,18 +125,49 @@ public class BugzillaInitializer implements ServletContextListener {
 			public void markRequestTokenAuthorized(
 					HttpServletRequest httpRequest, String requestToken)
 					throws OAuthProblemException {
-				keyToConnectorCache.put(requestToken,
-						(BugzillaConnector) httpRequest.getAttribute(CONNECTOR_ATTRIBUTE));
 				super.markRequestTokenAuthorized(httpRequest, requestToken);
+				ManagedBugzillaConnector bc = (ManagedBugzillaConnector) httpRequest
+						.getAttribute(CONNECTOR_ATTRIBUTE);
+				if (bc != null) {
+					String consumerKey = getRequestTokenData(requestToken)
+							.getConsumerKey();
+					getConnectorManager().putConnector(requestToken,
+							consumerKey, bc);
+				}
 			}
 
 			@Override
 			public void generateAccessToken(OAuthRequest oAuthRequest)
 					throws OAuthProblemException, IOException {
 				String requestToken = oAuthRequest.getMessage().getToken();
-				BugzillaConnector bc = keyToConnectorCache.remove(requestToken);
 				super.generateAccessToken(oAuthRequest);
-				keyToConnectorCache.put(oAuthRequest.getAccessor().accessToken, bc);
+				ManagedBugzillaConnector bc = getConnectorManager()
+						.removeConnector(requestToken);
+				if (bc != null) {
+					getConnectorManager().putConnector(
+							oAuthRequest.getAccessor().accessToken,
+							oAuthRequest.getConsumer().consumerKey, bc);
+				}
+			}
+
+			@Override
+			public boolean revokeToken(String token)
+					throws OAuthProblemException {
+				getConnectorManager().removeConnector(token);
+				return super.revokeToken(token);
+			}
+
+			@Override
+			public void revokeConsumerTokens(String consumerKey)
+					throws OAuthProblemException {
+				super.revokeConsumerTokens(consumerKey);
+				getConnectorManager().removeConsumerConnectors(consumerKey);
+			}
+
+			@Override
+			public void revokeAllTokens() throws OAuthProblemException {
+				super.revokeAllTokens();
+				getConnectorManager().removeTokenConnectors();
 			}
 		});
 
@@ -155,6 +182,12 @@ public class BugzillaInitializer implements ServletContextListener {
 
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
+		synchronized (BugzillaInitializer.class) {
+			if (connectorManager != null) {
+				connectorManager.close();
+				connectorManager = null;
+			}
+		}
 	}
 	
     static {
@@ -177,17 +210,43 @@ public class BugzillaInitializer implements ServletContextListener {
         }
     }
 
+	/**
+	 * Gets the connector manager, creating it the first time.
+	 * 
+	 * @return the connector manager
+	 */
+	public static synchronized BugzillaConnectorManager getConnectorManager() {
+		if (connectorManager == null) {
+			connectorManager = new BugzillaConnectorManager(bugzillaUri
+					+ "/xmlrpc.cgi");
+
+			// A token can't be used without its connector, so revoke it
+			// rather than let the consumer keep a token that doesn't work.
+			connectorManager
+					.setTokenEvictionListener(new TokenEvictionListener() {
+						@Override
+						public void tokenEvicted(String token) {
+							try {
+								OAuthConfiguration.getInstance()
+										.getTokenStrategy().revokeToken(token);
+							} catch (OAuthException e) {
+								e.printStackTrace();
+							}
+						}
+					});
+		}
+
+		return connectorManager;
+	}
+
 	public static BugzillaConnector getBugzillaConnector(Credentials credentials)
 			throws ConnectionException, UnauthroziedException {
-		BugzillaConnector bc = new BugzillaConnector();
-		bc.connectTo(bugzillaUri + "/xmlrpc.cgi");
-		LogIn login = new LogIn(credentials.getUsername(), credentials.getPassword());
 		try {
-			bc.executeMethod(login);
+			return getConnectorManager().getConnector(
+					credentials.getUsername(), credentials.getPassword());
 		} catch (BugzillaException e) {
 			throw new UnauthroziedException(e.getCause().getMessage());
 		}
-		return bc;
 	}
 
 	public static BugzillaConnector getBugzillaConnector(
@@ -195,12 +254,15 @@ public class BugzillaInitializer implements ServletContextListener {
 			UnauthroziedException, IOException, ServletException {
 		// First check if this is an OAuth request.
 		try {
-			OAuthMessage message = OAuthServlet.getMessage(request, null);
+			OAuthMessage message = OAuthRequest.getOAuthMessage(request);
 			if (message.getToken() != null) {
-				OAuthRequest oAuthRequest = new OAuthRequest(request);
-				oAuthRequest.validate();
-				BugzillaConnector connector = keyToConnectorCache.get(message
-						.getToken());
+				// Skip validation if OAuthFilter has already done it.
+				if (OAuthFilter.getOAuthRequest(request) == null) {
+					OAuthRequest oAuthRequest = new OAuthRequest(request);
+					oAuthRequest.validate();
+				}
+				BugzillaConnector connector = getConnectorManager()
+						.getConnector(message.getToken());
 				if (connector == null) {
 					throw new OAuthProblemException(
 							OAuth.Problems.TOKEN_EXPIRED);
@@ -213,16 +275,20 @@ public class BugzillaInitializer implements ServletContextListener {
 		}
 		
 		// This is not an OAuth request. Check for basic access authentication.
+		// The manager only logs in again if the user's connector was evicted
+		// or the password changed.
 		HttpSession session = request.getSession();
-		BugzillaConnector connector = (BugzillaConnector) session
-				.getAttribute(CONNECTOR_ATTRIBUTE);
-		if (connector == null) {
-			Credentials credentials = HttpUtils.getCredentials(request);
-			if (credentials == null) {
-				throw new UnauthroziedException();
-			}
+		BugzillaConnector connector;
+		Credentials credentials = HttpUtils.getCredentials(request);
+		if (credentials != null) {
 			connector = getBugzillaConnector(credentials);
 			session.setAttribute(CONNECTOR_ATTRIBUTE, connector);
+		} else {
+			connector = (BugzillaConnector) session
+					.getAttribute(CONNECTOR_ATTRIBUTE);
+			if (connector == null) {
+				throw new UnauthroziedException();
+			}
 		}
 		
 		return connector;
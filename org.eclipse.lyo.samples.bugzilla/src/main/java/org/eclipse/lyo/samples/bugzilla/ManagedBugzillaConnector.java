@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.samples.bugzilla;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.j2bugzilla.base.BugzillaConnector;
+import com.j2bugzilla.base.BugzillaException;
+import com.j2bugzilla.base.BugzillaMethod;
+import com.j2bugzilla.base.ConnectionException;
+import com.j2bugzilla.rpc.LogIn;
+
+/**
+ * A connector logged in as one Bugzilla user. If Bugzilla forgets the login
+ * cookie, the connector logs in again and retries the method, so callers
+ * never see the expired session.
+ *
+ * <p>
+ * Calls are serialized because the cookie transport inside
+ * {@link BugzillaConnector} isn't thread-safe. Connectors for different
+ * users run in parallel.
+ *
+ * @see BugzillaConnectorManager
+ */
+public class ManagedBugzillaConnector extends BugzillaConnector {
+	/**
+	 * The XML-RPC fault code Bugzilla returns when the caller isn't logged
+	 * in.
+	 */
+	private static final int LOGIN_REQUIRED = 410;
+
+	private final String url;
+	private final String username;
+	private final String password;
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Creates a connector and logs in.
+	 *
+	 * @param url
+	 *            the Bugzilla XML-RPC URL
+	 * @param username
+	 *            the Bugzilla user
+	 * @param password
+	 *            the user's password
+	 * @throws ConnectionException
+	 *             if the URL is invalid
+	 * @throws BugzillaException
+	 *             if the login fails
+	 */
+	public ManagedBugzillaConnector(String url, String username,
+			String password) throws ConnectionException, BugzillaException {
+		this(url, username, password, true);
+	}
+
+	/**
+	 * Creates a connector. Tests skip the login so they don't need a Bugzilla
+	 * server.
+	 */
+	ManagedBugzillaConnector(String url, String username, String password,
+			boolean logIn) throws ConnectionException, BugzillaException {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		if (logIn) {
+			logIn();
+		}
+	}
+
+	@Override
+	public synchronized void executeMethod(BugzillaMethod method)
+			throws BugzillaException {
+		lastUsed = System.currentTimeMillis();
+		try {
+			execute(method);
+		} catch (BugzillaException e) {
+			if (!isLoginRequired(e)) {
+				throw e;
+			}
+
+			try {
+				logIn();
+			} catch (ConnectionException ce) {
+				throw new BugzillaException(ce.getMessage(), ce);
+			}
+			execute(method);
+		}
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Checks a password against the one this connector logged in with.
+	 *
+	 * @param password
+	 *            the password
+	 * @return true if the passwords match
+	 */
+	public boolean isPassword(String password) {
+		if (password == null) {
+			return false;
+		}
+
+		try {
+			// Compare in constant time.
+			return MessageDigest.isEqual(this.password.getBytes("UTF-8"),
+					password.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Gets when the connector was last used.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Starts a new session with Bugzilla. Connecting again drops the old
+	 * cookies.
+	 */
+	void logIn() throws ConnectionException, BugzillaException {
+		connectTo(url);
+		execute(new LogIn(username, password));
+	}
+
+	/**
+	 * Sends a method to Bugzilla without logging in again.
+	 */
+	void execute(BugzillaMethod method) throws BugzillaException {
+		super.executeMethod(method);
+	}
+
+	private static boolean isLoginRequired(BugzillaException e) {
+		Throwable cause = e.getCause();
+		return cause instanceof XmlRpcException
+				&& ((XmlRpcException) cause).code == LOGIN_REQUIRED;
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.samples.bugzilla;
+
+/**
+ * Told when {@link BugzillaConnectorManager} drops the connector for an OAuth
+ * token to make room for others. The token can't be used without its
+ * connector, so the listener should revoke it.
+ */
+public interface TokenEvictionListener {
+	/**
+	 * Called after the connector for a token is dropped.
+	 *
+	 * @param token
+	 *            the request token or access token
+	 */
+	public void tokenEvicted(String token);
+}
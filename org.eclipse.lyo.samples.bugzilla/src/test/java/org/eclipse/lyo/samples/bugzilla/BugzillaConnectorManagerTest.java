@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.samples.bugzilla;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.j2bugzilla.base.BugzillaException;
+import com.j2bugzilla.base.BugzillaMethod;
+import com.j2bugzilla.base.ConnectionException;
+
+/**
+ * Tests for {@link BugzillaConnectorManager} and
+ * {@link ManagedBugzillaConnector} without a Bugzilla server.
+ */
+public class BugzillaConnectorManagerTest extends TestCase {
+	private static final String URL = "http://localhost/xmlrpc.cgi";
+
+	/**
+	 * Counts logins instead of talking to Bugzilla. Each method fails with
+	 * the next fault in <code>faults</code>, or succeeds once there are none.
+	 */
+	private static class StubConnector extends ManagedBugzillaConnector {
+		final List<Integer> faults = new ArrayList<Integer>();
+		int logins = 0;
+		int executions = 0;
+
+		StubConnector(String username, String password)
+				throws ConnectionException, BugzillaException {
+			super(URL, username, password, false);
+		}
+
+		@Override
+		void logIn() {
+			logins++;
+		}
+
+		@Override
+		void execute(BugzillaMethod method) throws BugzillaException {
+			executions++;
+			if (!faults.isEmpty()) {
+				int code = faults.remove(0);
+				throw new BugzillaException("Fault " + code,
+						new XmlRpcException(code, "Fault " + code));
+			}
+		}
+	}
+
+	private static class StubManager extends BugzillaConnectorManager {
+		final List<String> evictedTokens = new ArrayList<String>();
+		volatile int connectorsCreated = 0;
+		volatile long loginTime = 0;
+
+		StubManager(long idleTimeout, int maxConnectors) {
+			super(URL, idleTimeout, maxConnectors);
+			setTokenEvictionListener(new TokenEvictionListener() {
+				@Override
+				public void tokenEvicted(String token) {
+					evictedTokens.add(token);
+				}
+			});
+		}
+
+		@Override
+		ManagedBugzillaConnector newConnector(String username, String password)
+				throws ConnectionException, BugzillaException {
+			connectorsCreated++;
+			if (loginTime > 0) {
+				try {
+					Thread.sleep(loginTime);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return new StubConnector(username, password);
+		}
+	}
+
+	private static final BugzillaMethod METHOD = new BugzillaMethod() {
+		@Override
+		public void setResultMap(Map<Object, Object> resultMap) {
+		}
+
+		@Override
+		public Map<Object, Object> getParameterMap() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public String getMethodName() {
+			return "Bugzilla.version";
+		}
+	};
+
+	private StubManager manager;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (manager != null) {
+			manager.close();
+		}
+	}
+
+	public void testUserConnectorIsReused() throws Exception {
+		manager = new StubManager(60 * 1000, 10);
+		ManagedBugzillaConnector connector = manager.getConnector("alice",
+				"secret");
+		assertSame(connector, manager.getConnector("alice", "secret"));
+		assertEquals(1, manager.connectorsCreated);
+
+		// A different password logs in again.
+		assertNotSame(connector, manager.getConnector("alice", "other"));
+		assertEquals(2, manager.connectorsCreated);
+	}
+
+	public void testConcurrentRequestsLogInOnce() throws Exception {
+		manager = new StubManager(60 * 1000, 10);
+		manager.loginTime = 100;
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<ManagedBugzillaConnector> found = new ArrayList<ManagedBugzillaConnector>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						ManagedBugzillaConnector connector = manager
+								.getConnector("alice", "secret");
+						synchronized (found) {
+							found.add(connector);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(1, manager.connectorsCreated);
+		assertEquals(8, found.size());
+		for (ManagedBugzillaConnector connector : found) {
+			assertSame(found.get(0), connector);
+		}
+	}
+
+	public void testIdleEvictionKeepsTokenConnectors() throws Exception {
+		manager = new StubManager(20, 10);
+		ManagedBugzillaConnector connector = manager.getConnector("alice",
+				"secret");
+		manager.putConnector("token", "consumer", connector);
+
+		Thread.sleep(50);
+		manager.evictIdle();
+
+		// The token still works, but basic auth logs in again.
+		assertSame(connector, manager.getConnector("token"));
+		assertTrue(manager.evictedTokens.isEmpty());
+		assertNotSame(connector, manager.getConnector("alice", "secret"));
+		assertEquals(2, manager.connectorsCreated);
+	}
+
+	public void testLeastRecentlyUsedTokenIsEvicted() throws Exception {
+		manager = new StubManager(60 * 1000, 2);
+		ManagedBugzillaConnector alice = new StubConnector("alice", "secret");
+		Thread.sleep(5);
+		ManagedBugzillaConnector bob = new StubConnector("bob", "secret");
+		Thread.sleep(5);
+		ManagedBugzillaConnector carol = new StubConnector("carol", "secret");
+
+		manager.putConnector("token1", "consumer", alice);
+		manager.putConnector("token2", "consumer", bob);
+		manager.putConnector("token3", "consumer", carol);
+
+		assertNull(manager.getConnector("token1"));
+		assertSame(bob, manager.getConnector("token2"));
+		assertSame(carol, manager.getConnector("token3"));
+		assertEquals(Collections.singletonList("token1"), manager.evictedTokens);
+	}
+
+	public void testEvictionMakesRoomForMore() throws Exception {
+		manager = new StubManager(60 * 1000, 10);
+		for (int i = 0; i < 12; i++) {
+			manager.putConnector("token" + i, "consumer", new StubConnector(
+					"user" + i, "secret"));
+			Thread.sleep(2);
+		}
+
+		// Passing the limit drops down to 9, so the 12th token still fits.
+		assertEquals(Arrays.asList("token0", "token1"), manager.evictedTokens);
+		for (int i = 2; i < 12; i++) {
+			assertNotNull(manager.getConnector("token" + i));
+		}
+	}
+
+	public void testRemoveConsumerConnectors() throws Exception {
+		manager = new StubManager(60 * 1000, 10);
+		ManagedBugzillaConnector connector = manager.getConnector("alice",
+				"secret");
+		manager.putConnector("token1", "consumer", connector);
+		manager.putConnector("token2", "other", connector);
+
+		manager.removeConsumerConnectors("consumer");
+		assertNull(manager.getConnector("token1"));
+		assertSame(connector, manager.getConnector("token2"));
+		assertSame(connector, manager.getConnector("alice", "secret"));
+	}
+
+	public void testLogsInAgainWhenSessionExpires() throws Exception {
+		StubConnector connector = new StubConnector("alice", "secret");
+		connector.faults.add(410);
+		connector.executeMethod(METHOD);
+		assertEquals(1, connector.logins);
+		assertEquals(2, connector.executions);
+	}
+
+	public void testOtherFaultsAreNotRetried() throws Exception {
+		StubConnector connector = new StubConnector("alice", "secret");
+		connector.faults.add(51);
+		try {
+			connector.executeMethod(METHOD);
+			fail("Fault was not reported.");
+		} catch (BugzillaException e) {
+			// Expected.
+		}
+		assertEquals(0, connector.logins);
+		assertEquals(1, connector.executions);
+	}
+
+	public void testLoginFailureIsReported() throws Exception {
+		StubConnector connector = new StubConnector("alice", "secret");
+		connector.faults.add(410);
+		connector.faults.add(410);
+		try {
+			connector.executeMethod(METHOD);
+			fail("Second login failure was not reported.");
+		} catch (BugzillaException e) {
+			// Expected.
+		}
+		assertEquals(1, connector.logins);
+		assertEquals(2, connector.executions);
+	}
+}
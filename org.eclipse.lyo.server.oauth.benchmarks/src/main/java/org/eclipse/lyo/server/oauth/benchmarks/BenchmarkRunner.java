@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all benchmarks with 1, 8, 32, and 128 threads and writes the results
+ * of every run to one JSON file.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * mvn package
+ * java -jar target/benchmarks.jar [result file] [benchmark regex]
+ * </pre>
+ *
+ * The result file defaults to <code>oauth-benchmarks.json</code>. The thread
+ * counts can be changed with <code>-Dthreads=1,4</code>. Each result in the
+ * file records its thread count, so results from different releases can be
+ * compared with any JMH result viewer or a script.
+ */
+public class BenchmarkRunner {
+	public static final String DEFAULT_RESULT_FILE = "oauth-benchmarks.json";
+	public static final String DEFAULT_THREADS = "1,8,32,128";
+
+	public static void main(String[] args) throws Exception {
+		String resultFile = (args.length > 0) ? args[0] : DEFAULT_RESULT_FILE;
+		String include = (args.length > 1) ? args[1] : BenchmarkRunner.class
+				.getPackage().getName() + "\\..*Benchmark";
+
+		List<RunResult> results = new ArrayList<RunResult>();
+		for (String threads : System.getProperty("threads", DEFAULT_THREADS)
+				.split(",")) {
+			Options options = new OptionsBuilder().include(include)
+					.threads(Integer.parseInt(threads.trim())).forks(1)
+					.warmupIterations(5).warmupTime(TimeValue.seconds(1))
+					.measurementIterations(5)
+					.measurementTime(TimeValue.seconds(1)).build();
+			results.addAll(new Runner(options).run());
+		}
+
+		ResultFormatFactory.getInstance(ResultFormatType.JSON, resultFile)
+				.writeOut(results);
+		System.out.println("Wrote " + results.size() + " results to "
+				+ resultFile);
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures consumer lookups, which happen on every signed request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConsumerStoreBenchmark {
+	private AbstractConsumerStore store;
+	private String[] keys = new String[OAuthFixture.CONSUMER_COUNT];
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		store = OAuthFixture.install("simple");
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "consumer" + i;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = (int) Thread.currentThread().getId() * 31;
+	}
+
+	@Benchmark
+	public LyoOAuthConsumer getConsumer(Cursor cursor) {
+		int i = cursor.next++ % keys.length;
+		if (i < 0) {
+			i += keys.length;
+		}
+		return store.getConsumer(keys[i]);
+	}
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A minimal in-memory {@link HttpServletRequest} with just enough behavior for
+ * the OAuth provider: method, URL, headers, parameters, and attributes.
+ * Anything else returns null, false, or 0.
+ */
+public class MockHttpServletRequest implements InvocationHandler {
+	private final String method;
+	private final String url;
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	private MockHttpServletRequest(String method, String url) {
+		this.method = method;
+		this.url = url;
+	}
+
+	/**
+	 * Creates a request.
+	 *
+	 * @param method
+	 *            the HTTP method
+	 * @param url
+	 *            the request URL without a query
+	 * @param authorization
+	 *            the Authorization header or null
+	 * @param parameters
+	 *            the query or form parameters
+	 * @return the request
+	 */
+	public static HttpServletRequest newRequest(String method, String url,
+			String authorization, Map<String, String> parameters) {
+		MockHttpServletRequest handler = new MockHttpServletRequest(method,
+				url);
+		if (authorization != null) {
+			handler.headers.put("Authorization", authorization);
+		}
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			handler.parameters.put(parameter.getKey(),
+					new String[] { parameter.getValue() });
+		}
+
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, handler);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method m, Object[] args) {
+		String name = m.getName();
+		if ("getMethod".equals(name)) {
+			return method;
+		}
+		if ("getRequestURL".equals(name)) {
+			return new StringBuffer(url);
+		}
+		if ("getHeader".equals(name)) {
+			return headers.get(args[0]);
+		}
+		if ("getHeaders".equals(name)) {
+			String value = headers.get(args[0]);
+			return Collections.enumeration((value == null) ? Collections
+					.<String> emptyList() : Collections.singletonList(value));
+		}
+		if ("getHeaderNames".equals(name)) {
+			return Collections.enumeration(headers.keySet());
+		}
+		if ("getParameterMap".equals(name)) {
+			return parameters;
+		}
+		if ("getParameter".equals(name)) {
+			String[] values = parameters.get(args[0]);
+			return (values == null) ? null : values[0];
+		}
+		if ("getParameterValues".equals(name)) {
+			return parameters.get(args[0]);
+		}
+		if ("getParameterNames".equals(name)) {
+			return Collections.enumeration(parameters.keySet());
+		}
+		if ("getAttribute".equals(name)) {
+			return attributes.get(args[0]);
+		}
+		if ("setAttribute".equals(name)) {
+			attributes.put((String) args[0], args[1]);
+			return null;
+		}
+		if ("removeAttribute".equals(name)) {
+			attributes.remove(args[0]);
+			return null;
+		}
+		if ("getRemoteAddr".equals(name) || "getRemoteHost".equals(name)) {
+			return "127.0.0.1";
+		}
+		if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+		if ("toString".equals(name)) {
+			return method + " " + url;
+		}
+
+		Class<?> type = m.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthMessage;
+
+import org.eclipse.lyo.server.oauth.core.LyoOAuthValidator;
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.ConcurrentTokenStrategy;
+import org.eclipse.lyo.server.oauth.core.token.SimpleTokenStrategy;
+import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
+
+/**
+ * Sets up the {@link OAuthConfiguration} with an in-memory consumer store and
+ * creates signed requests for the benchmarks.
+ */
+public class OAuthFixture {
+	public static final String URL = "http://localhost:8080/oauth/hello";
+	public static final int CONSUMER_COUNT = 10000;
+
+	/*
+	 * The token strategies' default limits.
+	 */
+	private static final int REQUEST_TOKEN_MAX_COUNT = 500;
+	private static final int ACCESS_TOKEN_MAX_COUNT = 5000;
+
+	/**
+	 * A consumer store that only keeps consumers in memory.
+	 */
+	public static class MemoryConsumerStore extends AbstractConsumerStore {
+		@Override
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		@Override
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		@Override
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	/**
+	 * Configures the OAuth provider for a benchmark.
+	 *
+	 * @param tokenStrategy
+	 *            "simple" for {@link SimpleTokenStrategy} or "concurrent" for
+	 *            {@link ConcurrentTokenStrategy}
+	 * @return the consumer store
+	 * @throws ConsumerStoreException
+	 *             on errors setting the consumer store
+	 */
+	public static MemoryConsumerStore install(String tokenStrategy)
+			throws ConsumerStoreException {
+		return install(tokenStrategy, REQUEST_TOKEN_MAX_COUNT);
+	}
+
+	/**
+	 * Installs the consumers and a token strategy that keeps up to
+	 * <code>requestTokenMaxCount</code> request tokens. Benchmarks that
+	 * create request tokens ahead of time need room for all of them.
+	 *
+	 * @param tokenStrategy
+	 *            "simple" for {@link SimpleTokenStrategy} or "concurrent" for
+	 *            {@link ConcurrentTokenStrategy}
+	 * @param requestTokenMaxCount
+	 *            the most request tokens the strategy keeps
+	 * @return the consumer store
+	 * @throws ConsumerStoreException
+	 *             on errors setting the consumer store
+	 */
+	public static MemoryConsumerStore install(String tokenStrategy,
+			int requestTokenMaxCount) throws ConsumerStoreException {
+		MemoryConsumerStore store = new MemoryConsumerStore();
+		for (int i = 0; i < CONSUMER_COUNT; i++) {
+			store.addConsumer(newConsumer(i));
+		}
+
+		OAuthConfiguration config = OAuthConfiguration.getInstance();
+		config.setConsumerStore(store);
+		config.setValidator(new LyoOAuthValidator());
+		if ("concurrent".equals(tokenStrategy)) {
+			config.setTokenStrategy(new ConcurrentTokenStrategy(
+					requestTokenMaxCount,
+					ACCESS_TOKEN_MAX_COUNT));
+		} else {
+			config.setTokenStrategy(new SimpleTokenStrategy(
+					requestTokenMaxCount,
+					ACCESS_TOKEN_MAX_COUNT));
+		}
+
+		return store;
+	}
+
+	public static LyoOAuthConsumer newConsumer(int i) {
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer("consumer" + i,
+				"secret" + i);
+		consumer.setName("Consumer " + i);
+		consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
+		return consumer;
+	}
+
+	/**
+	 * Creates an unsigned request that only carries the consumer key and
+	 * optionally a token, like the requests the token endpoints see after
+	 * validation.
+	 *
+	 * @param consumerKey
+	 *            the consumer key
+	 * @param token
+	 *            the token or null
+	 * @return the request
+	 */
+	public static HttpServletRequest newTokenRequest(String consumerKey,
+			String token) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(OAuth.OAUTH_CONSUMER_KEY, consumerKey);
+		if (token != null) {
+			parameters.put(OAuth.OAUTH_TOKEN, token);
+		}
+
+		return MockHttpServletRequest.newRequest("POST", URL, null,
+				parameters);
+	}
+
+	/**
+	 * Creates a request signed with HMAC-SHA1 in the Authorization header.
+	 * Each call uses a new nonce.
+	 *
+	 * @param consumer
+	 *            a consumer from {@link #newConsumer(int)}
+	 * @param accessToken
+	 *            the access token
+	 * @param tokenSecret
+	 *            the access token secret
+	 * @return the request
+	 * @throws Exception
+	 *             on errors signing the request
+	 */
+	public static HttpServletRequest newSignedRequest(
+			LyoOAuthConsumer consumer, String accessToken, String tokenSecret)
+			throws Exception {
+		OAuthAccessor accessor = new OAuthAccessor(consumer);
+		accessor.accessToken = accessToken;
+		accessor.tokenSecret = tokenSecret;
+		OAuthMessage message = accessor.newRequestMessage(OAuthMessage.GET,
+				URL, Collections.<Map.Entry<String, String>> emptyList());
+
+		return MockHttpServletRequest.newRequest(OAuthMessage.GET, URL,
+				message.getAuthorizationHeader(null),
+				Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Goes through the OAuth dance to get an authorized request token.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 * @return the request token
+	 * @throws Exception
+	 *             on OAuth errors
+	 */
+	public static String newAuthorizedRequestToken(LyoOAuthConsumer consumer)
+			throws Exception {
+		TokenStrategy strategy = OAuthConfiguration.getInstance()
+				.getTokenStrategy();
+		HttpServletRequest httpRequest = newTokenRequest(consumer.consumerKey,
+				null);
+		OAuthRequest oAuthRequest = new OAuthRequest(httpRequest);
+		strategy.generateRequestToken(oAuthRequest);
+		String requestToken = oAuthRequest.getAccessor().requestToken;
+		strategy.markRequestTokenAuthorized(httpRequest, requestToken);
+
+		return requestToken;
+	}
+
+	/**
+	 * Goes through the OAuth dance to get an access token.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 * @return the accessor with the access token and secret
+	 * @throws Exception
+	 *             on OAuth errors
+	 */
+	public static OAuthAccessor newAccessToken(LyoOAuthConsumer consumer)
+			throws Exception {
+		String requestToken = newAuthorizedRequestToken(consumer);
+		OAuthRequest oAuthRequest = new OAuthRequest(newTokenRequest(
+				consumer.consumerKey, requestToken));
+		OAuthConfiguration.getInstance().getTokenStrategy()
+				.generateAccessToken(oAuthRequest);
+
+		return oAuthRequest.getAccessor();
+	}
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.oauth.OAuthAccessor;
+
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing and validating a signed request for a protected resource.
+ *
+ * <p>
+ * A nonce can only be used once, so each thread signs a batch of
+ * {@value #BATCH_SIZE} requests before each iteration and uses them in order.
+ * Signing happens outside the measured time, and the results are the time to
+ * parse or validate the whole batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(batchSize = OAuthRequestBenchmark.BATCH_SIZE)
+@Measurement(batchSize = OAuthRequestBenchmark.BATCH_SIZE)
+public class OAuthRequestBenchmark {
+	/**
+	 * The number of requests each thread uses per iteration.
+	 */
+	public static final int BATCH_SIZE = 1000;
+
+	private LyoOAuthConsumer consumer;
+	private OAuthAccessor accessor;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		consumer = OAuthFixture.install("simple").getConsumer("consumer0");
+		accessor = OAuthFixture.newAccessToken(consumer);
+	}
+
+	/**
+	 * Newly signed requests for one iteration, each used once.
+	 */
+	@State(Scope.Thread)
+	public static class SignedRequests {
+		HttpServletRequest[] requests = new HttpServletRequest[BATCH_SIZE];
+		int next;
+
+		@Setup(Level.Iteration)
+		public void sign(OAuthRequestBenchmark benchmark) throws Exception {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				requests[i] = OAuthFixture.newSignedRequest(benchmark.consumer,
+						benchmark.accessor.accessToken,
+						benchmark.accessor.tokenSecret);
+			}
+			next = 0;
+		}
+
+		HttpServletRequest next() {
+			return requests[next++];
+		}
+	}
+
+	@Benchmark
+	public OAuthRequest newOAuthRequest(SignedRequests state) throws Exception {
+		return new OAuthRequest(state.next());
+	}
+
+	@Benchmark
+	public OAuthRequest validate(SignedRequests state) throws Exception {
+		OAuthRequest oAuthRequest = new OAuthRequest(state.next());
+		oAuthRequest.validate();
+		return oAuthRequest;
+	}
+}
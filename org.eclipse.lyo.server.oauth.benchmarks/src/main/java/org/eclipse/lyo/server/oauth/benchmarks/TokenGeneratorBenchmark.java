@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lyo.server.oauth.core.token.RandomTokenGenerator;
+import org.eclipse.lyo.server.oauth.core.token.TokenGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures generating token strings. "uuid" is how tokens were generated
+ * before {@link RandomTokenGenerator}, with one {@link java.security.SecureRandom}
+ * shared by all threads. Run with more threads to see how each scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenGeneratorBenchmark {
+	@Param({ "uuid", "random" })
+	public String tokenGenerator;
+
+	private TokenGenerator generator;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if ("uuid".equals(tokenGenerator)) {
+			generator = new TokenGenerator() {
+				public String generateToken() {
+					return UUID.randomUUID().toString();
+				}
+			};
+		} else {
+			generator = new RandomTokenGenerator();
+		}
+	}
+
+	@Benchmark
+	public String generateToken() {
+		return generator.generateToken();
+	}
+}
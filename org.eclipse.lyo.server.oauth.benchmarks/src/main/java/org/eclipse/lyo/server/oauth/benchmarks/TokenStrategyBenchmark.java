@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Measures issuing tokens and looking up token secrets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenStrategyBenchmark {
+	private static final int ACCESS_TOKEN_COUNT = 1024;
+
+	/**
+	 * The number of request tokens each thread exchanges per iteration.
+	 */
+	public static final int BATCH_SIZE = 1000;
+
+	@Param({ "simple", "concurrent" })
+	public String tokenStrategy;
+
+	private TokenStrategy strategy;
+	private LyoOAuthConsumer consumer;
+	private String[] accessTokens = new String[ACCESS_TOKEN_COUNT];
+	private HttpServletRequest httpRequest;
+
+	@Setup(Level.Trial)
+	public void setUp(BenchmarkParams params) throws Exception {
+		// Leave room for every thread's batch of authorized request tokens.
+		int requestTokenMaxCount = 2 * BATCH_SIZE * params.getThreads();
+		consumer = OAuthFixture.install(tokenStrategy, requestTokenMaxCount)
+				.getConsumer("consumer0");
+		strategy = OAuthConfiguration.getInstance().getTokenStrategy();
+		for (int i = 0; i < ACCESS_TOKEN_COUNT; i++) {
+			accessTokens[i] = OAuthFixture.newAccessToken(consumer).accessToken;
+		}
+		httpRequest = OAuthFixture.newTokenRequest(consumer.consumerKey, null);
+	}
+
+	@State(Scope.Thread)
+	public static class RequestTokenRequest {
+		OAuthRequest oAuthRequest;
+
+		@Setup(Level.Trial)
+		public void setUp(TokenStrategyBenchmark benchmark) throws Exception {
+			oAuthRequest = new OAuthRequest(OAuthFixture.newTokenRequest(
+					benchmark.consumer.consumerKey, null));
+		}
+	}
+
+	/**
+	 * Requests with newly authorized request tokens for one iteration, each
+	 * used once since a request token can only be exchanged once.
+	 */
+	@State(Scope.Thread)
+	public static class AccessTokenRequests {
+		OAuthRequest[] oAuthRequests = new OAuthRequest[BATCH_SIZE];
+		int next;
+
+		@Setup(Level.Iteration)
+		public void setUp(TokenStrategyBenchmark benchmark) throws Exception {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				String requestToken = OAuthFixture
+						.newAuthorizedRequestToken(benchmark.consumer);
+				oAuthRequests[i] = new OAuthRequest(
+						OAuthFixture.newTokenRequest(
+								benchmark.consumer.consumerKey, requestToken));
+			}
+			next = 0;
+		}
+
+		OAuthRequest next() {
+			return oAuthRequests[next++];
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = (int) Thread.currentThread().getId() * 31;
+	}
+
+	@Benchmark
+	public String generateRequestToken(RequestTokenRequest state)
+			throws Exception {
+		strategy.generateRequestToken(state.oAuthRequest);
+		return state.oAuthRequest.getAccessor().requestToken;
+	}
+
+	/**
+	 * Exchanges a batch of {@value #BATCH_SIZE} request tokens. The request
+	 * tokens are authorized before each iteration outside the measured time.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(batchSize = BATCH_SIZE)
+	@Measurement(batchSize = BATCH_SIZE)
+	public String generateAccessToken(AccessTokenRequests state)
+			throws Exception {
+		OAuthRequest oAuthRequest = state.next();
+		strategy.generateAccessToken(oAuthRequest);
+		return oAuthRequest.getAccessor().accessToken;
+	}
+
+	@Benchmark
+	public String getTokenSecret(Cursor cursor) throws Exception {
+		String token = accessTokens[cursor.next++ & (ACCESS_TOKEN_COUNT - 1)];
+		return strategy.getTokenSecret(httpRequest, token);
+	}
+}
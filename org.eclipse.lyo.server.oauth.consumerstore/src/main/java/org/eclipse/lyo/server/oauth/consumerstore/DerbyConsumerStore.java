@@ -0,0 +1,722 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.consumerstore;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+
+import org.apache.log4j.Logger;
+import org.eclipse.lyo.server.oauth.core.NegativeCache;
+import org.eclipse.lyo.server.oauth.core.consumer.BatchConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerQuery;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreListener;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.consumer.ObservableConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.QueryableConsumerStore;
+import org.eclipse.lyo.server.oauth.core.token.StripedLRUCache;
+
+/**
+ * A consumer store backed by a table in an embedded Derby database. The
+ * table's primary key is the consumer key, so adding, updating, or removing
+ * a consumer only touches one row through the index, no matter how many
+ * consumers there are.
+ *
+ * <p>
+ * By default, all consumers are read with one query when the store is
+ * created. In lazy mode, consumers are instead read from the table the first
+ * time they are asked for. This keeps startup fast when there are many
+ * provisional consumers that are rarely used. Only the most recently used
+ * consumers are kept in memory, {@value #DEFAULT_MAX_CACHED} unless another
+ * limit is given, and the others are read again when they are next asked
+ * for. Keys that aren't in the table are also remembered for
+ * {@value #MISSING_TIME_TO_LIVE} ms, so requests with unknown consumer keys
+ * don't each wait for a query.
+ *
+ * <p>
+ * Pages of consumers for {@link #getConsumers(ConsumerQuery)} are always read
+ * from the table, so paging works the same in both modes.
+ *
+ * <p>
+ * This store doesn't read the consumers saved by {@link RdfConsumerStore}.
+ * Switching stores drops the registered consumers unless they are copied
+ * with {@link #importConsumers(ConsumerStore)} first:
+ *
+ * <pre>
+ * DerbyConsumerStore store = new DerbyConsumerStore();
+ * store.importConsumers(new RdfConsumerStore());
+ * </pre>
+ */
+public class DerbyConsumerStore implements BatchConsumerStore,
+		QueryableConsumerStore, ObservableConsumerStore {
+	protected final static String DB_URL = "jdbc:derby:consumerStore;create=true";
+	protected final static String TABLE = "OAUTH_CONSUMERS";
+
+	private final static String CREATE_TABLE = "CREATE TABLE " + TABLE
+			+ " (CONSUMER_KEY VARCHAR(512) NOT NULL PRIMARY KEY,"
+			+ " CONSUMER_SECRET VARCHAR(512) NOT NULL,"
+			+ " CONSUMER_NAME VARCHAR(1024),"
+			+ " PROVISIONAL SMALLINT NOT NULL,"
+			+ " TRUSTED SMALLINT NOT NULL,"
+			+ " X509_CERTIFICATE VARCHAR(8192))";
+	private final static String ADD_CERTIFICATE_COLUMN = "ALTER TABLE "
+			+ TABLE + " ADD COLUMN X509_CERTIFICATE VARCHAR(8192)";
+	private final static String COLUMNS = "CONSUMER_KEY, CONSUMER_SECRET, CONSUMER_NAME, PROVISIONAL, TRUSTED, X509_CERTIFICATE";
+	private final static String SELECT_ALL = "SELECT " + COLUMNS + " FROM "
+			+ TABLE;
+	private final static String SELECT = SELECT_ALL + " WHERE CONSUMER_KEY = ?";
+	private final static String INSERT = "INSERT INTO " + TABLE + " ("
+			+ COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?)";
+	private final static String UPDATE = "UPDATE " + TABLE
+			+ " SET CONSUMER_SECRET = ?, CONSUMER_NAME = ?, PROVISIONAL = ?,"
+			+ " TRUSTED = ?, X509_CERTIFICATE = ? WHERE CONSUMER_KEY = ?";
+	private final static String DELETE = "DELETE FROM " + TABLE
+			+ " WHERE CONSUMER_KEY = ?";
+	private final static String SORT_NAME = "COALESCE(CONSUMER_NAME, '')";
+
+	/**
+	 * How many unknown consumer keys are remembered in lazy mode.
+	 */
+	public final static int MISSING_MAX = 10000;
+
+	/**
+	 * How long an unknown consumer key is remembered in lazy mode (1 minute).
+	 * Consumers added through this store are found right away.
+	 */
+	public final static long MISSING_TIME_TO_LIVE = 60 * 1000;
+
+	/**
+	 * How many consumers are kept in memory in lazy mode unless another limit
+	 * is given.
+	 */
+	public final static int DEFAULT_MAX_CACHED = 10000;
+
+	private Logger logger = Logger.getLogger(DerbyConsumerStore.class);
+
+	private final Connection connection;
+	private final boolean lazy;
+
+	/*
+	 * Every consumer in eager mode, or null in lazy mode. All access to the
+	 * connection is synchronized on this store.
+	 */
+	private final ConcurrentMap<String, LyoOAuthConsumer> consumers;
+
+	// The most recently used consumers in lazy mode, or null in eager mode.
+	private final StripedLRUCache<String, LyoOAuthConsumer> cached;
+
+	// Keys recently looked up and not found in lazy mode.
+	private final NegativeCache missing = new NegativeCache(MISSING_MAX,
+			MISSING_TIME_TO_LIVE);
+
+	private final List<ConsumerStoreListener> listeners = new CopyOnWriteArrayList<ConsumerStoreListener>();
+
+	/**
+	 * Creates a store in the default embedded Derby database and reads all
+	 * consumers.
+	 *
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public DerbyConsumerStore() throws ConsumerStoreException {
+		this(DB_URL, false);
+	}
+
+	/**
+	 * Creates a store.
+	 *
+	 * @param url
+	 *            the JDBC URL of the database
+	 * @param lazy
+	 *            true to read consumers when they are first used, false to
+	 *            read all consumers now
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public DerbyConsumerStore(String url, boolean lazy)
+			throws ConsumerStoreException {
+		this(openConnection(url), lazy, DEFAULT_MAX_CACHED);
+	}
+
+	/**
+	 * Creates a store.
+	 *
+	 * @param url
+	 *            the JDBC URL of the database
+	 * @param lazy
+	 *            true to read consumers when they are first used, false to
+	 *            read all consumers now
+	 * @param maxCached
+	 *            how many consumers to keep in memory in lazy mode. Ignored
+	 *            in eager mode.
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public DerbyConsumerStore(String url, boolean lazy, int maxCached)
+			throws ConsumerStoreException {
+		this(openConnection(url), lazy, maxCached);
+	}
+
+	/**
+	 * Creates a store using an open connection. The store takes over the
+	 * connection and closes it in {@link #close()}.
+	 *
+	 * @param connection
+	 *            the database connection
+	 * @param lazy
+	 *            true to read consumers when they are first used, false to
+	 *            read all consumers now
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public DerbyConsumerStore(Connection connection, boolean lazy)
+			throws ConsumerStoreException {
+		this(connection, lazy, DEFAULT_MAX_CACHED);
+	}
+
+	/**
+	 * Creates a store using an open connection. The store takes over the
+	 * connection and closes it in {@link #close()}.
+	 *
+	 * @param connection
+	 *            the database connection
+	 * @param lazy
+	 *            true to read consumers when they are first used, false to
+	 *            read all consumers now
+	 * @param maxCached
+	 *            how many consumers to keep in memory in lazy mode. Ignored
+	 *            in eager mode.
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public DerbyConsumerStore(Connection connection, boolean lazy,
+			int maxCached) throws ConsumerStoreException {
+		this.connection = connection;
+		this.lazy = lazy;
+		if (lazy) {
+			this.consumers = null;
+			this.cached = new StripedLRUCache<String, LyoOAuthConsumer>(
+					maxCached);
+		} else {
+			this.consumers = new ConcurrentHashMap<String, LyoOAuthConsumer>();
+			this.cached = null;
+		}
+		try {
+			createTable();
+			if (!lazy) {
+				loadConsumers();
+			}
+		} catch (SQLException e) {
+			throw new ConsumerStoreException(e);
+		}
+	}
+
+	private static Connection openConnection(String url)
+			throws ConsumerStoreException {
+		try {
+			Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+			return DriverManager.getConnection(url);
+		} catch (Exception e) {
+			throw new ConsumerStoreException(
+					"Could not open the OAuth consumer store.", e);
+		}
+	}
+
+	protected synchronized void createTable() throws SQLException {
+		ResultSet tables = connection.getMetaData().getTables(null, null,
+				TABLE, null);
+		try {
+			if (tables.next()) {
+				addCertificateColumn();
+				return;
+			}
+		} finally {
+			tables.close();
+		}
+
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(CREATE_TABLE);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/*
+	 * Tables created before RSA-SHA1 support have no certificate column.
+	 */
+	private void addCertificateColumn() throws SQLException {
+		ResultSet columns = connection.getMetaData().getColumns(null, null,
+				TABLE, "X509_CERTIFICATE");
+		try {
+			if (columns.next()) {
+				return;
+			}
+		} finally {
+			columns.close();
+		}
+
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(ADD_CERTIFICATE_COLUMN);
+		} finally {
+			statement.close();
+		}
+	}
+
+	protected synchronized void loadConsumers() throws SQLException {
+		for (LyoOAuthConsumer consumer : selectAll()) {
+			consumers.put(consumer.consumerKey, consumer);
+		}
+	}
+
+	/**
+	 * Closes the database connection.
+	 *
+	 * @throws ConsumerStoreException
+	 *             on database errors
+	 */
+	public synchronized void close() throws ConsumerStoreException {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			throw new ConsumerStoreException(e);
+		}
+	}
+
+	public LyoOAuthConsumer getConsumer(OAuthMessage requestMessage)
+			throws OAuthException, IOException, ConsumerStoreException {
+		requestMessage.requireParameters(OAuth.OAUTH_CONSUMER_KEY);
+		return getConsumer(requestMessage.getConsumerKey());
+	}
+
+	public LyoOAuthConsumer getConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		if (consumerKey == null) {
+			return null;
+		}
+
+		LyoOAuthConsumer consumer = loaded(consumerKey);
+		if (consumer != null || !lazy || missing.contains(consumerKey)) {
+			return consumer;
+		}
+
+		synchronized (this) {
+			consumer = loaded(consumerKey);
+			if (consumer != null) {
+				return consumer;
+			}
+
+			try {
+				consumer = select(consumerKey);
+			} catch (SQLException e) {
+				throw new ConsumerStoreException(e);
+			}
+
+			if (consumer != null) {
+				cached.put(consumerKey, consumer);
+			} else {
+				missing.add(consumerKey);
+			}
+
+			return consumer;
+		}
+	}
+
+	/**
+	 * Gets all consumers. The collection is a snapshot and won't change if
+	 * consumers are added or removed later. In lazy mode, this reads the
+	 * whole table.
+	 */
+	public Collection<LyoOAuthConsumer> getAllConsumers()
+			throws ConsumerStoreException {
+		if (!lazy) {
+			return Collections
+					.unmodifiableList(new ArrayList<LyoOAuthConsumer>(
+							consumers.values()));
+		}
+
+		synchronized (this) {
+			try {
+				return Collections.unmodifiableList(useLoaded(selectAll()));
+			} catch (SQLException e) {
+				throw new ConsumerStoreException(e);
+			}
+		}
+	}
+
+	/**
+	 * Gets a page of consumers with one query. Only the consumers on the page
+	 * are read.
+	 */
+	public synchronized List<LyoOAuthConsumer> getConsumers(
+			ConsumerQuery query) throws ConsumerStoreException {
+		StringBuilder sql = new StringBuilder(SELECT_ALL)
+				.append(" WHERE 1 = 1");
+		List<Object> parameters = new ArrayList<Object>();
+		if (query.getProvisional() != null) {
+			sql.append(" AND PROVISIONAL = ?");
+			parameters.add(toSmallInt(query.getProvisional()));
+		}
+		if (query.getTrusted() != null) {
+			sql.append(" AND TRUSTED = ?");
+			parameters.add(toSmallInt(query.getTrusted()));
+		}
+		if (query.getNamePrefix() != null) {
+			sql.append(" AND CONSUMER_NAME LIKE ? ESCAPE '\\'");
+			parameters.add(escapeLike(query.getNamePrefix()) + "%");
+		}
+
+		String after = query.isDescending() ? " < ?" : " > ?";
+		String direction = query.isDescending() ? " DESC" : " ASC";
+		boolean byName = (query.getSort() == ConsumerQuery.Sort.NAME);
+		if (query.getAfterKey() != null) {
+			if (byName) {
+				sql.append(" AND (" + SORT_NAME + after + " OR (" + SORT_NAME
+						+ " = ? AND CONSUMER_KEY" + after + "))");
+				parameters.add(query.getAfterName());
+				parameters.add(query.getAfterName());
+			} else {
+				sql.append(" AND CONSUMER_KEY" + after);
+			}
+			parameters.add(query.getAfterKey());
+		}
+
+		sql.append(" ORDER BY ");
+		if (byName) {
+			sql.append(SORT_NAME + direction + ", ");
+		}
+		sql.append("CONSUMER_KEY" + direction);
+
+		try {
+			List<LyoOAuthConsumer> page = new ArrayList<LyoOAuthConsumer>();
+			PreparedStatement select = connection.prepareStatement(sql
+					.toString());
+			try {
+				for (int i = 0; i < parameters.size(); i++) {
+					select.setObject(i + 1, parameters.get(i));
+				}
+				select.setMaxRows(query.getLimit());
+				ResultSet rs = select.executeQuery();
+				try {
+					while (rs.next()) {
+						page.add(fromRow(rs));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				select.close();
+			}
+
+			return useLoaded(page);
+		} catch (SQLException e) {
+			throw new ConsumerStoreException(e);
+		}
+	}
+
+	/*
+	 * Replaces consumers read from the table with the consumers already in
+	 * memory so callers see any in-memory state, like the OAuth version.
+	 */
+	private List<LyoOAuthConsumer> useLoaded(List<LyoOAuthConsumer> read) {
+		for (int i = 0; i < read.size(); i++) {
+			LyoOAuthConsumer consumer = read.get(i);
+			LyoOAuthConsumer existing;
+			if (lazy) {
+				existing = cached.putIfAbsent(consumer.consumerKey, consumer, 0);
+			} else {
+				existing = consumers.putIfAbsent(consumer.consumerKey, consumer);
+			}
+			if (existing != null) {
+				read.set(i, existing);
+			}
+		}
+
+		return read;
+	}
+
+	private LyoOAuthConsumer loaded(String consumerKey) {
+		return (lazy) ? cached.get(consumerKey) : consumers.get(consumerKey);
+	}
+
+	private static Short toSmallInt(Boolean value) {
+		return Short.valueOf((short) (value.booleanValue() ? 1 : 0));
+	}
+
+	private static String escapeLike(String s) {
+		return s.replace("\\", "\\\\").replace("%", "\\%")
+				.replace("_", "\\_");
+	}
+
+	public void addListener(ConsumerStoreListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ConsumerStoreListener listener) {
+		listeners.remove(listener);
+	}
+
+	public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		return writeBatch(Collections.singletonList(consumer),
+				Collections.<String> emptyList()).get(0);
+	}
+
+	public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		// addConsumer() also works for update.
+		return addConsumer(consumer);
+	}
+
+	public synchronized LyoOAuthConsumer removeConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		// Make sure we return the removed consumer even in lazy mode.
+		LyoOAuthConsumer previous = getConsumer(consumerKey);
+		writeBatch(Collections.<LyoOAuthConsumer> emptyList(),
+				Collections.singletonList(consumerKey));
+
+		return previous;
+	}
+
+	/**
+	 * Adds, updates, and removes consumers in a single database transaction.
+	 * This is much faster than one call per consumer when there are many
+	 * changes at once.
+	 *
+	 * @param added
+	 *            consumers to add or update
+	 * @param removed
+	 *            keys of consumers to remove, applied after the additions
+	 * @return the consumers previously in memory for the added keys, in the
+	 *         same order, with nulls for new consumers
+	 * @throws ConsumerStoreException
+	 *             on database errors. No changes are made.
+	 */
+	public synchronized List<LyoOAuthConsumer> writeBatch(
+			Collection<LyoOAuthConsumer> added, Collection<String> removed)
+			throws ConsumerStoreException {
+		boolean autoCommit = true;
+		try {
+			autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			upsert(added);
+			delete(removed);
+			connection.commit();
+		} catch (SQLException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackException) {
+				logger.error("Could not roll back consumer store changes.",
+						rollbackException);
+			}
+
+			throw new ConsumerStoreException(e);
+		} finally {
+			try {
+				connection.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				logger.error("Could not reset auto-commit.", e);
+			}
+		}
+
+		List<LyoOAuthConsumer> previous = new ArrayList<LyoOAuthConsumer>(
+				added.size());
+		for (LyoOAuthConsumer consumer : added) {
+			previous.add((lazy) ? cached.put(consumer.consumerKey, consumer)
+					: consumers.put(consumer.consumerKey, consumer));
+			missing.remove(consumer.consumerKey);
+		}
+		for (String consumerKey : removed) {
+			if (lazy) {
+				cached.remove(consumerKey);
+			} else {
+				consumers.remove(consumerKey);
+			}
+		}
+		for (ConsumerStoreListener listener : listeners) {
+			for (LyoOAuthConsumer consumer : added) {
+				listener.consumerSaved(consumer);
+			}
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Copies all consumers from another store into this one in a single
+	 * transaction, replacing any consumers here with the same keys. Use this
+	 * to keep the registered consumers when moving from another store, like
+	 * {@link RdfConsumerStore}.
+	 *
+	 * @param from
+	 *            the store to copy from
+	 * @return the number of consumers copied
+	 * @throws ConsumerStoreException
+	 *             on database errors or if the other store can't be read. No
+	 *             changes are made.
+	 */
+	public int importConsumers(ConsumerStore from)
+			throws ConsumerStoreException {
+		List<LyoOAuthConsumer> imported = new ArrayList<LyoOAuthConsumer>(
+				from.getAllConsumers());
+		writeBatch(imported, Collections.<String> emptyList());
+
+		return imported.size();
+	}
+
+	private void upsert(Collection<LyoOAuthConsumer> added)
+			throws SQLException {
+		if (added.isEmpty()) {
+			return;
+		}
+
+		// Derby has no MERGE, so try updates first and insert the rest. If a
+		// key is in the batch more than once, only insert the last consumer.
+		Map<String, LyoOAuthConsumer> inserts = new LinkedHashMap<String, LyoOAuthConsumer>();
+		PreparedStatement update = connection.prepareStatement(UPDATE);
+		try {
+			for (LyoOAuthConsumer consumer : added) {
+				update.setString(1, consumer.consumerSecret);
+				update.setString(2, consumer.getName());
+				update.setShort(3, (short) (consumer.isProvisional() ? 1 : 0));
+				update.setShort(4, (short) (consumer.isTrusted() ? 1 : 0));
+				update.setString(5, consumer.getX509Certificate());
+				update.setString(6, consumer.consumerKey);
+				update.addBatch();
+			}
+
+			int[] counts = update.executeBatch();
+			int i = 0;
+			for (LyoOAuthConsumer consumer : added) {
+				if (counts[i++] == 0) {
+					inserts.remove(consumer.consumerKey);
+					inserts.put(consumer.consumerKey, consumer);
+				}
+			}
+		} finally {
+			update.close();
+		}
+
+		if (inserts.isEmpty()) {
+			return;
+		}
+
+		PreparedStatement insert = connection.prepareStatement(INSERT);
+		try {
+			for (LyoOAuthConsumer consumer : inserts.values()) {
+				insert.setString(1, consumer.consumerKey);
+				insert.setString(2, consumer.consumerSecret);
+				insert.setString(3, consumer.getName());
+				insert.setShort(4, (short) (consumer.isProvisional() ? 1 : 0));
+				insert.setShort(5, (short) (consumer.isTrusted() ? 1 : 0));
+				insert.setString(6, consumer.getX509Certificate());
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
+	}
+
+	private void delete(Collection<String> removed) throws SQLException {
+		if (removed.isEmpty()) {
+			return;
+		}
+
+		PreparedStatement delete = connection.prepareStatement(DELETE);
+		try {
+			for (String consumerKey : removed) {
+				delete.setString(1, consumerKey);
+				delete.addBatch();
+			}
+			delete.executeBatch();
+		} finally {
+			delete.close();
+		}
+	}
+
+	private LyoOAuthConsumer select(String consumerKey) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(SELECT);
+		try {
+			select.setString(1, consumerKey);
+			ResultSet rs = select.executeQuery();
+			try {
+				return rs.next() ? fromRow(rs) : null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			select.close();
+		}
+	}
+
+	private List<LyoOAuthConsumer> selectAll() throws SQLException {
+		List<LyoOAuthConsumer> all = new ArrayList<LyoOAuthConsumer>();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery(SELECT_ALL);
+			try {
+				while (rs.next()) {
+					all.add(fromRow(rs));
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			statement.close();
+		}
+
+		return all;
+	}
+
+	protected LyoOAuthConsumer fromRow(ResultSet rs) throws SQLException {
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer(
+				rs.getString("CONSUMER_KEY"), rs.getString("CONSUMER_SECRET"));
+		consumer.setName(rs.getString("CONSUMER_NAME"));
+		consumer.setProvisional(rs.getShort("PROVISIONAL") != 0);
+		consumer.setTrusted(rs.getShort("TRUSTED") != 0);
+		try {
+			consumer.setX509Certificate(rs.getString("X509_CERTIFICATE"));
+		} catch (CertificateException e) {
+			// Load the consumer anyway. Its RSA-SHA1 requests will fail.
+			logger.error("Invalid X.509 certificate for OAuth consumer "
+					+ consumer.consumerKey, e);
+		}
+
+		return consumer;
+	}
+}
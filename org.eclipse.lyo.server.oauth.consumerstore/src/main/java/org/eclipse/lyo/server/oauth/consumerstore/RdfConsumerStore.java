@@ -15,10 +15,14 @@
  *******************************************************************************/
 package org.eclipse.lyo.server.oauth.consumerstore;
 
+import java.security.cert.CertificateException;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.BatchConsumerStore;
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
 import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
 
@@ -29,6 +33,7 @@ import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.ModelMaker;
 import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.shared.Command;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.shared.Lock;
@@ -40,7 +45,8 @@ import com.hp.hpl.jena.vocabulary.RDF;
  * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
-public class RdfConsumerStore extends AbstractConsumerStore {
+public class RdfConsumerStore extends AbstractConsumerStore implements
+		BatchConsumerStore {
 	protected final static String LYO_OAUTH_NAMESPACE = "http://eclipse.org/lyo/server/oauth#";
 	protected final static String CONSUMER_RESOURCE = LYO_OAUTH_NAMESPACE
 			+ "Consumer";
@@ -55,6 +61,8 @@ public class RdfConsumerStore extends AbstractConsumerStore {
 	protected final static String PROVISIONAL = LYO_OAUTH_NAMESPACE
 			+ "provisional";
 	protected final static String TRUSTED = LYO_OAUTH_NAMESPACE + "trusted";
+	protected final static String X509_CERTIFICATE = LYO_OAUTH_NAMESPACE
+			+ "x509Certificate";
 
 	protected final static String DB_URL = "jdbc:derby:consumerStore;create=true"; // URL of database
 	protected final static String DB_USER = ""; // database user id
@@ -180,6 +188,39 @@ public class RdfConsumerStore extends AbstractConsumerStore {
 		return addConsumer(consumer);
 	}
 
+	@Override
+	public List<LyoOAuthConsumer> writeBatch(
+			final Collection<LyoOAuthConsumer> added,
+			final Collection<String> removed) throws ConsumerStoreException {
+		if (model == null) {
+			throw new ConsumerStoreException("Consumer store not initialized.");
+		}
+
+		try {
+			model.enterCriticalSection(Lock.WRITE);
+			model.executeInTransaction(new Command() {
+				@Override
+				public Object execute() {
+					for (LyoOAuthConsumer consumer : added) {
+						removeProperties(consumer);
+						toResource(consumer);
+					}
+					for (String consumerKey : removed) {
+						removeProperties(consumerKey);
+					}
+
+					return null;
+				}
+			});
+
+			return addAndRemove(added, removed);
+		} catch (JenaException e) {
+			throw new ConsumerStoreException(e);
+		} finally {
+			model.leaveCriticalSection();
+		}
+	}
+
 	/**
 	 * Removes any properties previously associated with the consumer.
 	 * 
@@ -217,6 +258,10 @@ public class RdfConsumerStore extends AbstractConsumerStore {
 				(consumer.isProvisional()) ? "true" : "false");
 		resource.addProperty(model.createProperty(TRUSTED),
 				(consumer.isTrusted()) ? "true" : "false");
+		if (consumer.getX509Certificate() != null) {
+			resource.addProperty(model.createProperty(X509_CERTIFICATE),
+					consumer.getX509Certificate());
+		}
 
 		return resource;
 	}
@@ -238,6 +283,18 @@ public class RdfConsumerStore extends AbstractConsumerStore {
 				.getString();
 		consumer.setTrusted("true".equals(trusted));
 
+		Statement certificate = resource.getProperty(model
+				.createProperty(X509_CERTIFICATE));
+		if (certificate != null) {
+			try {
+				consumer.setX509Certificate(certificate.getString());
+			} catch (CertificateException e) {
+				// Load the consumer anyway. Its RSA-SHA1 requests will fail.
+				logger.error("Invalid X.509 certificate for OAuth consumer "
+						+ key, e);
+			}
+		}
+
 		return consumer;
 	}
 }
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.consumerstore;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerQuery;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+
+/**
+ * Tests for {@link DerbyConsumerStore} using an in-memory database.
+ */
+public class DerbyConsumerStoreTest extends TestCase {
+	private static int databases = 0;
+
+	private String url;
+	private List<DerbyConsumerStore> stores = new ArrayList<DerbyConsumerStore>();
+
+	@Override
+	protected void setUp() {
+		url = "jdbc:derby:memory:consumers" + (databases++);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (DerbyConsumerStore store : stores) {
+			store.close();
+		}
+
+		try {
+			DriverManager.getConnection(url + ";drop=true");
+		} catch (SQLException e) {
+			// Derby always reports a dropped database as an exception.
+		}
+	}
+
+	private static class MemoryStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	private DerbyConsumerStore open(boolean lazy)
+			throws ConsumerStoreException {
+		return open(lazy, DerbyConsumerStore.DEFAULT_MAX_CACHED);
+	}
+
+	private DerbyConsumerStore open(boolean lazy, int maxCached)
+			throws ConsumerStoreException {
+		DerbyConsumerStore store = new DerbyConsumerStore(url + ";create=true",
+				lazy, maxCached);
+		stores.add(store);
+		return store;
+	}
+
+	private static LyoOAuthConsumer newConsumer(String key, String name,
+			boolean provisional) {
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer(key, "secret-" + key);
+		consumer.setName(name);
+		consumer.setProvisional(provisional);
+		return consumer;
+	}
+
+	private static List<String> keys(Collection<LyoOAuthConsumer> consumers) {
+		List<String> keys = new ArrayList<String>();
+		for (LyoOAuthConsumer consumer : consumers) {
+			keys.add(consumer.consumerKey);
+		}
+		return keys;
+	}
+
+	public void testConsumersAreSaved() throws ConsumerStoreException {
+		DerbyConsumerStore store = open(false);
+		assertNull(store.addConsumer(newConsumer("a", "Alpha", true)));
+		store.addConsumer(newConsumer("b", null, false));
+
+		LyoOAuthConsumer updated = newConsumer("a", "Renamed", false);
+		updated.setTrusted(true);
+		assertNotNull(store.updateConsumer(updated));
+		assertEquals("b", store.removeConsumer("b").consumerKey);
+		assertNull(store.removeConsumer("missing"));
+
+		// A new store reads what the first one wrote.
+		DerbyConsumerStore reopened = open(false);
+		assertEquals(Arrays.asList("a"), keys(reopened.getAllConsumers()));
+		LyoOAuthConsumer consumer = reopened.getConsumer("a");
+		assertEquals("secret-a", consumer.consumerSecret);
+		assertEquals("Renamed", consumer.getName());
+		assertFalse(consumer.isProvisional());
+		assertTrue(consumer.isTrusted());
+		assertNull(reopened.getConsumer("b"));
+	}
+
+	public void testWriteBatch() throws ConsumerStoreException {
+		DerbyConsumerStore store = open(false);
+		store.addConsumer(newConsumer("a", "Alpha", false));
+
+		List<LyoOAuthConsumer> previous = store.writeBatch(Arrays.asList(
+				newConsumer("a", "Alpha 2", false),
+				newConsumer("b", "Beta", false),
+				newConsumer("c", "Gamma", true),
+				newConsumer("c", "Gamma 2", true)), Arrays.asList("b"));
+		assertEquals(4, previous.size());
+		assertEquals("Alpha", previous.get(0).getName());
+		assertNull(previous.get(1));
+		assertNull(previous.get(2));
+		assertEquals("Gamma", previous.get(3).getName());
+
+		DerbyConsumerStore reopened = open(false);
+		List<String> all = keys(reopened.getAllConsumers());
+		Collections.sort(all);
+		assertEquals(Arrays.asList("a", "c"), all);
+		assertEquals("Alpha 2", reopened.getConsumer("a").getName());
+		assertEquals("Gamma 2", reopened.getConsumer("c").getName());
+	}
+
+	public void testPaging() throws ConsumerStoreException {
+		DerbyConsumerStore store = open(false);
+		List<LyoOAuthConsumer> added = new ArrayList<LyoOAuthConsumer>();
+		for (int i = 0; i < 25; i++) {
+			// Names repeat so the key has to break ties.
+			added.add(newConsumer("key" + i, (i % 5 == 0) ? null : "app"
+					+ (i % 3), i % 2 == 0));
+		}
+		store.writeBatch(added, Collections.<String> emptyList());
+
+		ConsumerQuery query = new ConsumerQuery();
+		assertPagesMatch(store, query);
+
+		query = new ConsumerQuery();
+		query.setSort(ConsumerQuery.Sort.KEY);
+		query.setDescending(true);
+		assertPagesMatch(store, query);
+
+		query = new ConsumerQuery();
+		query.setProvisional(Boolean.TRUE);
+		query.setNamePrefix("app1");
+		assertPagesMatch(store, query);
+	}
+
+	/*
+	 * Reads every page from the table and checks the result is the same as
+	 * filtering and sorting all consumers in memory.
+	 */
+	private void assertPagesMatch(DerbyConsumerStore store, ConsumerQuery query)
+			throws ConsumerStoreException {
+		query.setLimit(4);
+		List<LyoOAuthConsumer> paged = new ArrayList<LyoOAuthConsumer>();
+		List<LyoOAuthConsumer> page;
+		do {
+			page = store.getConsumers(query);
+			paged.addAll(page);
+			if (!page.isEmpty()) {
+				query.setCursor(query.getCursor(page.get(page.size() - 1)));
+			}
+		} while (page.size() == query.getLimit());
+
+		query.setCursor(null);
+		query.setLimit(ConsumerQuery.MAX_LIMIT);
+		assertEquals(keys(query.select(store.getAllConsumers())), keys(paged));
+	}
+
+	public void testLazy() throws ConsumerStoreException {
+		DerbyConsumerStore eager = open(false);
+		eager.addConsumer(newConsumer("a", "Alpha", false));
+
+		DerbyConsumerStore lazy = open(true);
+		assertEquals("Alpha", lazy.getConsumer("a").getName());
+		assertSame(lazy.getConsumer("a"), lazy.getConsumer("a"));
+
+		// Unknown keys are remembered, so a row added behind the lazy
+		// store's back isn't seen until the miss expires.
+		assertNull(lazy.getConsumer("b"));
+		eager.addConsumer(newConsumer("b", "Beta", false));
+		assertNull(lazy.getConsumer("b"));
+
+		// Consumers added through the lazy store are found right away.
+		lazy.addConsumer(newConsumer("c", "Gamma", false));
+		assertNull(lazy.getConsumer("d"));
+		lazy.addConsumer(newConsumer("d", "Delta", false));
+		assertEquals("Delta", lazy.getConsumer("d").getName());
+
+		// Reading everything goes to the table.
+		List<String> all = keys(lazy.getAllConsumers());
+		Collections.sort(all);
+		assertEquals(Arrays.asList("a", "b", "c", "d"), all);
+	}
+
+	public void testLazyCacheIsBounded() throws ConsumerStoreException {
+		DerbyConsumerStore eager = open(false);
+		eager.addConsumer(newConsumer("a", "Alpha", false));
+		eager.addConsumer(newConsumer("b", "Beta", false));
+
+		DerbyConsumerStore lazy = open(true, 1);
+		LyoOAuthConsumer a = lazy.getConsumer("a");
+		assertSame(a, lazy.getConsumer("a"));
+
+		// Reading b pushes a out, so a is read from the table again.
+		assertEquals("Beta", lazy.getConsumer("b").getName());
+		LyoOAuthConsumer reread = lazy.getConsumer("a");
+		assertNotSame(a, reread);
+		assertEquals("Alpha", reread.getName());
+	}
+
+	public void testImportConsumers() throws ConsumerStoreException {
+		MemoryStore from = new MemoryStore();
+		from.addConsumer(newConsumer("a", "Alpha", false));
+		from.addConsumer(newConsumer("b", "Beta", true));
+
+		DerbyConsumerStore store = open(false);
+		store.addConsumer(newConsumer("a", "Old", false));
+		assertEquals(2, store.importConsumers(from));
+		assertEquals("Alpha", store.getConsumer("a").getName());
+		assertTrue(store.getConsumer("b").isProvisional());
+
+		// The imported consumers are in the table, not just in memory.
+		DerbyConsumerStore reopened = open(true);
+		List<String> all = keys(reopened.getAllConsumers());
+		Collections.sort(all);
+		assertEquals(Arrays.asList("a", "b"), all);
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Validates a request for {@link OAuthFilter} off the container thread using
+ * Servlet 3 async processing.
+ */
+class AsyncValidation implements Runnable {
+	private final AsyncContext context;
+
+	private AsyncValidation(AsyncContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Puts the request in async mode and validates it on the executor. A
+	 * valid request is dispatched back to the container. Otherwise the OAuth
+	 * problem response is sent and the request completed.
+	 *
+	 * @param httpRequest
+	 *            the request
+	 * @param httpResponse
+	 *            the response
+	 * @param executor
+	 *            the executor for validation
+	 */
+	static void start(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse, Executor executor) {
+		AsyncContext context = httpRequest.startAsync(httpRequest,
+				httpResponse);
+		try {
+			executor.execute(new AsyncValidation(context));
+		} catch (RejectedExecutionException e) {
+			// The filter is being destroyed.
+			httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			context.complete();
+		}
+	}
+
+	@Override
+	public void run() {
+		HttpServletRequest httpRequest = (HttpServletRequest) context
+				.getRequest();
+		HttpServletResponse httpResponse = (HttpServletResponse) context
+				.getResponse();
+		try {
+			if (OAuthFilter.validate(httpRequest, httpResponse)) {
+				context.dispatch();
+				return;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (!httpResponse.isCommitted()) {
+				httpResponse
+						.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+
+		context.complete();
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.signature.OAuthSignatureMethod;
+
+/**
+ * Verifies HMAC-SHA1 signatures. Unlike net.oauth's HMAC_SHA1, it doesn't
+ * look up a {@link Mac} from the security providers for every request. Each
+ * thread reuses its own {@link Mac}, and signatures are compared in constant
+ * time.
+ *
+ * @see RsaSha1Verifier
+ */
+class HmacSha1Verifier {
+	private static final String ALGORITHM = "HmacSHA1";
+
+	private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private HmacSha1Verifier() {}
+
+	/**
+	 * Checks the signature of a message.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @param accessor
+	 *            the accessor with the consumer and token secrets
+	 * @throws OAuthProblemException
+	 *             if the signature is invalid
+	 * @throws OAuthException
+	 *             if the signature can't be checked
+	 * @throws IOException
+	 *             on errors reading the message
+	 * @throws URISyntaxException
+	 *             if the request URL is invalid
+	 */
+	static void verify(OAuthMessage message, OAuthAccessor accessor)
+			throws OAuthException, IOException, URISyntaxException {
+		message.requireParameters(OAuth.OAUTH_CONSUMER_KEY,
+				OAuth.OAUTH_SIGNATURE_METHOD, OAuth.OAUTH_SIGNATURE);
+		String signature = message.getSignature();
+		String baseString = OAuthSignatureMethod.getBaseString(message);
+
+		// The key is the same one net.oauth derives from the secrets.
+		String key = OAuth.percentEncode(accessor.consumer.consumerSecret)
+				+ '&' + OAuth.percentEncode(accessor.tokenSecret);
+
+		byte[] expected;
+		try {
+			Mac mac = macs.get();
+			mac.init(new SecretKeySpec(key.getBytes(OAuth.ENCODING), ALGORITHM));
+			expected = mac.doFinal(baseString.getBytes(OAuth.ENCODING));
+		} catch (InvalidKeyException e) {
+			throw new OAuthException(e);
+		}
+
+		if (!MessageDigest.isEqual(expected,
+				OAuthSignatureMethod.decodeBase64(signature))) {
+			// The same parameters net.oauth sets.
+			OAuthProblemException problem = new OAuthProblemException(
+					OAuth.Problems.SIGNATURE_INVALID);
+			problem.setParameter(OAuth.OAUTH_SIGNATURE, signature);
+			problem.setParameter("oauth_signature_base_string", baseString);
+			problem.setParameter(OAuth.OAUTH_SIGNATURE_METHOD,
+					message.getSignatureMethod());
+			throw problem;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.OAuthValidator;
+import net.oauth.signature.OAuthSignatureMethod;
+
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
+
+/**
+ * The default Lyo OAuth validator. It checks for repeated OAuth parameters,
+ * the version, the timestamp, and the signature, and it rejects requests
+ * that reuse a nonce within the timestamp window. Nonces are only recorded
+ * after the signature is verified so that forged requests can't use up
+ * nonces for a consumer.
+ *
+ * <p>
+ * The net.oauth libraries ship two incompatible copies of
+ * <code>SimpleOAuthValidator</code>, one of which checks nonces itself before
+ * the signature. This class doesn't extend either, so it behaves the same
+ * whichever is first on the classpath.
+ *
+ * <p>
+ * HMAC-SHA1 signatures are checked with a {@link javax.crypto.Mac} reused by
+ * each thread. RSA-SHA1 signatures from a {@link LyoOAuthConsumer} with an
+ * X.509 certificate are checked with the consumer's cached public key and a
+ * {@link java.security.Signature} reused by each thread.
+ *
+ * <p>
+ * Signature and nonce checks are timed in {@link OAuthMetrics}.
+ *
+ * @see NonceCache
+ */
+public class LyoOAuthValidator implements OAuthValidator {
+	/**
+	 * The default time a request timestamp can be from the current time (5
+	 * minutes).
+	 */
+	public static final long DEFAULT_TIMESTAMP_WINDOW = 5 * 60 * 1000L;
+
+	/**
+	 * The default span of request timestamps kept in each nonce bucket (10
+	 * seconds).
+	 */
+	public static final long DEFAULT_BUCKET_WIDTH = 10 * 1000L;
+
+	/**
+	 * Parameters that can appear at most once in a request.
+	 */
+	public static final Set<String> SINGLE_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(
+					OAuth.OAUTH_CONSUMER_KEY, OAuth.OAUTH_TOKEN,
+					OAuth.OAUTH_TOKEN_SECRET, OAuth.OAUTH_CALLBACK,
+					OAuth.OAUTH_SIGNATURE_METHOD, OAuth.OAUTH_SIGNATURE,
+					OAuth.OAUTH_TIMESTAMP, OAuth.OAUTH_NONCE,
+					OAuth.OAUTH_VERSION)));
+
+	protected final double minVersion = 1.0;
+	protected final double maxVersion;
+	protected final long timestampWindow;
+
+	private final NonceCache nonces;
+
+	public LyoOAuthValidator() {
+		this(DEFAULT_TIMESTAMP_WINDOW, Double.parseDouble(OAuth.VERSION_1_0));
+	}
+
+	/**
+	 * Creates a validator.
+	 *
+	 * @param timestampWindow
+	 *            how far in milliseconds a request timestamp can be from the
+	 *            current time
+	 * @param maxVersion
+	 *            the highest OAuth version accepted
+	 */
+	public LyoOAuthValidator(long timestampWindow, double maxVersion) {
+		this.timestampWindow = timestampWindow;
+		this.maxVersion = maxVersion;
+		this.nonces = new NonceCache(timestampWindow, DEFAULT_BUCKET_WIDTH);
+	}
+
+	public void validateMessage(OAuthMessage message, OAuthAccessor accessor)
+			throws OAuthException, IOException, URISyntaxException {
+		checkSingleParameters(message);
+		validateVersion(message);
+		validateTimestamp(message);
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+		boolean success = false;
+		long start = System.nanoTime();
+		try {
+			validateSignature(message, accessor);
+			success = true;
+		} finally {
+			metrics.getTimer(OAuthMetrics.PHASE_SIGNATURE).record(start,
+					success);
+		}
+
+		success = false;
+		start = System.nanoTime();
+		try {
+			validateNonce(message, accessor);
+			success = true;
+		} finally {
+			metrics.getTimer(OAuthMetrics.PHASE_NONCE).record(start, success);
+		}
+	}
+
+	/**
+	 * Rejects requests that repeat a parameter from
+	 * {@link #SINGLE_PARAMETERS}.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @throws OAuthProblemException
+	 *             if a parameter is repeated
+	 * @throws IOException
+	 *             on errors reading the message
+	 */
+	protected void checkSingleParameters(OAuthMessage message)
+			throws OAuthProblemException, IOException {
+		Set<String> seen = new HashSet<String>();
+		Set<String> repeated = null;
+		for (Map.Entry<String, String> parameter : message.getParameters()) {
+			String name = parameter.getKey();
+			if (SINGLE_PARAMETERS.contains(name) && !seen.add(name)) {
+				if (repeated == null) {
+					repeated = new HashSet<String>();
+				}
+				repeated.add(name);
+			}
+		}
+
+		if (repeated != null) {
+			List<OAuth.Parameter> rejected = new ArrayList<OAuth.Parameter>();
+			for (Map.Entry<String, String> parameter : message.getParameters()) {
+				if (repeated.contains(parameter.getKey())) {
+					rejected.add(new OAuth.Parameter(parameter.getKey(),
+							parameter.getValue()));
+				}
+			}
+
+			OAuthProblemException problem = new OAuthProblemException(
+					OAuth.Problems.PARAMETER_REJECTED);
+			problem.setParameter(OAuth.Problems.OAUTH_PARAMETERS_REJECTED,
+					OAuth.formEncode(rejected));
+			throw problem;
+		}
+	}
+
+	/**
+	 * Checks that the OAuth version, if given, is one we accept.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @throws OAuthProblemException
+	 *             if the version is rejected
+	 * @throws IOException
+	 *             on errors reading the message
+	 */
+	protected void validateVersion(OAuthMessage message)
+			throws OAuthProblemException, IOException {
+		String versionString = message.getParameter(OAuth.OAUTH_VERSION);
+		if (versionString == null) {
+			return;
+		}
+
+		double version;
+		try {
+			version = Double.parseDouble(versionString);
+		} catch (NumberFormatException e) {
+			version = -1;
+		}
+
+		if (version < minVersion || maxVersion < version) {
+			OAuthProblemException problem = new OAuthProblemException(
+					OAuth.Problems.VERSION_REJECTED);
+			problem.setParameter(OAuth.Problems.OAUTH_ACCEPTABLE_VERSIONS,
+					minVersion + "-" + maxVersion);
+			throw problem;
+		}
+	}
+
+	/**
+	 * Checks that the request has a nonce and a timestamp within
+	 * {@link #timestampWindow} of the current time. The nonce itself is
+	 * checked after the signature by
+	 * {@link #validateNonce(OAuthMessage, OAuthAccessor)}.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @throws OAuthProblemException
+	 *             if the timestamp or nonce is missing or the timestamp is
+	 *             refused
+	 * @throws IOException
+	 *             on errors reading the message
+	 */
+	protected void validateTimestamp(OAuthMessage message)
+			throws OAuthProblemException, IOException {
+		message.requireParameters(OAuth.OAUTH_TIMESTAMP, OAuth.OAUTH_NONCE);
+
+		long now = currentTimeMsec();
+		long min = now - timestampWindow;
+		long max = now + timestampWindow;
+		long timestamp;
+		try {
+			timestamp = Long.parseLong(message
+					.getParameter(OAuth.OAUTH_TIMESTAMP)) * 1000L;
+		} catch (NumberFormatException e) {
+			timestamp = Long.MIN_VALUE;
+		}
+
+		if (timestamp < min || max < timestamp) {
+			OAuthProblemException problem = new OAuthProblemException(
+					OAuth.Problems.TIMESTAMP_REFUSED);
+			problem.setParameter(OAuth.Problems.OAUTH_ACCEPTABLE_TIMESTAMPS,
+					min + "-" + max);
+			throw problem;
+		}
+	}
+
+	/**
+	 * Checks the request signature.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @param accessor
+	 *            the accessor with the consumer and token secrets
+	 * @throws OAuthException
+	 *             if the signature is invalid
+	 * @throws IOException
+	 *             on errors reading the message
+	 * @throws URISyntaxException
+	 *             if the request URL is invalid
+	 */
+	protected void validateSignature(OAuthMessage message,
+			OAuthAccessor accessor) throws OAuthException, IOException,
+			URISyntaxException {
+		message.requireParameters(OAuth.OAUTH_CONSUMER_KEY,
+				OAuth.OAUTH_SIGNATURE_METHOD, OAuth.OAUTH_SIGNATURE);
+		if (OAuth.HMAC_SHA1.equals(message.getSignatureMethod())) {
+			HmacSha1Verifier.verify(message, accessor);
+			return;
+		}
+
+		if (OAuth.RSA_SHA1.equals(message.getSignatureMethod())
+				&& accessor.consumer instanceof LyoOAuthConsumer) {
+			PublicKey publicKey = ((LyoOAuthConsumer) accessor.consumer)
+					.getPublicKey();
+			if (publicKey != null) {
+				RsaSha1Verifier.verify(message, publicKey);
+				return;
+			}
+		}
+
+		OAuthSignatureMethod.newSigner(message, accessor).validate(message);
+	}
+
+	/**
+	 * Checks that the nonce hasn't been used before with the same timestamp,
+	 * consumer, and token. {@link #validateTimestamp(OAuthMessage)} must have
+	 * already checked the timestamp.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @param accessor
+	 *            the accessor
+	 * @throws OAuthProblemException
+	 *             if the nonce was already used
+	 * @throws IOException
+	 *             on errors reading the message
+	 */
+	protected void validateNonce(OAuthMessage message, OAuthAccessor accessor)
+			throws OAuthProblemException, IOException {
+		String timestamp = message.getParameter(OAuth.OAUTH_TIMESTAMP);
+		StringBuilder key = new StringBuilder();
+		key.append(timestamp).append('&')
+				.append(OAuth.percentEncode(accessor.consumer.consumerKey))
+				.append('&').append(OAuth.percentEncode(message.getToken()))
+				.append('&')
+				.append(OAuth.percentEncode(message.getParameter(OAuth.OAUTH_NONCE)));
+
+		if (!nonces.add(Long.parseLong(timestamp) * 1000L, key.toString())) {
+			throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
+		}
+	}
+
+	/**
+	 * Gets the current time. Tests can override this.
+	 *
+	 * @return the time in milliseconds
+	 */
+	protected long currentTimeMsec() {
+		return System.currentTimeMillis();
+	}
+}
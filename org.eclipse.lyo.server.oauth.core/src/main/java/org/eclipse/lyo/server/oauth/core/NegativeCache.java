@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.lyo.server.oauth.core.token.StripedLRUCache;
+
+/**
+ * Remembers recently rejected consumer keys or tokens so repeated requests
+ * with them can be turned away without another lookup. The cache is bounded,
+ * and entries expire so that a key added later is eventually accepted even if
+ * no one calls {@link #remove(String)}.
+ *
+ * @see OAuthConfiguration#getRejectedConsumers()
+ */
+public class NegativeCache {
+	private final StripedLRUCache<String, Boolean> rejected;
+	private final long timeToLive;
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Creates a negative cache.
+	 *
+	 * @param max
+	 *            the maximum number of rejected keys to remember
+	 * @param timeToLive
+	 *            how long in milliseconds a key is remembered
+	 */
+	public NegativeCache(int max, long timeToLive) {
+		this.rejected = new StripedLRUCache<String, Boolean>(max);
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Checks if a key was recently rejected.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true if the key should be rejected again
+	 */
+	public boolean contains(String key) {
+		if (key == null || rejected.get(key) == null) {
+			return false;
+		}
+
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Remembers that a key was rejected.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	public void add(String key) {
+		if (key != null) {
+			rejected.put(key, Boolean.TRUE, timeToLive);
+		}
+	}
+
+	/**
+	 * Forgets a key, for instance because a consumer with that key was added.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	public void remove(String key) {
+		if (key != null) {
+			rejected.remove(key);
+		}
+	}
+
+	/**
+	 * Gets how many lookups were skipped because the key was in the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+}
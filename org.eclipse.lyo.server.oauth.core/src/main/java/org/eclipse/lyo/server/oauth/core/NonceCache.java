@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the nonces seen within the timestamp window so replayed requests
+ * can be rejected. Nonces are grouped into buckets by request timestamp. The
+ * buckets form a ring that covers the whole timestamp window. When a bucket's
+ * time slot comes around again, the old bucket is dropped as a whole, so
+ * nothing is ever scanned and the memory used only depends on the request
+ * rate within the window.
+ */
+class NonceCache {
+	private final long bucketWidth;
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	private static class Bucket {
+		// The timestamp divided by the bucket width.
+		final long slot;
+		final Set<String> nonces = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		Bucket(long slot) {
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * Creates a nonce cache.
+	 *
+	 * @param timestampWindow
+	 *            how far in milliseconds a request timestamp can be from the
+	 *            current time, in either direction
+	 * @param bucketWidth
+	 *            how many milliseconds of timestamps go in each bucket
+	 */
+	NonceCache(long timestampWindow, long bucketWidth) {
+		if (bucketWidth < 1) {
+			throw new IllegalArgumentException("bucketWidth must be positive");
+		}
+
+		this.bucketWidth = bucketWidth;
+
+		// Cover the window on both sides of now plus a bucket for rounding.
+		int count = (int) ((2 * timestampWindow) / bucketWidth) + 2;
+		this.buckets = new AtomicReferenceArray<Bucket>(count);
+	}
+
+	/**
+	 * Records a nonce.
+	 *
+	 * @param timestamp
+	 *            the request timestamp in milliseconds
+	 * @param key
+	 *            the nonce combined with anything else that identifies who
+	 *            sent it, such as the consumer key and token
+	 * @return true if the nonce is new, false if it was already used or if the
+	 *         timestamp is too old to tell
+	 */
+	boolean add(long timestamp, String key) {
+		long slot = timestamp / bucketWidth;
+		int index = (int) (slot % buckets.length());
+		while (true) {
+			Bucket bucket = buckets.get(index);
+			if (bucket != null && bucket.slot == slot) {
+				return bucket.nonces.add(key);
+			}
+
+			if (bucket != null && bucket.slot > slot) {
+				// The bucket for this timestamp has already been dropped.
+				return false;
+			}
+
+			Bucket newBucket = new Bucket(slot);
+			newBucket.nonces.add(key);
+			if (buckets.compareAndSet(index, bucket, newBucket)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of nonces remembered. Buckets are counted one at a time,
+	 * so the result is only an estimate while other threads are adding
+	 * nonces.
+	 *
+	 * @return the number of nonces
+	 */
+	int size() {
+		int size = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null) {
+				size += bucket.nonces.size();
+			}
+		}
+
+		return size;
+	}
+}
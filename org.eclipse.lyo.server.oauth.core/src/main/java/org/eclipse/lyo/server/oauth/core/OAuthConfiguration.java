@@ -15,15 +15,21 @@
  *******************************************************************************/
 package org.eclipse.lyo.server.oauth.core;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.oauth.OAuthProblemException;
 import net.oauth.OAuthValidator;
-import net.oauth.SimpleOAuthValidator;
 import net.oauth.http.HttpMessage;
 
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreListener;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.consumer.ObservableConsumerStore;
 import org.eclipse.lyo.server.oauth.core.token.SimpleTokenStrategy;
 import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
 
@@ -31,24 +37,146 @@ import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
  * Manages the OAuth provider configuration, including the validator, consumer store, and
  * token strategy.
  * 
+ * <p>
+ * Several adapters deployed in the same container can each have their own
+ * configuration, so they don't share tokens, consumers, or caches. Create the
+ * configuration for a tenant in a context listener using its context path:
+ * 
+ * <pre>
+ * public void contextInitialized(ServletContextEvent event) {
+ * 	OAuthConfiguration config = OAuthConfiguration.getInstance(event
+ * 			.getServletContext().getContextPath());
+ * 	config.setApplication(new BugzillaApplication());
+ * 	config.setConsumerStore(new RdfConsumerStore());
+ * }
+ * 
+ * public void contextDestroyed(ServletContextEvent event) {
+ * 	OAuthConfiguration.removeInstance(event.getServletContext()
+ * 			.getContextPath());
+ * }
+ * </pre>
+ * 
+ * {@link #getInstance(HttpServletRequest)} then finds the configuration for
+ * each request. Requests to a context path without its own configuration use
+ * the default one from {@link #getInstance()}.
+ * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
 public class OAuthConfiguration {
+	/**
+	 * The default number of rejected consumer keys remembered.
+	 */
+	public static final int DEFAULT_REJECTED_CONSUMERS_MAX = 10000;
+
+	/**
+	 * The default time a rejected consumer key is remembered (30 seconds).
+	 */
+	public static final long DEFAULT_REJECTED_CONSUMERS_TIME_TO_LIVE = 30 * 1000;
+
 	private OAuthValidator validator;
 	private TokenStrategy tokenStrategy;
 	private ConsumerStore consumerStore = null;
 	private Application application = null;
 	private boolean v1_0Allowed = true;
+	private NegativeCache rejectedConsumers;
+	private RequestThrottle throttle = null;
+
+	/*
+	 * Accepts a consumer's key right away once it's added or approved.
+	 */
+	private final ConsumerStoreListener forgetRejection = new ConsumerStoreListener() {
+		@Override
+		public void consumerSaved(LyoOAuthConsumer consumer) {
+			NegativeCache cache = rejectedConsumers;
+			if (cache != null) {
+				cache.remove(consumer.consumerKey);
+			}
+		}
+	};
 
 	private static final OAuthConfiguration instance = new OAuthConfiguration();
 
+	private static final ConcurrentMap<String, OAuthConfiguration> tenants = new ConcurrentHashMap<String, OAuthConfiguration>();
+
+	/**
+	 * Gets the default configuration, used for requests to context paths
+	 * without their own configuration.
+	 * 
+	 * @return the default configuration
+	 */
 	public static OAuthConfiguration getInstance() {
 		return instance;
 	}
 
+	/**
+	 * Gets the configuration for a tenant, creating it if needed. A new
+	 * configuration has its own token strategy and caches, and no consumer
+	 * store or application until they're set.
+	 * 
+	 * @param contextPath
+	 *            the tenant's context path, as returned by
+	 *            {@link HttpServletRequest#getContextPath()}
+	 * @return the tenant's configuration
+	 */
+	public static OAuthConfiguration getInstance(String contextPath) {
+		if (contextPath == null) {
+			throw new IllegalArgumentException("contextPath is null");
+		}
+
+		OAuthConfiguration config = tenants.get(contextPath);
+		if (config == null) {
+			OAuthConfiguration newConfig = new OAuthConfiguration();
+			config = tenants.putIfAbsent(contextPath, newConfig);
+			if (config == null) {
+				config = newConfig;
+			}
+		}
+
+		return config;
+	}
+
+	/**
+	 * Gets the configuration for a request. This is the configuration for the
+	 * request's context path if one was created with
+	 * {@link #getInstance(String)}, otherwise the default configuration.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the configuration to use for the request
+	 */
+	public static OAuthConfiguration getInstance(HttpServletRequest request) {
+		if (tenants.isEmpty()) {
+			return instance;
+		}
+
+		String contextPath = request.getContextPath();
+		if (contextPath == null) {
+			return instance;
+		}
+
+		OAuthConfiguration config = tenants.get(contextPath);
+		return (config == null) ? instance : config;
+	}
+
+	/**
+	 * Removes the configuration for a tenant, for instance when its
+	 * application is undeployed. Requests to the context path use the default
+	 * configuration afterwards. The caller is responsible for closing the
+	 * tenant's consumer store or token strategy if needed.
+	 * 
+	 * @param contextPath
+	 *            the tenant's context path
+	 * @return the removed configuration or null if there wasn't one
+	 */
+	public static OAuthConfiguration removeInstance(String contextPath) {
+		return tenants.remove(contextPath);
+	}
+
 	private OAuthConfiguration() {
-		validator = new SimpleOAuthValidator();
+		validator = new LyoOAuthValidator();
 		tokenStrategy = new SimpleTokenStrategy();
+		rejectedConsumers = new NegativeCache(DEFAULT_REJECTED_CONSUMERS_MAX,
+				DEFAULT_REJECTED_CONSUMERS_TIME_TO_LIVE);
 	}
 
 	/**
@@ -97,15 +225,68 @@ public class OAuthConfiguration {
 	}
 
 	/**
-	 * Sets the store used for managing consumers.
+	 * Sets the store used for managing consumers. If the store is an
+	 * {@link ObservableConsumerStore}, consumers it adds or updates are
+	 * removed from {@link #getRejectedConsumers()}.
 	 * 
 	 * @param consumerStore the consumer store
 	 * @throws ConsumerStoreException on errors initializing the consumer registry
 	 */
 	public void setConsumerStore(ConsumerStore consumerStore) throws ConsumerStoreException {
+		if (this.consumerStore instanceof ObservableConsumerStore) {
+			((ObservableConsumerStore) this.consumerStore)
+					.removeListener(forgetRejection);
+		}
+		if (consumerStore instanceof ObservableConsumerStore) {
+			((ObservableConsumerStore) consumerStore)
+					.addListener(forgetRejection);
+		}
 		this.consumerStore = consumerStore;
 	}
 
+	/**
+	 * Gets the recently rejected consumer keys. Requests with these keys are
+	 * rejected without looking in the consumer store. Keys are removed when
+	 * an {@link ObservableConsumerStore} adds or updates the consumer. For
+	 * other stores, call {@link NegativeCache#remove(String)} when adding or
+	 * approving a consumer so the key is accepted right away.
+	 * 
+	 * @return the rejected consumer keys
+	 */
+	public NegativeCache getRejectedConsumers() {
+		return rejectedConsumers;
+	}
+
+	/**
+	 * Sets the cache of rejected consumer keys.
+	 * 
+	 * @param rejectedConsumers
+	 *            the cache
+	 */
+	public void setRejectedConsumers(NegativeCache rejectedConsumers) {
+		this.rejectedConsumers = rejectedConsumers;
+	}
+
+	/**
+	 * Gets the throttle for clients whose requests keep getting rejected.
+	 * Throttling is off unless a throttle is set.
+	 * 
+	 * @return the throttle or null if throttling is off
+	 */
+	public RequestThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Sets the throttle for clients whose requests keep getting rejected.
+	 * 
+	 * @param throttle
+	 *            the throttle or null to turn throttling off
+	 */
+	public void setThrottle(RequestThrottle throttle) {
+		this.throttle = throttle;
+	}
+
 	public Application getApplication() throws OAuthProblemException {
 		if (application == null) {
 			OAuthProblemException e = new OAuthProblemException();
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuthException;
+import net.oauth.OAuthProblemException;
+import net.oauth.server.OAuthServlet;
+
+/**
+ * Protects resources with OAuth. Each request is validated once with
+ * {@link OAuthRequest#validate()} before it reaches the servlet. Requests that
+ * fail validation get an unauthorized response right away. For requests that
+ * pass, the validated {@link OAuthRequest} is stored in the
+ * {@link #OAUTH_REQUEST_ATTRIBUTE} request attribute. Use
+ * {@link #getOAuthRequest(ServletRequest)} to get it.
+ *
+ * <p>
+ * Usage in <code>web.xml</code>:
+ *
+ * <pre>
+ * &lt;filter&gt;
+ * 	&lt;filter-name&gt;OAuth&lt;/filter-name&gt;
+ * 	&lt;filter-class&gt;org.eclipse.lyo.server.oauth.core.OAuthFilter&lt;/filter-class&gt;
+ * &lt;/filter&gt;
+ * &lt;filter-mapping&gt;
+ * 	&lt;filter-name&gt;OAuth&lt;/filter-name&gt;
+ * 	&lt;url-pattern&gt;/rest/hello/*&lt;/url-pattern&gt;
+ * &lt;/filter-mapping&gt;
+ * </pre>
+ *
+ * <p>
+ * In a Servlet 3 container, set the <code>async</code> init parameter to
+ * <code>true</code> and mark the filter and servlet
+ * <code>&lt;async-supported&gt;</code>. Validation then runs on the filter's
+ * own threads (<code>threads</code> init parameter, default
+ * {@value #DEFAULT_THREADS}) so a slow consumer store or token strategy
+ * doesn't hold a container thread. Valid requests are dispatched back to the
+ * container with {@link javax.servlet.AsyncContext#dispatch()}. Leave
+ * <code>async</code> off in Servlet 2.5 containers.
+ */
+public class OAuthFilter implements Filter {
+	/**
+	 * The request attribute holding the validated {@link OAuthRequest}.
+	 */
+	public static final String OAUTH_REQUEST_ATTRIBUTE = OAuthFilter.class
+			.getName() + ".request";
+
+	/**
+	 * The default number of threads for validating async requests.
+	 */
+	public static final int DEFAULT_THREADS = 8;
+
+	private boolean async = false;
+	private ExecutorService executor = null;
+
+	/**
+	 * Gets the request validated by the filter.
+	 *
+	 * @param request
+	 *            the servlet request
+	 * @return the validated request or null if the filter didn't run
+	 */
+	public static OAuthRequest getOAuthRequest(ServletRequest request) {
+		return (OAuthRequest) request.getAttribute(OAUTH_REQUEST_ATTRIBUTE);
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		this.async = "true".equals(filterConfig.getInitParameter("async"));
+		if (async) {
+			int threads = DEFAULT_THREADS;
+			String threadsParam = filterConfig.getInitParameter("threads");
+			if (threadsParam != null) {
+				try {
+					threads = Integer.parseInt(threadsParam);
+				} catch (NumberFormatException e) {
+					throw new ServletException("Invalid threads parameter: "
+							+ threadsParam, e);
+				}
+			}
+
+			final AtomicInteger count = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Lyo OAuth Filter "
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest)
+				|| getOAuthRequest(request) != null) {
+			// Not HTTP or already validated, for instance after an async
+			// dispatch or a forward.
+			chain.doFilter(request, response);
+			return;
+		}
+
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		if (async && httpRequest.isAsyncSupported()) {
+			// Kept in a separate class so Servlet 3 types are never loaded
+			// when async is off.
+			AsyncValidation.start(httpRequest, httpResponse, executor);
+			return;
+		}
+
+		if (validate(httpRequest, httpResponse)) {
+			chain.doFilter(request, response);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Validates the request and stores it in the
+	 * {@link #OAUTH_REQUEST_ATTRIBUTE} attribute. If validation fails, sends
+	 * the OAuth problem response.
+	 *
+	 * @param httpRequest
+	 *            the request
+	 * @param httpResponse
+	 *            the response
+	 * @return true if the request is valid, false if a response was sent
+	 * @throws IOException
+	 *             on I/O errors
+	 * @throws ServletException
+	 *             on servlet errors
+	 */
+	static boolean validate(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse) throws IOException,
+			ServletException {
+		try {
+			OAuthRequest oAuthRequest = new OAuthRequest(httpRequest);
+			oAuthRequest.validate();
+			httpRequest.setAttribute(OAUTH_REQUEST_ATTRIBUTE, oAuthRequest);
+
+			return true;
+		} catch (OAuthException e) {
+			try {
+				// Request failed validation. Send an unauthorized response.
+				OAuthServlet.handleException(httpResponse, e,
+						OAuthConfiguration.getInstance(httpRequest)
+								.getApplication().getRealm(httpRequest));
+				RequestThrottle.setRetryAfter(httpResponse, e);
+			} catch (OAuthProblemException serviceUnavailableException) {
+				// No application is configured yet.
+				httpResponse
+						.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+
+			return false;
+		}
+	}
+}
@@ -30,6 +30,7 @@ import net.oauth.OAuthValidator;
 import net.oauth.server.OAuthServlet;
 
 import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
 
 /**
  * Validates that a request is authorized. The request must contain a valid
@@ -47,12 +48,21 @@ import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
  * 	// Request failed validation. Send an unauthorized response.
  * 	OAuthServlet.handleException(httpResponse, e, OAuthConfiguration
  * 			.getInstance().getRealm());
+ * 	RequestThrottle.setRetryAfter(httpResponse, e);
  * }
  * </pre>
  * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
 public class OAuthRequest {
+	/**
+	 * The request attribute holding the parsed {@link OAuthMessage}.
+	 * 
+	 * @see #getOAuthMessage(HttpServletRequest)
+	 */
+	public static final String MESSAGE_ATTRIBUTE = OAuthRequest.class
+			.getName() + ".message";
+
 	private HttpServletRequest httpRequest;
 	private OAuthMessage message;
 	private OAuthAccessor accessor;
@@ -60,25 +70,129 @@ public class OAuthRequest {
 	public OAuthRequest(HttpServletRequest request)
 			throws OAuthException, IOException {
 		this.httpRequest = request;
-		this.message = OAuthServlet.getMessage(httpRequest, null);
+		OAuthConfiguration config = OAuthConfiguration.getInstance(httpRequest);
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+		this.message = getOAuthMessage(httpRequest);
+
+		try {
+			LyoOAuthConsumer consumer = null;
+			long start = System.nanoTime();
+			try {
+				consumer = getConsumer(config);
+			} finally {
+				metrics.getTimer(OAuthMetrics.PHASE_CONSUMER_LOOKUP).record(
+						start, consumer != null);
+			}
+
+			this.accessor = new OAuthAccessor(consumer);
+
+			// Fill in the token secret if it's there.
+			String token = this.message.getToken();
+			if (token != null) {
+				boolean success = false;
+				start = System.nanoTime();
+				try {
+					this.accessor.tokenSecret = config.getTokenStrategy()
+							.getTokenSecret(this.httpRequest, token);
+					success = true;
+				} finally {
+					metrics.getTimer(OAuthMetrics.PHASE_TOKEN_LOOKUP).record(
+							start, success);
+				}
+			}
+		} catch (OAuthProblemException e) {
+			throw rejected(e, false);
+		}
+	}
+
+	/**
+	 * Looks up the consumer for the message. Keys recently rejected are
+	 * turned away without asking the consumer store.
+	 */
+	private LyoOAuthConsumer getConsumer(OAuthConfiguration config)
+			throws OAuthException, IOException {
+		NegativeCache rejectedConsumers = config.getRejectedConsumers();
+		String consumerKey = message.getConsumerKey();
+		if (rejectedConsumers != null
+				&& rejectedConsumers.contains(consumerKey)) {
+			throw new OAuthProblemException(
+					OAuth.Problems.CONSUMER_KEY_REJECTED);
+		}
 
-		LyoOAuthConsumer consumer = OAuthConfiguration.getInstance()
-				.getConsumerStore().getConsumer(message);
+		LyoOAuthConsumer consumer = config.getConsumerStore().getConsumer(
+				message);
 		if (consumer == null) {
+			if (rejectedConsumers != null) {
+				rejectedConsumers.add(consumerKey);
+			}
 			throw new OAuthProblemException(
 					OAuth.Problems.CONSUMER_KEY_REJECTED);
 		}
 
-		this.accessor = new OAuthAccessor(consumer);
+		return consumer;
+	}
 
-		// Fill in the token secret if it's there.
-		String token = this.message.getToken();
-		if (token != null) {
-			this.accessor.tokenSecret = OAuthConfiguration.getInstance()
-					.getTokenStrategy().getTokenSecret(this.httpRequest, token);
+	/**
+	 * Counts a rejected request in the {@link RequestThrottle}, if there is
+	 * one. Once the client has been rejected too often, the problem is
+	 * replaced with {@link RequestThrottle#TOO_MANY_REQUESTS}. Requests that
+	 * would be accepted are never throttled.
+	 * 
+	 * <p>
+	 * Consumer keys are sent in the clear, so a rejection only counts against
+	 * the consumer key if the signature was verified. Otherwise anyone could
+	 * lock a consumer out by sending bad requests with its key.
+	 * 
+	 * @param e
+	 *            the reason the request was rejected
+	 * @param signatureVerified
+	 *            true if the request was signed with the consumer's secret
+	 */
+	private OAuthProblemException rejected(OAuthProblemException e,
+			boolean signatureVerified) throws IOException {
+		RequestThrottle throttle = OAuthConfiguration.getInstance(
+				httpRequest).getThrottle();
+		if (throttle != null) {
+			String consumerKey = signatureVerified ? message.getConsumerKey()
+					: null;
+			String remoteAddress = httpRequest.getRemoteAddr();
+			try {
+				throttle.check(consumerKey, remoteAddress);
+			} catch (OAuthProblemException tooManyRequests) {
+				return tooManyRequests;
+			}
+			throttle.recordRejection(consumerKey, remoteAddress);
 		}
+
+		return e;
 	}
 	
+	/**
+	 * Gets the OAuth message for an HTTP request. The Authorization header,
+	 * query, and form parameters are only decoded the first time this is
+	 * called for a request. The message is kept in the
+	 * {@link #MESSAGE_ATTRIBUTE} request attribute after that. Only the
+	 * first call is timed as {@link OAuthMetrics#PHASE_PARSE}.
+	 * 
+	 * @param httpRequest
+	 *            the HTTP request
+	 * @return the OAuth message
+	 */
+	public static OAuthMessage getOAuthMessage(HttpServletRequest httpRequest) {
+		OAuthMessage message = (OAuthMessage) httpRequest
+				.getAttribute(MESSAGE_ATTRIBUTE);
+		if (message == null) {
+			long start = System.nanoTime();
+			message = OAuthServlet.getMessage(httpRequest, null);
+			OAuthMetrics.getInstance().getTimer(OAuthMetrics.PHASE_PARSE)
+					.record(start, true);
+			httpRequest.setAttribute(MESSAGE_ATTRIBUTE, message);
+		}
+
+		return message;
+	}
+
 	public HttpServletRequest getHttpRequest() {
 		return httpRequest;
 	}
@@ -115,12 +229,32 @@ public class OAuthRequest {
 	 *             if the request fails validation
 	 */
 	public void validate() throws OAuthException, IOException, ServletException {
+		OAuthConfiguration config = OAuthConfiguration.getInstance(httpRequest);
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+		boolean success = false;
+		long start = System.nanoTime();
 		try {
-			OAuthConfiguration config = OAuthConfiguration.getInstance();
 			config.getValidator().validateMessage(message, accessor);
-			config.getTokenStrategy().validateAccessToken(this);
+			success = true;
+		} catch (OAuthProblemException e) {
+			throw rejected(e, false);
 		} catch (URISyntaxException e) {
 			throw new ServletException(e);
+		} finally {
+			metrics.getTimer(OAuthMetrics.PHASE_VALIDATE).record(start, success);
+		}
+
+		success = false;
+		start = System.nanoTime();
+		try {
+			config.getTokenStrategy().validateAccessToken(this);
+			success = true;
+		} catch (OAuthProblemException e) {
+			throw rejected(e, true);
+		} finally {
+			metrics.getTimer(OAuthMetrics.PHASE_ACCESS_TOKEN).record(start,
+					success);
 		}
 	}
 }
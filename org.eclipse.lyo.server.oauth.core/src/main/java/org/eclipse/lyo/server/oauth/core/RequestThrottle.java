@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpMessage;
+
+import org.eclipse.lyo.server.oauth.core.token.StripedLRUCache;
+
+/**
+ * Slows down clients that keep sending requests that are rejected. Each
+ * remote address and each consumer key has a token bucket, and every rejected
+ * request takes a token from its buckets. The buckets refill at a fixed rate.
+ * Once a bucket is empty, further rejected requests from that address or
+ * consumer are answered with HTTP 429 (Too Many Requests) and a
+ * <code>Retry-After</code> header instead of the usual OAuth problem.
+ * 
+ * <p>
+ * Only requests that are rejected anyway are throttled, so a request that
+ * would validate is always accepted, even from an address shared with
+ * misbehaving clients. {@link OAuthRequest} only counts a rejection against
+ * the consumer key after the request's signature is verified, since anyone
+ * can send requests with a consumer's key.
+ * 
+ * <p>
+ * Throttling is off unless a throttle is set with
+ * {@link OAuthConfiguration#setThrottle(RequestThrottle)}.
+ *
+ * @see OAuthConfiguration#setThrottle(RequestThrottle)
+ */
+public class RequestThrottle {
+	/**
+	 * The OAuth problem for throttled requests.
+	 */
+	public static final String TOO_MANY_REQUESTS = "too_many_requests";
+
+	/**
+	 * The problem parameter holding the number of seconds to wait before
+	 * trying again.
+	 */
+	public static final String RETRY_AFTER = "retry_after";
+
+	/**
+	 * The HTTP status for throttled requests.
+	 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * The default number of rejections allowed in a burst.
+	 */
+	public static final int DEFAULT_BURST = 20;
+
+	/**
+	 * The default number of rejections allowed per second after a burst.
+	 */
+	public static final double DEFAULT_RATE = 1.0;
+
+	/**
+	 * The default number of buckets tracked.
+	 */
+	public static final int DEFAULT_MAX_BUCKETS = 10000;
+
+	private static final String CONSUMER_PREFIX = "c:";
+	private static final String ADDRESS_PREFIX = "a:";
+
+	private final StripedLRUCache<String, Bucket> buckets;
+	private final double burst;
+	private final double tokensPerMilli;
+
+	private class Bucket {
+		private double tokens = burst;
+		private long updated = System.currentTimeMillis();
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - updated) * tokensPerMilli);
+			updated = now;
+		}
+
+		synchronized long getWait() {
+			refill(System.currentTimeMillis());
+			return (tokens >= 1) ? 0 : (long) Math
+					.ceil((1 - tokens) / tokensPerMilli);
+		}
+
+		synchronized void take() {
+			refill(System.currentTimeMillis());
+			tokens = Math.max(0, tokens - 1);
+		}
+	}
+
+	public RequestThrottle() {
+		this(DEFAULT_BURST, DEFAULT_RATE, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * Creates a throttle.
+	 *
+	 * @param burst
+	 *            the number of rejections allowed before throttling starts
+	 * @param rate
+	 *            the number of rejections allowed per second after that
+	 * @param maxBuckets
+	 *            the most consumer keys and addresses to track. The least
+	 *            recently rejected are forgotten first.
+	 */
+	public RequestThrottle(int burst, double rate, int maxBuckets) {
+		if (burst < 1 || rate <= 0) {
+			throw new IllegalArgumentException(
+					"burst and rate must be positive");
+		}
+
+		this.burst = burst;
+		this.tokensPerMilli = rate / 1000;
+		this.buckets = new StripedLRUCache<String, Bucket>(maxBuckets);
+	}
+
+	/**
+	 * Throws if the consumer or address has been rejected too often. Only
+	 * call this for requests that are being rejected.
+	 *
+	 * @param consumerKey
+	 *            the consumer key or null
+	 * @param remoteAddress
+	 *            the remote address or null
+	 * @throws OAuthProblemException
+	 *             a {@value #TOO_MANY_REQUESTS} problem with status 429 and
+	 *             the {@value #RETRY_AFTER} parameter if the request should
+	 *             be refused
+	 */
+	public void check(String consumerKey, String remoteAddress)
+			throws OAuthProblemException {
+		long wait = Math.max(getWait(CONSUMER_PREFIX, consumerKey),
+				getWait(ADDRESS_PREFIX, remoteAddress));
+		if (wait > 0) {
+			OAuthProblemException e = new OAuthProblemException(
+					TOO_MANY_REQUESTS);
+			e.setParameter(HttpMessage.STATUS_CODE, SC_TOO_MANY_REQUESTS);
+			e.setParameter(RETRY_AFTER, Long.toString((wait + 999) / 1000));
+			throw e;
+		}
+	}
+
+	/**
+	 * Records a rejected request for the consumer and address.
+	 *
+	 * @param consumerKey
+	 *            the consumer key or null
+	 * @param remoteAddress
+	 *            the remote address or null
+	 */
+	public void recordRejection(String consumerKey, String remoteAddress) {
+		take(CONSUMER_PREFIX, consumerKey);
+		take(ADDRESS_PREFIX, remoteAddress);
+	}
+
+	/**
+	 * Adds a <code>Retry-After</code> header to the response if the exception
+	 * is for a throttled request. Call this after
+	 * {@link net.oauth.server.OAuthServlet#handleException(HttpServletResponse, Exception, String)}
+	 * , which resets the response headers.
+	 *
+	 * @param response
+	 *            the response
+	 * @param e
+	 *            the exception
+	 */
+	public static void setRetryAfter(HttpServletResponse response, Exception e) {
+		String retryAfter = getRetryAfter(e);
+		if (retryAfter != null) {
+			response.setHeader("Retry-After", retryAfter);
+		}
+	}
+
+	/**
+	 * Gets the seconds to wait for a throttled request.
+	 *
+	 * @param e
+	 *            the exception
+	 * @return the number of seconds or null if this isn't a throttled request
+	 */
+	public static String getRetryAfter(Exception e) {
+		if (e instanceof OAuthProblemException) {
+			Object retryAfter = ((OAuthProblemException) e).getParameters()
+					.get(RETRY_AFTER);
+			if (retryAfter != null) {
+				return retryAfter.toString();
+			}
+		}
+
+		return null;
+	}
+
+	private long getWait(String prefix, String key) {
+		if (key == null) {
+			return 0;
+		}
+
+		Bucket bucket = buckets.get(prefix + key);
+		return (bucket == null) ? 0 : bucket.getWait();
+	}
+
+	private void take(String prefix, String key) {
+		if (key == null) {
+			return;
+		}
+
+		Bucket bucket = buckets.get(prefix + key);
+		if (bucket == null) {
+			// Two threads might both create a bucket. Losing a rejection in
+			// that race doesn't matter.
+			bucket = new Bucket();
+			buckets.put(prefix + key, bucket);
+		}
+		bucket.take();
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.signature.OAuthSignatureMethod;
+
+/**
+ * Verifies RSA-SHA1 signatures with the public key cached on the consumer.
+ * Unlike net.oauth's RSA_SHA1, it doesn't parse the key or look up a
+ * {@link Signature} for every request. Each thread reuses its own
+ * {@link Signature}.
+ *
+ * @see org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer#getPublicKey()
+ */
+class RsaSha1Verifier {
+	private static final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance("SHA1withRSA");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private RsaSha1Verifier() {}
+
+	/**
+	 * Checks the signature of a message.
+	 *
+	 * @param message
+	 *            the OAuth message
+	 * @param publicKey
+	 *            the consumer's public key
+	 * @throws OAuthProblemException
+	 *             if the signature is invalid
+	 * @throws OAuthException
+	 *             if the signature can't be checked
+	 * @throws IOException
+	 *             on errors reading the message
+	 * @throws URISyntaxException
+	 *             if the request URL is invalid
+	 */
+	static void verify(OAuthMessage message, PublicKey publicKey)
+			throws OAuthException, IOException, URISyntaxException {
+		message.requireParameters(OAuth.OAUTH_CONSUMER_KEY,
+				OAuth.OAUTH_SIGNATURE_METHOD, OAuth.OAUTH_SIGNATURE);
+		String signature = message.getSignature();
+		String baseString = OAuthSignatureMethod.getBaseString(message);
+
+		boolean valid;
+		try {
+			Signature verifier = signatures.get();
+			verifier.initVerify(publicKey);
+			verifier.update(baseString.getBytes(OAuth.ENCODING));
+			valid = verifier.verify(OAuthSignatureMethod
+					.decodeBase64(signature));
+		} catch (SignatureException e) {
+			// The signature is malformed.
+			valid = false;
+		} catch (InvalidKeyException e) {
+			throw new OAuthException(e);
+		}
+
+		if (!valid) {
+			// The same parameters net.oauth sets.
+			OAuthProblemException problem = new OAuthProblemException(
+					OAuth.Problems.SIGNATURE_INVALID);
+			problem.setParameter(OAuth.OAUTH_SIGNATURE, signature);
+			problem.setParameter("oauth_signature_base_string", baseString);
+			problem.setParameter(OAuth.OAUTH_SIGNATURE_METHOD,
+					message.getSignatureMethod());
+			throw problem;
+		}
+	}
+}
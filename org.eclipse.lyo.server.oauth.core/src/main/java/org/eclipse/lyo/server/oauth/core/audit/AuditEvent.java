@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.audit;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A security-relevant change to a token or consumer. Token secrets are never
+ * recorded, and tokens are only recorded as a {@link #fingerprint(String)} so
+ * that reading the audit log doesn't give anyone a working token.
+ *
+ * <p>
+ * Events are reused by the {@link AuditLog}, so an {@link AuditSink} must not
+ * keep references to them after {@link AuditSink#write(java.util.List)}
+ * returns.
+ */
+public class AuditEvent {
+	public enum Type {
+		REQUEST_TOKEN_ISSUED,
+		REQUEST_TOKEN_AUTHORIZED,
+		ACCESS_TOKEN_ISSUED,
+		/**
+		 * A token was revoked. If there's no token, all of the consumer's
+		 * tokens were revoked. If there's no consumer key either, every
+		 * token was revoked.
+		 */
+		TOKEN_REVOKED,
+		CONSUMER_ADDED,
+		CONSUMER_APPROVED,
+		CONSUMER_UPDATED,
+		CONSUMER_REMOVED
+	}
+
+	private static final int FINGERPRINT_LENGTH = 16;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/*
+	 * The sequence number of the event in this slot of the ring buffer, set
+	 * last so the writer knows the other fields are ready.
+	 */
+	volatile long sequence = -1;
+
+	long time;
+	Type type;
+	String consumerKey;
+	String tokenFingerprint;
+	String remoteAddress;
+
+	AuditEvent() {
+	}
+
+	void copyFrom(AuditEvent event) {
+		time = event.time;
+		type = event.type;
+		consumerKey = event.consumerKey;
+		tokenFingerprint = event.tokenFingerprint;
+		remoteAddress = event.remoteAddress;
+	}
+
+	/**
+	 * Gets when the event happened.
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the key of the consumer.
+	 *
+	 * @return the consumer key or null if it isn't known, for instance when
+	 *         a user authorizes a request token
+	 */
+	public String getConsumerKey() {
+		return consumerKey;
+	}
+
+	/**
+	 * Gets the fingerprint of the token for token events.
+	 *
+	 * @return the token fingerprint or null for consumer events
+	 * @see #fingerprint(String)
+	 */
+	public String getTokenFingerprint() {
+		return tokenFingerprint;
+	}
+
+	/**
+	 * Gets the address of the client that made the request.
+	 *
+	 * @return the IP address or null if it isn't known
+	 */
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Gets the fingerprint recorded for a token: the first 16 hex digits of
+	 * its SHA-256 hash. The token can't be recovered from it, but an
+	 * administrator who has a token can find its events.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the fingerprint or null if the token is null
+	 */
+	public static String fingerprint(String token) {
+		if (token == null) {
+			return null;
+		}
+
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(
+					token.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		StringBuilder fingerprint = new StringBuilder(FINGERPRINT_LENGTH);
+		for (int i = 0; i < FINGERPRINT_LENGTH / 2; i++) {
+			fingerprint.append(HEX[(hash[i] >> 4) & 0xf]).append(
+					HEX[hash[i] & 0xf]);
+		}
+
+		return fingerprint.toString();
+	}
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.audit;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AuditingConsumerStore;
+import org.eclipse.lyo.server.oauth.core.token.AuditingTokenStrategy;
+
+/**
+ * Records audit events without adding I/O to the request. Events go into a
+ * fixed-size ring buffer allocated up front, and a background thread writes
+ * them to an {@link AuditSink} in batches. Logging an event claims a slot
+ * with one compare-and-set and never blocks. If the buffer is full because
+ * the sink can't keep up, the event is dropped and counted in
+ * {@link #getDroppedCount()}.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * public void contextInitialized(ServletContextEvent event) {
+ * 	auditLog = new AuditLog(new RollingFileAuditSink(new File(&quot;oauth-audit.log&quot;)));
+ * 	OAuthConfiguration config = OAuthConfiguration.getInstance();
+ * 	config.setTokenStrategy(new AuditingTokenStrategy(
+ * 			new SimpleTokenStrategy(), auditLog));
+ * 	config.setConsumerStore(new AuditingConsumerStore(
+ * 			new RdfConsumerStore(), auditLog));
+ * }
+ *
+ * public void contextDestroyed(ServletContextEvent event) {
+ * 	auditLog.close();
+ * }
+ * </pre>
+ *
+ * @see AuditingTokenStrategy
+ * @see AuditingConsumerStore
+ */
+public class AuditLog {
+	/**
+	 * The default number of events the buffer holds.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * The most events passed to the sink at once.
+	 */
+	public static final int MAX_BATCH = 256;
+
+	// How long the writer waits when there's nothing to write.
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final AuditEvent[] slots;
+	private final int mask;
+	private final AuditSink sink;
+	private final Thread writer;
+
+	// The next sequence number to claim.
+	private final AtomicLong next = new AtomicLong();
+
+	// Every event before this sequence number has been copied out of the
+	// buffer. Only the writer thread changes it.
+	private volatile long written = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed = false;
+
+	public AuditLog(AuditSink sink) {
+		this(sink, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an audit log and starts its writer thread.
+	 *
+	 * @param sink
+	 *            where to write events
+	 * @param capacity
+	 *            how many events the buffer holds, rounded up to a power of
+	 *            two
+	 */
+	public AuditLog(AuditSink sink, int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AuditEvent[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new AuditEvent();
+		}
+		this.mask = size - 1;
+		this.sink = sink;
+
+		this.writer = new Thread("Lyo OAuth Audit Writer") {
+			@Override
+			public void run() {
+				writeEvents();
+			}
+		};
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Records an event. Never blocks. The event is dropped if the buffer is
+	 * full or the log is closed.
+	 *
+	 * @param type
+	 *            the event type
+	 * @param consumerKey
+	 *            the consumer key or null if it isn't known
+	 * @param token
+	 *            the token or null. Only its fingerprint is recorded.
+	 * @param remoteAddress
+	 *            the client's IP address or null if it isn't known
+	 */
+	public void log(AuditEvent.Type type, String consumerKey, String token,
+			String remoteAddress) {
+		String tokenFingerprint = AuditEvent.fingerprint(token);
+		long sequence;
+		do {
+			sequence = next.get();
+			if (closed || sequence - written >= slots.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!next.compareAndSet(sequence, sequence + 1));
+
+		// The slot is ours until we set its sequence number.
+		AuditEvent slot = slots[(int) sequence & mask];
+		slot.time = System.currentTimeMillis();
+		slot.type = type;
+		slot.consumerKey = consumerKey;
+		slot.tokenFingerprint = tokenFingerprint;
+		slot.remoteAddress = remoteAddress;
+		slot.sequence = sequence;
+	}
+
+	/**
+	 * Gets how many events were lost because the buffer was full, the log was
+	 * closed, or the sink failed.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets how many events are waiting to be written.
+	 *
+	 * @return the number of events in the buffer
+	 */
+	public long getPendingCount() {
+		return next.get() - written;
+	}
+
+	/**
+	 * Writes the events already logged, stops the writer thread, and closes
+	 * the sink. Events logged afterwards are dropped.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Count anything logged while closing that wasn't written.
+		if (!writer.isAlive()) {
+			dropped.addAndGet(next.get() - written);
+		}
+	}
+
+	private void writeEvents() {
+		AuditEvent[] batch = new AuditEvent[Math.min(MAX_BATCH, slots.length)];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new AuditEvent();
+		}
+		List<AuditEvent> batchList = Arrays.asList(batch);
+
+		while (true) {
+			// Copy out the published events so their slots can be reused.
+			long sequence = written;
+			int count = 0;
+			while (count < batch.length) {
+				AuditEvent slot = slots[(int) (sequence + count) & mask];
+				if (slot.sequence != sequence + count) {
+					break;
+				}
+				batch[count++].copyFrom(slot);
+			}
+
+			if (count > 0) {
+				written = sequence + count;
+				write(batchList.subList(0, count));
+			} else if (closed && next.get() == sequence) {
+				break;
+			} else {
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+
+		try {
+			sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void write(List<AuditEvent> events) {
+		try {
+			sink.write(events);
+		} catch (IOException e) {
+			dropped.addAndGet(events.size());
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			// Keep the writer running.
+			dropped.addAndGet(events.size());
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.audit;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Saves audit events, for instance to a file or a remote log service. Only the
+ * {@link AuditLog}'s writer thread calls a sink, so it doesn't need to be
+ * thread safe.
+ *
+ * @see RollingFileAuditSink
+ */
+public interface AuditSink {
+	/**
+	 * Saves a batch of events in the order they happened. The events are
+	 * reused after this returns, so don't keep references to them.
+	 *
+	 * @param events
+	 *            the events
+	 * @throws IOException
+	 *             if the events can't be saved. They are counted as dropped.
+	 */
+	public void write(List<AuditEvent> events) throws IOException;
+
+	/**
+	 * Releases any resources. Called once after the last batch is written.
+	 *
+	 * @throws IOException
+	 *             on errors closing the sink
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.audit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Writes audit events to a text file, one tab-separated line per event:
+ *
+ * <pre>
+ * 2012-06-01T14:03:07.123Z	ACCESS_TOKEN_ISSUED	consumerKey	tokenFingerprint	remoteAddress
+ * </pre>
+ *
+ * The token fingerprint comes from {@link AuditEvent#fingerprint(String)}.
+ * Missing values are written as <code>-</code>. When the file grows past the
+ * size limit, it's renamed to <code>name.1</code>, older files are shifted up
+ * to <code>name.<i>maxBackups</i></code>, and a new file is started.
+ */
+public class RollingFileAuditSink implements AuditSink {
+	/**
+	 * The default size that starts a new file (10 MB).
+	 */
+	public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+	/**
+	 * The default number of old files kept.
+	 */
+	public static final int DEFAULT_MAX_BACKUPS = 10;
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxBackups;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	private final StringBuilder line = new StringBuilder();
+
+	private Writer writer = null;
+	private long bytes;
+
+	public RollingFileAuditSink(File file) {
+		this(file, DEFAULT_MAX_BYTES, DEFAULT_MAX_BACKUPS);
+	}
+
+	/**
+	 * Creates a sink. The file is appended to if it exists.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param maxBytes
+	 *            the size that starts a new file
+	 * @param maxBackups
+	 *            how many old files to keep
+	 */
+	public RollingFileAuditSink(File file, long maxBytes, int maxBackups) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		if (maxBackups < 0) {
+			throw new IllegalArgumentException("maxBackups is negative");
+		}
+
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxBackups = maxBackups;
+		this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	public void write(List<AuditEvent> events) throws IOException {
+		if (writer == null) {
+			open();
+		}
+
+		for (AuditEvent event : events) {
+			line.setLength(0);
+			line.append(dateFormat.format(new Date(event.getTime())));
+			append(event.getType().name());
+			append(event.getConsumerKey());
+			append(event.getTokenFingerprint());
+			append(event.getRemoteAddress());
+			line.append('\n');
+
+			writer.write(line.toString());
+			// Events are ASCII except perhaps consumer keys, so this is
+			// close enough for deciding when to roll.
+			bytes += line.length();
+		}
+		writer.flush();
+
+		if (bytes >= maxBytes) {
+			roll();
+		}
+	}
+
+	public void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	private void append(String value) {
+		line.append('\t');
+		if (value == null || value.length() == 0) {
+			line.append('-');
+			return;
+		}
+
+		// Keep each event on one line.
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			line.append(Character.isISOControl(c) ? ' ' : c);
+		}
+	}
+
+	private void open() throws IOException {
+		bytes = file.length();
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	private void roll() throws IOException {
+		close();
+
+		if (maxBackups == 0) {
+			delete(file);
+		} else {
+			delete(backup(maxBackups));
+			for (int i = maxBackups - 1; i >= 1; i--) {
+				File backup = backup(i);
+				if (backup.exists()) {
+					rename(backup, backup(i + 1));
+				}
+			}
+			rename(file, backup(1));
+		}
+
+		open();
+	}
+
+	private File backup(int i) {
+		return new File(file.getPath() + "." + i);
+	}
+
+	private static void delete(File f) throws IOException {
+		if (f.exists() && !f.delete()) {
+			throw new IOException("Can't delete " + f);
+		}
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			throw new IOException("Can't rename " + from + " to " + to);
+		}
+	}
+}
@@ -16,10 +16,14 @@
 package org.eclipse.lyo.server.oauth.core.consumer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.oauth.OAuth;
 import net.oauth.OAuthException;
@@ -28,24 +32,126 @@ import net.oauth.OAuthMessage;
 /**
  * Manages the list of OAuth consumers.
  * 
+ * <p>
+ * Consumers are looked up on every signed request but rarely change, so they
+ * are kept in a map that is never modified. Reads use the current map without
+ * locking. Writes copy the map, change the copy, and then replace the current
+ * map, so readers always see either the old or the new set of consumers.
+ * 
+ * <p>
+ * For paging, the consumers are sorted by name and by key the first time a
+ * page is asked for after a change. Each page is then found with a binary
+ * search, so paging through many consumers doesn't sort them again.
+ * 
+ * <p>
+ * Listeners are told about added and updated consumers after the new map is
+ * published.
+ * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
-public abstract class AbstractConsumerStore implements ConsumerStore {
-	private Map<String, LyoOAuthConsumer> consumerMap = Collections
-			.synchronizedMap(new HashMap<String, LyoOAuthConsumer>());
+public abstract class AbstractConsumerStore implements
+		QueryableConsumerStore, ObservableConsumerStore {
+	private volatile Map<String, LyoOAuthConsumer> consumerMap = Collections
+			.emptyMap();
+	private final Object writeLock = new Object();
+	private final List<ConsumerStoreListener> listeners = new CopyOnWriteArrayList<ConsumerStoreListener>();
+
+	/*
+	 * The consumers in consumerMap sorted for paging. Replaced when a page is
+	 * asked for and consumerMap has changed.
+	 */
+	private static class SortedConsumers {
+		final Map<String, LyoOAuthConsumer> source;
+		final LyoOAuthConsumer[] byName;
+		final LyoOAuthConsumer[] byKey;
+
+		SortedConsumers(Map<String, LyoOAuthConsumer> source) {
+			this.source = source;
+			this.byName = sort(source.values(), ConsumerQuery.Sort.NAME);
+			this.byKey = sort(source.values(), ConsumerQuery.Sort.KEY);
+		}
+
+		static LyoOAuthConsumer[] sort(Collection<LyoOAuthConsumer> consumers,
+				ConsumerQuery.Sort sort) {
+			LyoOAuthConsumer[] sorted = consumers
+					.toArray(new LyoOAuthConsumer[consumers.size()]);
+			ConsumerQuery order = new ConsumerQuery();
+			order.setSort(sort);
+			Arrays.sort(sorted, order.getComparator());
+
+			return sorted;
+		}
+	}
+
+	private volatile SortedConsumers sortedConsumers = null;
 	
 	public AbstractConsumerStore() {}
 	
 	public void addAll(Collection<LyoOAuthConsumer> consumers) {
-		for (LyoOAuthConsumer consumer : consumers) {
-			consumerMap.put(consumer.consumerKey, consumer);
+		synchronized (writeLock) {
+			Map<String, LyoOAuthConsumer> newMap = copy();
+			for (LyoOAuthConsumer consumer : consumers) {
+				newMap.put(consumer.consumerKey, consumer);
+			}
+			publish(newMap);
 		}
+		fireSaved(consumers);
+	}
+
+	public void addListener(ConsumerStoreListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ConsumerStoreListener listener) {
+		listeners.remove(listener);
 	}
 	
+	/**
+	 * Gets all consumers. The collection is a snapshot. It can't be modified
+	 * and won't change if consumers are added or removed later.
+	 * 
+	 * @return the consumers
+	 */
 	public Collection<LyoOAuthConsumer> getAllConsumers() {
 		return consumerMap.values();
 	}
 
+	public List<LyoOAuthConsumer> getConsumers(ConsumerQuery query) {
+		LyoOAuthConsumer[] sorted = getSorted(query.getSort());
+		List<LyoOAuthConsumer> page = new ArrayList<LyoOAuthConsumer>(
+				Math.min(query.getLimit(), sorted.length));
+
+		// isAfterCursor() is false then true along the array when
+		// ascending, and true then false when descending.
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (query.isAfterCursor(sorted[mid]) == query.isDescending()) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		if (query.isDescending()) {
+			for (int i = low - 1; i >= 0 && page.size() < query.getLimit(); i--) {
+				if (query.matches(sorted[i])) {
+					page.add(sorted[i]);
+				}
+			}
+		} else {
+			for (int i = low; i < sorted.length
+					&& page.size() < query.getLimit(); i++) {
+				if (query.matches(sorted[i])) {
+					page.add(sorted[i]);
+				}
+			}
+		}
+
+		return page;
+	}
+
 	public LyoOAuthConsumer getConsumer(OAuthMessage requestMessage)
 			throws OAuthException, IOException {
 		requestMessage.requireParameters(OAuth.OAUTH_CONSUMER_KEY);
@@ -57,10 +163,90 @@ public abstract class AbstractConsumerStore implements ConsumerStore {
 	}
 	
 	protected LyoOAuthConsumer add(LyoOAuthConsumer consumer) {
-		return consumerMap.put(consumer.consumerKey, consumer);
+		LyoOAuthConsumer previous;
+		synchronized (writeLock) {
+			Map<String, LyoOAuthConsumer> newMap = copy();
+			previous = newMap.put(consumer.consumerKey, consumer);
+			publish(newMap);
+		}
+		fireSaved(Collections.singletonList(consumer));
+
+		return previous;
 	}
 	
+	/**
+	 * Adds and removes many consumers at once. The map is only copied once,
+	 * and readers see all of the changes or none of them.
+	 * 
+	 * @param added
+	 *            consumers to add or update
+	 * @param removed
+	 *            keys of consumers to remove, applied after the additions
+	 * @return the previous consumers for the added keys, in the same order,
+	 *         with nulls for new consumers
+	 */
+	protected List<LyoOAuthConsumer> addAndRemove(
+			Collection<LyoOAuthConsumer> added, Collection<String> removed) {
+		List<LyoOAuthConsumer> previous = new ArrayList<LyoOAuthConsumer>(
+				added.size());
+		synchronized (writeLock) {
+			Map<String, LyoOAuthConsumer> newMap = copy();
+			for (LyoOAuthConsumer consumer : added) {
+				previous.add(newMap.put(consumer.consumerKey, consumer));
+			}
+			for (String consumerKey : removed) {
+				newMap.remove(consumerKey);
+			}
+			publish(newMap);
+		}
+		fireSaved(added);
+
+		return previous;
+	}
+
 	protected LyoOAuthConsumer remove(String consumerKey) {
-		return consumerMap.remove(consumerKey);
+		synchronized (writeLock) {
+			if (!consumerMap.containsKey(consumerKey)) {
+				return null;
+			}
+
+			Map<String, LyoOAuthConsumer> newMap = copy();
+			LyoOAuthConsumer previous = newMap.remove(consumerKey);
+			publish(newMap);
+			return previous;
+		}
+	}
+
+	private LyoOAuthConsumer[] getSorted(ConsumerQuery.Sort sort) {
+		Map<String, LyoOAuthConsumer> current = consumerMap;
+		SortedConsumers sorted = sortedConsumers;
+		if (sorted == null || sorted.source != current) {
+			// Two threads might both sort. Either result is fine.
+			sorted = new SortedConsumers(current);
+			sortedConsumers = sorted;
+		}
+
+		return (sort == ConsumerQuery.Sort.KEY) ? sorted.byKey
+				: sorted.byName;
+	}
+
+	/**
+	 * Tells the listeners about added or updated consumers. Called outside
+	 * the write lock so listeners can't hold up other writers.
+	 */
+	private void fireSaved(Collection<LyoOAuthConsumer> consumers) {
+		for (ConsumerStoreListener listener : listeners) {
+			for (LyoOAuthConsumer consumer : consumers) {
+				listener.consumerSaved(consumer);
+			}
+		}
+	}
+
+	private Map<String, LyoOAuthConsumer> copy() {
+		return new HashMap<String, LyoOAuthConsumer>(consumerMap);
+	}
+
+	private void publish(Map<String, LyoOAuthConsumer> newMap) {
+		consumerMap = Collections.unmodifiableMap(newMap);
 	}
 }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+
+import org.eclipse.lyo.server.oauth.core.audit.AuditEvent;
+import org.eclipse.lyo.server.oauth.core.audit.AuditLog;
+
+/**
+ * Wraps another consumer store and records an {@link AuditEvent} each time a
+ * consumer is added, approved, updated, or removed. An update that clears the
+ * provisional flag is recorded as {@link AuditEvent.Type#CONSUMER_APPROVED}.
+ * Events are only recorded if the change succeeds. Listeners are passed on
+ * to the wrapped store if it is an {@link ObservableConsumerStore}.
+ *
+ * @see AuditLog
+ */
+public class AuditingConsumerStore implements QueryableConsumerStore,
+		ObservableConsumerStore {
+	private final ConsumerStore store;
+	private final AuditLog auditLog;
+
+	/*
+	 * Keys of provisional consumers, so approvals can be told apart from
+	 * other updates. The store can't be asked since it might return the same
+	 * object the caller is updating.
+	 */
+	private final Set<String> provisionalKeys = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Creates an auditing consumer store.
+	 *
+	 * @param store
+	 *            the store that keeps the consumers
+	 * @param auditLog
+	 *            where to record events
+	 * @throws ConsumerStoreException
+	 *             on errors reading the provisional consumers
+	 */
+	public AuditingConsumerStore(ConsumerStore store, AuditLog auditLog)
+			throws ConsumerStoreException {
+		this.store = store;
+		this.auditLog = auditLog;
+		for (LyoOAuthConsumer consumer : store.getAllConsumers()) {
+			if (consumer.isProvisional()) {
+				provisionalKeys.add(consumer.consumerKey);
+			}
+		}
+	}
+
+	/**
+	 * Gets the wrapped store.
+	 *
+	 * @return the store
+	 */
+	public ConsumerStore getStore() {
+		return store;
+	}
+
+	public void addListener(ConsumerStoreListener listener) {
+		if (store instanceof ObservableConsumerStore) {
+			((ObservableConsumerStore) store).addListener(listener);
+		}
+	}
+
+	public void removeListener(ConsumerStoreListener listener) {
+		if (store instanceof ObservableConsumerStore) {
+			((ObservableConsumerStore) store).removeListener(listener);
+		}
+	}
+
+	public LyoOAuthConsumer getConsumer(OAuthMessage requestMessage)
+			throws OAuthException, IOException, ConsumerStoreException {
+		return store.getConsumer(requestMessage);
+	}
+
+	public Collection<LyoOAuthConsumer> getAllConsumers()
+			throws ConsumerStoreException {
+		return store.getAllConsumers();
+	}
+
+	public List<LyoOAuthConsumer> getConsumers(ConsumerQuery query)
+			throws ConsumerStoreException {
+		if (store instanceof QueryableConsumerStore) {
+			return ((QueryableConsumerStore) store).getConsumers(query);
+		}
+
+		return query.select(store.getAllConsumers());
+	}
+
+	public LyoOAuthConsumer getConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		return store.getConsumer(consumerKey);
+	}
+
+	public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		LyoOAuthConsumer previous = store.addConsumer(consumer);
+		trackProvisional(consumer);
+		log(AuditEvent.Type.CONSUMER_ADDED, consumer.consumerKey);
+
+		return previous;
+	}
+
+	public LyoOAuthConsumer removeConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		LyoOAuthConsumer previous = store.removeConsumer(consumerKey);
+		provisionalKeys.remove(consumerKey);
+		log(AuditEvent.Type.CONSUMER_REMOVED, consumerKey);
+
+		return previous;
+	}
+
+	public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		LyoOAuthConsumer previous = store.updateConsumer(consumer);
+		boolean approved = trackProvisional(consumer);
+		log(approved ? AuditEvent.Type.CONSUMER_APPROVED
+				: AuditEvent.Type.CONSUMER_UPDATED, consumer.consumerKey);
+
+		return previous;
+	}
+
+	/**
+	 * Remembers if a consumer is provisional.
+	 *
+	 * @return true if the consumer was provisional and no longer is
+	 */
+	private boolean trackProvisional(LyoOAuthConsumer consumer) {
+		if (consumer.isProvisional()) {
+			provisionalKeys.add(consumer.consumerKey);
+			return false;
+		}
+
+		return provisionalKeys.remove(consumer.consumerKey);
+	}
+
+	private void log(AuditEvent.Type type, String consumerKey) {
+		auditLog.log(type, consumerKey, null, null);
+	}
+}
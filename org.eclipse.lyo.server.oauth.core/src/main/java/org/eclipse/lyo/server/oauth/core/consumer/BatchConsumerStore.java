@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A consumer store that can save many changes in one transaction.
+ *
+ * @see WriteBehindConsumerStore
+ */
+public interface BatchConsumerStore extends ConsumerStore {
+	/**
+	 * Adds, updates, and removes consumers in a single transaction.
+	 *
+	 * @param added
+	 *            consumers to add or update
+	 * @param removed
+	 *            keys of consumers to remove, applied after the additions
+	 * @return the previous consumers for the added keys, in the same order,
+	 *         with nulls for new consumers
+	 *
+	 * @throws ConsumerStoreException
+	 *             on errors. No changes are made.
+	 */
+	public List<LyoOAuthConsumer> writeBatch(Collection<LyoOAuthConsumer> added,
+			Collection<String> removed) throws ConsumerStoreException;
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.oauth.OAuth;
+
+/**
+ * Selects one page of consumers. Consumers can be filtered by whether they are
+ * provisional or trusted and by a name prefix. They are sorted by name or key,
+ * with the consumer key breaking ties, so the order is always the same.
+ *
+ * <p>
+ * Pages are chained with cursors. After reading a full page, pass
+ * {@link #getCursor(LyoOAuthConsumer)} for its last consumer to
+ * {@link #setCursor(String)} to ask for the next page. Cursors hold the sort
+ * position, not an offset, so consumers added or removed between pages don't
+ * cause others to be skipped or repeated.
+ *
+ * @see QueryableConsumerStore
+ */
+public class ConsumerQuery {
+	/**
+	 * Sort orders for consumers.
+	 */
+	public enum Sort {
+		/** By name, treating no name as an empty name. */
+		NAME,
+
+		/** By consumer key. */
+		KEY
+	}
+
+	/**
+	 * The default page size.
+	 */
+	public static final int DEFAULT_LIMIT = 100;
+
+	/**
+	 * The largest page size allowed.
+	 */
+	public static final int MAX_LIMIT = 1000;
+
+	private static final String CURSOR_SEPARATOR = "/";
+
+	private Boolean provisional = null;
+	private Boolean trusted = null;
+	private String namePrefix = null;
+	private Sort sort = Sort.NAME;
+	private boolean descending = false;
+	private String afterName = null;
+	private String afterKey = null;
+	private int limit = DEFAULT_LIMIT;
+
+	public Boolean getProvisional() {
+		return provisional;
+	}
+
+	/**
+	 * Only selects provisional or approved consumers.
+	 *
+	 * @param provisional
+	 *            true for provisional consumers, false for approved
+	 *            consumers, or null for both
+	 */
+	public void setProvisional(Boolean provisional) {
+		this.provisional = provisional;
+	}
+
+	public Boolean getTrusted() {
+		return trusted;
+	}
+
+	/**
+	 * Only selects trusted or untrusted consumers.
+	 *
+	 * @param trusted
+	 *            true for trusted consumers, false for untrusted consumers,
+	 *            or null for both
+	 */
+	public void setTrusted(Boolean trusted) {
+		this.trusted = trusted;
+	}
+
+	public String getNamePrefix() {
+		return namePrefix;
+	}
+
+	/**
+	 * Only selects consumers whose names start with a prefix. The match is
+	 * case sensitive.
+	 *
+	 * @param namePrefix
+	 *            the prefix or null for any name
+	 */
+	public void setNamePrefix(String namePrefix) {
+		this.namePrefix = (namePrefix == null || namePrefix.length() == 0) ? null
+				: namePrefix;
+	}
+
+	public Sort getSort() {
+		return sort;
+	}
+
+	public void setSort(Sort sort) {
+		if (sort == null) {
+			throw new IllegalArgumentException("sort cannot be null");
+		}
+		this.sort = sort;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the page size.
+	 *
+	 * @param limit
+	 *            the most consumers to select, from 1 to {@value #MAX_LIMIT}
+	 */
+	public void setLimit(int limit) {
+		if (limit < 1 || limit > MAX_LIMIT) {
+			throw new IllegalArgumentException("limit must be between 1 and "
+					+ MAX_LIMIT);
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Gets the name of the last consumer on the previous page.
+	 *
+	 * @return the name, empty if the consumer has no name, or null if this is
+	 *         the first page
+	 */
+	public String getAfterName() {
+		return afterName;
+	}
+
+	/**
+	 * Gets the key of the last consumer on the previous page.
+	 *
+	 * @return the key or null if this is the first page
+	 */
+	public String getAfterKey() {
+		return afterKey;
+	}
+
+	/**
+	 * Starts the page after the consumer the cursor was created for.
+	 *
+	 * @param cursor
+	 *            a cursor from {@link #getCursor(LyoOAuthConsumer)} or null
+	 *            for the first page
+	 * @throws IllegalArgumentException
+	 *             if the cursor is not valid
+	 */
+	public void setCursor(String cursor) {
+		if (cursor == null || cursor.length() == 0) {
+			this.afterName = null;
+			this.afterKey = null;
+			return;
+		}
+
+		int separator = cursor.indexOf(CURSOR_SEPARATOR);
+		if (separator == -1) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+
+		this.afterName = OAuth.decodePercent(cursor.substring(0, separator));
+		this.afterKey = OAuth.decodePercent(cursor.substring(separator + 1));
+	}
+
+	/**
+	 * Gets the cursor for the page after a consumer.
+	 *
+	 * @param last
+	 *            the last consumer on a page
+	 * @return the cursor
+	 */
+	public String getCursor(LyoOAuthConsumer last) {
+		return OAuth.percentEncode(getName(last)) + CURSOR_SEPARATOR
+				+ OAuth.percentEncode(last.consumerKey);
+	}
+
+	/**
+	 * Checks if a consumer passes the filters. Doesn't look at the cursor.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 * @return true if the consumer matches
+	 */
+	public boolean matches(LyoOAuthConsumer consumer) {
+		if (provisional != null
+				&& provisional.booleanValue() != consumer.isProvisional()) {
+			return false;
+		}
+
+		if (trusted != null && trusted.booleanValue() != consumer.isTrusted()) {
+			return false;
+		}
+
+		return namePrefix == null
+				|| (consumer.getName() != null && consumer.getName()
+						.startsWith(namePrefix));
+	}
+
+	/**
+	 * Checks if a consumer comes after the cursor in the query's order.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 * @return true if the consumer is after the cursor or there is no cursor
+	 */
+	public boolean isAfterCursor(LyoOAuthConsumer consumer) {
+		if (afterKey == null) {
+			return true;
+		}
+
+		int c = compare(getName(consumer), consumer.consumerKey, afterName,
+				afterKey);
+		return descending ? c < 0 : c > 0;
+	}
+
+	/**
+	 * Gets a comparator for the query's order.
+	 *
+	 * @return the comparator
+	 */
+	public Comparator<LyoOAuthConsumer> getComparator() {
+		return new Comparator<LyoOAuthConsumer>() {
+			@Override
+			public int compare(LyoOAuthConsumer left, LyoOAuthConsumer right) {
+				int c = ConsumerQuery.this.compare(getName(left),
+						left.consumerKey, getName(right), right.consumerKey);
+				return descending ? -c : c;
+			}
+		};
+	}
+
+	/**
+	 * Selects a page from a collection of consumers. Stores that can't do
+	 * better can use this with {@link ConsumerStore#getAllConsumers()}.
+	 *
+	 * @param consumers
+	 *            all consumers
+	 * @return the page
+	 */
+	public List<LyoOAuthConsumer> select(Collection<LyoOAuthConsumer> consumers) {
+		List<LyoOAuthConsumer> selected = new ArrayList<LyoOAuthConsumer>();
+		for (LyoOAuthConsumer consumer : consumers) {
+			if (matches(consumer) && isAfterCursor(consumer)) {
+				selected.add(consumer);
+			}
+		}
+
+		Collections.sort(selected, getComparator());
+		if (selected.size() > limit) {
+			return new ArrayList<LyoOAuthConsumer>(selected.subList(0, limit));
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Gets the name used for sorting, which is empty if the consumer has no
+	 * name.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 * @return the name, never null
+	 */
+	public static String getName(LyoOAuthConsumer consumer) {
+		return (consumer.getName() == null) ? "" : consumer.getName();
+	}
+
+	private int compare(String leftName, String leftKey, String rightName,
+			String rightKey) {
+		if (sort == Sort.NAME) {
+			int c = leftName.compareTo(rightName);
+			if (c != 0) {
+				return c;
+			}
+		}
+
+		return leftKey.compareTo(rightKey);
+	}
+}
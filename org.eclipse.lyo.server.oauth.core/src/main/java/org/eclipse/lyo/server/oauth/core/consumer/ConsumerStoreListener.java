@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+/**
+ * Notified when a consumer is added to or updated in a store, for instance so
+ * that caches of unknown consumer keys can forget the key.
+ *
+ * @see ObservableConsumerStore
+ */
+public interface ConsumerStoreListener {
+	/**
+	 * Called after a consumer is added or updated. The consumer can be looked
+	 * up in the store by the time this is called.
+	 *
+	 * @param consumer
+	 *            the consumer
+	 */
+	public void consumerSaved(LyoOAuthConsumer consumer);
+}
@@ -15,12 +15,24 @@
  *******************************************************************************/
 package org.eclipse.lyo.server.oauth.core.consumer;
 
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+
 import net.oauth.OAuthConsumer;
 import net.oauth.OAuthServiceProvider;
+import net.oauth.signature.RSA_SHA1;
 
 /**
  * An OAuth consumer with extra properties, including a name and a trusted flag.
  * 
+ * <p>
+ * Consumers that sign requests with RSA-SHA1 have an X.509 certificate. The
+ * certificate is parsed once when it's set, and its public key is kept on the
+ * consumer so requests are verified without parsing it again.
+ * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
 public class LyoOAuthConsumer extends OAuthConsumer {
@@ -31,6 +43,8 @@ public class LyoOAuthConsumer extends OAuthConsumer {
 	private String name;
 	private boolean provisional = false;
 	private boolean trusted = false;
+	private String x509Certificate = null;
+	private transient PublicKey publicKey = null;
 
 	/*
 	 * Assume 1.0 until we learn otherwise. This can be determined if the
@@ -128,4 +142,68 @@ public class LyoOAuthConsumer extends OAuthConsumer {
 	public void setOAuthVersion(OAuthVersion oAuthVersion) {
 		this.oAuthVersion = oAuthVersion;
 	}
+
+	/**
+	 * Gets the X.509 certificate the consumer uses for RSA-SHA1 signatures.
+	 * 
+	 * @return the PEM-encoded certificate or null if the consumer doesn't use
+	 *         RSA-SHA1
+	 */
+	public String getX509Certificate() {
+		return x509Certificate;
+	}
+
+	/**
+	 * Sets the X.509 certificate the consumer uses for RSA-SHA1 signatures.
+	 * The certificate is parsed right away.
+	 * 
+	 * @param x509Certificate
+	 *            the PEM-encoded certificate or null
+	 * @throws CertificateException
+	 *             if the certificate can't be parsed. The consumer is not
+	 *             changed.
+	 */
+	public void setX509Certificate(String x509Certificate)
+			throws CertificateException {
+		PublicKey key = (x509Certificate == null) ? null
+				: parsePublicKey(x509Certificate);
+		this.x509Certificate = x509Certificate;
+		this.publicKey = key;
+
+		// Also lets net.oauth's RSA_SHA1 use the key without parsing it.
+		setProperty(RSA_SHA1.PUBLIC_KEY, key);
+	}
+
+	/**
+	 * Gets the public key from the consumer's X.509 certificate.
+	 * 
+	 * @return the key or null if the consumer has no certificate
+	 */
+	public PublicKey getPublicKey() {
+		if (publicKey == null && x509Certificate != null) {
+			// Only after the consumer was deserialized.
+			try {
+				publicKey = parsePublicKey(x509Certificate);
+			} catch (CertificateException e) {
+				// Checked when the certificate was set.
+				throw new IllegalStateException(e);
+			}
+		}
+
+		return publicKey;
+	}
+
+	private static PublicKey parsePublicKey(String x509Certificate)
+			throws CertificateException {
+		try {
+			return CertificateFactory
+					.getInstance("X.509")
+					.generateCertificate(
+							new ByteArrayInputStream(x509Certificate
+									.getBytes("US-ASCII"))).getPublicKey();
+		} catch (UnsupportedEncodingException e) {
+			// US-ASCII is always supported.
+			throw new IllegalStateException(e);
+		}
+	}
 }
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+/**
+ * A consumer store that tells listeners when consumers are added or updated.
+ * {@link org.eclipse.lyo.server.oauth.core.OAuthConfiguration} listens to its
+ * store so that a new or approved consumer's key is accepted right away.
+ *
+ * @see ConsumerStoreListener
+ */
+public interface ObservableConsumerStore extends ConsumerStore {
+	public void addListener(ConsumerStoreListener listener);
+
+	public void removeListener(ConsumerStoreListener listener);
+}
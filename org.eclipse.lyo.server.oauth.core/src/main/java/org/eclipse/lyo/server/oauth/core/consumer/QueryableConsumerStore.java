@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.util.List;
+
+/**
+ * A consumer store that can read one page of consumers at a time without
+ * copying or sorting all of them.
+ *
+ * @see ConsumerQuery
+ */
+public interface QueryableConsumerStore extends ConsumerStore {
+	/**
+	 * Gets a page of consumers.
+	 *
+	 * @param query
+	 *            the filters, order, cursor, and page size
+	 * @return the consumers after the cursor, in order. If there are
+	 *         {@link ConsumerQuery#getLimit()} consumers, there may be more on
+	 *         the next page.
+	 *
+	 * @throws ConsumerStoreException
+	 *             on errors
+	 */
+	public List<LyoOAuthConsumer> getConsumers(ConsumerQuery query)
+			throws ConsumerStoreException;
+}
@@ -0,0 +1,516 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+
+/**
+ * Wraps another consumer store and saves changes in the background. Adding,
+ * updating, or removing a consumer returns as soon as the change is recorded
+ * in memory, and lookups see the change right away. Changes to the same
+ * consumer are coalesced, so only the last one is saved. Pending changes are
+ * saved in groups when enough of them build up or when the flush interval
+ * passes. If the wrapped store is a {@link BatchConsumerStore}, each group is
+ * saved in one transaction. If a group can't be saved, its changes are saved
+ * one at a time so that a bad change only holds up itself. Changes that still
+ * fail stay pending and are tried again in the background, waiting twice as
+ * long after each failure, up to {@link #MAX_RETRY_DELAY}. A change is
+ * logged the first time it fails, and {@link #getFailedConsumerKeys()} lists
+ * the changes that are failing.
+ *
+ * <p>
+ * Listeners are told about added and updated consumers when the change is
+ * recorded, since lookups see it from then on.
+ *
+ * <p>
+ * Call {@link #close()} when the webapp stops to save any pending changes.
+ * Changes not yet saved are lost if the JVM exits without calling
+ * {@link #close()}.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * public void contextInitialized(ServletContextEvent event) {
+ * 	OAuthConfiguration.getInstance().setConsumerStore(
+ * 			new WriteBehindConsumerStore(new RdfConsumerStore()));
+ * }
+ *
+ * public void contextDestroyed(ServletContextEvent event) {
+ * 	((WriteBehindConsumerStore) OAuthConfiguration.getInstance()
+ * 			.getConsumerStore()).close();
+ * }
+ * </pre>
+ */
+public class WriteBehindConsumerStore implements QueryableConsumerStore,
+		ObservableConsumerStore {
+	/**
+	 * The default number of pending changes that triggers a flush.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * The default time between flushes (1 second).
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+	/**
+	 * The longest time a failing change waits before it's tried again (5
+	 * minutes).
+	 */
+	public static final long MAX_RETRY_DELAY = 5 * 60 * 1000L;
+
+	private final ConsumerStore store;
+	private final int batchSize;
+	private final long flushInterval;
+
+	private final ConcurrentMap<String, PendingChange> pending = new ConcurrentHashMap<String, PendingChange>();
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	private final ScheduledExecutorService executor;
+	private volatile boolean closed = false;
+	private final List<ConsumerStoreListener> listeners = new CopyOnWriteArrayList<ConsumerStoreListener>();
+
+	/*
+	 * Writers hold the read lock while adding to the pending map. close()
+	 * takes the write lock to set closed, so no change can be added after its
+	 * final flush.
+	 */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	/**
+	 * A change not yet saved. The consumer is null if it was removed.
+	 */
+	private static class PendingChange {
+		final LyoOAuthConsumer consumer;
+
+		// How many times saving the change failed, and when the background
+		// writer tries it next. Only changed while holding flushLock.
+		volatile int failures = 0;
+		long retryAt = 0;
+
+		PendingChange(LyoOAuthConsumer consumer) {
+			this.consumer = consumer;
+		}
+	}
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushRequested.set(false);
+			try {
+				flush(false);
+			} catch (ConsumerStoreException e) {
+				// The changes are still pending and were logged when they
+				// first failed. They're tried again after a delay.
+			}
+		}
+	};
+
+	public WriteBehindConsumerStore(ConsumerStore store) {
+		this(store, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Creates a write-behind consumer store.
+	 *
+	 * @param store
+	 *            the store to save changes to
+	 * @param batchSize
+	 *            how many pending changes trigger a flush. This is also the
+	 *            most changes saved in one transaction.
+	 * @param flushInterval
+	 *            the time in milliseconds between flushes
+	 */
+	public WriteBehindConsumerStore(ConsumerStore store, int batchSize,
+			long flushInterval) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+
+		this.store = store;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Lyo OAuth Consumer Writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor.scheduleWithFixedDelay(flushTask, flushInterval,
+				flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the wrapped store.
+	 *
+	 * @return the store
+	 */
+	public ConsumerStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Gets the number of changes not yet saved.
+	 *
+	 * @return the number of pending changes
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the keys of consumers whose changes have failed to save at least
+	 * once and are still pending.
+	 *
+	 * @return the consumer keys
+	 */
+	public Set<String> getFailedConsumerKeys() {
+		Set<String> keys = new TreeSet<String>();
+		for (Map.Entry<String, PendingChange> entry : pending.entrySet()) {
+			if (entry.getValue().failures > 0) {
+				keys.add(entry.getKey());
+			}
+		}
+
+		return keys;
+	}
+
+	public void addListener(ConsumerStoreListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ConsumerStoreListener listener) {
+		listeners.remove(listener);
+	}
+
+	public LyoOAuthConsumer getConsumer(OAuthMessage requestMessage)
+			throws OAuthException, IOException, ConsumerStoreException {
+		requestMessage.requireParameters(OAuth.OAUTH_CONSUMER_KEY);
+		return getConsumer(requestMessage.getConsumerKey());
+	}
+
+	public LyoOAuthConsumer getConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		if (consumerKey == null) {
+			return null;
+		}
+
+		PendingChange change = pending.get(consumerKey);
+		if (change != null) {
+			return change.consumer;
+		}
+
+		return store.getConsumer(consumerKey);
+	}
+
+	public Collection<LyoOAuthConsumer> getAllConsumers()
+			throws ConsumerStoreException {
+		/*
+		 * Copy the pending changes before reading the store. A change is
+		 * only removed from the pending map after it's saved, so anything
+		 * flushed in between is already in the store.
+		 */
+		Map<String, PendingChange> changes = new HashMap<String, PendingChange>(
+				pending);
+		Map<String, LyoOAuthConsumer> all = new LinkedHashMap<String, LyoOAuthConsumer>();
+		for (LyoOAuthConsumer consumer : store.getAllConsumers()) {
+			all.put(consumer.consumerKey, consumer);
+		}
+
+		for (Map.Entry<String, PendingChange> entry : changes.entrySet()) {
+			LyoOAuthConsumer consumer = entry.getValue().consumer;
+			if (consumer == null) {
+				all.remove(entry.getKey());
+			} else {
+				all.put(entry.getKey(), consumer);
+			}
+		}
+
+		return Collections.unmodifiableList(new ArrayList<LyoOAuthConsumer>(
+				all.values()));
+	}
+
+	/**
+	 * Gets a page of consumers. When nothing is pending and the wrapped store
+	 * is a {@link QueryableConsumerStore}, the wrapped store does the query.
+	 * Otherwise the pending changes are merged with all consumers first.
+	 */
+	public List<LyoOAuthConsumer> getConsumers(ConsumerQuery query)
+			throws ConsumerStoreException {
+		// A change is only removed from the pending map after it's saved, so
+		// if nothing is pending, the wrapped store is up to date.
+		if (pending.isEmpty() && store instanceof QueryableConsumerStore) {
+			return ((QueryableConsumerStore) store).getConsumers(query);
+		}
+
+		return query.select(getAllConsumers());
+	}
+
+	public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		return write(consumer.consumerKey, new PendingChange(consumer));
+	}
+
+	public LyoOAuthConsumer removeConsumer(String consumerKey)
+			throws ConsumerStoreException {
+		return write(consumerKey, new PendingChange(null));
+	}
+
+	public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer)
+			throws ConsumerStoreException {
+		// addConsumer() also works for update.
+		return addConsumer(consumer);
+	}
+
+	/**
+	 * Saves all pending changes now, including failed changes still waiting
+	 * to be tried again. Changes that can't be saved don't stop the others
+	 * from being saved.
+	 *
+	 * @throws ConsumerStoreException
+	 *             if some changes can't be saved. They stay pending. This is
+	 *             the first error.
+	 */
+	public void flush() throws ConsumerStoreException {
+		flush(true);
+	}
+
+	/*
+	 * Saves pending changes. Unless all is set, failed changes are skipped
+	 * until their retry time.
+	 */
+	private void flush(boolean all) throws ConsumerStoreException {
+		synchronized (flushLock) {
+			long now = System.currentTimeMillis();
+			ConsumerStoreException error = null;
+			List<Map.Entry<String, PendingChange>> batch = new ArrayList<Map.Entry<String, PendingChange>>(
+					batchSize);
+			for (Map.Entry<String, PendingChange> entry : pending.entrySet()) {
+				if (!all && entry.getValue().retryAt > now) {
+					continue;
+				}
+
+				batch.add(entry);
+				if (batch.size() == batchSize) {
+					error = saveOrSplit(batch, error);
+					batch.clear();
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				error = saveOrSplit(batch, error);
+			}
+
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Stops the background writer and saves all pending changes. Changes made
+	 * after the store is closed are saved right away.
+	 *
+	 * @throws ConsumerStoreException
+	 *             if some pending changes can't be saved. They are lost.
+	 */
+	public void close() throws ConsumerStoreException {
+		// Wait for writers adding to the pending map.
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+	private LyoOAuthConsumer write(String consumerKey, PendingChange change)
+			throws ConsumerStoreException {
+		LyoOAuthConsumer previous = record(consumerKey, change);
+		if (change.consumer != null) {
+			for (ConsumerStoreListener listener : listeners) {
+				listener.consumerSaved(change.consumer);
+			}
+		}
+
+		return previous;
+	}
+
+	private LyoOAuthConsumer record(String consumerKey, PendingChange change)
+			throws ConsumerStoreException {
+		closeLock.readLock().lock();
+		try {
+			if (!closed) {
+				LyoOAuthConsumer previous = getConsumer(consumerKey);
+				pending.put(consumerKey, change);
+				requestFlushIfFull();
+
+				return previous;
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+
+		// Closed. Save now, but don't let an older pending change for the
+		// same consumer be saved over this one.
+		synchronized (flushLock) {
+			LyoOAuthConsumer previous = getConsumer(consumerKey);
+			pending.remove(consumerKey);
+			if (change.consumer == null) {
+				store.removeConsumer(consumerKey);
+			} else {
+				store.addConsumer(change.consumer);
+			}
+
+			return previous;
+		}
+	}
+
+	private void requestFlushIfFull() {
+		if (pending.size() >= batchSize
+				&& flushRequested.compareAndSet(false, true)) {
+			try {
+				executor.execute(flushTask);
+			} catch (RuntimeException e) {
+				// The store is closing. close() flushes what's left.
+				flushRequested.set(false);
+			}
+		}
+	}
+
+	/*
+	 * Saves a batch. If that fails, saves each change on its own so that one
+	 * bad change doesn't hold up the rest. Returns the first error.
+	 */
+	private ConsumerStoreException saveOrSplit(
+			List<Map.Entry<String, PendingChange>> batch,
+			ConsumerStoreException error) {
+		try {
+			save(batch);
+			return error;
+		} catch (ConsumerStoreException e) {
+			if (error == null) {
+				error = e;
+			}
+			if (batch.size() == 1) {
+				failed(batch.get(0), e);
+				return error;
+			}
+		}
+
+		for (Map.Entry<String, PendingChange> entry : batch) {
+			try {
+				save(Collections.singletonList(entry));
+			} catch (ConsumerStoreException e) {
+				failed(entry, e);
+			}
+		}
+
+		return error;
+	}
+
+	/*
+	 * Records that a change couldn't be saved. It stays pending and is tried
+	 * again after a delay that doubles with each failure. Only the first
+	 * failure is logged.
+	 */
+	private void failed(Map.Entry<String, PendingChange> entry,
+			ConsumerStoreException e) {
+		PendingChange change = entry.getValue();
+		int failures = change.failures + 1;
+		change.failures = failures;
+
+		long delay = flushInterval << Math.min(failures - 1, 30);
+		if (delay <= 0 || delay > MAX_RETRY_DELAY) {
+			delay = MAX_RETRY_DELAY;
+		}
+		change.retryAt = System.currentTimeMillis() + delay;
+
+		if (failures == 1) {
+			System.err.println("Could not save consumer " + entry.getKey()
+					+ ". Retrying in the background.");
+			e.printStackTrace();
+		}
+	}
+
+	private void save(List<Map.Entry<String, PendingChange>> batch)
+			throws ConsumerStoreException {
+		if (store instanceof BatchConsumerStore) {
+			List<LyoOAuthConsumer> added = new ArrayList<LyoOAuthConsumer>();
+			List<String> removed = new ArrayList<String>();
+			for (Map.Entry<String, PendingChange> entry : batch) {
+				LyoOAuthConsumer consumer = entry.getValue().consumer;
+				if (consumer == null) {
+					removed.add(entry.getKey());
+				} else {
+					added.add(consumer);
+				}
+			}
+
+			((BatchConsumerStore) store).writeBatch(added, removed);
+		} else {
+			for (Map.Entry<String, PendingChange> entry : batch) {
+				LyoOAuthConsumer consumer = entry.getValue().consumer;
+				if (consumer == null) {
+					store.removeConsumer(entry.getKey());
+				} else {
+					store.addConsumer(consumer);
+				}
+			}
+		}
+
+		// Only clear changes that weren't replaced while we were saving.
+		for (Map.Entry<String, PendingChange> entry : batch) {
+			pending.remove(entry.getKey(), entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram for one step of OAuth request processing, with counts of
+ * successful and rejected calls. Recording a time is lock-free: it finds the
+ * bucket and increments a few atomic counters.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * long start = System.nanoTime();
+ * boolean success = false;
+ * try {
+ * 	doWork();
+ * 	success = true;
+ * } finally {
+ * 	timer.record(start, success);
+ * }
+ * </pre>
+ *
+ * @see OAuthMetrics
+ */
+public class LatencyTimer implements LatencyTimerMBean {
+	/**
+	 * The bucket upper bounds in nanoseconds, from 1 microsecond to 10
+	 * seconds. Cached lookups such as token secrets take only a few
+	 * microseconds, so the small buckets keep them apart. Anything slower
+	 * goes in an overflow bucket.
+	 */
+	static final long[] BUCKET_BOUNDS = { 1000L, 2500L, 5000L, 10000L,
+			25000L, 50000L, 100000L, 250000L, 500000L, 1000000L, 2500000L,
+			5000000L, 10000000L, 25000000L, 50000000L, 100000000L,
+			250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L,
+			10000000000L };
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(
+			BUCKET_BOUNDS.length + 1);
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	LatencyTimer(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records the time since <code>startNanos</code>.
+	 *
+	 * @param startNanos
+	 *            the start time from {@link System#nanoTime()}
+	 * @param success
+	 *            true if the step succeeded, false if the request was rejected
+	 */
+	public void record(long startNanos, boolean success) {
+		recordNanos(System.nanoTime() - startNanos, success);
+	}
+
+	/**
+	 * Records a time.
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 * @param success
+	 *            true if the step succeeded, false if the request was rejected
+	 */
+	public void recordNanos(long nanos, boolean success) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(bucketFor(nanos));
+		totalNanos.addAndGet(nanos);
+		if (success) {
+			successes.incrementAndGet();
+		} else {
+			rejections.incrementAndGet();
+		}
+	}
+
+	private static int bucketFor(long nanos) {
+		int i = Arrays.binarySearch(BUCKET_BOUNDS, nanos);
+		return (i >= 0) ? i : -(i + 1);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return successes.get() + rejections.get();
+	}
+
+	public long getSuccessCount() {
+		return successes.get();
+	}
+
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	/**
+	 * Gets the total of all recorded times.
+	 *
+	 * @return the total in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * Gets a copy of the bucket counts. The last bucket counts times above
+	 * the largest bound.
+	 *
+	 * @return the count in each bucket (not cumulative)
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+		}
+
+		return counts;
+	}
+
+	public double getMeanMillis() {
+		long count = getCount();
+		return (count == 0) ? 0 : totalNanos.get() / (count * 1000000.0);
+	}
+
+	public double get50thPercentileMillis() {
+		return getPercentileMillis(0.5);
+	}
+
+	public double get99thPercentileMillis() {
+		return getPercentileMillis(0.99);
+	}
+
+	public double get999thPercentileMillis() {
+		return getPercentileMillis(0.999);
+	}
+
+	/**
+	 * Estimates a percentile as the upper bound of the bucket it falls in.
+	 *
+	 * @param quantile
+	 *            the quantile between 0 and 1
+	 * @return the estimate in milliseconds, 0 if nothing was recorded, or
+	 *         {@link Double#POSITIVE_INFINITY} if it's above the largest bound
+	 */
+	public double getPercentileMillis(double quantile) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return BUCKET_BOUNDS[i] / 1000000.0;
+			}
+		}
+
+		return Double.POSITIVE_INFINITY;
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		totalNanos.set(0);
+		successes.set(0);
+		rejections.set(0);
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.metrics;
+
+/**
+ * The JMX view of a {@link LatencyTimer}.
+ *
+ * @see OAuthMetrics#registerMBeans()
+ */
+public interface LatencyTimerMBean {
+	public String getName();
+
+	public long getCount();
+
+	public long getSuccessCount();
+
+	public long getRejectionCount();
+
+	public double getMeanMillis();
+
+	public double get50thPercentileMillis();
+
+	public double get99thPercentileMillis();
+
+	public double get999thPercentileMillis();
+
+	/**
+	 * Clears all counts.
+	 */
+	public void reset();
+}
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency timers for the steps of OAuth request processing.
+ * {@link org.eclipse.lyo.server.oauth.core.OAuthRequest} and
+ * {@link org.eclipse.lyo.server.oauth.core.LyoOAuthValidator} record the
+ * phases named by the constants here. The OAuth webapp adds a timer for each
+ * endpoint.
+ *
+ * <p>
+ * The timers can be read as Prometheus text with
+ * {@link #writePrometheus(Writer)} or through JMX after calling
+ * {@link #registerMBeans()}.
+ */
+public class OAuthMetrics {
+	/**
+	 * Decoding the OAuth message from the HTTP request.
+	 */
+	public static final String PHASE_PARSE = "parse";
+
+	/**
+	 * Looking up the consumer in the consumer store.
+	 */
+	public static final String PHASE_CONSUMER_LOOKUP = "consumerLookup";
+
+	/**
+	 * Looking up the token secret in the token strategy.
+	 */
+	public static final String PHASE_TOKEN_LOOKUP = "tokenLookup";
+
+	/**
+	 * All checks done by the OAuth validator.
+	 */
+	public static final String PHASE_VALIDATE = "validate";
+
+	/**
+	 * Signature verification in {@code LyoOAuthValidator}.
+	 */
+	public static final String PHASE_SIGNATURE = "signature";
+
+	/**
+	 * The nonce check in {@code LyoOAuthValidator}.
+	 */
+	public static final String PHASE_NONCE = "nonce";
+
+	/**
+	 * Checking the access token in the token strategy.
+	 */
+	public static final String PHASE_ACCESS_TOKEN = "accessToken";
+
+	/**
+	 * The JMX domain for registered timers.
+	 */
+	public static final String JMX_DOMAIN = "org.eclipse.lyo.server.oauth";
+
+	private static final String PROMETHEUS_LATENCY = "lyo_oauth_latency_seconds";
+	private static final String PROMETHEUS_REQUESTS = "lyo_oauth_requests_total";
+
+	private static final OAuthMetrics instance = new OAuthMetrics();
+
+	private final ConcurrentMap<String, LatencyTimer> timers = new ConcurrentHashMap<String, LatencyTimer>();
+	private volatile MBeanServer mbeanServer = null;
+
+	// The number of registerMBeans() calls not yet matched by
+	// unregisterMBeans(). Webapps sharing this class each register.
+	private int mbeanUsers = 0;
+
+	public static OAuthMetrics getInstance() {
+		return instance;
+	}
+
+	private OAuthMetrics() {
+	}
+
+	/**
+	 * Gets the timer with this name, creating it the first time.
+	 *
+	 * @param name
+	 *            the timer name
+	 * @return the timer
+	 */
+	public LatencyTimer getTimer(String name) {
+		LatencyTimer timer = timers.get(name);
+		if (timer == null) {
+			LatencyTimer created = new LatencyTimer(name);
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+				MBeanServer server = mbeanServer;
+				if (server != null) {
+					register(server, timer);
+				}
+			}
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Gets all timers sorted by name.
+	 *
+	 * @return the timers
+	 */
+	public Collection<LatencyTimer> getTimers() {
+		return Collections.unmodifiableCollection(new TreeMap<String, LatencyTimer>(
+				timers).values());
+	}
+
+	/**
+	 * Writes every timer in the Prometheus text exposition format (version
+	 * 0.0.4). Latencies are a histogram in seconds labeled by timer name.
+	 * Successful and rejected calls are counted separately.
+	 *
+	 * @param writer
+	 *            the writer
+	 * @throws IOException
+	 *             on errors writing
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		Collection<LatencyTimer> all = getTimers();
+
+		writer.write("# HELP " + PROMETHEUS_LATENCY
+				+ " Time spent in each step of OAuth request processing.\n");
+		writer.write("# TYPE " + PROMETHEUS_LATENCY + " histogram\n");
+		for (LatencyTimer timer : all) {
+			String label = "name=\"" + escapeLabel(timer.getName()) + "\"";
+			long[] counts = timer.getBucketCounts();
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i];
+				String le = (i < LatencyTimer.BUCKET_BOUNDS.length) ? Double
+						.toString(LatencyTimer.BUCKET_BOUNDS[i] / 1e9) : "+Inf";
+				writer.write(PROMETHEUS_LATENCY + "_bucket{" + label + ",le=\""
+						+ le + "\"} " + cumulative + "\n");
+			}
+			writer.write(PROMETHEUS_LATENCY + "_sum{" + label + "} "
+					+ (timer.getTotalNanos() / 1e9) + "\n");
+			writer.write(PROMETHEUS_LATENCY + "_count{" + label + "} "
+					+ cumulative + "\n");
+		}
+
+		writer.write("# HELP " + PROMETHEUS_REQUESTS
+				+ " Calls to each step of OAuth request processing by outcome.\n");
+		writer.write("# TYPE " + PROMETHEUS_REQUESTS + " counter\n");
+		for (LatencyTimer timer : all) {
+			String label = "name=\"" + escapeLabel(timer.getName()) + "\"";
+			writer.write(PROMETHEUS_REQUESTS + "{" + label
+					+ ",outcome=\"success\"} " + timer.getSuccessCount() + "\n");
+			writer.write(PROMETHEUS_REQUESTS + "{" + label
+					+ ",outcome=\"rejected\"} " + timer.getRejectionCount()
+					+ "\n");
+		}
+
+		writer.flush();
+	}
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	/**
+	 * Registers every timer, including timers created later, with the platform
+	 * MBean server. Each timer is named
+	 * <code>org.eclipse.lyo.server.oauth:type=LatencyTimer,name=&lt;name&gt;</code>.
+	 * Each call must be matched by a call to {@link #unregisterMBeans()}.
+	 */
+	public synchronized void registerMBeans() {
+		mbeanUsers++;
+		if (mbeanServer != null) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		mbeanServer = server;
+		for (LatencyTimer timer : timers.values()) {
+			register(server, timer);
+		}
+	}
+
+	/**
+	 * Unregisters the timers from the platform MBean server once every caller
+	 * of {@link #registerMBeans()} has called this. Call this when the webapp
+	 * stops. Other webapps sharing the timers keep them registered.
+	 */
+	public synchronized void unregisterMBeans() {
+		if (mbeanUsers == 0 || --mbeanUsers > 0) {
+			return;
+		}
+
+		MBeanServer server = mbeanServer;
+		if (server == null) {
+			return;
+		}
+
+		mbeanServer = null;
+		List<LatencyTimer> all = new ArrayList<LatencyTimer>(timers.values());
+		for (LatencyTimer timer : all) {
+			try {
+				ObjectName name = getObjectName(timer);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void register(MBeanServer server, LatencyTimer timer) {
+		try {
+			ObjectName name = getObjectName(timer);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(timer, name);
+			}
+		} catch (JMException e) {
+			// Not fatal. The timer still works, it's just not visible in JMX.
+			e.printStackTrace();
+		}
+	}
+
+	private static ObjectName getObjectName(LatencyTimer timer)
+			throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=LatencyTimer,name="
+				+ ObjectName.quote(timer.getName()));
+	}
+
+	/**
+	 * Clears the counts of every timer.
+	 */
+	public void reset() {
+		for (LatencyTimer timer : timers.values()) {
+			timer.reset();
+		}
+	}
+}
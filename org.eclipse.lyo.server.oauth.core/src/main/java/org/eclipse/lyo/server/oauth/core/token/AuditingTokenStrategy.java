@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.audit.AuditEvent;
+import org.eclipse.lyo.server.oauth.core.audit.AuditLog;
+
+/**
+ * Wraps another token strategy and records an {@link AuditEvent} each time a
+ * token is issued, authorized, or revoked. Events are only recorded if the
+ * call succeeds. Recording goes through the {@link AuditLog}'s buffer, so it
+ * doesn't add I/O to the request.
+ *
+ * @see AuditLog
+ */
+public class AuditingTokenStrategy implements TokenStrategy {
+	private final TokenStrategy strategy;
+	private final AuditLog auditLog;
+
+	/**
+	 * Creates an auditing token strategy.
+	 *
+	 * @param strategy
+	 *            the strategy that manages the tokens
+	 * @param auditLog
+	 *            where to record events
+	 */
+	public AuditingTokenStrategy(TokenStrategy strategy, AuditLog auditLog) {
+		this.strategy = strategy;
+		this.auditLog = auditLog;
+	}
+
+	/**
+	 * Gets the wrapped strategy.
+	 *
+	 * @return the strategy
+	 */
+	public TokenStrategy getStrategy() {
+		return strategy;
+	}
+
+	public void generateRequestToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		strategy.generateRequestToken(oAuthRequest);
+		OAuthAccessor accessor = oAuthRequest.getAccessor();
+		auditLog.log(AuditEvent.Type.REQUEST_TOKEN_ISSUED,
+				accessor.consumer.consumerKey, accessor.requestToken,
+				getRemoteAddress(oAuthRequest.getHttpRequest()));
+	}
+
+	public String validateRequestToken(HttpServletRequest httpRequest,
+			OAuthMessage message) throws OAuthException, IOException {
+		return strategy.validateRequestToken(httpRequest, message);
+	}
+
+	public String getCallback(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthException {
+		return strategy.getCallback(httpRequest, requestToken);
+	}
+
+	public void markRequestTokenAuthorized(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthException {
+		strategy.markRequestTokenAuthorized(httpRequest, requestToken);
+		auditLog.log(AuditEvent.Type.REQUEST_TOKEN_AUTHORIZED, null,
+				requestToken, getRemoteAddress(httpRequest));
+	}
+
+	public boolean isRequestTokenAuthorized(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthException {
+		return strategy.isRequestTokenAuthorized(httpRequest, requestToken);
+	}
+
+	public String generateVerificationCode(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthException {
+		return strategy.generateVerificationCode(httpRequest, requestToken);
+	}
+
+	public void validateVerificationCode(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		strategy.validateVerificationCode(oAuthRequest);
+	}
+
+	public void generateAccessToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		strategy.generateAccessToken(oAuthRequest);
+		OAuthAccessor accessor = oAuthRequest.getAccessor();
+		auditLog.log(AuditEvent.Type.ACCESS_TOKEN_ISSUED,
+				accessor.consumer.consumerKey, accessor.accessToken,
+				getRemoteAddress(oAuthRequest.getHttpRequest()));
+	}
+
+	public void validateAccessToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		strategy.validateAccessToken(oAuthRequest);
+	}
+
+	public String getTokenSecret(HttpServletRequest httpRequest, String token)
+			throws OAuthException {
+		return strategy.getTokenSecret(httpRequest, token);
+	}
+
+	public boolean revokeToken(String token) throws OAuthException {
+		boolean revoked = strategy.revokeToken(token);
+		if (revoked) {
+			auditLog.log(AuditEvent.Type.TOKEN_REVOKED, null, token, null);
+		}
+
+		return revoked;
+	}
+
+	public void revokeConsumerTokens(String consumerKey) throws OAuthException {
+		strategy.revokeConsumerTokens(consumerKey);
+		auditLog.log(AuditEvent.Type.TOKEN_REVOKED, consumerKey, null, null);
+	}
+
+	public void revokeAllTokens() throws OAuthException {
+		strategy.revokeAllTokens();
+		auditLog.log(AuditEvent.Type.TOKEN_REVOKED, null, null, null);
+	}
+
+	private static String getRemoteAddress(HttpServletRequest httpRequest) {
+		return (httpRequest == null) ? null : httpRequest.getRemoteAddr();
+	}
+}
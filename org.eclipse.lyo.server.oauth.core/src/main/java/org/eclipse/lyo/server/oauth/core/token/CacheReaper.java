@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purges expired entries from {@link StripedLRUCache}s on a shared background
+ * thread so request threads don't pay for cleanup. Caches are only weakly
+ * referenced, and a cache's task is cancelled once it has been garbage
+ * collected, so token strategies don't need to be shut down explicitly.
+ *
+ * <p>
+ * The thread itself keeps the web application's class loader reachable, so
+ * stop it when the application stops. When several applications share this
+ * class, each calls {@link #retain()} when it starts and {@link #release()}
+ * when it stops, and the thread stops with the last of them:
+ *
+ * <pre>
+ * public void contextInitialized(ServletContextEvent event) {
+ * 	CacheReaper.retain();
+ * }
+ *
+ * public void contextDestroyed(ServletContextEvent event) {
+ * 	CacheReaper.release();
+ * }
+ * </pre>
+ */
+public class CacheReaper {
+	/**
+	 * How often expired entries are purged, in milliseconds.
+	 */
+	static final long REAP_INTERVAL = 30 * 1000;
+
+	private static ScheduledExecutorService executor = null;
+
+	// Applications that called retain() but not yet release().
+	private static int users = 0;
+
+	// Counts how many times the thread has been stopped, so caches know to
+	// schedule themselves again after a restart.
+	private static volatile int run = 0;
+
+	private CacheReaper() {}
+
+	/**
+	 * Periodically purges expired entries from the cache for as long as the
+	 * cache is reachable.
+	 *
+	 * @param cache
+	 *            the cache
+	 */
+	static void schedule(StripedLRUCache<?, ?> cache) {
+		PurgeTask task = new PurgeTask(cache);
+		task.future = getExecutor().scheduleWithFixedDelay(task,
+				REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the current run of the background thread. It changes each time
+	 * the thread is stopped.
+	 *
+	 * @return the run
+	 */
+	static int getRun() {
+		return run;
+	}
+
+	/**
+	 * Records that an application uses the reaper. Call {@link #release()}
+	 * when the application stops.
+	 */
+	public static synchronized void retain() {
+		users++;
+	}
+
+	/**
+	 * Records that an application no longer uses the reaper. The thread stops
+	 * when the last application that called {@link #retain()} releases it.
+	 */
+	public static synchronized void release() {
+		if (users > 0 && --users == 0) {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops the background thread now, even if other applications still use
+	 * it. Expired entries are still never returned, and caches schedule
+	 * themselves on a new thread the next time they're given an entry with a
+	 * time to live.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			run++;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Lyo OAuth Token Reaper");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+
+		return executor;
+	}
+
+	private static class PurgeTask implements Runnable {
+		private final WeakReference<StripedLRUCache<?, ?>> cacheRef;
+		private volatile ScheduledFuture<?> future;
+
+		PurgeTask(StripedLRUCache<?, ?> cache) {
+			this.cacheRef = new WeakReference<StripedLRUCache<?, ?>>(cache);
+		}
+
+		@Override
+		public void run() {
+			StripedLRUCache<?, ?> cache = cacheRef.get();
+			if (cache == null) {
+				ScheduledFuture<?> f = future;
+				if (f != null) {
+					f.cancel(false);
+				}
+				return;
+			}
+
+			try {
+				cache.purgeExpired();
+			} catch (RuntimeException e) {
+				// Don't let one bad purge stop future purges.
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+/**
+ * A token strategy for providers under heavy concurrent load. It behaves like
+ * {@link SimpleTokenStrategy}, but each token cache is split into many
+ * independently locked segments instead of sitting behind a single lock.
+ * Validating one token only contends with requests for tokens that hash to
+ * the same segment.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OAuthConfiguration.getInstance().setTokenStrategy(
+ * 		new ConcurrentTokenStrategy());
+ * </pre>
+ *
+ * @see StripedLRUCache
+ */
+public class ConcurrentTokenStrategy extends SimpleTokenStrategy {
+	/**
+	 * Constructs a ConcurrentTokenStrategy using the defaults for cache limits
+	 * on request and access tokens.
+	 *
+	 * @see ConcurrentTokenStrategy#ConcurrentTokenStrategy(int, int)
+	 */
+	public ConcurrentTokenStrategy() {
+		this(REQUEST_TOKEN_MAX_ENTIRES, ACCESS_TOKEN_MAX_ENTRIES);
+	}
+
+	/**
+	 * Constructs a ConcurrentTokenStrategy with cache limits on the number of
+	 * request and access tokens. Least recently used tokens are invalidated
+	 * when cache limits are reached.
+	 *
+	 * @param requestTokenMaxCount
+	 *            the maximum number of request tokens to track
+	 * @param accessTokenMaxCount
+	 *            the maximum number of access tokens to track
+	 */
+	public ConcurrentTokenStrategy(int requestTokenMaxCount,
+			int accessTokenMaxCount) {
+		super(requestTokenMaxCount, accessTokenMaxCount, Runtime.getRuntime()
+				.availableProcessors() * 4);
+	}
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.IOException;
+
+/**
+ * A store of string values used by {@link ReplicatedTokenStrategy}. All
+ * operations must be safe to call from many threads. Keys are short ASCII
+ * strings without spaces.
+ *
+ * <p>
+ * Stores may drop values before they expire, for instance when memcached runs
+ * out of memory. {@link ReplicatedTokenStrategy} treats a missing value as
+ * revoked, so dropping values never brings a revoked token back.
+ *
+ * @see MemoryKeyValueStore
+ * @see MemcachedKeyValueStore
+ */
+public interface KeyValueStore {
+	/**
+	 * Gets a value.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the value or null if there is none or it expired
+	 * @throws IOException
+	 *             on errors reading the store
+	 */
+	public String get(String key) throws IOException;
+
+	/**
+	 * Sets a value, replacing any value already there.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if the value never
+	 *            expires
+	 * @throws IOException
+	 *             on errors writing the store
+	 */
+	public void put(String key, String value, long timeToLive)
+			throws IOException;
+
+	/**
+	 * Sets a value only if the key has none. If several callers add the same
+	 * key at once, only one of them gets true.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if the value never
+	 *            expires
+	 * @return true if this call stored the value
+	 * @throws IOException
+	 *             on errors writing the store
+	 */
+	public boolean putIfAbsent(String key, String value, long timeToLive)
+			throws IOException;
+
+	/**
+	 * Removes a value. If several callers remove the same key at once, only
+	 * one of them gets true.
+	 *
+	 * @param key
+	 *            the key
+	 * @return true if the value was there and this call removed it
+	 * @throws IOException
+	 *             on errors writing the store
+	 */
+	public boolean remove(String key) throws IOException;
+
+	/**
+	 * Releases any resources held by the store.
+	 *
+	 * @throws IOException
+	 *             on errors closing the store
+	 */
+	public void close() throws IOException;
+}
@@ -31,6 +31,20 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> {
 		this.max = max;
 	}
 
+	/**
+	 * Creates a cache with an explicit ordering mode.
+	 * 
+	 * @param max
+	 *            the maximum number of entries
+	 * @param accessOrder
+	 *            true to evict the least recently accessed entry, false to
+	 *            evict the least recently inserted entry
+	 */
+	public LRUCache(final int max, final boolean accessOrder) {
+		super(16, 0.75f, accessOrder);
+		this.max = max;
+	}
+
 	@Override
 	protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
 		return super.size() > max;
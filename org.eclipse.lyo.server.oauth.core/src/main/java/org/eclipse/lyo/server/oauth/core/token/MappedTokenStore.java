@@ -0,0 +1,871 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores tokens, consumer keys, and token secrets on local disk so they
+ * survive restarts. Records are appended to a log file, and a memory-mapped
+ * hash index points from each token to its latest record in the log. Lookups
+ * hash the token, probe the index, and compare the token against the mapped
+ * log in place, so they don't read the file or copy records onto the heap.
+ *
+ * <p>
+ * On startup the index is mapped as is. Only records appended after the
+ * index was last updated are replayed, and the whole log is replayed only if
+ * the index is missing or damaged. Overwritten, removed, and expired records
+ * are dropped by compaction, which runs on a background thread once less
+ * than half of the log is live.
+ *
+ * <p>
+ * Writes go to the operating system's page cache and survive the process
+ * exiting, but are only forced to the disk by {@link #close()} and
+ * compaction.
+ */
+public class MappedTokenStore {
+	private static final String LOG_FILE = "tokens.log";
+	private static final String INDEX_FILE = "tokens.idx";
+	private static final String COMPACT_SUFFIX = ".compact";
+	private static final String RESIZE_SUFFIX = ".resize";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * How often to check if the log needs compacting, in milliseconds.
+	 */
+	private static final long COMPACT_CHECK_INTERVAL = 60 * 1000;
+
+	/**
+	 * Logs smaller than this are never compacted.
+	 */
+	private static final int COMPACT_MIN_LOG_SIZE = 1 << 20;
+
+	private final File directory;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ScheduledExecutorService compactor;
+	private TokenFiles files;
+
+	/**
+	 * Opens the token store in a directory, creating it if necessary.
+	 *
+	 * @param directory
+	 *            the directory for the log and index files
+	 * @throws IOException
+	 *             on errors opening the files
+	 */
+	public MappedTokenStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create token store directory "
+					+ directory);
+		}
+
+		this.directory = directory;
+		this.files = TokenFiles.open(new File(directory, LOG_FILE), new File(
+				directory, INDEX_FILE));
+		this.compactor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Lyo OAuth Token Compactor");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.compactor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (needsCompaction()) {
+						compact();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, COMPACT_CHECK_INTERVAL, COMPACT_CHECK_INTERVAL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds or replaces a token.
+	 *
+	 * @param token
+	 *            the token
+	 * @param consumerKey
+	 *            the consumer key
+	 * @param secret
+	 *            the token secret
+	 * @param expires
+	 *            the time in milliseconds when the token expires, or 0 if it
+	 *            never expires
+	 * @throws IOException
+	 *             on errors writing the token
+	 */
+	public void put(String token, String consumerKey, String secret,
+			long expires) throws IOException {
+		byte[] tokenBytes = token.getBytes(UTF8);
+		byte[] keyBytes = consumerKey.getBytes(UTF8);
+		byte[] secretBytes = secret.getBytes(UTF8);
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			files.put(tokenBytes, hash(token), keyBytes, secretBytes, expires);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a token.
+	 *
+	 * @param token
+	 *            the token
+	 * @return true if the token was in the store
+	 * @throws IOException
+	 *             on errors writing to the log
+	 */
+	public boolean remove(String token) throws IOException {
+		byte[] tokenBytes = token.getBytes(UTF8);
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			return files.remove(tokenBytes, hash(token));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the consumer key for a token.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the consumer key or null if the token is unknown or expired
+	 */
+	public String getConsumerKey(String token) {
+		return get(token, TokenFiles.CONSUMER_KEY_FIELD);
+	}
+
+	/**
+	 * Gets the secret for a token.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the token secret or null if the token is unknown or expired
+	 */
+	public String getSecret(String token) {
+		return get(token, TokenFiles.SECRET_FIELD);
+	}
+
+	/**
+	 * Gets the consumer key of every unexpired token. This reads the whole
+	 * index, so it's meant for startup rather than for each request.
+	 *
+	 * @return a map of tokens to consumer keys
+	 */
+	public Map<String, String> getConsumerKeys() {
+		Map<String, String> consumerKeys = new HashMap<String, String>();
+		lock.readLock().lock();
+		try {
+			if (files != null) {
+				files.getConsumerKeys(consumerKeys, System.currentTimeMillis());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return consumerKeys;
+	}
+
+	/**
+	 * Gets the number of tokens in the store, including expired tokens not
+	 * yet removed by compaction.
+	 *
+	 * @return the number of tokens
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return (files == null) ? 0 : files.size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the log with only live, unexpired records and builds a new
+	 * index for it. Lookups continue while the new files are written. Writes
+	 * wait until the live records are copied.
+	 *
+	 * @throws IOException
+	 *             on errors writing the new files
+	 */
+	public synchronized void compact() throws IOException {
+		File compactLog = new File(directory, LOG_FILE + COMPACT_SUFFIX);
+		File compactIndex = new File(directory, INDEX_FILE + COMPACT_SUFFIX);
+		compactLog.delete();
+		compactIndex.delete();
+
+		TokenFiles compacted = null;
+		boolean replaced = false;
+		try {
+			int copiedTo;
+			lock.readLock().lock();
+			try {
+				ensureOpen();
+				compacted = TokenFiles.create(compactLog, compactIndex);
+				files.copyLiveRecordsTo(compacted, System.currentTimeMillis());
+				copiedTo = files.logEnd;
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			lock.writeLock().lock();
+			try {
+				ensureOpen();
+
+				// Apply anything written after the copy finished.
+				files.replayTo(compacted, copiedTo);
+
+				compacted.force();
+				files.close();
+				compacted.renameTo(new File(directory, LOG_FILE), new File(
+						directory, INDEX_FILE));
+				files = compacted;
+				replaced = true;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			if (!replaced && compacted != null) {
+				compacted.close();
+				compactLog.delete();
+				compactIndex.delete();
+			}
+		}
+	}
+
+	/**
+	 * Forces pending writes to disk and closes the store.
+	 *
+	 * @throws IOException
+	 *             on errors closing the files
+	 */
+	public void close() throws IOException {
+		compactor.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			if (files != null) {
+				files.force();
+				files.close();
+				files = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean needsCompaction() {
+		lock.readLock().lock();
+		try {
+			return files != null && files.logEnd > COMPACT_MIN_LOG_SIZE
+					&& files.liveBytes * 2 < files.logEnd;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private String get(String token, int field) {
+		if (token == null) {
+			return null;
+		}
+
+		byte[] tokenBytes = token.getBytes(UTF8);
+		lock.readLock().lock();
+		try {
+			if (files == null) {
+				return null;
+			}
+
+			return files.get(tokenBytes, hash(token), field,
+					System.currentTimeMillis());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (files == null) {
+			throw new IOException("Token store is closed.");
+		}
+	}
+
+	private static int hash(String token) {
+		int h = token.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * A log file and the index for it. Callers handle locking.
+	 *
+	 * <p>
+	 * The log starts with a random ID, also stored in the index header, so an
+	 * index is never used with a log it wasn't built from. Log records are
+	 * laid out as: record length (int, not including
+	 * itself), type (byte), expiration (long), then the token, consumer key,
+	 * and secret, each as an unsigned short length followed by UTF-8 bytes.
+	 * The length is written last, so a zero length marks the end of the log
+	 * even if the process stopped partway through a write.
+	 *
+	 * <p>
+	 * The index is a header followed by an open addressing hash table of
+	 * slots. Each slot holds the token hash and the log offset of its record
+	 * plus one, so that zero means an empty slot.
+	 */
+	private static class TokenFiles {
+		static final int CONSUMER_KEY_FIELD = 1;
+		static final int SECRET_FIELD = 2;
+
+		private static final byte PUT = 1;
+		private static final byte DELETE = 2;
+
+		private static final int MAGIC = 0x4c594f54;
+		private static final int VERSION = 1;
+
+		private static final int MAGIC_OFFSET = 0;
+		private static final int VERSION_OFFSET = 4;
+		private static final int CAPACITY_OFFSET = 8;
+		private static final int SIZE_OFFSET = 12;
+		private static final int TOMBSTONES_OFFSET = 16;
+		private static final int LOG_END_OFFSET = 20;
+		private static final int LIVE_BYTES_OFFSET = 24;
+		private static final int LOG_ID_OFFSET = 32;
+		private static final int HEADER_SIZE = 40;
+
+		// The log starts with a random ID that must match the index.
+		private static final int LOG_HEADER_SIZE = 8;
+
+		private static final int SLOT_SIZE = 12;
+		private static final long EMPTY = 0;
+		private static final long TOMBSTONE = -1;
+
+		private static final int MIN_CAPACITY = 1024;
+		private static final int MIN_LOG_SIZE = 1 << 20;
+
+		// type, expires, and three lengths
+		private static final int FIXED_RECORD_SIZE = 1 + 8 + 2 + 2 + 2;
+
+		private File logPath;
+		private File indexPath;
+		private RandomAccessFile logFile;
+		private RandomAccessFile indexFile;
+		private MappedByteBuffer log;
+		private MappedByteBuffer index;
+		private long logId;
+
+		int capacity;
+		int size;
+		int tombstones;
+		int logEnd;
+		long liveBytes;
+
+		private TokenFiles(File logPath, File indexPath) {
+			this.logPath = logPath;
+			this.indexPath = indexPath;
+		}
+
+		/**
+		 * Opens existing files, loading the index if it's usable and
+		 * rebuilding it from the log if not.
+		 */
+		static TokenFiles open(File logPath, File indexPath)
+				throws IOException {
+			TokenFiles files = new TokenFiles(logPath, indexPath);
+			files.openLog();
+			if (files.loadIndex()) {
+				files.replay(files.logEnd);
+			} else {
+				files.createIndex(MIN_CAPACITY);
+				files.replay(LOG_HEADER_SIZE);
+			}
+
+			return files;
+		}
+
+		/**
+		 * Creates new, empty files.
+		 */
+		static TokenFiles create(File logPath, File indexPath)
+				throws IOException {
+			TokenFiles files = new TokenFiles(logPath, indexPath);
+			files.openLog();
+			files.createIndex(MIN_CAPACITY);
+			return files;
+		}
+
+		String get(byte[] token, int hash, int field, long now) {
+			int slot = findSlot(token, hash);
+			if (slot < 0) {
+				return null;
+			}
+
+			int pos = recordOffset(slot);
+			long expires = log.getLong(pos + 5);
+			if (expires != 0 && now >= expires) {
+				return null;
+			}
+
+			// Skip over the token and, if needed, the consumer key.
+			int fieldPos = pos + 13;
+			for (int i = 0; i < field; i++) {
+				fieldPos += 2 + readLength(fieldPos);
+			}
+
+			return readString(fieldPos);
+		}
+
+		void put(byte[] token, int hash, byte[] consumerKey, byte[] secret,
+				long expires) throws IOException {
+			int pos = append(PUT, token, consumerKey, secret, expires);
+			indexPut(token, hash, pos);
+			writeHeader();
+		}
+
+		boolean remove(byte[] token, int hash) throws IOException {
+			int slot = findSlot(token, hash);
+			if (slot < 0) {
+				return false;
+			}
+
+			append(DELETE, token, new byte[0], new byte[0], 0);
+			indexRemove(slot);
+			writeHeader();
+			return true;
+		}
+
+		/**
+		 * Adds the token and consumer key of every live, unexpired record to
+		 * a map.
+		 */
+		void getConsumerKeys(Map<String, String> consumerKeys, long now) {
+			for (int slot = 0; slot < capacity; slot++) {
+				long ref = index.getLong(slotOffset(slot) + 4);
+				if (ref == EMPTY || ref == TOMBSTONE) {
+					continue;
+				}
+
+				int pos = (int) (ref - 1);
+				long expires = log.getLong(pos + 5);
+				if (expires != 0 && now >= expires) {
+					continue;
+				}
+
+				int tokenPos = pos + 13;
+				consumerKeys.put(readString(tokenPos), readString(tokenPos + 2
+						+ readLength(tokenPos)));
+			}
+		}
+
+		/**
+		 * Copies every live, unexpired record into another set of files.
+		 */
+		void copyLiveRecordsTo(TokenFiles target, long now)
+				throws IOException {
+			for (int slot = 0; slot < capacity; slot++) {
+				long ref = index.getLong(slotOffset(slot) + 4);
+				if (ref == EMPTY || ref == TOMBSTONE) {
+					continue;
+				}
+
+				int pos = (int) (ref - 1);
+				long expires = log.getLong(pos + 5);
+				if (expires != 0 && now >= expires) {
+					continue;
+				}
+
+				target.copyRecord(log, pos, index.getInt(slotOffset(slot)));
+			}
+			target.writeHeader();
+		}
+
+		/**
+		 * Applies records from an offset to the end of this log to another
+		 * set of files.
+		 */
+		void replayTo(TokenFiles target, int from) throws IOException {
+			int pos = from;
+			while (pos < logEnd) {
+				int length = log.getInt(pos);
+				if (log.get(pos + 4) == PUT) {
+					target.copyRecord(log, pos, hash(readString(pos + 13)));
+				} else {
+					byte[] token = readBytes(pos + 13);
+					target.remove(token, hash(new String(token, UTF8)));
+				}
+				pos += 4 + length;
+			}
+			target.writeHeader();
+		}
+
+		void force() {
+			log.force();
+			index.force();
+		}
+
+		void close() throws IOException {
+			logFile.close();
+			indexFile.close();
+		}
+
+		void renameTo(File newLogPath, File newIndexPath) throws IOException {
+			if (!logPath.renameTo(newLogPath)
+					|| !indexPath.renameTo(newIndexPath)) {
+				throw new IOException("Could not replace " + newLogPath);
+			}
+
+			logPath = newLogPath;
+			indexPath = newIndexPath;
+		}
+
+		private void openLog() throws IOException {
+			logFile = new RandomAccessFile(logPath, "rw");
+			long length = Math.max(logFile.length(), MIN_LOG_SIZE);
+			log = logFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+			logId = log.getLong(0);
+			if (logId == 0) {
+				Random random = new Random();
+				while (logId == 0) {
+					logId = random.nextLong();
+				}
+				log.putLong(0, logId);
+			}
+		}
+
+		private boolean loadIndex() throws IOException {
+			if (!indexPath.isFile() || indexPath.length() < HEADER_SIZE) {
+				return false;
+			}
+
+			indexFile = new RandomAccessFile(indexPath, "rw");
+			index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, indexFile.length());
+			capacity = index.getInt(CAPACITY_OFFSET);
+			logEnd = index.getInt(LOG_END_OFFSET);
+			if (index.getInt(MAGIC_OFFSET) != MAGIC
+					|| index.getInt(VERSION_OFFSET) != VERSION
+					|| capacity < MIN_CAPACITY
+					|| Integer.bitCount(capacity) != 1
+					|| indexFile.length() != HEADER_SIZE + (long) capacity
+							* SLOT_SIZE
+					|| index.getLong(LOG_ID_OFFSET) != logId
+					|| logEnd < LOG_HEADER_SIZE || logEnd > log.capacity()) {
+				indexFile.close();
+				return false;
+			}
+
+			size = index.getInt(SIZE_OFFSET);
+			tombstones = index.getInt(TOMBSTONES_OFFSET);
+			liveBytes = index.getLong(LIVE_BYTES_OFFSET);
+			return true;
+		}
+
+		private void createIndex(int newCapacity) throws IOException {
+			indexPath.delete();
+			indexFile = new RandomAccessFile(indexPath, "rw");
+			index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+			index.putInt(MAGIC_OFFSET, MAGIC);
+			index.putInt(VERSION_OFFSET, VERSION);
+			index.putLong(LOG_ID_OFFSET, logId);
+			capacity = newCapacity;
+			size = 0;
+			tombstones = 0;
+			logEnd = LOG_HEADER_SIZE;
+			liveBytes = 0;
+			writeHeader();
+		}
+
+		/**
+		 * Applies log records starting at an offset to the index. Stops at
+		 * the first incomplete record.
+		 */
+		private void replay(int from) throws IOException {
+			int pos = from;
+			while (pos + 4 <= log.capacity()) {
+				int length = log.getInt(pos);
+				if (length <= 0 || pos + 4 + length > log.capacity()) {
+					break;
+				}
+
+				byte[] token = readBytes(pos + 13);
+				int hash = hash(new String(token, UTF8));
+				if (log.get(pos + 4) == PUT) {
+					indexPut(token, hash, pos);
+				} else {
+					int slot = findSlot(token, hash);
+					if (slot >= 0) {
+						indexRemove(slot);
+					}
+				}
+				pos += 4 + length;
+			}
+
+			logEnd = pos;
+			writeHeader();
+		}
+
+		private void copyRecord(ByteBuffer source, int pos, int hash)
+				throws IOException {
+			int length = 4 + source.getInt(pos);
+			ensureLogCapacity(logEnd + length + 4);
+			ByteBuffer record = source.duplicate();
+			record.position(pos + 4);
+			record.limit(pos + length);
+			ByteBuffer target = log.duplicate();
+			target.position(logEnd + 4);
+			target.put(record);
+			log.putInt(logEnd, length - 4);
+
+			int newPos = logEnd;
+			logEnd += length;
+			indexPut(readBytes(newPos + 13), hash, newPos);
+		}
+
+		private int append(byte type, byte[] token, byte[] consumerKey,
+				byte[] secret, long expires) throws IOException {
+			checkLength(token);
+			checkLength(consumerKey);
+			checkLength(secret);
+
+			int length = FIXED_RECORD_SIZE + token.length + consumerKey.length
+					+ secret.length;
+			if ((long) logEnd + length + 8 > Integer.MAX_VALUE) {
+				throw new IOException("Token log is full.");
+			}
+
+			// Leave room for the zero length that marks the end of the log.
+			ensureLogCapacity(logEnd + 4 + length + 4);
+
+			int pos = logEnd;
+			ByteBuffer b = log.duplicate();
+			b.position(pos + 4);
+			b.put(type);
+			b.putLong(expires);
+			b.putShort((short) token.length);
+			b.put(token);
+			b.putShort((short) consumerKey.length);
+			b.put(consumerKey);
+			b.putShort((short) secret.length);
+			b.put(secret);
+
+			// Write the length last so a partial record is never replayed.
+			log.putInt(pos, length);
+			logEnd = pos + 4 + length;
+
+			return pos;
+		}
+
+		private void ensureLogCapacity(int needed) throws IOException {
+			if (needed <= log.capacity()) {
+				return;
+			}
+
+			long newCapacity = Math.min(Integer.MAX_VALUE,
+					Math.max((long) log.capacity() * 2, needed));
+			log = logFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					newCapacity);
+		}
+
+		private void indexPut(byte[] token, int hash, int pos)
+				throws IOException {
+			int recordSize = 4 + log.getInt(pos);
+			int slot = findSlot(token, hash);
+			if (slot >= 0) {
+				// Replace the old record.
+				liveBytes -= 4 + log.getInt(recordOffset(slot));
+				index.putLong(slotOffset(slot) + 4, pos + 1L);
+				liveBytes += recordSize;
+				return;
+			}
+
+			if ((size + tombstones + 1) * 4L > capacity * 3L) {
+				// Grow if mostly live entries, otherwise just clear the
+				// tombstones.
+				resize((size + 1) * 2L > capacity ? capacity * 2 : capacity);
+			}
+
+			int mask = capacity - 1;
+			int i = hash & mask;
+			while (true) {
+				long ref = index.getLong(slotOffset(i) + 4);
+				if (ref == EMPTY || ref == TOMBSTONE) {
+					if (ref == TOMBSTONE) {
+						tombstones--;
+					}
+					index.putInt(slotOffset(i), hash);
+					index.putLong(slotOffset(i) + 4, pos + 1L);
+					size++;
+					liveBytes += recordSize;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		private void indexRemove(int slot) {
+			liveBytes -= 4 + log.getInt(recordOffset(slot));
+			index.putLong(slotOffset(slot) + 4, TOMBSTONE);
+			size--;
+			tombstones++;
+		}
+
+		/**
+		 * Rebuilds the index in a new file with a new capacity.
+		 */
+		private void resize(int newCapacity) throws IOException {
+			MappedByteBuffer oldIndex = index;
+			RandomAccessFile oldIndexFile = indexFile;
+			int oldCapacity = capacity;
+			File finalPath = indexPath;
+			int savedLogEnd = logEnd;
+			long savedLiveBytes = liveBytes;
+
+			indexPath = new File(finalPath.getPath() + RESIZE_SUFFIX);
+			createIndex(newCapacity);
+			int mask = newCapacity - 1;
+			for (int slot = 0; slot < oldCapacity; slot++) {
+				int offset = HEADER_SIZE + slot * SLOT_SIZE;
+				long ref = oldIndex.getLong(offset + 4);
+				if (ref == EMPTY || ref == TOMBSTONE) {
+					continue;
+				}
+
+				int hash = oldIndex.getInt(offset);
+				int i = hash & mask;
+				while (index.getLong(slotOffset(i) + 4) != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				index.putInt(slotOffset(i), hash);
+				index.putLong(slotOffset(i) + 4, ref);
+				size++;
+			}
+
+			logEnd = savedLogEnd;
+			liveBytes = savedLiveBytes;
+			writeHeader();
+			oldIndexFile.close();
+			if (!indexPath.renameTo(finalPath)) {
+				throw new IOException("Could not replace " + finalPath);
+			}
+			indexPath = finalPath;
+		}
+
+		private int findSlot(byte[] token, int hash) {
+			int mask = capacity - 1;
+			int i = hash & mask;
+			for (int probes = 0; probes < capacity; probes++) {
+				int offset = slotOffset(i);
+				long ref = index.getLong(offset + 4);
+				if (ref == EMPTY) {
+					return -1;
+				}
+
+				if (ref != TOMBSTONE && index.getInt(offset) == hash
+						&& tokenEquals((int) (ref - 1), token)) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Compares the token in a log record to a token without copying the
+		 * record.
+		 */
+		private boolean tokenEquals(int pos, byte[] token) {
+			int lengthPos = pos + 13;
+			if (readLength(lengthPos) != token.length) {
+				return false;
+			}
+
+			int start = lengthPos + 2;
+			for (int i = 0; i < token.length; i++) {
+				if (log.get(start + i) != token[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private void writeHeader() {
+			index.putInt(CAPACITY_OFFSET, capacity);
+			index.putInt(SIZE_OFFSET, size);
+			index.putInt(TOMBSTONES_OFFSET, tombstones);
+			index.putLong(LIVE_BYTES_OFFSET, liveBytes);
+			index.putInt(LOG_END_OFFSET, logEnd);
+		}
+
+		private int recordOffset(int slot) {
+			return (int) (index.getLong(slotOffset(slot) + 4) - 1);
+		}
+
+		private int readLength(int pos) {
+			return log.getShort(pos) & 0xffff;
+		}
+
+		private byte[] readBytes(int pos) {
+			byte[] bytes = new byte[readLength(pos)];
+			ByteBuffer b = log.duplicate();
+			b.position(pos + 2);
+			b.get(bytes);
+			return bytes;
+		}
+
+		private String readString(int pos) {
+			return new String(readBytes(pos), UTF8);
+		}
+
+		private static int slotOffset(int slot) {
+			return HEADER_SIZE + slot * SLOT_SIZE;
+		}
+
+		private static void checkLength(byte[] bytes) {
+			if (bytes.length > 0xffff) {
+				throw new IllegalArgumentException("Value too long.");
+			}
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link KeyValueStore} client for a memcached server, or anything else
+ * that speaks the memcached text protocol. Only <code>get</code>,
+ * <code>set</code>, <code>add</code>, and <code>delete</code> are used.
+ * Connections are reused from a small pool.
+ *
+ * <p>
+ * memcached evicts least recently used values when it runs out of memory,
+ * even values that never expire. If it evicts the generation a consumer's
+ * tokens were issued under, {@link ReplicatedTokenStrategy} revokes those
+ * tokens. Give memcached enough memory for all live tokens, or start it with
+ * <code>-M</code> so it refuses new values instead of evicting old ones.
+ *
+ * <p>
+ * Keys memcached can't store (longer than 250 characters or containing spaces
+ * or control characters) are treated as missing. Since tokens come from
+ * requests, this also keeps a client from sending protocol commands in a
+ * token.
+ */
+public class MemcachedKeyValueStore implements KeyValueStore {
+	/**
+	 * The default memcached port.
+	 */
+	public static final int DEFAULT_PORT = 11211;
+
+	/**
+	 * The default connect and read timeout in milliseconds.
+	 */
+	public static final int DEFAULT_TIMEOUT = 1000;
+
+	/**
+	 * The default number of idle connections kept open.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 16;
+
+	private static final int MAX_KEY_LENGTH = 250;
+
+	// Expiration times longer than 30 days are Unix times in memcached.
+	private static final long MAX_RELATIVE_EXPIRATION = 30L * 24 * 60 * 60;
+
+	private final InetSocketAddress address;
+	private final int timeout;
+	private final BlockingQueue<Connection> idle;
+	private volatile boolean closed = false;
+
+	private static class Connection {
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+
+		Connection(InetSocketAddress address, int timeout) throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			socket.connect(address, timeout);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing else to do.
+			}
+		}
+
+		String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c == -1) {
+					throw new EOFException("memcached closed the connection");
+				}
+				if (c != '\r') {
+					line.write(c);
+				}
+			}
+
+			return line.toString("US-ASCII");
+		}
+
+		byte[] readData(int length) throws IOException {
+			byte[] data = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(data, read, length - read);
+				if (n == -1) {
+					throw new EOFException("memcached closed the connection");
+				}
+				read += n;
+			}
+
+			// Skip the \r\n after the data block.
+			readLine();
+			return data;
+		}
+	}
+
+	public MemcachedKeyValueStore(String host) {
+		this(host, DEFAULT_PORT);
+	}
+
+	public MemcachedKeyValueStore(String host, int port) {
+		this(host, port, DEFAULT_TIMEOUT, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Creates a memcached client. No connections are made until the store is
+	 * used.
+	 *
+	 * @param host
+	 *            the server host
+	 * @param port
+	 *            the server port
+	 * @param timeout
+	 *            the connect and read timeout in milliseconds
+	 * @param maxIdle
+	 *            the number of idle connections to keep open
+	 */
+	public MemcachedKeyValueStore(String host, int port, int timeout,
+			int maxIdle) {
+		this.address = new InetSocketAddress(host, port);
+		this.timeout = timeout;
+		this.idle = new ArrayBlockingQueue<Connection>(Math.max(1, maxIdle));
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		if (!isValidKey(key)) {
+			return null;
+		}
+
+		Connection connection = borrow();
+		boolean ok = false;
+		try {
+			send(connection, "get " + key + "\r\n", null);
+			String value = null;
+			String line = connection.readLine();
+			if (line.startsWith("VALUE ")) {
+				String[] parts = line.split(" ");
+				if (parts.length < 4) {
+					throw new IOException("Bad memcached response: " + line);
+				}
+				byte[] data = connection.readData(Integer.parseInt(parts[3]));
+				value = new String(data, "UTF-8");
+				line = connection.readLine();
+			}
+			if (!"END".equals(line)) {
+				throw error(line);
+			}
+
+			ok = true;
+			return value;
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad memcached response: " + e.getMessage());
+		} finally {
+			release(connection, ok);
+		}
+	}
+
+	@Override
+	public void put(String key, String value, long timeToLive)
+			throws IOException {
+		if (!isValidKey(key)) {
+			throw new IOException("Invalid memcached key: " + key);
+		}
+
+		if (!store("set", key, value, timeToLive)) {
+			throw error("NOT_STORED");
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, String value, long timeToLive)
+			throws IOException {
+		if (!isValidKey(key)) {
+			throw new IOException("Invalid memcached key: " + key);
+		}
+
+		return store("add", key, value, timeToLive);
+	}
+
+	@Override
+	public boolean remove(String key) throws IOException {
+		if (!isValidKey(key)) {
+			return false;
+		}
+
+		Connection connection = borrow();
+		boolean ok = false;
+		try {
+			send(connection, "delete " + key + "\r\n", null);
+			String line = connection.readLine();
+			boolean deleted;
+			if ("DELETED".equals(line)) {
+				deleted = true;
+			} else if ("NOT_FOUND".equals(line)) {
+				deleted = false;
+			} else {
+				throw error(line);
+			}
+
+			ok = true;
+			return deleted;
+		} finally {
+			release(connection, ok);
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections in use are closed when they're
+	 * returned.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	private boolean store(String command, String key, String value,
+			long timeToLive) throws IOException {
+		byte[] data = value.getBytes("UTF-8");
+		Connection connection = borrow();
+		boolean ok = false;
+		try {
+			send(connection, command + " " + key + " 0 "
+					+ getExpiration(timeToLive) + " " + data.length + "\r\n",
+					data);
+			String line = connection.readLine();
+			boolean stored;
+			if ("STORED".equals(line)) {
+				stored = true;
+			} else if ("NOT_STORED".equals(line)) {
+				stored = false;
+			} else {
+				throw error(line);
+			}
+
+			ok = true;
+			return stored;
+		} finally {
+			release(connection, ok);
+		}
+	}
+
+	static boolean isValidKey(String key) {
+		if (key == null || key.length() == 0 || key.length() > MAX_KEY_LENGTH) {
+			return false;
+		}
+
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c <= ' ' || c >= 0x7f) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static long getExpiration(long timeToLive) {
+		if (timeToLive <= 0) {
+			return 0;
+		}
+
+		// Round up so a value never expires early.
+		long seconds = (timeToLive + 999) / 1000;
+		if (seconds > MAX_RELATIVE_EXPIRATION) {
+			return System.currentTimeMillis() / 1000 + seconds;
+		}
+
+		return seconds;
+	}
+
+	private static IOException error(String line) {
+		return new IOException("memcached error: " + line);
+	}
+
+	private void send(Connection connection, String command, byte[] data)
+			throws IOException {
+		connection.out.write(command.getBytes("US-ASCII"));
+		if (data != null) {
+			connection.out.write(data);
+			connection.out.write('\r');
+			connection.out.write('\n');
+		}
+		connection.out.flush();
+	}
+
+	private Connection borrow() throws IOException {
+		if (closed) {
+			throw new IOException("The memcached store is closed.");
+		}
+
+		Connection connection = idle.poll();
+		return (connection == null) ? new Connection(address, timeout)
+				: connection;
+	}
+
+	private void release(Connection connection, boolean ok) {
+		// Don't reuse a connection after an error. It might have unread data.
+		if (!ok || closed || !idle.offer(connection)) {
+			connection.close();
+		}
+	}
+}
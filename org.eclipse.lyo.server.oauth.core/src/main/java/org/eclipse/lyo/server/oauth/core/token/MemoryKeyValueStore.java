@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+/**
+ * An embedded {@link KeyValueStore} that keeps values in memory in this
+ * process. Least recently used values are dropped when the limit is reached.
+ * This is useful for a single server or for testing. Use a networked store
+ * such as {@link MemcachedKeyValueStore} to share tokens between servers.
+ */
+public class MemoryKeyValueStore implements KeyValueStore {
+	/**
+	 * The default maximum number of values.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private final StripedLRUCache<String, String> values;
+
+	public MemoryKeyValueStore() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Creates an in-memory store.
+	 *
+	 * @param max
+	 *            the maximum number of values
+	 */
+	public MemoryKeyValueStore(int max) {
+		this.values = new StripedLRUCache<String, String>(max);
+	}
+
+	@Override
+	public String get(String key) {
+		return values.get(key);
+	}
+
+	@Override
+	public void put(String key, String value, long timeToLive) {
+		values.put(key, value, timeToLive);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, String value, long timeToLive) {
+		return values.putIfAbsent(key, value, timeToLive) == null;
+	}
+
+	@Override
+	public boolean remove(String key) {
+		return values.remove(key) != null;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpMessage;
+
+/**
+ * A token strategy that keeps access tokens on local disk so they survive
+ * restarts. Consumers don't have to go through the OAuth dance again when the
+ * webapp is redeployed. Request tokens are short lived and are still kept in
+ * memory.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * public void contextInitialized(ServletContextEvent event) {
+ * 	strategy = new PersistentTokenStrategy(new File(&quot;oauthTokens&quot;));
+ * 	OAuthConfiguration.getInstance().setTokenStrategy(strategy);
+ * }
+ *
+ * public void contextDestroyed(ServletContextEvent event) {
+ * 	strategy.close();
+ * }
+ * </pre>
+ *
+ * @see MappedTokenStore
+ */
+public class PersistentTokenStrategy extends SimpleTokenStrategy {
+	private final MappedTokenStore store;
+
+	/**
+	 * Creates a token strategy that stores access tokens in a directory.
+	 *
+	 * @param directory
+	 *            the directory for the token files
+	 * @throws IOException
+	 *             on errors opening the token files
+	 */
+	public PersistentTokenStrategy(File directory) throws IOException {
+		this.store = new MappedTokenStore(directory);
+
+		// Index the tokens from before the restart so they can be revoked.
+		for (Map.Entry<String, String> entry : store.getConsumerKeys()
+				.entrySet()) {
+			indexToken(entry.getValue(), entry.getKey());
+		}
+	}
+
+	/**
+	 * Closes the token files. Call this when the webapp is stopped.
+	 *
+	 * @throws IOException
+	 *             on errors closing the files
+	 */
+	public void close() throws IOException {
+		store.close();
+	}
+
+	@Override
+	protected void putAccessToken(String accessToken, String consumerKey,
+			String tokenSecret) throws IOException {
+		long timeToLive = getAccessTokenTimeToLive();
+		long expires = (timeToLive > 0) ? System.currentTimeMillis()
+				+ timeToLive : 0;
+		store.put(accessToken, consumerKey, tokenSecret, expires);
+	}
+
+	@Override
+	protected boolean removeAccessToken(String accessToken)
+			throws OAuthProblemException {
+		try {
+			return store.remove(accessToken);
+		} catch (IOException e) {
+			OAuthProblemException problem = new OAuthProblemException();
+			problem.setParameter(HttpMessage.STATUS_CODE,
+					HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			problem.initCause(e);
+			throw problem;
+		}
+	}
+
+	@Override
+	protected String getAccessTokenConsumerKey(String accessToken) {
+		return store.getConsumerKey(accessToken);
+	}
+
+	@Override
+	protected String getAccessTokenSecret(String accessToken) {
+		return store.getSecret(accessToken);
+	}
+}
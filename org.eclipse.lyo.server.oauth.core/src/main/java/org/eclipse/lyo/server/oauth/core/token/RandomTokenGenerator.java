@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates tokens from random bytes encoded as URL-safe Base64. The default
+ * of {@value #DEFAULT_BYTES} bytes gives 128 random bits in 22 characters,
+ * compared to 122 bits in 36 characters for a random UUID.
+ *
+ * <p>
+ * Each thread has its own deterministic random bit generator, so threads
+ * never wait on a shared {@link SecureRandom}. "SHA1PRNG" is used when the JVM
+ * has it since it is the fastest, then "DRBG". Each generator is seeded once
+ * from the platform's default {@link SecureRandom}, which doesn't block
+ * waiting for entropy.
+ */
+public class RandomTokenGenerator implements TokenGenerator {
+	/**
+	 * The default number of random bytes in a token.
+	 */
+	public static final int DEFAULT_BYTES = 16;
+
+	/**
+	 * The fewest random bytes allowed in a token.
+	 */
+	public static final int MIN_BYTES = 16;
+
+	private static final int SEED_BYTES = 32;
+	private static final String[] ALGORITHMS = { "SHA1PRNG", "DRBG" };
+
+	private static final SecureRandom seeds = new SecureRandom();
+
+	private static final ThreadLocal<SecureRandom> generators = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			SecureRandom random = newGenerator();
+			byte[] seed = new byte[SEED_BYTES];
+			synchronized (seeds) {
+				seeds.nextBytes(seed);
+			}
+			random.setSeed(seed);
+
+			return random;
+		}
+	};
+
+	private final int bytes;
+
+	public RandomTokenGenerator() {
+		this(DEFAULT_BYTES);
+	}
+
+	/**
+	 * Creates a generator.
+	 *
+	 * @param bytes
+	 *            the number of random bytes in each token, at least
+	 *            {@value #MIN_BYTES}
+	 */
+	public RandomTokenGenerator(int bytes) {
+		if (bytes < MIN_BYTES) {
+			throw new IllegalArgumentException("Tokens need at least "
+					+ MIN_BYTES + " random bytes");
+		}
+		this.bytes = bytes;
+	}
+
+	public String generateToken() {
+		byte[] token = new byte[bytes];
+		generators.get().nextBytes(token);
+
+		return UrlSafeBase64.encode(token);
+	}
+
+	private static SecureRandom newGenerator() {
+		for (String algorithm : ALGORITHMS) {
+			try {
+				return SecureRandom.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				// Try the next one.
+			}
+		}
+
+		return new SecureRandom();
+	}
+}
@@ -0,0 +1,664 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpMessage;
+
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+
+/**
+ * A token strategy that keeps all token state in a {@link KeyValueStore} so
+ * servers behind a load balancer can share it. A token issued by one server
+ * is accepted by all the others. Request tokens, their callbacks and
+ * verification codes, and access tokens are all stored.
+ *
+ * <p>
+ * Each server keeps recently used access tokens in a bounded near-cache.
+ * {@link #getTokenSecret(HttpServletRequest, String)} and
+ * {@link #validateAccessToken(OAuthRequest)} read the near-cache first and
+ * only go to the store on a miss. {@link #revokeAccessToken(String)} removes
+ * the token from the store and the local near-cache. Other servers stop
+ * accepting a revoked token when their near-cache entry expires, after at
+ * most {@link #getNearCacheTimeToLive()} ms, or right away if they're told
+ * through {@link #invalidate(String)}.
+ *
+ * <p>
+ * Each consumer has a generation in the store, and every token records the
+ * generation it was issued under. {@link #revokeConsumerTokens(String)} and
+ * {@link #revokeAllTokens()} just start a new generation, so they cost the
+ * same however many tokens there are. Tokens from an older generation are
+ * rejected. Generations are cached on each server for the same time as
+ * access tokens, so other servers notice within
+ * {@link #getNearCacheTimeToLive()} ms. If the store loses a generation, for
+ * instance because memcached evicted it, the first server to notice starts a
+ * new one and the others pick it up. This revokes the consumer's tokens
+ * rather than bringing revoked tokens back, so size the store so it doesn't
+ * evict values.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * strategy = new ReplicatedTokenStrategy(new MemcachedKeyValueStore(
+ * 		&quot;tokens.example.com&quot;));
+ * OAuthConfiguration.getInstance().setTokenStrategy(strategy);
+ * </pre>
+ */
+public class ReplicatedTokenStrategy implements TokenStrategy {
+	/**
+	 * The default number of access tokens in the near-cache.
+	 */
+	public static final int DEFAULT_NEAR_CACHE_SIZE = 5000;
+
+	/**
+	 * The default time an access token stays in the near-cache (1 minute).
+	 */
+	public static final long DEFAULT_NEAR_CACHE_TIME_TO_LIVE = 60 * 1000;
+
+	private static final String REQUEST_TOKEN_PREFIX = "lyo.rt.";
+	private static final String ACCESS_TOKEN_PREFIX = "lyo.at.";
+	private static final String GENERATION_PREFIX = "lyo.gen.";
+
+	// The generation shared by all consumers, used to revoke every token.
+	private static final String ALL_CONSUMERS_GENERATION = "lyo.gen";
+
+	// Field names in the stored records.
+	private static final String CONSUMER_KEY = "c";
+	private static final String SECRET = "s";
+	private static final String CALLBACK = "cb";
+	private static final String AUTHORIZED = "a";
+	private static final String VERIFIER = "v";
+	private static final String VERIFIER_EXPIRES = "ve";
+	private static final String EXPIRES = "e";
+	private static final String GENERATION = "g";
+
+	/**
+	 * An access token in the near-cache.
+	 */
+	private static class AccessTokenData {
+		final String consumerKey;
+		final String secret;
+		final String generation;
+
+		AccessTokenData(String consumerKey, String secret, String generation) {
+			this.consumerKey = consumerKey;
+			this.secret = secret;
+			this.generation = generation;
+		}
+	}
+
+	private final KeyValueStore store;
+	private final StripedLRUCache<String, AccessTokenData> nearCache;
+	private final long nearCacheTimeToLive;
+
+	// key is generation key in the store, value is the generation
+	private final StripedLRUCache<String, String> generations;
+
+	private volatile long requestTokenTimeToLive = SimpleTokenStrategy.DEFAULT_REQUEST_TOKEN_TIME_TO_LIVE;
+	private volatile long verificationCodeTimeToLive = SimpleTokenStrategy.DEFAULT_VERIFICATION_CODE_TIME_TO_LIVE;
+	private volatile long accessTokenTimeToLive = 0;
+	private volatile TokenGenerator tokenGenerator = new RandomTokenGenerator();
+
+	public ReplicatedTokenStrategy(KeyValueStore store) {
+		this(store, DEFAULT_NEAR_CACHE_SIZE, DEFAULT_NEAR_CACHE_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Creates a replicated token strategy.
+	 *
+	 * @param store
+	 *            the shared store
+	 * @param nearCacheSize
+	 *            the number of access tokens to keep on this server
+	 * @param nearCacheTimeToLive
+	 *            how long in milliseconds an access token is kept on this
+	 *            server before it's read from the store again. This is the
+	 *            longest a revoked token is still accepted by other servers.
+	 */
+	public ReplicatedTokenStrategy(KeyValueStore store, int nearCacheSize,
+			long nearCacheTimeToLive) {
+		if (nearCacheTimeToLive <= 0) {
+			throw new IllegalArgumentException(
+					"nearCacheTimeToLive must be positive");
+		}
+
+		this.store = store;
+		this.nearCache = new StripedLRUCache<String, AccessTokenData>(
+				nearCacheSize);
+		this.generations = new StripedLRUCache<String, String>(nearCacheSize);
+		this.nearCacheTimeToLive = nearCacheTimeToLive;
+	}
+
+	public KeyValueStore getStore() {
+		return store;
+	}
+
+	public long getNearCacheTimeToLive() {
+		return nearCacheTimeToLive;
+	}
+
+	/**
+	 * Sets how long request tokens are valid after they are issued.
+	 *
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setRequestTokenTimeToLive(long timeToLive) {
+		this.requestTokenTimeToLive = timeToLive;
+	}
+
+	public long getRequestTokenTimeToLive() {
+		return requestTokenTimeToLive;
+	}
+
+	/**
+	 * Sets how long verification codes are valid after they are generated.
+	 *
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setVerificationCodeTimeToLive(long timeToLive) {
+		this.verificationCodeTimeToLive = timeToLive;
+	}
+
+	public long getVerificationCodeTimeToLive() {
+		return verificationCodeTimeToLive;
+	}
+
+	/**
+	 * Sets how long access tokens are valid after they are issued.
+	 *
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setAccessTokenTimeToLive(long timeToLive) {
+		this.accessTokenTimeToLive = timeToLive;
+	}
+
+	public long getAccessTokenTimeToLive() {
+		return accessTokenTimeToLive;
+	}
+
+	@Override
+	public void generateRequestToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		OAuthAccessor accessor = oAuthRequest.getAccessor();
+		String requestToken = generateTokenString();
+		String tokenSecret = generateTokenString();
+		long timeToLive = requestTokenTimeToLive;
+
+		List<OAuth.Parameter> record = new ArrayList<OAuth.Parameter>();
+		record.add(new OAuth.Parameter(CONSUMER_KEY,
+				accessor.consumer.consumerKey));
+		record.add(new OAuth.Parameter(SECRET, tokenSecret));
+		record.add(new OAuth.Parameter(EXPIRES, Long
+				.toString(expiresAt(timeToLive))));
+		record.add(new OAuth.Parameter(GENERATION,
+				getGeneration(accessor.consumer.consumerKey)));
+		String callback = oAuthRequest.getMessage().getParameter(
+				OAuth.OAUTH_CALLBACK);
+		if (callback != null) {
+			record.add(new OAuth.Parameter(CALLBACK, callback));
+		}
+
+		try {
+			store.put(REQUEST_TOKEN_PREFIX + requestToken,
+					OAuth.formEncode(record), timeToLive);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+
+		accessor.requestToken = requestToken;
+		accessor.tokenSecret = tokenSecret;
+	}
+
+	@Override
+	public String validateRequestToken(HttpServletRequest httpRequest,
+			OAuthMessage message) throws OAuthException, IOException {
+		return getRequestToken(message.getToken()).get(CONSUMER_KEY);
+	}
+
+	@Override
+	public String getCallback(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthProblemException {
+		return getRequestToken(requestToken).get(CALLBACK);
+	}
+
+	@Override
+	public void markRequestTokenAuthorized(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthProblemException {
+		Map<String, String> record = getRequestToken(requestToken);
+		record.put(AUTHORIZED, "true");
+		putRequestToken(requestToken, record);
+	}
+
+	@Override
+	public boolean isRequestTokenAuthorized(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthProblemException {
+		return "true".equals(getRequestToken(requestToken).get(AUTHORIZED));
+	}
+
+	@Override
+	public String generateVerificationCode(HttpServletRequest httpRequest,
+			String requestToken) throws OAuthProblemException {
+		String verificationCode = generateTokenString();
+		Map<String, String> record = getRequestToken(requestToken);
+		record.put(VERIFIER, verificationCode);
+		record.put(VERIFIER_EXPIRES,
+				Long.toString(expiresAt(verificationCodeTimeToLive)));
+		putRequestToken(requestToken, record);
+
+		return verificationCode;
+	}
+
+	@Override
+	public void validateVerificationCode(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		String verificationCode = oAuthRequest.getMessage().getParameter(
+				OAuth.OAUTH_VERIFIER);
+		if (verificationCode == null) {
+			throw new OAuthProblemException(
+					OAuth.Problems.OAUTH_PARAMETERS_ABSENT);
+		}
+
+		Map<String, String> record = getRequestToken(oAuthRequest
+				.getMessage().getToken());
+		if (!verificationCode.equals(record.get(VERIFIER))) {
+			throw new OAuthProblemException(
+					OAuth.Problems.OAUTH_PARAMETERS_REJECTED);
+		}
+
+		if (isExpired(record.get(VERIFIER_EXPIRES))) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_EXPIRED);
+		}
+	}
+
+	@Override
+	public void generateAccessToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		OAuthAccessor accessor = oAuthRequest.getAccessor();
+		String requestToken = oAuthRequest.getMessage().getToken();
+		if (!"true".equals(getRequestToken(requestToken).get(AUTHORIZED))) {
+			throw new OAuthProblemException(
+					OAuth.Problems.ADDITIONAL_AUTHORIZATION_REQUIRED);
+		}
+
+		String consumerKey = accessor.consumer.consumerKey;
+		String accessToken = generateTokenString();
+		String tokenSecret = generateTokenString();
+		String generation = getGeneration(consumerKey);
+		long timeToLive = accessTokenTimeToLive;
+		try {
+			// Only one caller can remove the request token, even on
+			// different servers, so it can't be exchanged twice.
+			if (!store.remove(REQUEST_TOKEN_PREFIX + requestToken)) {
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_USED);
+			}
+
+			store.put(ACCESS_TOKEN_PREFIX + accessToken, OAuth.formEncode(OAuth
+					.newList(CONSUMER_KEY, consumerKey, SECRET, tokenSecret,
+							GENERATION, generation)), timeToLive);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+
+		putNearCache(accessToken, new AccessTokenData(consumerKey,
+				tokenSecret, generation), timeToLive);
+		accessor.accessToken = accessToken;
+		accessor.tokenSecret = tokenSecret;
+		accessor.requestToken = null;
+	}
+
+	@Override
+	public void validateAccessToken(OAuthRequest oAuthRequest)
+			throws OAuthException, IOException {
+		AccessTokenData data = getAccessToken(oAuthRequest.getMessage()
+				.getToken());
+		if (data == null
+				|| !oAuthRequest.getConsumer().consumerKey
+						.equals(data.consumerKey)) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+	}
+
+	@Override
+	public String getTokenSecret(HttpServletRequest httpRequest, String token)
+			throws OAuthProblemException {
+		AccessTokenData data = getAccessToken(token);
+		if (data != null) {
+			return data.secret;
+		}
+
+		// Not an access token. Try it as a request token.
+		return getRequestToken(token).get(SECRET);
+	}
+
+	/**
+	 * Revokes an access token on all servers. Servers that have the token in
+	 * their near-cache keep accepting it until the entry expires, unless
+	 * {@link #invalidate(String)} is called on them.
+	 *
+	 * @param accessToken
+	 *            the access token
+	 * @return true if the token was revoked, false if it wasn't valid
+	 * @throws OAuthProblemException
+	 *             if the store is unavailable
+	 */
+	public boolean revokeAccessToken(String accessToken)
+			throws OAuthProblemException {
+		invalidate(accessToken);
+		try {
+			return store.remove(ACCESS_TOKEN_PREFIX + accessToken);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+	}
+
+	@Override
+	public boolean revokeToken(String token) throws OAuthProblemException {
+		if (token == null) {
+			return false;
+		}
+
+		if (revokeAccessToken(token)) {
+			return true;
+		}
+
+		try {
+			return store.remove(REQUEST_TOKEN_PREFIX + token);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+	}
+
+	/**
+	 * Revokes every token issued to a consumer on all servers by starting a
+	 * new generation for the consumer. Other servers stop accepting the
+	 * tokens within {@link #getNearCacheTimeToLive()} ms.
+	 *
+	 * @param consumerKey
+	 *            the consumer key
+	 * @throws OAuthProblemException
+	 *             if the store is unavailable
+	 */
+	@Override
+	public void revokeConsumerTokens(String consumerKey)
+			throws OAuthProblemException {
+		newGeneration(GENERATION_PREFIX + OAuth.percentEncode(consumerKey));
+	}
+
+	/**
+	 * Revokes every token on all servers by starting a new generation shared
+	 * by all consumers. Other servers stop accepting the tokens within
+	 * {@link #getNearCacheTimeToLive()} ms.
+	 *
+	 * @throws OAuthProblemException
+	 *             if the store is unavailable
+	 */
+	@Override
+	public void revokeAllTokens() throws OAuthProblemException {
+		newGeneration(ALL_CONSUMERS_GENERATION);
+	}
+
+	/**
+	 * Removes an access token from this server's near-cache so it's read from
+	 * the store next time. Call this when another server revokes a token.
+	 *
+	 * @param accessToken
+	 *            the access token
+	 */
+	public void invalidate(String accessToken) {
+		if (accessToken != null) {
+			nearCache.remove(accessToken);
+		}
+	}
+
+	/**
+	 * Closes the store.
+	 *
+	 * @throws IOException
+	 *             on errors closing the store
+	 */
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Gets the generator for tokens, token secrets, and verification codes.
+	 *
+	 * @return the token generator
+	 */
+	public TokenGenerator getTokenGenerator() {
+		return tokenGenerator;
+	}
+
+	/**
+	 * Sets the generator for tokens, token secrets, and verification codes.
+	 * The default is a {@link RandomTokenGenerator}.
+	 *
+	 * @param tokenGenerator
+	 *            the token generator
+	 */
+	public void setTokenGenerator(TokenGenerator tokenGenerator) {
+		if (tokenGenerator == null) {
+			throw new IllegalArgumentException(
+					"tokenGenerator cannot be null");
+		}
+		this.tokenGenerator = tokenGenerator;
+	}
+
+	/**
+	 * Creates a unique, random string to use for tokens. Uses the
+	 * {@link #getTokenGenerator() token generator}.
+	 *
+	 * @return the random string
+	 */
+	protected String generateTokenString() {
+		return tokenGenerator.generateToken();
+	}
+
+	private AccessTokenData getAccessToken(String accessToken)
+			throws OAuthProblemException {
+		if (accessToken == null) {
+			return null;
+		}
+
+		AccessTokenData data = nearCache.get(accessToken);
+		if (data != null) {
+			return checkGeneration(accessToken, data);
+		}
+
+		String value;
+		try {
+			value = store.get(ACCESS_TOKEN_PREFIX + accessToken);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+		if (value == null) {
+			return null;
+		}
+
+		Map<String, String> record = OAuth.newMap(OAuth.decodeForm(value));
+		data = new AccessTokenData(record.get(CONSUMER_KEY),
+				record.get(SECRET), record.get(GENERATION));
+		putNearCache(accessToken, data, nearCacheTimeToLive);
+
+		return checkGeneration(accessToken, data);
+	}
+
+	/**
+	 * Checks that an access token wasn't revoked by a newer generation.
+	 *
+	 * @return the token data or null if the token was revoked
+	 */
+	private AccessTokenData checkGeneration(String accessToken,
+			AccessTokenData data) throws OAuthProblemException {
+		if (isCurrentGeneration(data.consumerKey, data.generation)) {
+			return data;
+		}
+
+		nearCache.remove(accessToken);
+		return null;
+	}
+
+	private boolean isCurrentGeneration(String consumerKey, String generation)
+			throws OAuthProblemException {
+		// Tokens stored before generations were recorded can only be revoked
+		// one at a time.
+		return generation == null
+				|| generation.equals(getGeneration(consumerKey));
+	}
+
+	/**
+	 * Gets the generation new tokens for a consumer are issued under. It
+	 * combines the generation for all consumers with the consumer's own.
+	 */
+	private String getGeneration(String consumerKey)
+			throws OAuthProblemException {
+		return getGenerationValue(ALL_CONSUMERS_GENERATION) + "."
+				+ getGenerationValue(GENERATION_PREFIX
+						+ OAuth.percentEncode(consumerKey));
+	}
+
+	private String getGenerationValue(String key) throws OAuthProblemException {
+		String generation = generations.get(key);
+		if (generation != null) {
+			return generation;
+		}
+
+		try {
+			generation = store.get(key);
+			while (generation == null) {
+				// Never issued tokens, or the store lost the generation. Either
+				// way a new generation is safe. Only add it if there's still
+				// none so every server agrees on the same one.
+				String candidate = generateTokenString();
+				if (store.putIfAbsent(key, candidate, 0)) {
+					generation = candidate;
+				} else {
+					generation = store.get(key);
+				}
+			}
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+
+		generations.put(key, generation, nearCacheTimeToLive);
+		return generation;
+	}
+
+	private String newGeneration(String key) throws OAuthProblemException {
+		String generation = generateTokenString();
+		try {
+			store.put(key, generation, 0);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+
+		generations.put(key, generation, nearCacheTimeToLive);
+		return generation;
+	}
+
+	private void putNearCache(String accessToken, AccessTokenData data,
+			long timeToLive) {
+		// Never keep a token longer than the near-cache time to live.
+		nearCache.put(accessToken, data, (timeToLive > 0) ? Math.min(
+				timeToLive, nearCacheTimeToLive) : nearCacheTimeToLive);
+	}
+
+	private Map<String, String> getRequestToken(String requestToken)
+			throws OAuthProblemException {
+		if (requestToken == null) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+
+		String value;
+		try {
+			value = store.get(REQUEST_TOKEN_PREFIX + requestToken);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+		if (value == null) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+
+		Map<String, String> record = OAuth.newMap(OAuth.decodeForm(value));
+		if (isExpired(record.get(EXPIRES))) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_EXPIRED);
+		}
+		if (!isCurrentGeneration(record.get(CONSUMER_KEY),
+				record.get(GENERATION))) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+
+		return record;
+	}
+
+	private void putRequestToken(String requestToken,
+			Map<String, String> record) throws OAuthProblemException {
+		// Keep the original expiration time.
+		long expires = Long.parseLong(record.get(EXPIRES));
+		long timeToLive = 0;
+		if (expires != 0) {
+			timeToLive = expires - System.currentTimeMillis();
+			if (timeToLive <= 0) {
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_EXPIRED);
+			}
+		}
+
+		try {
+			store.put(REQUEST_TOKEN_PREFIX + requestToken,
+					OAuth.formEncode(record.entrySet()), timeToLive);
+		} catch (IOException e) {
+			throw storeUnavailable(e);
+		}
+	}
+
+	private static long expiresAt(long timeToLive) {
+		return (timeToLive > 0) ? System.currentTimeMillis() + timeToLive : 0;
+	}
+
+	private static boolean isExpired(String expires) {
+		if (expires == null) {
+			return false;
+		}
+
+		long time = Long.parseLong(expires);
+		return time != 0 && System.currentTimeMillis() >= time;
+	}
+
+	private static OAuthProblemException storeUnavailable(IOException cause) {
+		OAuthProblemException e = new OAuthProblemException();
+		e.setParameter(HttpMessage.STATUS_CODE,
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		e.initCause(cause);
+
+		return e;
+	}
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A token strategy that keeps no state for access tokens. Each access token
+ * carries the consumer key, when it was issued, when it expires, and the
+ * token secret encrypted with a server key. The whole token is sealed with
+ * an HMAC, so validating an access token or looking up its secret is only a
+ * MAC check and a decryption. Any node with the same server keys can
+ * validate any token, so this works behind a load balancer without sticky
+ * sessions. Request tokens are still kept in memory.
+ *
+ * <p>
+ * Server keys are identified by an ID that is stored in each token. New
+ * tokens are sealed with the current key. After {@link #rotateKey(int,
+ * byte[], long)}, tokens sealed with the previous key are accepted until the
+ * overlap window ends. All nodes must be configured with the same keys.
+ *
+ * <p>
+ * Since there's no state, access tokens can't be revoked.
+ * {@link #revokeToken(String)} returns false for an access token, and
+ * {@link #revokeConsumerTokens(String)} and {@link #revokeAllTokens()} only
+ * revoke request tokens. Use {@link #setAccessTokenTimeToLive(long)} and key
+ * rotation to limit how long tokens are valid. Tokens for a consumer that was
+ * removed are rejected because the consumer can't be found.
+ */
+public class SealedTokenStrategy extends SimpleTokenStrategy {
+	private static final byte VERSION = 1;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+
+	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final SecureRandom random = new SecureRandom();
+
+	/*
+	 * The first key is the current key. The array is replaced, never
+	 * modified, so it can be read without a lock.
+	 */
+	private volatile SealingKey[] keys;
+
+	private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(MAC_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(CIPHER_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * A server key used to encrypt token secrets and seal tokens.
+	 */
+	private static class SealingKey {
+		final int id;
+		final SecretKeySpec encryptionKey;
+		final SecretKeySpec macKey;
+
+		// When the key stops being accepted, or 0 if it's still in use.
+		final long retires;
+
+		SealingKey(int id, SecretKeySpec encryptionKey, SecretKeySpec macKey,
+				long retires) {
+			this.id = id;
+			this.encryptionKey = encryptionKey;
+			this.macKey = macKey;
+			this.retires = retires;
+		}
+
+		SealingKey(int id, byte[] keyMaterial) {
+			this(id, new SecretKeySpec(Arrays.copyOf(
+					derive(keyMaterial, "encryption"), 16), "AES"),
+					new SecretKeySpec(derive(keyMaterial, "mac"),
+							MAC_ALGORITHM), 0);
+		}
+
+		SealingKey retire(long when) {
+			return new SealingKey(id, encryptionKey, macKey, when);
+		}
+
+		boolean isRetired(long now) {
+			return retires != 0 && now >= retires;
+		}
+
+		private static byte[] derive(byte[] keyMaterial, String purpose) {
+			try {
+				Mac mac = Mac.getInstance(MAC_ALGORITHM);
+				mac.init(new SecretKeySpec(keyMaterial, MAC_ALGORITHM));
+				return mac.doFinal(purpose.getBytes("UTF-8"));
+			} catch (Exception e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a sealed token strategy.
+	 *
+	 * @param keyId
+	 *            an ID for the server key, stored in each token
+	 * @param keyMaterial
+	 *            the secret server key, at least 16 random bytes. It must be
+	 *            the same on all nodes.
+	 */
+	public SealedTokenStrategy(int keyId, byte[] keyMaterial) {
+		checkKeyMaterial(keyMaterial);
+		this.keys = new SealingKey[] { new SealingKey(keyId, keyMaterial) };
+	}
+
+	/**
+	 * Makes a new server key the current key. Tokens sealed with the previous
+	 * current key are still accepted until the overlap window ends.
+	 *
+	 * @param keyId
+	 *            an ID for the new key, different from the IDs of keys still
+	 *            in use
+	 * @param keyMaterial
+	 *            the new secret server key, at least 16 random bytes
+	 * @param overlap
+	 *            how long in milliseconds to accept tokens sealed with the
+	 *            previous key
+	 */
+	public synchronized void rotateKey(int keyId, byte[] keyMaterial,
+			long overlap) {
+		checkKeyMaterial(keyMaterial);
+		long now = System.currentTimeMillis();
+		List<SealingKey> newKeys = new ArrayList<SealingKey>();
+		newKeys.add(new SealingKey(keyId, keyMaterial));
+		for (SealingKey key : keys) {
+			if (key.id == keyId) {
+				throw new IllegalArgumentException("Key " + keyId
+						+ " is already in use.");
+			}
+			if (key.isRetired(now)) {
+				continue;
+			}
+			newKeys.add((key.retires == 0) ? key.retire(now + overlap) : key);
+		}
+
+		this.keys = newKeys.toArray(new SealingKey[newKeys.size()]);
+	}
+
+	/**
+	 * Stops accepting tokens sealed with a key right away. The current key
+	 * can't be retired; rotate to a new key first.
+	 *
+	 * @param keyId
+	 *            the key ID
+	 */
+	public synchronized void retireKey(int keyId) {
+		if (keys[0].id == keyId) {
+			throw new IllegalArgumentException(
+					"The current key can't be retired.");
+		}
+
+		List<SealingKey> newKeys = new ArrayList<SealingKey>();
+		for (SealingKey key : keys) {
+			if (key.id != keyId) {
+				newKeys.add(key);
+			}
+		}
+
+		this.keys = newKeys.toArray(new SealingKey[newKeys.size()]);
+	}
+
+	@Override
+	protected String issueAccessToken(String consumerKey, String tokenSecret)
+			throws IOException {
+		long issued = System.currentTimeMillis();
+		long timeToLive = getAccessTokenTimeToLive();
+		long expires = (timeToLive > 0) ? issued + timeToLive : 0;
+		SealingKey key = keys[0];
+
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, key.encryptionKey,
+					new IvParameterSpec(iv));
+			byte[] encryptedSecret = cipher.doFinal(tokenSecret
+					.getBytes("UTF-8"));
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeInt(key.id);
+			out.writeLong(issued);
+			out.writeLong(expires);
+			out.writeUTF(consumerKey);
+			out.write(iv);
+			out.write(encryptedSecret);
+
+			Mac mac = macs.get();
+			mac.init(key.macKey);
+			mac.update(bytes.toByteArray());
+			out.write(mac.doFinal());
+			out.flush();
+
+			return UrlSafeBase64.encode(bytes.toByteArray());
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	@Override
+	protected void putAccessToken(String accessToken, String consumerKey,
+			String tokenSecret) {
+		// Nothing to store. Everything is in the token.
+	}
+
+	@Override
+	protected String getAccessTokenConsumerKey(String accessToken) {
+		SealedToken token = unseal(accessToken);
+		return (token == null) ? null : token.consumerKey;
+	}
+
+	@Override
+	protected String getAccessTokenSecret(String accessToken) {
+		SealedToken token = unseal(accessToken);
+		if (token == null) {
+			return null;
+		}
+
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, token.key.encryptionKey,
+					new IvParameterSpec(token.iv));
+			return new String(cipher.doFinal(token.encryptedSecret), "UTF-8");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The parts of an access token that passed the MAC check.
+	 */
+	private static class SealedToken {
+		SealingKey key;
+		String consumerKey;
+		byte[] iv;
+		byte[] encryptedSecret;
+	}
+
+	/**
+	 * Checks the MAC, key, and expiration of an access token and decodes it.
+	 *
+	 * @param accessToken
+	 *            the access token
+	 * @return the token or null if it isn't valid
+	 */
+	private SealedToken unseal(String accessToken) {
+		if (accessToken == null) {
+			return null;
+		}
+
+		byte[] bytes = UrlSafeBase64.decode(accessToken);
+		if (bytes == null || bytes.length < 1 + 4 + 8 + 8 + 2 + IV_LENGTH
+				+ MAC_LENGTH || bytes[0] != VERSION) {
+			return null;
+		}
+
+		int keyId = ((bytes[1] & 0xff) << 24) | ((bytes[2] & 0xff) << 16)
+				| ((bytes[3] & 0xff) << 8) | (bytes[4] & 0xff);
+		long now = System.currentTimeMillis();
+		SealingKey key = null;
+		for (SealingKey k : keys) {
+			if (k.id == keyId) {
+				key = k;
+				break;
+			}
+		}
+		if (key == null || key.isRetired(now)) {
+			return null;
+		}
+
+		int macStart = bytes.length - MAC_LENGTH;
+		byte[] expectedMac;
+		try {
+			Mac mac = macs.get();
+			mac.init(key.macKey);
+			mac.update(bytes, 0, macStart);
+			expectedMac = mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+
+		byte[] actualMac = Arrays.copyOfRange(bytes, macStart, bytes.length);
+		if (!MessageDigest.isEqual(expectedMac, actualMac)) {
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					bytes, 5, macStart - 5));
+			in.readLong(); // issued
+			long expires = in.readLong();
+			if (expires != 0 && now >= expires) {
+				return null;
+			}
+
+			SealedToken token = new SealedToken();
+			token.key = key;
+			token.consumerKey = in.readUTF();
+			token.iv = new byte[IV_LENGTH];
+			in.readFully(token.iv);
+			token.encryptedSecret = new byte[in.available()];
+			in.readFully(token.encryptedSecret);
+
+			return token;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void checkKeyMaterial(byte[] keyMaterial) {
+		if (keyMaterial == null || keyMaterial.length < 16) {
+			throw new IllegalArgumentException(
+					"Key material must be at least 16 bytes.");
+		}
+	}
+}
@@ -16,11 +16,14 @@
 package org.eclipse.lyo.server.oauth.core.token;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.eclipse.lyo.server.oauth.core.NegativeCache;
 import org.eclipse.lyo.server.oauth.core.OAuthRequest;
 
 import net.oauth.OAuth;
@@ -33,79 +36,200 @@ import net.oauth.OAuthProblemException;
  * A simple strategy for generating and validating tokens. Generates random
  * tokens and stores them in memory. Tokens are only good for the life of the
  * process. Least recently used tokens are invalidated when cached limits are
- * reached.
+ * reached, and tokens can also be given a time to live.
+ * 
+ * <p>
+ * Request tokens, verification codes, and access tokens each have their own
+ * time to live. Request tokens expire after
+ * {@value #DEFAULT_REQUEST_TOKEN_TIME_TO_LIVE} ms and verification codes after
+ * {@value #DEFAULT_VERIFICATION_CODE_TIME_TO_LIVE} ms by default. Access
+ * tokens don't expire unless
+ * {@link #setAccessTokenTimeToLive(long)} is called. Expired tokens are
+ * purged on a background thread.
+ * 
+ * <p>
+ * A request token moves through the states in
+ * {@link RequestTokenData.State}. Each step is a compare-and-set on the
+ * token's immutable {@link RequestTokenData}, so the strategy takes no locks
+ * of its own and a request token can only be exchanged once.
+ * 
+ * <p>
+ * Tokens are indexed by consumer key, so
+ * {@link #revokeConsumerTokens(String)} only touches that consumer's tokens.
+ * 
+ * <p>
+ * Tokens come from a {@link TokenGenerator}, by default a
+ * {@link RandomTokenGenerator}.
+ * 
+ * <p>
+ * Unknown tokens are remembered for {@value #REJECTED_TOKEN_TIME_TO_LIVE} ms
+ * so clients that keep sending a stale token are turned away without another
+ * lookup.
  * 
  * @author Samuel Padgett <spadgett@us.ibm.com>
  */
 public class SimpleTokenStrategy implements TokenStrategy {
-	private final static int REQUEST_TOKEN_MAX_ENTIRES = 500;
-	private final static int ACCESS_TOKEN_MAX_ENTRIES = 5000;
+	protected final static int REQUEST_TOKEN_MAX_ENTIRES = 500;
+	protected final static int ACCESS_TOKEN_MAX_ENTRIES = 5000;
+
+	/**
+	 * The default time to live for request tokens in milliseconds (15
+	 * minutes).
+	 */
+	public final static long DEFAULT_REQUEST_TOKEN_TIME_TO_LIVE = 15 * 60 * 1000;
+
+	/**
+	 * The default time to live for verification codes in milliseconds (5
+	 * minutes).
+	 */
+	public final static long DEFAULT_VERIFICATION_CODE_TIME_TO_LIVE = 5 * 60 * 1000;
+
+	/**
+	 * How long a rejected token is remembered in milliseconds (5 minutes).
+	 */
+	public final static long REJECTED_TOKEN_TIME_TO_LIVE = 5 * 60 * 1000;
 	
 	/**
 	 * Holds information associated with a request token such as the callback
-	 * URL and OAuth verification code.
+	 * URL and OAuth verification code. Instances are immutable. Each step in
+	 * the request token's life replaces the value in the cache with a
+	 * compare-and-set, so steps racing for the same token can't lose updates.
 	 * 
 	 * @author Samuel Padgett <spadgett@us.ibm.com>
 	 */
-	protected class RequestTokenData {
-		private String consumerKey;
-		private boolean authorized;
-		private String callback;
-		private String verificationCode;
-		
+	protected static final class RequestTokenData {
+		/**
+		 * Where a request token is in the OAuth flow. A token only moves
+		 * forward: {@link #ISSUED} &rarr; {@link #AUTHORIZED} &rarr;
+		 * {@link #VERIFIED} &rarr; {@link #EXCHANGED}. OAuth 1.0 tokens
+		 * without a verification code skip {@link #VERIFIED}.
+		 */
+		public enum State {
+			/** Given to the consumer, but not yet approved by the user. */
+			ISSUED,
+			/** Approved by the user. */
+			AUTHORIZED,
+			/** The consumer presented the right verification code. */
+			VERIFIED,
+			/** Traded for an access token. Can't be used again. */
+			EXCHANGED
+		}
+
+		private final String consumerKey;
+		private final State state;
+		private final String callback;
+		private final String verificationCode;
+		private final long verificationCodeExpires;
+
 		public RequestTokenData(String consumerKey) {
-			this.consumerKey = consumerKey;
-			this.authorized = false;
-			this.callback = null;
+			this(consumerKey, null);
 		}
 
 		public RequestTokenData(String consumerKey, String callback) {
+			this(consumerKey, State.ISSUED, callback, null, 0);
+		}
+
+		private RequestTokenData(String consumerKey, State state,
+				String callback, String verificationCode,
+				long verificationCodeExpires) {
 			this.consumerKey = consumerKey;
-			this.authorized = false;
+			this.state = state;
 			this.callback = callback;
+			this.verificationCode = verificationCode;
+			this.verificationCodeExpires = verificationCodeExpires;
 		}
-		
+
 		public String getConsumerKey() {
 			return consumerKey;
 		}
-		
-		public void setConsumerKey(String consumerKey) {
-			this.consumerKey = consumerKey;
+
+		public State getState() {
+			return state;
 		}
-		
+
 		public boolean isAuthorized() {
-			return authorized;
-		}
-		
-		public void setAuthorized(boolean authorized) {
-			this.authorized = authorized;
+			return state == State.AUTHORIZED || state == State.VERIFIED;
 		}
-		
+
 		public String getCallback() {
 			return callback;
 		}
-		
-		public void setCallback(String callback) {
-			this.callback = callback;
-		}
-		
+
 		public String getVerificationCode() {
 			return verificationCode;
 		}
-		
-		public void setVerificationCode(String verificationCode) {
-			this.verificationCode = verificationCode;
+
+		/**
+		 * Gets when the verification code expires.
+		 * 
+		 * @return the time in milliseconds, or 0 if it never expires
+		 */
+		public long getVerificationCodeExpires() {
+			return verificationCodeExpires;
+		}
+
+		/**
+		 * Creates a copy in a new state.
+		 * 
+		 * @param state
+		 *            the new state
+		 * @return the copy
+		 */
+		public RequestTokenData withState(State state) {
+			return new RequestTokenData(consumerKey, state, callback,
+					verificationCode, verificationCodeExpires);
+		}
+
+		/**
+		 * Creates a copy with a new verification code.
+		 * 
+		 * @param verificationCode
+		 *            the verification code
+		 * @param expires
+		 *            when the code expires in milliseconds, or 0 if it never
+		 *            expires
+		 * @return the copy
+		 */
+		public RequestTokenData withVerificationCode(String verificationCode,
+				long expires) {
+			return new RequestTokenData(consumerKey, state, callback,
+					verificationCode, expires);
 		}
 	}
 	
 	// key is request token string, value is RequestTokenData
-	private Map<String, RequestTokenData> requestTokens;
+	private final StripedLRUCache<String, RequestTokenData> requestTokens;
 
 	// key is access token, value is consumer key
-	private Map<String, String> accessTokens;
+	private final StripedLRUCache<String, String> accessTokens;
+
+	/*
+	 * Token secrets are kept separately for request and access tokens so that
+	 * a burst of request tokens can't push out the secrets for access tokens
+	 * still in use.
+	 */
 
-	// key is token, value is token secret
-	private Map<String, String> tokenSecrets;
+	// key is request token, value is token secret
+	private final StripedLRUCache<String, String> requestTokenSecrets;
+
+	// key is access token, value is token secret
+	private final StripedLRUCache<String, String> accessTokenSecrets;
+
+	// tokens recently rejected by getTokenSecret()
+	private final NegativeCache rejectedTokens;
+
+	/*
+	 * key is consumer key, value is the consumer's request and access tokens.
+	 * Tokens that expire or are evicted stay in the index until it's pruned.
+	 * A token issued while its consumer's tokens are being revoked might be
+	 * missed by the revocation.
+	 */
+	private final ConcurrentMap<String, Set<String>> consumerTokens = new ConcurrentHashMap<String, Set<String>>();
+
+	private volatile long requestTokenTimeToLive = DEFAULT_REQUEST_TOKEN_TIME_TO_LIVE;
+	private volatile long verificationCodeTimeToLive = DEFAULT_VERIFICATION_CODE_TIME_TO_LIVE;
+	private volatile long accessTokenTimeToLive = 0;
+	private volatile TokenGenerator tokenGenerator = new RandomTokenGenerator();
 
 	/**
 	 * Constructs a SimpleTokenStrategy using the defaults for cache limits on request and access tokens.
@@ -127,10 +251,116 @@ public class SimpleTokenStrategy implements TokenStrategy {
 	 *            the maximum number of access tokens to track
 	 */
 	public SimpleTokenStrategy(int requestTokenMaxCount, int accessTokenMaxCount) {
-		requestTokens = new LRUCache<String, RequestTokenData>(requestTokenMaxCount);
-		accessTokens = new LRUCache<String, String>(accessTokenMaxCount);
-		tokenSecrets = new LRUCache<String, String>(requestTokenMaxCount
-				+ accessTokenMaxCount);
+		this(requestTokenMaxCount, accessTokenMaxCount, 1);
+	}
+
+	/**
+	 * Constructs a SimpleTokenStrategy with cache limits and the number of
+	 * independently locked segments in each cache. A single segment means
+	 * all requests share one lock per cache.
+	 * 
+	 * @param requestTokenMaxCount
+	 *            the maximum number of request tokens to track
+	 * @param accessTokenMaxCount
+	 *            the maximum number of access tokens to track
+	 * @param concurrencyLevel
+	 *            the estimated number of threads using the caches at once
+	 * @see StripedLRUCache
+	 */
+	protected SimpleTokenStrategy(int requestTokenMaxCount,
+			int accessTokenMaxCount, int concurrencyLevel) {
+		requestTokens = new StripedLRUCache<String, RequestTokenData>(
+				requestTokenMaxCount, concurrencyLevel);
+		accessTokens = new StripedLRUCache<String, String>(
+				accessTokenMaxCount, concurrencyLevel);
+		requestTokenSecrets = new StripedLRUCache<String, String>(
+				requestTokenMaxCount, concurrencyLevel);
+		accessTokenSecrets = new StripedLRUCache<String, String>(
+				accessTokenMaxCount, concurrencyLevel);
+		rejectedTokens = new NegativeCache(accessTokenMaxCount,
+				REJECTED_TOKEN_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Gets how long request tokens are valid after they are issued.
+	 * 
+	 * @return the time to live in milliseconds, or 0 if they never expire
+	 */
+	public long getRequestTokenTimeToLive() {
+		return requestTokenTimeToLive;
+	}
+
+	/**
+	 * Sets how long request tokens are valid after they are issued. Only
+	 * affects tokens issued after this call.
+	 * 
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setRequestTokenTimeToLive(long timeToLive) {
+		this.requestTokenTimeToLive = timeToLive;
+	}
+
+	/**
+	 * Gets how long verification codes are valid after they are generated.
+	 * 
+	 * @return the time to live in milliseconds, or 0 if they never expire
+	 */
+	public long getVerificationCodeTimeToLive() {
+		return verificationCodeTimeToLive;
+	}
+
+	/**
+	 * Sets how long verification codes are valid after they are generated.
+	 * A verification code is never valid longer than its request token.
+	 * 
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setVerificationCodeTimeToLive(long timeToLive) {
+		this.verificationCodeTimeToLive = timeToLive;
+	}
+
+	/**
+	 * Gets how long access tokens are valid after they are issued.
+	 * 
+	 * @return the time to live in milliseconds, or 0 if they never expire
+	 */
+	public long getAccessTokenTimeToLive() {
+		return accessTokenTimeToLive;
+	}
+
+	/**
+	 * Sets how long access tokens are valid after they are issued. Only
+	 * affects tokens issued after this call.
+	 * 
+	 * @param timeToLive
+	 *            the time to live in milliseconds, or 0 if they never expire
+	 */
+	public void setAccessTokenTimeToLive(long timeToLive) {
+		this.accessTokenTimeToLive = timeToLive;
+	}
+
+	/**
+	 * Gets the number of request and access tokens removed because their time
+	 * to live passed.
+	 * 
+	 * @return the number of expired tokens
+	 */
+	public long getExpiredTokenCount() {
+		return requestTokens.getExpiredCount()
+				+ accessTokens.getExpiredCount();
+	}
+
+	/**
+	 * Gets the number of request and access tokens removed because the cache
+	 * limits were reached.
+	 * 
+	 * @return the number of evicted tokens
+	 */
+	public long getEvictedTokenCount() {
+		return requestTokens.getEvictedCount()
+				+ accessTokens.getEvictedCount();
 	}
 
 	@Override
@@ -141,13 +371,12 @@ public class SimpleTokenStrategy implements TokenStrategy {
 		accessor.tokenSecret = generateTokenString();
 		String callback = oAuthRequest.getMessage()
 				.getParameter(OAuth.OAUTH_CALLBACK);
-		synchronized (requestTokens) {
-			requestTokens.put(accessor.requestToken, new RequestTokenData(
-					accessor.consumer.consumerKey, callback));
-		}
-		synchronized (tokenSecrets) {
-			tokenSecrets.put(accessor.requestToken, accessor.tokenSecret);
-		}
+		long timeToLive = requestTokenTimeToLive;
+		requestTokenSecrets.put(accessor.requestToken, accessor.tokenSecret,
+				timeToLive);
+		requestTokens.put(accessor.requestToken, new RequestTokenData(
+				accessor.consumer.consumerKey, callback), timeToLive);
+		indexToken(accessor.consumer.consumerKey, accessor.requestToken);
 	}
 
 	@Override
@@ -165,7 +394,23 @@ public class SimpleTokenStrategy implements TokenStrategy {
 	@Override
 	public void markRequestTokenAuthorized(HttpServletRequest httpRequest,
 			String requestToken) throws OAuthProblemException {
-		getRequestTokenData(requestToken).setAuthorized(true);
+		while (true) {
+			RequestTokenData tokenData = getRequestTokenData(requestToken);
+			switch (tokenData.getState()) {
+			case ISSUED:
+				break;
+			case EXCHANGED:
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_USED);
+			default:
+				// Already authorized.
+				return;
+			}
+
+			if (compareAndSet(requestToken, tokenData,
+					tokenData.withState(RequestTokenData.State.AUTHORIZED))) {
+				return;
+			}
+		}
 	}
 
 	@Override
@@ -178,9 +423,23 @@ public class SimpleTokenStrategy implements TokenStrategy {
 	public String generateVerificationCode(HttpServletRequest httpRequest,
 			String requestToken) throws OAuthProblemException {
 		String verificationCode = generateTokenString();
-		getRequestTokenData(requestToken).setVerificationCode(verificationCode);
-		
-		return verificationCode;
+		long timeToLive = verificationCodeTimeToLive;
+		long expires = (timeToLive > 0) ? System.currentTimeMillis()
+				+ timeToLive : 0;
+
+		// The code is usually generated for the callback URL before the user
+		// logs in, so any state short of exchanged is fine.
+		while (true) {
+			RequestTokenData tokenData = getRequestTokenData(requestToken);
+			if (tokenData.getState() == RequestTokenData.State.EXCHANGED) {
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_USED);
+			}
+
+			if (compareAndSet(requestToken, tokenData,
+					tokenData.withVerificationCode(verificationCode, expires))) {
+				return verificationCode;
+			}
+		}
 	}
 
 	@Override
@@ -193,43 +452,81 @@ public class SimpleTokenStrategy implements TokenStrategy {
 					OAuth.Problems.OAUTH_PARAMETERS_ABSENT);
 		}
 
-		RequestTokenData tokenData = getRequestTokenData(oAuthRequest);
-		if (!verificationCode.equals(tokenData.getVerificationCode())) {
-			throw new OAuthProblemException(
-					OAuth.Problems.OAUTH_PARAMETERS_REJECTED);
+		String requestToken = oAuthRequest.getMessage().getToken();
+		while (true) {
+			RequestTokenData tokenData = getRequestTokenData(requestToken);
+			if (!verificationCode.equals(tokenData.getVerificationCode())) {
+				throw new OAuthProblemException(
+						OAuth.Problems.OAUTH_PARAMETERS_REJECTED);
+			}
+
+			long expires = tokenData.getVerificationCodeExpires();
+			if (expires != 0 && System.currentTimeMillis() >= expires) {
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_EXPIRED);
+			}
+
+			switch (tokenData.getState()) {
+			case ISSUED:
+				throw new OAuthProblemException(
+						OAuth.Problems.ADDITIONAL_AUTHORIZATION_REQUIRED);
+			case VERIFIED:
+				return;
+			case EXCHANGED:
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_USED);
+			default:
+				break;
+			}
+
+			if (compareAndSet(requestToken, tokenData,
+					tokenData.withState(RequestTokenData.State.VERIFIED))) {
+				return;
+			}
 		}
 	}
 
 	@Override
 	public void generateAccessToken(OAuthRequest oAuthRequest) throws OAuthProblemException,
 			IOException {
-		// Remove the old request token.
 		OAuthAccessor accessor = oAuthRequest.getAccessor();
 		String requestToken = oAuthRequest.getMessage().getToken();
-		synchronized (requestTokens) {
-			if (!isRequestTokenAuthorized(oAuthRequest.getHttpRequest(),
-					requestToken)) {
+
+		// Only one caller can move the token to exchanged, so a request token
+		// can't be exchanged twice.
+		while (true) {
+			RequestTokenData tokenData = getRequestTokenData(requestToken);
+			switch (tokenData.getState()) {
+			case ISSUED:
 				throw new OAuthProblemException(
 						OAuth.Problems.ADDITIONAL_AUTHORIZATION_REQUIRED);
+			case AUTHORIZED:
+				// If there's a verification code, it must be checked first.
+				if (tokenData.getVerificationCode() != null) {
+					throw new OAuthProblemException(
+							OAuth.Problems.OAUTH_PARAMETERS_ABSENT);
+				}
+				break;
+			case EXCHANGED:
+				throw new OAuthProblemException(OAuth.Problems.TOKEN_USED);
+			default:
+				break;
 			}
 
-			requestTokens.remove(requestToken);
+			if (compareAndSet(requestToken, tokenData,
+					tokenData.withState(RequestTokenData.State.EXCHANGED))) {
+				break;
+			}
 		}
 
-		// Generate a new access token.
-		accessor.accessToken = generateTokenString();
-		synchronized (accessTokens) {
-			accessTokens.put(accessor.accessToken,
-					accessor.consumer.consumerKey);
-		}
+		// Remove the old request token and its secret.
+		String consumerKey = accessor.consumer.consumerKey;
+		requestTokens.remove(requestToken);
+		requestTokenSecrets.remove(requestToken);
+		unindexToken(consumerKey, requestToken);
 
-		// Remove the old token secret and create a new one for this access
-		// token.
+		// Generate a new access token and token secret.
 		accessor.tokenSecret = generateTokenString();
-		synchronized (tokenSecrets) {
-			tokenSecrets.remove(requestToken);
-			tokenSecrets.put(accessor.accessToken, accessor.tokenSecret);
-		}
+		accessor.accessToken = issueAccessToken(consumerKey,
+				accessor.tokenSecret);
 
 		accessor.requestToken = null;
 	}
@@ -237,37 +534,246 @@ public class SimpleTokenStrategy implements TokenStrategy {
 	@Override
 	public void validateAccessToken(OAuthRequest oAuthRequest)
 			throws OAuthException, IOException {
-		synchronized (accessTokens) {
-			String actualValue = accessTokens.get(oAuthRequest.getMessage()
-					.getToken());
-			if (!oAuthRequest.getConsumer().consumerKey.equals(actualValue)) {
-				throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
-			}
+		String actualValue = getAccessTokenConsumerKey(oAuthRequest
+				.getMessage().getToken());
+		if (!oAuthRequest.getConsumer().consumerKey.equals(actualValue)) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
 		}
 	}
 
 	@Override
 	public String getTokenSecret(HttpServletRequest httpRequest, String token)
 			throws OAuthProblemException {
-		synchronized (tokenSecrets) {
-			String tokenSecret = tokenSecrets.get(token);
-			if (tokenSecret == null) {
-				// It's possible the token secret was purged from the LRU cache,
-				// or the token is just not recognized. Either way, we can
-				// consider the token rejected.
-				throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
-			}
-			return tokenSecret;
+		// Turn away tokens rejected recently without looking them up again.
+		if (rejectedTokens.contains(token)) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
 		}
+
+		String tokenSecret = getAccessTokenSecret(token);
+		if (tokenSecret == null) {
+			tokenSecret = requestTokenSecrets.get(token);
+		}
+		if (tokenSecret == null) {
+			// It's possible the token secret was purged from the LRU cache,
+			// or the token is just not recognized. Either way, we can
+			// consider the token rejected.
+			rejectedTokens.add(token);
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+		return tokenSecret;
 	}
 	
+	@Override
+	public boolean revokeToken(String token) throws OAuthProblemException {
+		if (token == null) {
+			return false;
+		}
+
+		RequestTokenData tokenData = requestTokens.remove(token);
+		if (tokenData != null) {
+			requestTokenSecrets.remove(token);
+			unindexToken(tokenData.getConsumerKey(), token);
+			return true;
+		}
+
+		String consumerKey = getAccessTokenConsumerKey(token);
+		if (consumerKey == null) {
+			return false;
+		}
+
+		unindexToken(consumerKey, token);
+		return removeAccessToken(token);
+	}
+
+	@Override
+	public void revokeConsumerTokens(String consumerKey)
+			throws OAuthProblemException {
+		Set<String> tokens = consumerTokens.remove(consumerKey);
+		if (tokens == null) {
+			return;
+		}
+
+		for (String token : tokens) {
+			if (requestTokens.remove(token) != null) {
+				requestTokenSecrets.remove(token);
+			} else {
+				removeAccessToken(token);
+			}
+		}
+	}
+
+	@Override
+	public void revokeAllTokens() throws OAuthProblemException {
+		for (String consumerKey : consumerTokens.keySet()) {
+			revokeConsumerTokens(consumerKey);
+		}
+	}
+
 	/**
-	 * Creates a unique, random string to use for tokens.
+	 * Gets the tokens recently rejected by
+	 * {@link #getTokenSecret(HttpServletRequest, String)}.
+	 * 
+	 * @return the rejected tokens
+	 */
+	protected NegativeCache getRejectedTokens() {
+		return rejectedTokens;
+	}
+
+	/**
+	 * Creates a new access token for a consumer and token secret. By default,
+	 * generates a random token and stores it using
+	 * {@link #putAccessToken(String, String, String)}.
+	 * 
+	 * @param consumerKey
+	 *            the key of the consumer the token is issued to
+	 * @param tokenSecret
+	 *            the new token secret
+	 * @return the access token
+	 * @throws IOException
+	 *             on errors storing the token
+	 */
+	protected String issueAccessToken(String consumerKey, String tokenSecret)
+			throws IOException {
+		String accessToken = generateTokenString();
+		putAccessToken(accessToken, consumerKey, tokenSecret);
+		indexToken(consumerKey, accessToken);
+		return accessToken;
+	}
+
+	/**
+	 * Stores a new access token. Subclasses can override this together with
+	 * {@link #getAccessTokenConsumerKey(String)} and
+	 * {@link #getAccessTokenSecret(String)} to keep access tokens somewhere
+	 * other than memory.
+	 * 
+	 * @param accessToken
+	 *            the access token
+	 * @param consumerKey
+	 *            the key of the consumer the token was issued to
+	 * @param tokenSecret
+	 *            the token secret
+	 * @throws IOException
+	 *             on errors storing the token
+	 */
+	protected void putAccessToken(String accessToken, String consumerKey,
+			String tokenSecret) throws IOException {
+		long timeToLive = accessTokenTimeToLive;
+		accessTokenSecrets.put(accessToken, tokenSecret, timeToLive);
+		accessTokens.put(accessToken, consumerKey, timeToLive);
+	}
+
+	/**
+	 * Removes an access token. Subclasses that override
+	 * {@link #putAccessToken(String, String, String)} should override this
+	 * too.
+	 * 
+	 * @param accessToken
+	 *            the access token
+	 * @return true if the token was removed, false if it wasn't valid
+	 * @throws OAuthProblemException
+	 *             on errors removing the token
+	 */
+	protected boolean removeAccessToken(String accessToken)
+			throws OAuthProblemException {
+		accessTokenSecrets.remove(accessToken);
+		return accessTokens.remove(accessToken) != null;
+	}
+
+	/**
+	 * Adds a token to the index used to revoke a consumer's tokens. Called
+	 * for each request token and access token issued.
+	 * 
+	 * @param consumerKey
+	 *            the consumer the token was issued to
+	 * @param token
+	 *            the token
+	 */
+	protected void indexToken(String consumerKey, String token) {
+		Set<String> tokens = consumerTokens.get(consumerKey);
+		if (tokens == null) {
+			Set<String> newTokens = Collections
+					.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			tokens = consumerTokens.putIfAbsent(consumerKey, newTokens);
+			if (tokens == null) {
+				tokens = newTokens;
+			}
+		}
+		tokens.add(token);
+
+		// Drop tokens that expired or were evicted each time the set doubles
+		// so the index doesn't grow without bound.
+		int size = tokens.size();
+		if (size >= 64 && Integer.bitCount(size) == 1) {
+			for (String t : tokens) {
+				if (requestTokens.get(t) == null
+						&& getAccessTokenConsumerKey(t) == null) {
+					tokens.remove(t);
+				}
+			}
+		}
+	}
+
+	private void unindexToken(String consumerKey, String token) {
+		Set<String> tokens = consumerTokens.get(consumerKey);
+		if (tokens != null) {
+			tokens.remove(token);
+		}
+	}
+
+	/**
+	 * Gets the consumer key for an access token.
+	 * 
+	 * @param accessToken
+	 *            the access token
+	 * @return the consumer key or null if the token isn't valid
+	 */
+	protected String getAccessTokenConsumerKey(String accessToken) {
+		return accessTokens.get(accessToken);
+	}
+
+	/**
+	 * Gets the token secret for an access token.
+	 * 
+	 * @param accessToken
+	 *            the access token
+	 * @return the token secret or null if the token isn't valid
+	 */
+	protected String getAccessTokenSecret(String accessToken) {
+		return accessTokenSecrets.get(accessToken);
+	}
+
+	/**
+	 * Gets the generator for tokens, token secrets, and verification codes.
+	 * 
+	 * @return the token generator
+	 */
+	public TokenGenerator getTokenGenerator() {
+		return tokenGenerator;
+	}
+
+	/**
+	 * Sets the generator for tokens, token secrets, and verification codes.
+	 * The default is a {@link RandomTokenGenerator}.
+	 * 
+	 * @param tokenGenerator
+	 *            the token generator
+	 */
+	public void setTokenGenerator(TokenGenerator tokenGenerator) {
+		if (tokenGenerator == null) {
+			throw new IllegalArgumentException(
+					"tokenGenerator cannot be null");
+		}
+		this.tokenGenerator = tokenGenerator;
+	}
+
+	/**
+	 * Creates a unique, random string to use for tokens. Uses the
+	 * {@link #getTokenGenerator() token generator}.
 	 * 
 	 * @return the random string
 	 */
 	protected String generateTokenString() {
-		return UUID.randomUUID().toString();
+		return tokenGenerator.generateToken();
 	}
 
 	/**
@@ -297,12 +803,32 @@ public class SimpleTokenStrategy implements TokenStrategy {
 	 */
 	protected RequestTokenData getRequestTokenData(String requestToken)
 			throws OAuthProblemException {
-		synchronized (requestTokens) {
-			RequestTokenData tokenData = requestTokens.get(requestToken);
-			if (tokenData == null) {
-				throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
-			}
-			return tokenData;
+		if (requestToken == null) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
 		}
+
+		RequestTokenData tokenData = requestTokens.get(requestToken);
+		if (tokenData == null) {
+			throw new OAuthProblemException(OAuth.Problems.TOKEN_REJECTED);
+		}
+		return tokenData;
+	}
+
+	/**
+	 * Moves a request token to new data if it still has the data read
+	 * earlier.
+	 * 
+	 * @param requestToken
+	 *            the request token string
+	 * @param expected
+	 *            the data read earlier
+	 * @param tokenData
+	 *            the new data
+	 * @return true if the data was replaced, false if another request changed
+	 *         it first or the token was removed
+	 */
+	protected boolean compareAndSet(String requestToken,
+			RequestTokenData expected, RequestTokenData tokenData) {
+		return requestTokens.replace(requestToken, expected, tokenData);
 	}
 }
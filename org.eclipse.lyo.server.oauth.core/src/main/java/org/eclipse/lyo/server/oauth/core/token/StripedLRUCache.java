@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe least recently used cache split into independently locked
+ * segments. Each key hashes to one segment, and only that segment is locked
+ * while the key is read or written, so threads working with different tokens
+ * rarely wait on each other. Eviction is per segment, which makes it an
+ * approximation of a global LRU policy.
+ *
+ * <p>
+ * Entries can be given a time to live when they are added. Expired entries
+ * are never returned, and they are purged in the background by
+ * {@link CacheReaper}.
+ */
+public class StripedLRUCache<K, V> {
+	private final Segment[] segments;
+	private final int segmentMask;
+
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	// The CacheReaper run this cache is scheduled with, or -1 if none.
+	private final AtomicInteger reaperRun = new AtomicInteger(-1);
+
+	private static class CacheEntry<V> {
+		final V value;
+
+		// Expiration time in milliseconds or 0 if the entry never expires.
+		final long expires;
+
+		CacheEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now) {
+			return expires != 0 && now >= expires;
+		}
+	}
+
+	private class Segment extends LRUCache<K, CacheEntry<V>> {
+		private static final long serialVersionUID = 6211906420317367722L;
+
+		Segment(int max) {
+			super(max, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+			if (!super.removeEldestEntry(eldest)) {
+				return false;
+			}
+
+			if (eldest.getValue().isExpired(System.currentTimeMillis())) {
+				expiredCount.incrementAndGet();
+			} else {
+				evictedCount.incrementAndGet();
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Creates a cache with a segment count based on the number of available
+	 * processors.
+	 *
+	 * @param max
+	 *            the maximum number of entries across all segments
+	 */
+	public StripedLRUCache(int max) {
+		this(max, defaultConcurrencyLevel());
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param max
+	 *            the maximum number of entries across all segments
+	 * @param concurrencyLevel
+	 *            the estimated number of threads using the cache at once,
+	 *            rounded up to a power of two to get the segment count. There
+	 *            are never more segments than <code>max</code>.
+	 */
+	public StripedLRUCache(int max, int concurrencyLevel) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+
+		// Stop before a segment would have no room, or entries that hash to it
+		// would be evicted as soon as they're added.
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && (segmentCount << 1) <= max) {
+			segmentCount <<= 1;
+		}
+
+		this.segmentMask = segmentCount - 1;
+		this.segments = newSegmentArray(segmentCount);
+		int perSegment = max / segmentCount;
+		int remainder = max % segmentCount;
+		for (int i = 0; i < segmentCount; i++) {
+			int segmentMax = (i < remainder) ? perSegment + 1 : perSegment;
+			segments[i] = new Segment(segmentMax);
+		}
+	}
+
+	public V get(K key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(key);
+			if (entry == null) {
+				return null;
+			}
+
+			if (entry.isExpired(System.currentTimeMillis())) {
+				segment.remove(key);
+				expiredCount.incrementAndGet();
+				return null;
+			}
+
+			return entry.value;
+		}
+	}
+
+	/**
+	 * Adds an entry that never expires. It can still be evicted when the
+	 * cache is full.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @return the previous value or null if there was none
+	 */
+	public V put(K key, V value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * Adds an entry that expires after some time.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param timeToLive
+	 *            the time in milliseconds before the entry expires, or 0 if
+	 *            the entry should never expire
+	 * @return the previous value or null if there was none
+	 */
+	public V put(K key, V value, long timeToLive) {
+		long now = System.currentTimeMillis();
+		long expires = 0;
+		if (timeToLive > 0) {
+			expires = now + timeToLive;
+			scheduleReaper();
+		}
+
+		Segment segment = segmentFor(key);
+		CacheEntry<V> previous;
+		synchronized (segment) {
+			previous = segment.put(key, new CacheEntry<V>(value, expires));
+		}
+
+		return (previous == null || previous.isExpired(now)) ? null
+				: previous.value;
+	}
+
+	/**
+	 * Adds an entry only if there is no live entry for the key.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param timeToLive
+	 *            the time in milliseconds before the entry expires, or 0 if
+	 *            the entry should never expire
+	 * @return the current value, or null if there was none and the entry was
+	 *         added
+	 */
+	public V putIfAbsent(K key, V value, long timeToLive) {
+		long now = System.currentTimeMillis();
+		long expires = 0;
+		if (timeToLive > 0) {
+			expires = now + timeToLive;
+			scheduleReaper();
+		}
+
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(key);
+			if (entry != null && !entry.isExpired(now)) {
+				return entry.value;
+			}
+
+			segment.put(key, new CacheEntry<V>(value, expires));
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces an entry only if it currently maps to <code>expected</code>.
+	 * Values are compared by identity, so callers can read a value, build its
+	 * replacement, and retry if another thread got there first. The entry
+	 * keeps its original expiration time.
+	 *
+	 * @param key
+	 *            the key
+	 * @param expected
+	 *            the value read earlier
+	 * @param value
+	 *            the new value
+	 * @return true if the value was replaced, false if the entry changed,
+	 *         expired, or was removed
+	 */
+	public boolean replace(K key, V expected, V value) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(key);
+			if (entry == null || entry.value != expected
+					|| entry.isExpired(System.currentTimeMillis())) {
+				return false;
+			}
+
+			segment.put(key, new CacheEntry<V>(value, entry.expires));
+			return true;
+		}
+	}
+
+	public V remove(K key) {
+		Segment segment = segmentFor(key);
+		CacheEntry<V> previous;
+		synchronized (segment) {
+			previous = segment.remove(key);
+		}
+
+		return (previous == null || previous
+				.isExpired(System.currentTimeMillis())) ? null : previous.value;
+	}
+
+	/**
+	 * Gets the number of entries, including expired entries that have not
+	 * been purged yet. Segments are counted one at a time, so the result is
+	 * only an estimate while other threads are writing.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Removes all expired entries. Segments are purged one at a time so that
+	 * only a small part of the cache is locked at once.
+	 *
+	 * @return the number of entries removed
+	 */
+	public int purgeExpired() {
+		int purged = 0;
+		for (Segment segment : segments) {
+			long now = System.currentTimeMillis();
+			synchronized (segment) {
+				Iterator<CacheEntry<V>> i = segment.values().iterator();
+				while (i.hasNext()) {
+					if (i.next().isExpired(now)) {
+						i.remove();
+						purged++;
+					}
+				}
+			}
+		}
+
+		expiredCount.addAndGet(purged);
+		return purged;
+	}
+
+	/**
+	 * Gets the number of entries removed because their time to live passed.
+	 *
+	 * @return the expired entry count
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * Gets the number of entries removed because the cache was full.
+	 *
+	 * @return the evicted entry count
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	private void scheduleReaper() {
+		// Schedule again if the reaper was shut down and restarted since.
+		int run = CacheReaper.getRun();
+		int scheduled = reaperRun.get();
+		if (scheduled != run && reaperRun.compareAndSet(scheduled, run)) {
+			CacheReaper.schedule(this);
+		}
+	}
+
+	private Segment segmentFor(Object key) {
+		// Spread the hash bits so keys with similar low bits don't collide.
+		int h = (key == null) ? 0 : key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	@SuppressWarnings("unchecked")
+	private Segment[] newSegmentArray(int size) {
+		return (Segment[]) new StripedLRUCache<?, ?>.Segment[size];
+	}
+
+	private static int defaultConcurrencyLevel() {
+		return Runtime.getRuntime().availableProcessors() * 4;
+	}
+}
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+/**
+ * Creates the random strings used for tokens, token secrets, and
+ * verification codes. Implementations must be thread safe.
+ *
+ * @see RandomTokenGenerator
+ * @see SimpleTokenStrategy#setTokenGenerator(TokenGenerator)
+ */
+public interface TokenGenerator {
+	/**
+	 * Creates a new, unguessable token. The token must be safe to use in a
+	 * URL or an OAuth parameter without encoding.
+	 *
+	 * @return the token
+	 */
+	public String generateToken();
+}
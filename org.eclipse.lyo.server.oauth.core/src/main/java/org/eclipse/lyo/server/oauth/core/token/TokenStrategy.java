@@ -192,4 +192,37 @@ public interface TokenStrategy {
 	 */
 	public String getTokenSecret(HttpServletRequest httpRequest, String token)
 			throws OAuthException;
+
+	/**
+	 * Revokes a request token or access token. Requests signed with the token
+	 * are rejected afterwards.
+	 * 
+	 * @param token
+	 *            the token string, either a request token or access token
+	 * @return true if the token was revoked, false if it wasn't valid or
+	 *         can't be revoked by this strategy
+	 * @throws OAuthException
+	 *             on errors removing the token
+	 */
+	public boolean revokeToken(String token) throws OAuthException;
+
+	/**
+	 * Revokes every request token and access token issued to a consumer. Call
+	 * this when a consumer is removed or its secret is compromised.
+	 * 
+	 * @param consumerKey
+	 *            the consumer key
+	 * @throws OAuthException
+	 *             on errors removing the tokens
+	 */
+	public void revokeConsumerTokens(String consumerKey) throws OAuthException;
+
+	/**
+	 * Revokes every request token and access token. Every consumer must go
+	 * through the OAuth dance again.
+	 * 
+	 * @throws OAuthException
+	 *             on errors removing the tokens
+	 */
+	public void revokeAllTokens() throws OAuthException;
 }
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import net.oauth.signature.OAuthSignatureMethod;
+
+/**
+ * Encodes bytes as unpadded, URL-safe Base64 (RFC 4648 section 5) so tokens
+ * don't need to be percent-encoded in OAuth parameters.
+ */
+class UrlSafeBase64 {
+	private UrlSafeBase64() {}
+
+	private static final char[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			+ "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+
+	/**
+	 * Encodes bytes without padding. Tokens are encoded on every issue, so
+	 * this writes the characters directly instead of going through Base64
+	 * and replacing characters.
+	 *
+	 * @param bytes
+	 *            the bytes
+	 * @return the encoded string
+	 */
+	static String encode(byte[] bytes) {
+		char[] chars = new char[(bytes.length * 4 + 2) / 3];
+		int c = 0;
+		int i = 0;
+		for (; i + 2 < bytes.length; i += 3) {
+			int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+					| (bytes[i + 2] & 0xff);
+			chars[c++] = ALPHABET[n >>> 18];
+			chars[c++] = ALPHABET[(n >>> 12) & 0x3f];
+			chars[c++] = ALPHABET[(n >>> 6) & 0x3f];
+			chars[c++] = ALPHABET[n & 0x3f];
+		}
+
+		int remaining = bytes.length - i;
+		if (remaining > 0) {
+			int n = (bytes[i] & 0xff) << 16;
+			if (remaining == 2) {
+				n |= (bytes[i + 1] & 0xff) << 8;
+			}
+			chars[c++] = ALPHABET[n >>> 18];
+			chars[c++] = ALPHABET[(n >>> 12) & 0x3f];
+			if (remaining == 2) {
+				chars[c++] = ALPHABET[(n >>> 6) & 0x3f];
+			}
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * Decodes a URL-safe Base64 string.
+	 *
+	 * @param s
+	 *            the encoded string
+	 * @return the bytes or null if the string isn't URL-safe Base64
+	 */
+	static byte[] decode(String s) {
+		int padding = (4 - s.length() % 4) % 4;
+		if (padding == 3) {
+			return null;
+		}
+
+		char[] chars = new char[s.length() + padding];
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '-') {
+				c = '+';
+			} else if (c == '_') {
+				c = '/';
+			} else if (!isAlphanumeric(c)) {
+				return null;
+			}
+			chars[i] = c;
+		}
+		for (int i = s.length(); i < chars.length; i++) {
+			chars[i] = '=';
+		}
+
+		return OAuthSignatureMethod.decodeBase64(new String(chars));
+	}
+
+	private static boolean isAlphanumeric(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+				|| (c >= '0' && c <= '9');
+	}
+}
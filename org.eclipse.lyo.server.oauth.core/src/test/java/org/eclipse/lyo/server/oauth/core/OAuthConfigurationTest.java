@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.consumer.WriteBehindConsumerStore;
+
+/**
+ * Tests for the per-tenant configurations in {@link OAuthConfiguration}.
+ */
+public class OAuthConfigurationTest extends TestCase {
+	private static class MemoryStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		OAuthConfiguration.removeInstance("/a");
+		OAuthConfiguration.removeInstance("/b");
+	}
+
+	public void testTenantsAreSeparate() {
+		OAuthConfiguration a = OAuthConfiguration.getInstance("/a");
+		OAuthConfiguration b = OAuthConfiguration.getInstance("/b");
+		assertNotSame(a, b);
+		assertNotSame(OAuthConfiguration.getInstance(), a);
+		assertSame(a, OAuthConfiguration.getInstance("/a"));
+
+		assertNotSame(a.getTokenStrategy(), b.getTokenStrategy());
+		assertNotSame(a.getRejectedConsumers(), b.getRejectedConsumers());
+		a.getRejectedConsumers().add("key");
+		assertFalse(b.getRejectedConsumers().contains("key"));
+	}
+
+	public void testRequestsFindTheirTenant() {
+		OAuthConfiguration a = OAuthConfiguration.getInstance("/a");
+		assertSame(a, OAuthConfiguration.getInstance(newRequest("/a")));
+		assertSame(OAuthConfiguration.getInstance(),
+				OAuthConfiguration.getInstance(newRequest("/c")));
+
+		assertSame(a, OAuthConfiguration.removeInstance("/a"));
+		assertSame(OAuthConfiguration.getInstance(),
+				OAuthConfiguration.getInstance(newRequest("/a")));
+	}
+
+	public void testSavedConsumersAreNotRejected() throws Exception {
+		OAuthConfiguration a = OAuthConfiguration.getInstance("/a");
+		MemoryStore store = new MemoryStore();
+		a.setConsumerStore(store);
+
+		a.getRejectedConsumers().add("key");
+		store.addConsumer(new LyoOAuthConsumer("key", "secret"));
+		assertFalse(a.getRejectedConsumers().contains("key"));
+
+		// Approving a consumer is an update.
+		a.getRejectedConsumers().add("key");
+		store.updateConsumer(new LyoOAuthConsumer("key", "secret"));
+		assertFalse(a.getRejectedConsumers().contains("key"));
+
+		// Changes are seen through a write-behind store as soon as they're
+		// recorded.
+		WriteBehindConsumerStore writeBehind = new WriteBehindConsumerStore(
+				new MemoryStore());
+		a.setConsumerStore(writeBehind);
+		a.getRejectedConsumers().add("other");
+		writeBehind.addConsumer(new LyoOAuthConsumer("other", "secret"));
+		assertFalse(a.getRejectedConsumers().contains("other"));
+		writeBehind.close();
+
+		// The old store is no longer watched.
+		a.getRejectedConsumers().add("key");
+		store.addConsumer(new LyoOAuthConsumer("key", "secret"));
+		assertTrue(a.getRejectedConsumers().contains("key"));
+	}
+
+	private static HttpServletRequest newRequest(final String contextPath) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("getContextPath".equals(m.getName())) {
+							return contextPath;
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpMessage;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.metrics.LatencyTimer;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
+import org.eclipse.lyo.server.oauth.core.token.SimpleTokenStrategy;
+
+/**
+ * Tests for {@link RequestThrottle}, {@link NegativeCache}, and how
+ * {@link OAuthRequest} reads the OAuth message.
+ */
+public class RequestThrottleTest extends TestCase {
+	private static final String CONTEXT_PATH = "/throttle";
+	private static final String URL = "http://localhost/throttle";
+
+	private static class MemoryStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	private boolean tokenValid;
+
+	@Override
+	protected void setUp() throws Exception {
+		MemoryStore store = new MemoryStore();
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer("consumer", "secret");
+		consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
+		store.addConsumer(consumer);
+
+		OAuthConfiguration config = OAuthConfiguration
+				.getInstance(CONTEXT_PATH);
+		config.setConsumerStore(store);
+		config.setThrottle(new RequestThrottle(1, 0.001, 100));
+
+		// Skip the token lookup. Whether it passes is up to the test.
+		tokenValid = true;
+		config.setTokenStrategy(new SimpleTokenStrategy() {
+			@Override
+			public void validateAccessToken(OAuthRequest oAuthRequest)
+					throws OAuthException, IOException {
+				if (!tokenValid) {
+					throw new OAuthProblemException(
+							OAuth.Problems.TOKEN_REJECTED);
+				}
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() {
+		OAuthConfiguration.removeInstance(CONTEXT_PATH);
+	}
+
+	public void testThrottleIsOffByDefault() {
+		assertNull(OAuthConfiguration.getInstance("/unthrottled").getThrottle());
+		OAuthConfiguration.removeInstance("/unthrottled");
+	}
+
+	public void testValidRequestsAreNeverThrottled() throws Exception {
+		assertProblem(OAuth.Problems.CONSUMER_KEY_REJECTED,
+				newRequest("nobody", "secret", "10.0.0.1"));
+		assertProblem(RequestThrottle.TOO_MANY_REQUESTS,
+				newRequest("nobody", "secret", "10.0.0.1"));
+
+		// The address is throttled, but good requests still get through.
+		validate(newRequest("consumer", "secret", "10.0.0.1"));
+		assertProblem(RequestThrottle.TOO_MANY_REQUESTS,
+				newRequest("consumer", "wrong", "10.0.0.1"));
+	}
+
+	public void testUnverifiedRequestsDontCountAgainstConsumer()
+			throws Exception {
+		// Anyone can send requests with the consumer's key.
+		assertProblem(OAuth.Problems.SIGNATURE_INVALID,
+				newRequest("consumer", "wrong", "10.0.0.1"));
+		assertProblem(OAuth.Problems.SIGNATURE_INVALID,
+				newRequest("consumer", "wrong", "10.0.0.2"));
+		validate(newRequest("consumer", "secret", "10.0.0.3"));
+
+		// Once the signature checks out, rejections count against the key.
+		tokenValid = false;
+		assertProblem(OAuth.Problems.TOKEN_REJECTED,
+				newRequest("consumer", "secret", "10.0.0.4"));
+		assertProblem(RequestThrottle.TOO_MANY_REQUESTS,
+				newRequest("consumer", "secret", "10.0.0.5"));
+	}
+
+	public void testThrottledAfterBurst() throws OAuthProblemException {
+		RequestThrottle throttle = new RequestThrottle(2, 0.5, 100);
+		throttle.check("consumer", "10.0.0.1");
+		throttle.recordRejection("consumer", "10.0.0.1");
+		throttle.check("consumer", "10.0.0.1");
+		throttle.recordRejection("consumer", "10.0.0.1");
+
+		try {
+			throttle.check("consumer", "10.0.0.2");
+			fail("Consumer was not throttled.");
+		} catch (OAuthProblemException e) {
+			assertEquals(RequestThrottle.TOO_MANY_REQUESTS, e.getProblem());
+			assertEquals(RequestThrottle.SC_TOO_MANY_REQUESTS, e
+					.getParameters().get(HttpMessage.STATUS_CODE));
+			assertEquals("2", RequestThrottle.getRetryAfter(e));
+		}
+
+		try {
+			throttle.check("other", "10.0.0.1");
+			fail("Address was not throttled.");
+		} catch (OAuthProblemException e) {
+			assertEquals(RequestThrottle.TOO_MANY_REQUESTS, e.getProblem());
+		}
+
+		// Someone else is not affected.
+		throttle.check("other", "10.0.0.2");
+	}
+
+	public void testNegativeCache() {
+		NegativeCache cache = new NegativeCache(10, 60000);
+		assertFalse(cache.contains("key"));
+		cache.add("key");
+		assertTrue(cache.contains("key"));
+		assertEquals(1, cache.getHitCount());
+		cache.remove("key");
+		assertFalse(cache.contains("key"));
+		assertFalse(cache.contains(null));
+	}
+
+	public void testOnlyFirstParseIsTimed() throws Exception {
+		LatencyTimer parse = OAuthMetrics.getInstance().getTimer(
+				OAuthMetrics.PHASE_PARSE);
+		HttpServletRequest request = newRequest("consumer", "secret",
+				"10.0.0.5");
+		long count = parse.getCount();
+
+		OAuthMessage message = OAuthRequest.getOAuthMessage(request);
+		assertSame(message, OAuthRequest.getOAuthMessage(request));
+		validate(request);
+		assertEquals(count + 1, parse.getCount());
+	}
+
+	private void validate(HttpServletRequest request) throws Exception {
+		new OAuthRequest(request).validate();
+	}
+
+	private void assertProblem(String problem, HttpServletRequest request)
+			throws Exception {
+		try {
+			validate(request);
+			fail("Request was not rejected.");
+		} catch (OAuthProblemException e) {
+			assertEquals(problem, e.getProblem());
+		}
+	}
+
+	/*
+	 * Creates a request signed with the given secret, which doesn't have to
+	 * be the consumer's.
+	 */
+	private HttpServletRequest newRequest(String consumerKey, String secret,
+			final String remoteAddress) throws Exception {
+		LyoOAuthConsumer signer = new LyoOAuthConsumer(consumerKey, secret);
+		signer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
+		OAuthMessage message = new OAuthAccessor(signer).newRequestMessage(
+				"POST", URL, Collections.<Map.Entry<String, String>> emptyList());
+
+		final Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+		for (Map.Entry<String, String> parameter : message.getParameters()) {
+			parameterMap.put(parameter.getKey(),
+					new String[] { parameter.getValue() });
+		}
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+						if ("getMethod".equals(name)) {
+							return "POST";
+						} else if ("getRequestURL".equals(name)) {
+							return new StringBuffer(URL);
+						} else if ("getContextPath".equals(name)) {
+							return CONTEXT_PATH;
+						} else if ("getRemoteAddr".equals(name)) {
+							return remoteAddress;
+						} else if ("getParameterMap".equals(name)) {
+							return parameterMap;
+						} else if ("getHeaders".equals(name)
+								|| "getHeaderNames".equals(name)) {
+							return Collections.enumeration(Collections
+									.<String> emptyList());
+						} else if ("getAttribute".equals(name)) {
+							return attributes.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							attributes.put((String) args[0], args[1]);
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.audit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.AuditingConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+
+/**
+ * Tests for {@link AuditLog}, {@link RollingFileAuditSink}, and
+ * {@link AuditingConsumerStore}.
+ */
+public class AuditLogTest extends TestCase {
+	/**
+	 * Keeps a description of each event written. Can be made to block.
+	 */
+	private static class MemorySink implements AuditSink {
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		final CountDownLatch writing = new CountDownLatch(1);
+		volatile CountDownLatch release = null;
+		volatile boolean closed = false;
+
+		public void write(List<AuditEvent> batch) throws IOException {
+			for (AuditEvent event : batch) {
+				events.add(event.getType() + " " + event.getConsumerKey());
+			}
+			writing.countDown();
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static class MemoryStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	public void testEventsAreWrittenInOrder() throws InterruptedException {
+		MemorySink sink = new MemorySink();
+		AuditLog log = new AuditLog(sink, 64);
+		for (int i = 0; i < 1000; i++) {
+			log.log(AuditEvent.Type.CONSUMER_ADDED, "key" + i, null, null);
+			if (i % 50 == 0) {
+				// Give the writer a chance so the small buffer doesn't fill.
+				Thread.sleep(20);
+			}
+		}
+		log.close();
+
+		assertTrue(sink.closed);
+		assertEquals(1000 - log.getDroppedCount(), sink.events.size());
+		int last = -1;
+		for (String event : sink.events) {
+			int i = Integer.parseInt(event.substring(event.indexOf("key") + 3));
+			assertTrue(i > last);
+			last = i;
+		}
+	}
+
+	public void testDropsWhenFull() throws InterruptedException {
+		MemorySink sink = new MemorySink();
+		sink.release = new CountDownLatch(1);
+		AuditLog log = new AuditLog(sink, 4);
+
+		// Block the writer on the first event.
+		log.log(AuditEvent.Type.CONSUMER_ADDED, "first", null, null);
+		assertTrue(sink.writing.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 10; i++) {
+			log.log(AuditEvent.Type.CONSUMER_ADDED, "key" + i, null, null);
+		}
+		assertEquals(6, log.getDroppedCount());
+		assertEquals(4, log.getPendingCount());
+
+		sink.release.countDown();
+		log.close();
+		assertEquals(5, sink.events.size());
+		assertEquals("CONSUMER_ADDED key3", sink.events.get(4));
+
+		log.log(AuditEvent.Type.CONSUMER_ADDED, "late", null, null);
+		assertEquals(7, log.getDroppedCount());
+	}
+
+	public void testRollingFile() throws IOException {
+		File file = File.createTempFile("audit", ".log");
+		try {
+			RollingFileAuditSink sink = new RollingFileAuditSink(file, 200, 2);
+			AuditLog log = new AuditLog(sink);
+			for (int i = 0; i < 20; i++) {
+				log.log(AuditEvent.Type.ACCESS_TOKEN_ISSUED, "key" + i,
+						"token\t" + i, "127.0.0.1");
+			}
+			log.close();
+			assertEquals(0, log.getDroppedCount());
+
+			File backup = new File(file.getPath() + ".1");
+			assertTrue(backup.exists());
+			assertFalse(new File(file.getPath() + ".3").exists());
+
+			BufferedReader reader = new BufferedReader(new FileReader(backup));
+			try {
+				String[] fields = reader.readLine().split("\t");
+				assertEquals(5, fields.length);
+				assertEquals("ACCESS_TOKEN_ISSUED", fields[1]);
+				// Tokens are only written as fingerprints.
+				assertTrue(fields[3].matches("[0-9a-f]{16}"));
+				assertEquals("127.0.0.1", fields[4]);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			for (int i = 0; i <= 2; i++) {
+				new File(file.getPath() + ((i == 0) ? "" : "." + i)).delete();
+			}
+		}
+	}
+
+	public void testTokenFingerprint() {
+		String fingerprint = AuditEvent.fingerprint("token");
+		assertEquals(16, fingerprint.length());
+		assertEquals(fingerprint, AuditEvent.fingerprint("token"));
+		assertFalse(fingerprint.equals(AuditEvent.fingerprint("token2")));
+		assertNull(AuditEvent.fingerprint(null));
+	}
+
+	public void testConsumerApproval() throws Exception {
+		MemorySink sink = new MemorySink();
+		AuditLog log = new AuditLog(sink);
+		AuditingConsumerStore store = new AuditingConsumerStore(
+				new MemoryStore(), log);
+
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer("key", "secret");
+		consumer.setProvisional(true);
+		store.addConsumer(consumer);
+		consumer.setName("Renamed");
+		store.updateConsumer(consumer);
+		consumer.setProvisional(false);
+		store.updateConsumer(consumer);
+		consumer.setTrusted(true);
+		store.updateConsumer(consumer);
+		store.removeConsumer("key");
+		log.close();
+
+		assertEquals(
+				"[CONSUMER_ADDED key, CONSUMER_UPDATED key, CONSUMER_APPROVED key, CONSUMER_UPDATED key, CONSUMER_REMOVED key]",
+				sink.events.toString());
+	}
+}
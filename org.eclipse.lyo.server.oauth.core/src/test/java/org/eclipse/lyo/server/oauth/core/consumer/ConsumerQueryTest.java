@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ConsumerQuery} and paging in {@link AbstractConsumerStore}.
+ */
+public class ConsumerQueryTest extends TestCase {
+	private static class MemoryStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	private MemoryStore store;
+
+	@Override
+	protected void setUp() {
+		store = new MemoryStore();
+		for (int i = 0; i < 25; i++) {
+			LyoOAuthConsumer consumer = new LyoOAuthConsumer("key" + i,
+					"secret");
+			// Names repeat so the key has to break ties.
+			consumer.setName((i % 5 == 0) ? null : "app" + (i % 3));
+			consumer.setProvisional(i % 2 == 0);
+			store.addConsumer(consumer);
+		}
+	}
+
+	/*
+	 * Reads every page and checks the result is the same as filtering and
+	 * sorting everything at once.
+	 */
+	private void assertPagesMatch(ConsumerQuery query) {
+		List<LyoOAuthConsumer> paged = new ArrayList<LyoOAuthConsumer>();
+		List<LyoOAuthConsumer> page;
+		do {
+			page = store.getConsumers(query);
+			paged.addAll(page);
+			if (!page.isEmpty()) {
+				query.setCursor(query.getCursor(page.get(page.size() - 1)));
+			}
+		} while (page.size() == query.getLimit());
+
+		query.setCursor(null);
+		query.setLimit(ConsumerQuery.MAX_LIMIT);
+		assertEquals(query.select(store.getAllConsumers()), paged);
+	}
+
+	public void testPagingByName() {
+		ConsumerQuery query = new ConsumerQuery();
+		query.setLimit(4);
+		assertPagesMatch(query);
+
+		query = new ConsumerQuery();
+		query.setLimit(3);
+		query.setDescending(true);
+		assertPagesMatch(query);
+	}
+
+	public void testPagingByKeyWithFilters() {
+		ConsumerQuery query = new ConsumerQuery();
+		query.setSort(ConsumerQuery.Sort.KEY);
+		query.setProvisional(Boolean.TRUE);
+		query.setLimit(2);
+		assertPagesMatch(query);
+
+		query = new ConsumerQuery();
+		query.setNamePrefix("app1");
+		query.setLimit(2);
+		query.setDescending(true);
+		assertPagesMatch(query);
+	}
+
+	public void testChangesBetweenPages() {
+		ConsumerQuery query = new ConsumerQuery();
+		query.setSort(ConsumerQuery.Sort.KEY);
+		query.setLimit(5);
+		List<LyoOAuthConsumer> first = store.getConsumers(query);
+		LyoOAuthConsumer last = first.get(first.size() - 1);
+
+		// Removing the last consumer doesn't lose the position.
+		store.removeConsumer(last.consumerKey);
+		store.removeConsumer(first.get(0).consumerKey);
+		query.setCursor(query.getCursor(last));
+		List<LyoOAuthConsumer> second = store.getConsumers(query);
+		assertTrue(second.get(0).consumerKey.compareTo(last.consumerKey) > 0);
+	}
+
+	public void testCursor() {
+		LyoOAuthConsumer consumer = new LyoOAuthConsumer("a/b c", "secret");
+		consumer.setName("x/y");
+		ConsumerQuery query = new ConsumerQuery();
+		query.setCursor(query.getCursor(consumer));
+		assertEquals("x/y", query.getAfterName());
+		assertEquals("a/b c", query.getAfterKey());
+
+		try {
+			query.setCursor("no separator");
+			fail("Invalid cursor was accepted.");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.consumer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link WriteBehindConsumerStore}.
+ */
+public class WriteBehindConsumerStoreTest extends TestCase {
+	private static class MemoryStore extends AbstractConsumerStore implements
+			BatchConsumerStore {
+		int batches = 0;
+
+		// Batches with any of these keys fail.
+		final Set<String> failing = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public synchronized List<LyoOAuthConsumer> writeBatch(
+				Collection<LyoOAuthConsumer> added, Collection<String> removed)
+				throws ConsumerStoreException {
+			batches++;
+			for (LyoOAuthConsumer consumer : added) {
+				if (failing.contains(consumer.consumerKey)) {
+					throw new ConsumerStoreException("Failed to save "
+							+ consumer.consumerKey);
+				}
+			}
+
+			return addAndRemove(added, removed);
+		}
+	}
+
+	public void testChangesAreCoalescedAndDrainedOnClose()
+			throws ConsumerStoreException {
+		MemoryStore memory = new MemoryStore();
+		memory.addConsumer(new LyoOAuthConsumer("old", "secret"));
+		WriteBehindConsumerStore store = new WriteBehindConsumerStore(memory,
+				1000, 60000);
+
+		store.addConsumer(new LyoOAuthConsumer("a", "first"));
+		store.addConsumer(new LyoOAuthConsumer("a", "second"));
+		store.addConsumer(new LyoOAuthConsumer("b", "secret"));
+		assertNotNull(store.removeConsumer("old"));
+
+		// Changes are visible before they're saved.
+		assertEquals("second", store.getConsumer("a").consumerSecret);
+		assertNull(store.getConsumer("old"));
+		assertEquals(2, store.getAllConsumers().size());
+		assertNull(memory.getConsumer("a"));
+		assertEquals(3, store.getPendingCount());
+
+		store.close();
+		assertEquals(0, store.getPendingCount());
+		assertEquals(1, memory.batches);
+		assertEquals("second", memory.getConsumer("a").consumerSecret);
+		assertNotNull(memory.getConsumer("b"));
+		assertNull(memory.getConsumer("old"));
+	}
+
+	public void testFlushWhenBatchIsFull() throws Exception {
+		MemoryStore memory = new MemoryStore();
+		WriteBehindConsumerStore store = new WriteBehindConsumerStore(memory,
+				10, 60000);
+		for (int i = 0; i < 10; i++) {
+			store.addConsumer(new LyoOAuthConsumer("key" + i, "secret"));
+		}
+
+		for (int i = 0; i < 100 && store.getPendingCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, store.getPendingCount());
+		assertEquals(10, memory.getAllConsumers().size());
+		store.close();
+	}
+
+	public void testFailingChangeDoesNotBlockOthers()
+			throws ConsumerStoreException {
+		MemoryStore memory = new MemoryStore();
+		memory.failing.add("bad");
+		WriteBehindConsumerStore store = new WriteBehindConsumerStore(memory,
+				1000, 60000);
+		store.addConsumer(new LyoOAuthConsumer("bad", "secret"));
+		for (int i = 0; i < 5; i++) {
+			store.addConsumer(new LyoOAuthConsumer("key" + i, "secret"));
+		}
+
+		try {
+			store.flush();
+			fail("The failed change wasn't reported.");
+		} catch (ConsumerStoreException e) {
+			// Expected.
+		}
+		assertEquals(1, store.getPendingCount());
+		assertEquals(5, memory.getAllConsumers().size());
+		assertNotNull(store.getConsumer("bad"));
+		assertEquals(Collections.singleton("bad"),
+				store.getFailedConsumerKeys());
+
+		// Tried again on the next flush.
+		memory.failing.clear();
+		store.flush();
+		assertEquals(0, store.getPendingCount());
+		assertNotNull(memory.getConsumer("bad"));
+		assertTrue(store.getFailedConsumerKeys().isEmpty());
+		store.close();
+	}
+
+	public void testFailingChangeBacksOff() throws Exception {
+		MemoryStore memory = new MemoryStore();
+		memory.failing.add("bad");
+		WriteBehindConsumerStore store = new WriteBehindConsumerStore(memory,
+				1000, 10);
+		store.addConsumer(new LyoOAuthConsumer("bad", "secret"));
+
+		// Without backoff this would be tried about 40 times. Waiting 10, 20,
+		// 40, 80, and 160 ms between tries allows only a handful.
+		Thread.sleep(400);
+		int tries;
+		synchronized (memory) {
+			tries = memory.batches;
+		}
+		assertTrue("Tried " + tries + " times", tries >= 2 && tries <= 8);
+		assertEquals(Collections.singleton("bad"),
+				store.getFailedConsumerKeys());
+
+		memory.failing.clear();
+		store.close();
+		assertNotNull(memory.getConsumer("bad"));
+	}
+
+	public void testNoChangesLostOnClose() throws Exception {
+		final MemoryStore memory = new MemoryStore();
+		final WriteBehindConsumerStore store = new WriteBehindConsumerStore(
+				memory, 50, 60000);
+		final int threads = 4;
+		final int changes = 2000;
+		final CountDownLatch started = new CountDownLatch(threads);
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						for (int i = 0; i < changes; i++) {
+							store.addConsumer(new LyoOAuthConsumer(id + "-"
+									+ i, "secret"));
+						}
+					} catch (ConsumerStoreException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			writers[t].start();
+		}
+
+		// Close while the writers are still adding consumers.
+		started.await();
+		store.close();
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		assertEquals(0, store.getPendingCount());
+		assertEquals(threads * changes, memory.getAllConsumers().size());
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.metrics;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LatencyTimer} and {@link OAuthMetrics}.
+ */
+public class OAuthMetricsTest extends TestCase {
+	public void testPercentiles() {
+		LatencyTimer timer = new LatencyTimer("test");
+		for (int i = 0; i < 98; i++) {
+			timer.recordNanos(40000L, true); // 40 us
+		}
+		timer.recordNanos(3000000L, false); // 3 ms
+		timer.recordNanos(20000000000L, false); // 20 s
+
+		assertEquals(100, timer.getCount());
+		assertEquals(98, timer.getSuccessCount());
+		assertEquals(2, timer.getRejectionCount());
+		assertEquals(0.05, timer.get50thPercentileMillis(), 1e-9);
+		assertEquals(5.0, timer.get99thPercentileMillis(), 1e-9);
+		assertEquals(Double.POSITIVE_INFINITY,
+				timer.get999thPercentileMillis());
+
+		timer.reset();
+		assertEquals(0, timer.getCount());
+		assertEquals(0.0, timer.get99thPercentileMillis());
+	}
+
+	public void testMicrosecondBuckets() {
+		LatencyTimer timer = new LatencyTimer("test");
+		timer.recordNanos(800L, true); // 0.8 us
+		timer.recordNanos(2000L, true); // 2 us
+		timer.recordNanos(7000L, true); // 7 us
+		timer.recordNanos(20000L, true); // 20 us
+
+		long[] counts = timer.getBucketCounts();
+		assertEquals(LatencyTimer.BUCKET_BOUNDS.length + 1, counts.length);
+		assertEquals(1, counts[0]);
+		assertEquals(1, counts[1]);
+		assertEquals(0, counts[2]);
+		assertEquals(1, counts[3]);
+		assertEquals(1, counts[4]);
+		assertEquals(0.0025, timer.get50thPercentileMillis(), 1e-9);
+		assertEquals(0.025, timer.get99thPercentileMillis(), 1e-9);
+	}
+
+	public void testPrometheusFormat() throws Exception {
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+		LatencyTimer timer = metrics.getTimer("prometheus\"test");
+		timer.reset();
+		timer.recordNanos(75000L, true);
+		timer.recordNanos(75000L, false);
+
+		StringWriter writer = new StringWriter();
+		metrics.writePrometheus(writer);
+		String text = writer.toString();
+
+		assertTrue(text.contains("# TYPE lyo_oauth_latency_seconds histogram"));
+		assertTrue(text
+				.contains("lyo_oauth_latency_seconds_bucket{name=\"prometheus\\\"test\",le=\"5.0E-5\"} 0\n"));
+		assertTrue(text
+				.contains("lyo_oauth_latency_seconds_bucket{name=\"prometheus\\\"test\",le=\"1.0E-4\"} 2\n"));
+		assertTrue(text
+				.contains("lyo_oauth_latency_seconds_bucket{name=\"prometheus\\\"test\",le=\"+Inf\"} 2\n"));
+		assertTrue(text
+				.contains("lyo_oauth_latency_seconds_count{name=\"prometheus\\\"test\"} 2\n"));
+		assertTrue(text
+				.contains("lyo_oauth_requests_total{name=\"prometheus\\\"test\",outcome=\"rejected\"} 1\n"));
+	}
+
+	public void testMBeans() throws Exception {
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		metrics.registerMBeans();
+		try {
+			// Timers created after registering are registered too.
+			metrics.getTimer("jmx").recordNanos(1000L, true);
+			ObjectName name = new ObjectName(OAuthMetrics.JMX_DOMAIN
+					+ ":type=LatencyTimer,name=" + ObjectName.quote("jmx"));
+			assertTrue(server.isRegistered(name));
+			assertEquals(Long.valueOf(1),
+					server.getAttribute(name, "SuccessCount"));
+		} finally {
+			metrics.unregisterMBeans();
+		}
+	}
+
+	public void testMBeansStayUntilLastUnregister() throws Exception {
+		OAuthMetrics metrics = OAuthMetrics.getInstance();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		metrics.getTimer("shared").recordNanos(1000L, true);
+		ObjectName name = new ObjectName(OAuthMetrics.JMX_DOMAIN
+				+ ":type=LatencyTimer,name=" + ObjectName.quote("shared"));
+
+		// Two webapps register the same timers.
+		metrics.registerMBeans();
+		metrics.registerMBeans();
+		metrics.unregisterMBeans();
+		assertTrue(server.isRegistered(name));
+		metrics.unregisterMBeans();
+		assertFalse(server.isRegistered(name));
+	}
+}
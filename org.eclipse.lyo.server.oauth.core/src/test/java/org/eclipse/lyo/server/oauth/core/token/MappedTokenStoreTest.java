@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link MappedTokenStore}.
+ */
+public class MappedTokenStoreTest extends TestCase {
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("tokens", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public void testPutGetRemove() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		store.put("token", "consumer", "secret", 0);
+		assertEquals("consumer", store.getConsumerKey("token"));
+		assertEquals("secret", store.getSecret("token"));
+		assertNull(store.getSecret("unknown"));
+
+		store.put("token", "consumer", "secret2", 0);
+		assertEquals("secret2", store.getSecret("token"));
+		assertEquals(1, store.size());
+
+		assertTrue(store.remove("token"));
+		assertNull(store.getSecret("token"));
+		assertFalse(store.remove("token"));
+		store.close();
+	}
+
+	public void testExpiredTokensAreNotReturned() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		store.put("expired", "consumer", "secret", System.currentTimeMillis() - 1);
+		assertNull(store.getSecret("expired"));
+		store.close();
+	}
+
+	public void testGetConsumerKeys() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		store.put("a", "consumer1", "secret", 0);
+		store.put("b", "consumer2", "secret", 0);
+		store.put("c", "consumer2", "secret", 0);
+		store.put("expired", "consumer1", "secret", System.currentTimeMillis() - 1);
+		store.remove("c");
+
+		Map<String, String> consumerKeys = store.getConsumerKeys();
+		assertEquals(2, consumerKeys.size());
+		assertEquals("consumer1", consumerKeys.get("a"));
+		assertEquals("consumer2", consumerKeys.get("b"));
+		store.close();
+	}
+
+	public void testTokensSurviveReopen() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		for (int i = 0; i < 5000; i++) {
+			store.put("token" + i, "consumer" + i, "secret" + i, 0);
+		}
+		store.remove("token42");
+		store.close();
+
+		store = new MappedTokenStore(directory);
+		assertEquals(4999, store.size());
+		assertEquals("secret4999", store.getSecret("token4999"));
+		assertEquals("consumer0", store.getConsumerKey("token0"));
+		assertNull(store.getSecret("token42"));
+		store.close();
+	}
+
+	public void testIndexIsRebuiltFromLog() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		store.put("a", "consumer", "secret", 0);
+		store.close();
+
+		assertTrue(new File(directory, "tokens.idx").delete());
+		store = new MappedTokenStore(directory);
+		assertEquals("secret", store.getSecret("a"));
+		store.close();
+	}
+
+	public void testCompact() throws IOException {
+		MappedTokenStore store = new MappedTokenStore(directory);
+		for (int i = 0; i < 100; i++) {
+			store.put("token" + i, "consumer", "secret" + i, 0);
+			store.put("token" + i, "consumer", "newSecret" + i, 0);
+		}
+		store.remove("token0");
+		store.compact();
+
+		assertEquals(99, store.size());
+		assertNull(store.getSecret("token0"));
+		assertEquals("newSecret99", store.getSecret("token99"));
+		store.close();
+
+		store = new MappedTokenStore(directory);
+		assertEquals("newSecret50", store.getSecret("token50"));
+		store.close();
+	}
+}
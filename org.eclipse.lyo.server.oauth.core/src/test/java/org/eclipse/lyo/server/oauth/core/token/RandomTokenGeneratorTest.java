@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.oauth.OAuth;
+
+/**
+ * Tests for {@link RandomTokenGenerator}.
+ */
+public class RandomTokenGeneratorTest extends TestCase {
+	public void testTokensAreCompactAndUrlSafe() {
+		RandomTokenGenerator generator = new RandomTokenGenerator();
+		for (int i = 0; i < 100; i++) {
+			String token = generator.generateToken();
+			assertEquals(22, token.length());
+			assertEquals(token, OAuth.percentEncode(token));
+			assertEquals(16, UrlSafeBase64.decode(token).length);
+		}
+
+		assertEquals(43, new RandomTokenGenerator(32).generateToken().length());
+	}
+
+	public void testThreadsGenerateDifferentTokens() throws InterruptedException {
+		final RandomTokenGenerator generator = new RandomTokenGenerator();
+		final Set<String> tokens = Collections
+				.synchronizedSet(new HashSet<String>());
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						tokens.add(generator.generateToken());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(4000, tokens.size());
+	}
+
+	public void testTooFewBytes() {
+		try {
+			new RandomTokenGenerator(8);
+			fail("Short tokens were allowed.");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
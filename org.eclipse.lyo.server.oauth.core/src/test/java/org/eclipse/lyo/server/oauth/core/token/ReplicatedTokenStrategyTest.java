@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.oauth.OAuth;
+import net.oauth.OAuthProblemException;
+
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.TokenFixtures.MemoryConsumerStore;
+
+/**
+ * Tests for {@link ReplicatedTokenStrategy} and {@link MemcachedKeyValueStore}
+ * against a local stand-in for memcached.
+ */
+public class ReplicatedTokenStrategyTest extends TestCase {
+	/**
+	 * Speaks enough of the memcached text protocol for the tests, backed by a
+	 * {@link MemoryKeyValueStore}. Values are ASCII only.
+	 */
+	private static class StandInServer extends Thread {
+		final ServerSocket serverSocket;
+		final MemoryKeyValueStore values = new MemoryKeyValueStore();
+
+		StandInServer() throws IOException {
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					Thread t = new Thread() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					};
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// Closed.
+			}
+		}
+
+		void serve(Socket socket) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), "US-ASCII"));
+				OutputStream out = socket.getOutputStream();
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] command = line.split(" ");
+					String response;
+					if ("get".equals(command[0])) {
+						String value = values.get(command[1]);
+						response = (value == null) ? "END\r\n" : "VALUE "
+								+ command[1] + " 0 " + value.length() + "\r\n"
+								+ value + "\r\nEND\r\n";
+					} else if ("set".equals(command[0])) {
+						String value = in.readLine();
+						long seconds = Long.parseLong(command[3]);
+						values.put(command[1], value, seconds * 1000);
+						response = "STORED\r\n";
+					} else if ("add".equals(command[0])) {
+						String value = in.readLine();
+						long seconds = Long.parseLong(command[3]);
+						response = values.putIfAbsent(command[1], value,
+								seconds * 1000) ? "STORED\r\n"
+								: "NOT_STORED\r\n";
+					} else if ("delete".equals(command[0])) {
+						response = values.remove(command[1]) ? "DELETED\r\n"
+								: "NOT_FOUND\r\n";
+					} else {
+						response = "ERROR\r\n";
+					}
+					out.write(response.getBytes("US-ASCII"));
+					out.flush();
+				}
+			} catch (IOException e) {
+				// Client went away.
+			}
+		}
+	}
+
+	/**
+	 * Misses the first read of each generation, like a server that looks a
+	 * generation up just before another server adds it.
+	 */
+	private static class LateReadStore implements KeyValueStore {
+		final KeyValueStore store;
+		final Set<String> read = new HashSet<String>();
+
+		LateReadStore(KeyValueStore store) {
+			this.store = store;
+		}
+
+		public synchronized String get(String key) throws IOException {
+			if (key.startsWith("lyo.gen") && read.add(key)) {
+				return null;
+			}
+
+			return store.get(key);
+		}
+
+		public void put(String key, String value, long timeToLive)
+				throws IOException {
+			store.put(key, value, timeToLive);
+		}
+
+		public boolean putIfAbsent(String key, String value, long timeToLive)
+				throws IOException {
+			return store.putIfAbsent(key, value, timeToLive);
+		}
+
+		public boolean remove(String key) throws IOException {
+			return store.remove(key);
+		}
+
+		public void close() throws IOException {
+			store.close();
+		}
+	}
+
+	private StandInServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new StandInServer();
+		server.start();
+
+		MemoryConsumerStore consumers = new MemoryConsumerStore();
+		consumers.addConsumer(new LyoOAuthConsumer("consumer", "secret"));
+		OAuthConfiguration.getInstance().setConsumerStore(consumers);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.serverSocket.close();
+		OAuthConfiguration.getInstance().setTokenStrategy(
+				new SimpleTokenStrategy());
+	}
+
+	private ReplicatedTokenStrategy newNode() {
+		return new ReplicatedTokenStrategy(new MemcachedKeyValueStore(
+				"localhost", server.getPort()));
+	}
+
+	public void testMemcachedKeyValueStore() throws IOException {
+		MemcachedKeyValueStore store = new MemcachedKeyValueStore("localhost",
+				server.getPort());
+		assertNull(store.get("missing"));
+		store.put("key", "value", 60000);
+		assertEquals("value", store.get("key"));
+		assertTrue(store.remove("key"));
+		assertFalse(store.remove("key"));
+		assertNull(store.get("key"));
+		assertTrue(store.putIfAbsent("key", "first", 60000));
+		assertFalse(store.putIfAbsent("key", "second", 60000));
+		assertEquals("first", store.get("key"));
+
+		// Keys that would break the protocol are never sent.
+		assertNull(store.get("key\r\nflush_all"));
+		assertFalse(store.remove("has space"));
+		store.close();
+	}
+
+	public void testTokensAreSharedBetweenNodes() throws Exception {
+		ReplicatedTokenStrategy nodeA = newNode();
+		ReplicatedTokenStrategy nodeB = newNode();
+		OAuthConfiguration.getInstance().setTokenStrategy(nodeA);
+
+		OAuthRequest requestTokenRequest = new OAuthRequest(
+				TokenFixtures.newRequest(OAuth.OAUTH_CONSUMER_KEY, "consumer",
+						OAuth.OAUTH_CALLBACK, "http://example.com/callback"));
+		nodeA.generateRequestToken(requestTokenRequest);
+		String requestToken = requestTokenRequest.getAccessor().requestToken;
+
+		// The user authorizes on node B.
+		assertEquals("http://example.com/callback",
+				nodeB.getCallback(null, requestToken));
+		nodeB.markRequestTokenAuthorized(null, requestToken);
+		String verifier = nodeB.generateVerificationCode(null, requestToken);
+
+		// The consumer exchanges the token on node A.
+		OAuthRequest accessTokenRequest = new OAuthRequest(
+				TokenFixtures.newRequest(OAuth.OAUTH_CONSUMER_KEY, "consumer",
+						OAuth.OAUTH_TOKEN, requestToken, OAuth.OAUTH_VERIFIER,
+						verifier));
+		nodeA.validateVerificationCode(accessTokenRequest);
+		nodeA.generateAccessToken(accessTokenRequest);
+		String accessToken = accessTokenRequest.getAccessor().accessToken;
+		String secret = accessTokenRequest.getAccessor().tokenSecret;
+
+		assertEquals(secret, nodeB.getTokenSecret(null, accessToken));
+		try {
+			nodeB.generateAccessToken(accessTokenRequest);
+			fail("Request token was exchanged twice.");
+		} catch (OAuthProblemException e) {
+			// Expected.
+		}
+	}
+
+	public void testNodesAgreeOnFirstGeneration() throws Exception {
+		ReplicatedTokenStrategy nodeA = newNode();
+		OAuthConfiguration.getInstance().setTokenStrategy(nodeA);
+		String accessToken = newAccessToken(nodeA);
+
+		// Node B misses the generation node A added, so it tries to add its
+		// own. It must use node A's instead.
+		ReplicatedTokenStrategy nodeB = new ReplicatedTokenStrategy(
+				new LateReadStore(new MemcachedKeyValueStore("localhost",
+						server.getPort())));
+		assertNotNull(nodeB.getTokenSecret(null, accessToken));
+
+		String otherToken = newAccessToken(nodeB);
+		assertNotNull(nodeA.getTokenSecret(null, otherToken));
+	}
+
+	public void testRevokeInvalidatesNearCache() throws Exception {
+		ReplicatedTokenStrategy nodeA = newNode();
+		ReplicatedTokenStrategy nodeB = newNode();
+		OAuthConfiguration.getInstance().setTokenStrategy(nodeA);
+
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer"));
+		nodeA.generateRequestToken(request);
+		String requestToken = request.getAccessor().requestToken;
+		nodeA.markRequestTokenAuthorized(null, requestToken);
+		request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer", OAuth.OAUTH_TOKEN,
+				requestToken));
+		nodeA.generateAccessToken(request);
+		String accessToken = request.getAccessor().accessToken;
+
+		// Load the token into node B's near-cache.
+		assertNotNull(nodeB.getTokenSecret(null, accessToken));
+
+		assertTrue(nodeA.revokeAccessToken(accessToken));
+		assertRejected(nodeA, accessToken);
+
+		// Node B still has it cached until it's told.
+		assertNotNull(nodeB.getTokenSecret(null, accessToken));
+		nodeB.invalidate(accessToken);
+		assertRejected(nodeB, accessToken);
+	}
+
+	public void testRevokeConsumerTokens() throws Exception {
+		ReplicatedTokenStrategy nodeA = newNode();
+		OAuthConfiguration.getInstance().setTokenStrategy(nodeA);
+		String accessToken = newAccessToken(nodeA);
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer"));
+		nodeA.generateRequestToken(request);
+		String requestToken = request.getAccessor().requestToken;
+
+		nodeA.revokeConsumerTokens("consumer");
+		assertRejected(nodeA, accessToken);
+		assertRejected(nodeA, requestToken);
+
+		// A node that starts later sees the new generation.
+		ReplicatedTokenStrategy nodeB = newNode();
+		assertRejected(nodeB, accessToken);
+
+		// Tokens issued afterwards are fine.
+		String newToken = newAccessToken(nodeA);
+		assertNotNull(nodeB.getTokenSecret(null, newToken));
+
+		nodeB.revokeAllTokens();
+		assertRejected(nodeB, newToken);
+	}
+
+	private static String newAccessToken(ReplicatedTokenStrategy strategy)
+			throws Exception {
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer"));
+		strategy.generateRequestToken(request);
+		String requestToken = request.getAccessor().requestToken;
+		strategy.markRequestTokenAuthorized(null, requestToken);
+		request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer", OAuth.OAUTH_TOKEN,
+				requestToken));
+		strategy.generateAccessToken(request);
+
+		return request.getAccessor().accessToken;
+	}
+
+	private static void assertRejected(ReplicatedTokenStrategy strategy,
+			String token) {
+		try {
+			strategy.getTokenSecret(null, token);
+			fail("Token was not rejected.");
+		} catch (OAuthProblemException e) {
+			assertEquals(OAuth.Problems.TOKEN_REJECTED, e.getProblem());
+		}
+	}
+}
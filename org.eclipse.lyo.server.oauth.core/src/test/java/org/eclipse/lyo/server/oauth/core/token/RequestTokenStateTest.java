@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.oauth.OAuth;
+import net.oauth.OAuthProblemException;
+
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.TokenFixtures.MemoryConsumerStore;
+
+/**
+ * Tests for the request token states in {@link SimpleTokenStrategy}.
+ */
+public class RequestTokenStateTest extends TestCase {
+	private SimpleTokenStrategy strategy;
+
+	@Override
+	protected void setUp() throws Exception {
+		MemoryConsumerStore consumers = new MemoryConsumerStore();
+		consumers.addConsumer(new LyoOAuthConsumer("consumer", "secret"));
+		OAuthConfiguration.getInstance().setConsumerStore(consumers);
+
+		strategy = new SimpleTokenStrategy();
+		OAuthConfiguration.getInstance().setTokenStrategy(strategy);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		OAuthConfiguration.getInstance().setTokenStrategy(
+				new SimpleTokenStrategy());
+	}
+
+	private String newRequestToken(String consumerKey) throws Exception {
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, consumerKey));
+		strategy.generateRequestToken(request);
+		return request.getAccessor().requestToken;
+	}
+
+	public void testVerificationCodeMustBeChecked() throws Exception {
+		String requestToken = newRequestToken("consumer");
+		String verifier = strategy.generateVerificationCode(null, requestToken);
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, "consumer", OAuth.OAUTH_TOKEN,
+				requestToken, OAuth.OAUTH_VERIFIER, verifier));
+
+		// Not authorized yet.
+		assertProblem(OAuth.Problems.ADDITIONAL_AUTHORIZATION_REQUIRED,
+				request, true);
+
+		// Authorized, but the verification code wasn't checked.
+		strategy.markRequestTokenAuthorized(null, requestToken);
+		assertProblem(OAuth.Problems.OAUTH_PARAMETERS_ABSENT, request, false);
+
+		strategy.validateVerificationCode(request);
+		strategy.generateAccessToken(request);
+		assertNotNull(request.getAccessor().accessToken);
+		assertProblem(OAuth.Problems.TOKEN_REJECTED, request, false);
+	}
+
+	public void testRequestTokenIsExchangedOnce() throws Exception {
+		final String requestToken = newRequestToken("consumer");
+		strategy.markRequestTokenAuthorized(null, requestToken);
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger exchanged = new AtomicInteger();
+		final AtomicInteger refused = new AtomicInteger();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						OAuthRequest request = new OAuthRequest(
+								TokenFixtures.newRequest(
+										OAuth.OAUTH_CONSUMER_KEY, "consumer",
+										OAuth.OAUTH_TOKEN, requestToken));
+						start.await();
+						strategy.generateAccessToken(request);
+						exchanged.incrementAndGet();
+					} catch (OAuthProblemException e) {
+						refused.incrementAndGet();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(1, exchanged.get());
+		assertEquals(threads - 1, refused.get());
+	}
+
+	private void assertProblem(String problem, OAuthRequest request,
+			boolean validate) throws Exception {
+		try {
+			if (validate) {
+				strategy.validateVerificationCode(request);
+			}
+			strategy.generateAccessToken(request);
+			fail("Expected " + problem);
+		} catch (OAuthProblemException e) {
+			assertEquals(problem, e.getProblem());
+		}
+	}
+}
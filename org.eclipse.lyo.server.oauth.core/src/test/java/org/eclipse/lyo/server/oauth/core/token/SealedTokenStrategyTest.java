@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SealedTokenStrategy}.
+ */
+public class SealedTokenStrategyTest extends TestCase {
+	private static byte[] key(int b) {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) b);
+		return key;
+	}
+
+	public void testTokenRoundTrip() throws IOException {
+		SealedTokenStrategy strategy = new SealedTokenStrategy(1, key(1));
+		String token = strategy.issueAccessToken("consumer", "secret");
+		assertEquals("consumer", strategy.getAccessTokenConsumerKey(token));
+		assertEquals("secret", strategy.getAccessTokenSecret(token));
+
+		// Another node with the same key accepts the token.
+		SealedTokenStrategy other = new SealedTokenStrategy(1, key(1));
+		assertEquals("secret", other.getAccessTokenSecret(token));
+	}
+
+	public void testTamperedTokenIsRejected() throws IOException {
+		SealedTokenStrategy strategy = new SealedTokenStrategy(1, key(1));
+		String token = strategy.issueAccessToken("consumer", "secret");
+		char c = token.charAt(10);
+		String tampered = token.substring(0, 10) + (c == 'A' ? 'B' : 'A')
+				+ token.substring(11);
+		assertNull(strategy.getAccessTokenConsumerKey(tampered));
+		assertNull(strategy.getAccessTokenSecret("not a token"));
+
+		SealedTokenStrategy wrongKey = new SealedTokenStrategy(1, key(2));
+		assertNull(wrongKey.getAccessTokenSecret(token));
+	}
+
+	public void testExpiredTokenIsRejected() throws IOException {
+		SealedTokenStrategy strategy = new SealedTokenStrategy(1, key(1));
+		strategy.setAccessTokenTimeToLive(1);
+		String token = strategy.issueAccessToken("consumer", "secret");
+		try {
+			Thread.sleep(5);
+		} catch (InterruptedException e) {
+		}
+		assertNull(strategy.getAccessTokenSecret(token));
+	}
+
+	public void testKeyRotation() throws IOException {
+		SealedTokenStrategy strategy = new SealedTokenStrategy(1, key(1));
+		String oldToken = strategy.issueAccessToken("consumer", "old");
+
+		strategy.rotateKey(2, key(2), 60000);
+		String newToken = strategy.issueAccessToken("consumer", "new");
+		assertEquals("old", strategy.getAccessTokenSecret(oldToken));
+		assertEquals("new", strategy.getAccessTokenSecret(newToken));
+
+		strategy.retireKey(1);
+		assertNull(strategy.getAccessTokenSecret(oldToken));
+		assertEquals("new", strategy.getAccessTokenSecret(newToken));
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import junit.framework.TestCase;
+import net.oauth.OAuth;
+import net.oauth.OAuthProblemException;
+
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.TokenFixtures.MemoryConsumerStore;
+
+/**
+ * Tests for token revocation in {@link SimpleTokenStrategy}.
+ */
+public class SimpleTokenStrategyTest extends TestCase {
+	private SimpleTokenStrategy strategy;
+
+	@Override
+	protected void setUp() throws Exception {
+		MemoryConsumerStore consumers = new MemoryConsumerStore();
+		consumers.addConsumer(new LyoOAuthConsumer("consumer", "secret"));
+		consumers.addConsumer(new LyoOAuthConsumer("other", "secret"));
+		OAuthConfiguration.getInstance().setConsumerStore(consumers);
+
+		strategy = new SimpleTokenStrategy();
+		OAuthConfiguration.getInstance().setTokenStrategy(strategy);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		OAuthConfiguration.getInstance().setTokenStrategy(
+				new SimpleTokenStrategy());
+	}
+
+	private String newRequestToken(String consumerKey) throws Exception {
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, consumerKey));
+		strategy.generateRequestToken(request);
+		return request.getAccessor().requestToken;
+	}
+
+	private String newAccessToken(String consumerKey) throws Exception {
+		String requestToken = newRequestToken(consumerKey);
+		strategy.markRequestTokenAuthorized(null, requestToken);
+		OAuthRequest request = new OAuthRequest(TokenFixtures.newRequest(
+				OAuth.OAUTH_CONSUMER_KEY, consumerKey, OAuth.OAUTH_TOKEN,
+				requestToken));
+		strategy.generateAccessToken(request);
+		return request.getAccessor().accessToken;
+	}
+
+	public void testRevokeToken() throws Exception {
+		String requestToken = newRequestToken("consumer");
+		String accessToken = newAccessToken("consumer");
+
+		assertTrue(strategy.revokeToken(requestToken));
+		assertTrue(strategy.revokeToken(accessToken));
+		assertFalse(strategy.revokeToken(accessToken));
+		assertRejected(requestToken);
+		assertRejected(accessToken);
+	}
+
+	public void testRevokeConsumerTokens() throws Exception {
+		String requestToken = newRequestToken("consumer");
+		String accessToken = newAccessToken("consumer");
+		String otherToken = newAccessToken("other");
+
+		strategy.revokeConsumerTokens("consumer");
+		assertRejected(requestToken);
+		assertRejected(accessToken);
+		assertNotNull(strategy.getTokenSecret(null, otherToken));
+
+		strategy.revokeAllTokens();
+		assertRejected(otherToken);
+	}
+
+	public void testRevokeAfterIndexIsPruned() throws Exception {
+		strategy = new SimpleTokenStrategy(10, 10);
+		OAuthConfiguration.getInstance().setTokenStrategy(strategy);
+		for (int i = 0; i < 200; i++) {
+			newAccessToken("consumer");
+		}
+		String accessToken = newAccessToken("consumer");
+
+		strategy.revokeConsumerTokens("consumer");
+		assertRejected(accessToken);
+	}
+
+	private void assertRejected(String token) {
+		try {
+			strategy.getTokenSecret(null, token);
+			fail("Token was not rejected.");
+		} catch (OAuthProblemException e) {
+			assertEquals(OAuth.Problems.TOKEN_REJECTED, e.getProblem());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *  
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *  
+ *  Contributors:
+ *  
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link StripedLRUCache}.
+ */
+public class StripedLRUCacheTest extends TestCase {
+	public void testPutGetRemove() {
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(100, 8);
+		assertNull(cache.put("a", "1"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("1", cache.put("a", "2"));
+		assertEquals("2", cache.remove("a"));
+		assertNull(cache.get("a"));
+	}
+
+	public void testSizeIsBounded() {
+		StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<Integer, Integer>(64, 4);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, i);
+		}
+		assertTrue(cache.size() <= 64);
+	}
+
+	public void testMaxBelowConcurrencyLevel() {
+		// Every segment must have room for at least one entry.
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(100, 256);
+		for (int i = 0; i < 50; i++) {
+			String key = "key" + i;
+			cache.put(key, key);
+			assertEquals(key, cache.get(key));
+		}
+		assertTrue(cache.size() <= 100);
+
+		StripedLRUCache<Integer, Integer> small = new StripedLRUCache<Integer, Integer>(3, 8);
+		for (int i = 0; i < 20; i++) {
+			small.put(i, i);
+			assertEquals(Integer.valueOf(i), small.get(i));
+		}
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() {
+		// One segment behaves exactly like an access-ordered LRU cache.
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(2, 1);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+	}
+
+	public void testPutIfAbsent() throws InterruptedException {
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(10, 2);
+		assertNull(cache.putIfAbsent("a", "1", 0));
+		assertEquals("1", cache.putIfAbsent("a", "2", 0));
+		assertEquals("1", cache.get("a"));
+
+		// An expired entry counts as absent.
+		cache.put("b", "1", 1);
+		Thread.sleep(10);
+		assertNull(cache.putIfAbsent("b", "2", 0));
+		assertEquals("2", cache.get("b"));
+	}
+
+	public void testReplace() throws InterruptedException {
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(10, 2);
+		String one = new String("1");
+		cache.put("a", one, 50);
+		assertFalse(cache.replace("a", new String("1"), "2"));
+		assertTrue(cache.replace("a", one, "2"));
+		assertFalse(cache.replace("a", one, "3"));
+		assertEquals("2", cache.get("a"));
+		assertFalse(cache.replace("b", null, "1"));
+
+		// The replacement keeps the original expiration time.
+		Thread.sleep(60);
+		assertNull(cache.get("a"));
+	}
+
+	public void testExpiredEntriesAreNotReturned() throws InterruptedException {
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(10, 2);
+		cache.put("a", "1", 1);
+		cache.put("b", "2");
+		Thread.sleep(10);
+		assertNull(cache.get("a"));
+		assertEquals("2", cache.get("b"));
+		assertEquals(1, cache.getExpiredCount());
+	}
+
+	public void testPurgeExpired() throws InterruptedException {
+		StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<Integer, Integer>(100, 4);
+		for (int i = 0; i < 10; i++) {
+			cache.put(i, i, 1);
+		}
+		cache.put(10, 10);
+		Thread.sleep(10);
+		assertEquals(10, cache.purgeExpired());
+		assertEquals(1, cache.size());
+		assertEquals(10, cache.getExpiredCount());
+		assertEquals(0, cache.getEvictedCount());
+	}
+
+	public void testEvictedCount() {
+		StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<Integer, Integer>(2, 1);
+		cache.put(1, 1);
+		cache.put(2, 2);
+		cache.put(3, 3);
+		assertEquals(1, cache.getEvictedCount());
+	}
+
+	public void testReaperShutdown() throws InterruptedException {
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(10, 2);
+		cache.put("a", "1", 60 * 1000);
+		assertNotNull(findReaperThread());
+
+		CacheReaper.shutdown();
+		Thread reaper = findReaperThread();
+		if (reaper != null) {
+			reaper.join(5000);
+			assertFalse(reaper.isAlive());
+		}
+
+		// A new cache starts the reaper again.
+		StripedLRUCache<String, String> other = new StripedLRUCache<String, String>(10, 2);
+		other.put("a", "1", 60 * 1000);
+		assertNotNull(findReaperThread());
+		CacheReaper.shutdown();
+
+		// So does a cache that was scheduled before the shutdown.
+		assertNull(findLiveReaperThread());
+		cache.put("b", "2", 60 * 1000);
+		assertNotNull(findReaperThread());
+		CacheReaper.shutdown();
+	}
+
+	public void testReaperStopsWithLastUser() throws InterruptedException {
+		CacheReaper.retain();
+		CacheReaper.retain();
+		StripedLRUCache<String, String> cache = new StripedLRUCache<String, String>(10, 2);
+		cache.put("a", "1", 60 * 1000);
+
+		CacheReaper.release();
+		assertNotNull(findReaperThread());
+
+		CacheReaper.release();
+		assertNull(findLiveReaperThread());
+	}
+
+	private static Thread findLiveReaperThread() throws InterruptedException {
+		Thread reaper = findReaperThread();
+		if (reaper != null) {
+			reaper.join(5000);
+		}
+
+		return findReaperThread();
+	}
+
+	private static Thread findReaperThread() {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if ("Lyo OAuth Token Reaper".equals(t.getName()) && t.isAlive()) {
+				return t;
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.core.token;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+
+/**
+ * Consumers and requests shared by the token strategy tests.
+ */
+final class TokenFixtures {
+	static class MemoryConsumerStore extends AbstractConsumerStore {
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	private TokenFixtures() {}
+
+	/**
+	 * Creates an unsigned POST request to http://localhost/oauth.
+	 *
+	 * @param parameters
+	 *            alternating parameter names and values
+	 * @return the request
+	 */
+	static HttpServletRequest newRequest(String... parameters) {
+		final Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+		for (int i = 0; i < parameters.length; i += 2) {
+			parameterMap.put(parameters[i], new String[] { parameters[i + 1] });
+		}
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+						if ("getMethod".equals(name)) {
+							return "POST";
+						} else if ("getRequestURL".equals(name)) {
+							return new StringBuffer("http://localhost/oauth");
+						} else if ("getParameterMap".equals(name)) {
+							return parameterMap;
+						} else if ("getHeaders".equals(name)
+								|| "getHeaderNames".equals(name)) {
+							return Collections.enumeration(Collections
+									.<String> emptyList());
+						} else if ("getAttribute".equals(name)) {
+							return attributes.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							attributes.put((String) args[0], args[1]);
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every latency recorded for one endpoint so percentiles are exact,
+ * unlike the bucketed {@link org.eclipse.lyo.server.oauth.core.metrics.LatencyTimer}.
+ * Not thread safe. Each consumer thread has its own recorders, which are
+ * merged with {@link #add(LatencyRecorder)} after the run.
+ */
+public class LatencyRecorder {
+	private long[] nanos = new long[1024];
+	private int count = 0;
+	private long errors = 0;
+	private boolean sorted = true;
+
+	/**
+	 * Records the time of a successful call.
+	 *
+	 * @param startNanos
+	 *            the start time from {@link System#nanoTime()}
+	 */
+	public void record(long startNanos) {
+		if (count == nanos.length) {
+			nanos = Arrays.copyOf(nanos, count * 2);
+		}
+		nanos[count++] = System.nanoTime() - startNanos;
+		sorted = false;
+	}
+
+	/**
+	 * Counts a failed call. Its time isn't recorded.
+	 */
+	public void recordError() {
+		errors++;
+	}
+
+	/**
+	 * Adds the calls recorded by another recorder.
+	 *
+	 * @param other
+	 *            the other recorder
+	 */
+	public void add(LatencyRecorder other) {
+		if (count + other.count > nanos.length) {
+			nanos = Arrays.copyOf(nanos, count + other.count);
+		}
+		System.arraycopy(other.nanos, 0, nanos, count, other.count);
+		count += other.count;
+		errors += other.errors;
+		sorted = false;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Gets a percentile using the nearest-rank method.
+	 *
+	 * @param quantile
+	 *            the quantile between 0 and 1
+	 * @return the latency in milliseconds or 0 if nothing was recorded
+	 */
+	public double getPercentileMillis(double quantile) {
+		if (count == 0) {
+			return 0;
+		}
+		if (!sorted) {
+			Arrays.sort(nanos, 0, count);
+			sorted = true;
+		}
+
+		int rank = (int) Math.ceil(quantile * count);
+		return nanos[Math.max(rank, 1) - 1] / 1000000.0;
+	}
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import net.oauth.OAuth;
+
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+
+/**
+ * Runs {@link ScriptedConsumer}s against the OAuth sample in embedded Jetty
+ * and reports the throughput and latency percentiles of each endpoint.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * mvn verify -Dloadtest.threads=64 -Dloadtest.durationSeconds=60
+ * </pre>
+ *
+ * The settings and regression thresholds are in
+ * <code>loadtest.properties</code>. If a threshold is crossed, the load test
+ * throws an exception, which fails the build.
+ */
+public class LoadTest {
+	private static final String SETTINGS = "loadtest.properties";
+	private static final String[] ENDPOINTS = { "requestToken", "login",
+			"accessToken", "handshake", "hello" };
+
+	public static void main(String[] args) throws Exception {
+		Properties settings = loadSettings();
+		int threads = getInt(settings, "loadtest.threads");
+		int warmupSeconds = getInt(settings, "loadtest.warmupSeconds");
+		int durationSeconds = getInt(settings, "loadtest.durationSeconds");
+		int callsPerHandshake = getInt(settings, "loadtest.callsPerHandshake");
+
+		SampleServer server = new SampleServer(0);
+		server.start();
+		ScriptedConsumer[] consumers = new ScriptedConsumer[threads];
+		long elapsedNanos;
+		try {
+			ConsumerStore store = server.getConsumerStore();
+			Thread[] consumerThreads = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				LyoOAuthConsumer consumer = new LyoOAuthConsumer("loadtest"
+						+ i, "secret" + i);
+				consumer.setName("Load Test " + i);
+				consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD,
+						OAuth.HMAC_SHA1);
+				store.addConsumer(consumer);
+
+				consumers[i] = new ScriptedConsumer(server.getBaseURL(),
+						consumer.consumerKey, consumer.consumerSecret,
+						callsPerHandshake);
+				consumerThreads[i] = new Thread(consumers[i],
+						"Load Test Consumer " + i);
+			}
+
+			System.out.println("Running " + threads + " consumers against "
+					+ server.getBaseURL() + " (" + warmupSeconds
+					+ " s warmup, " + durationSeconds + " s measured)");
+			for (Thread thread : consumerThreads) {
+				thread.start();
+			}
+
+			Thread.sleep(warmupSeconds * 1000L);
+			long start = System.nanoTime();
+			for (ScriptedConsumer consumer : consumers) {
+				consumer.startRecording();
+			}
+			Thread.sleep(durationSeconds * 1000L);
+			for (ScriptedConsumer consumer : consumers) {
+				consumer.stop();
+			}
+			elapsedNanos = System.nanoTime() - start;
+
+			for (Thread thread : consumerThreads) {
+				thread.join();
+			}
+		} finally {
+			server.stop();
+		}
+
+		Map<String, LatencyRecorder> results = merge(consumers);
+		report(results, elapsedNanos);
+
+		List<String> failures = checkThresholds(settings, results,
+				elapsedNanos);
+		for (ScriptedConsumer consumer : consumers) {
+			if (consumer.getFirstError() != null) {
+				System.out.println("First error: "
+						+ consumer.getFirstError());
+				break;
+			}
+		}
+		if (!failures.isEmpty()) {
+			StringBuilder message = new StringBuilder(
+					"Load test thresholds crossed:");
+			for (String failure : failures) {
+				message.append("\n  ").append(failure);
+			}
+			throw new IllegalStateException(message.toString());
+		}
+	}
+
+	private static Properties loadSettings() throws IOException {
+		Properties settings = new Properties();
+		InputStream in = LoadTest.class.getResourceAsStream("/" + SETTINGS);
+		try {
+			settings.load(in);
+		} finally {
+			in.close();
+		}
+
+		// System properties override the file.
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("loadtest.")) {
+				settings.setProperty(name, System.getProperty(name));
+			}
+		}
+
+		return settings;
+	}
+
+	private static int getInt(Properties settings, String name) {
+		return Integer.parseInt(settings.getProperty(name).trim());
+	}
+
+	private static Map<String, LatencyRecorder> merge(
+			ScriptedConsumer[] consumers) {
+		Map<String, LatencyRecorder> results = new LinkedHashMap<String, LatencyRecorder>();
+		for (String endpoint : ENDPOINTS) {
+			results.put(endpoint, new LatencyRecorder());
+		}
+		for (ScriptedConsumer consumer : consumers) {
+			results.get("requestToken").add(consumer.requestToken);
+			results.get("login").add(consumer.login);
+			results.get("accessToken").add(consumer.accessToken);
+			results.get("handshake").add(consumer.handshake);
+			results.get("hello").add(consumer.hello);
+		}
+
+		return results;
+	}
+
+	private static double perSecond(LatencyRecorder recorder,
+			long elapsedNanos) {
+		return recorder.getCount() * 1000000000.0 / elapsedNanos;
+	}
+
+	private static void report(Map<String, LatencyRecorder> results,
+			long elapsedNanos) {
+		System.out.println(String.format("%-14s %9s %7s %10s %9s %9s %9s",
+				"endpoint", "calls", "errors", "per sec", "p50 ms", "p99 ms",
+				"p99.9 ms"));
+		for (Map.Entry<String, LatencyRecorder> entry : results.entrySet()) {
+			LatencyRecorder recorder = entry.getValue();
+			System.out.println(String.format(
+					"%-14s %9d %7d %10.1f %9.2f %9.2f %9.2f", entry.getKey(),
+					recorder.getCount(), recorder.getErrorCount(),
+					perSecond(recorder, elapsedNanos),
+					recorder.getPercentileMillis(0.5),
+					recorder.getPercentileMillis(0.99),
+					recorder.getPercentileMillis(0.999)));
+		}
+	}
+
+	private static List<String> checkThresholds(Properties settings,
+			Map<String, LatencyRecorder> results, long elapsedNanos) {
+		List<String> failures = new ArrayList<String>();
+
+		long errors = 0;
+		for (LatencyRecorder recorder : results.values()) {
+			errors += recorder.getErrorCount();
+		}
+		Double maxErrors = getThreshold(settings, "loadtest.maxErrors");
+		if (maxErrors != null && errors > maxErrors) {
+			failures.add(errors + " errors, more than " + maxErrors.longValue());
+		}
+
+		for (Map.Entry<String, LatencyRecorder> entry : results.entrySet()) {
+			String prefix = "loadtest." + entry.getKey() + ".";
+			LatencyRecorder recorder = entry.getValue();
+
+			Double min = getThreshold(settings, prefix + "minPerSecond");
+			double actual = perSecond(recorder, elapsedNanos);
+			if (min != null && actual < min) {
+				failures.add(String.format("%s: %.1f calls per second, below %s",
+						entry.getKey(), actual, min));
+			}
+
+			checkLatency(failures, settings, entry.getKey(), recorder,
+					prefix + "maxP50Millis", 0.5);
+			checkLatency(failures, settings, entry.getKey(), recorder,
+					prefix + "maxP99Millis", 0.99);
+			checkLatency(failures, settings, entry.getKey(), recorder,
+					prefix + "maxP999Millis", 0.999);
+		}
+
+		return failures;
+	}
+
+	private static void checkLatency(List<String> failures,
+			Properties settings, String endpoint, LatencyRecorder recorder,
+			String name, double quantile) {
+		Double max = getThreshold(settings, name);
+		double actual = recorder.getPercentileMillis(quantile);
+		if (max != null && actual > max) {
+			failures.add(String.format("%s: %s percentile is %.2f ms, above %s ms",
+					endpoint, quantile * 100, actual, max));
+		}
+	}
+
+	private static Double getThreshold(Properties settings, String name) {
+		String value = settings.getProperty(name);
+		if (value == null || value.trim().length() == 0) {
+			return null;
+		}
+
+		return Double.valueOf(value.trim());
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.loadtest;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.wink.server.internal.servlet.RestServlet;
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.OAuthFilter;
+import org.eclipse.lyo.server.oauth.core.consumer.AbstractConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.webapp.sample.SecureHelloWorld;
+import org.eclipse.lyo.server.oauth.webapp.services.OAuthService;
+import org.eclipse.lyo.server.oauth.webapp.services.OAuthServicesListener;
+
+/**
+ * Runs the OAuth sample in embedded Jetty, set up the same way as its
+ * web.xml: {@link SecureHelloWorld} behind the {@link OAuthFilter} and the
+ * {@link OAuthService} endpoints, all under {@value #CONTEXT_PATH}. Consumers
+ * are kept in memory so the load test measures the OAuth code rather than the
+ * database.
+ */
+public class SampleServer {
+	public static final String CONTEXT_PATH = "/sample";
+
+	/**
+	 * A consumer store that only keeps consumers in memory.
+	 */
+	public static class MemoryConsumerStore extends AbstractConsumerStore {
+		@Override
+		public LyoOAuthConsumer addConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+
+		@Override
+		public LyoOAuthConsumer removeConsumer(String consumerKey) {
+			return remove(consumerKey);
+		}
+
+		@Override
+		public LyoOAuthConsumer updateConsumer(LyoOAuthConsumer consumer) {
+			return add(consumer);
+		}
+	}
+
+	/**
+	 * Configures the sample with a {@link MemoryConsumerStore}.
+	 */
+	public static class Listener extends SecureHelloWorld {
+		@Override
+		protected ConsumerStore createConsumerStore() {
+			return new MemoryConsumerStore();
+		}
+	}
+
+	/**
+	 * The JAX-RS resources from the sample's web.xml.
+	 */
+	public static class Services extends javax.ws.rs.core.Application {
+		@Override
+		public Set<Class<?>> getClasses() {
+			Set<Class<?>> classes = new HashSet<Class<?>>();
+			classes.add(OAuthService.class);
+			classes.add(SecureHelloWorld.class);
+
+			return classes;
+		}
+	}
+
+	private final Server server;
+
+	/**
+	 * Creates the server.
+	 *
+	 * @param port
+	 *            the port or 0 for any free port
+	 */
+	public SampleServer(int port) {
+		ServletContextHandler context = new ServletContextHandler(
+				ServletContextHandler.SESSIONS);
+		context.setContextPath(CONTEXT_PATH);
+		context.addEventListener(new Listener());
+		context.addEventListener(new OAuthServicesListener());
+		context.addFilter(OAuthFilter.class, "/rest/hello/*",
+				EnumSet.of(DispatcherType.REQUEST));
+		ServletHolder services = new ServletHolder(RestServlet.class);
+		services.setInitParameter("javax.ws.rs.Application",
+				Services.class.getName());
+		context.addServlet(services, "/rest/*");
+
+		server = new Server(port);
+		server.setHandler(context);
+	}
+
+	public void start() throws Exception {
+		server.start();
+	}
+
+	public void stop() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * Gets the URL of the sample's REST services, for instance
+	 * <code>http://localhost:8080/sample/rest</code>.
+	 *
+	 * @return the base URL
+	 */
+	public String getBaseURL() {
+		return "http://localhost:" + server.getConnectors()[0].getLocalPort()
+				+ CONTEXT_PATH + "/rest";
+	}
+
+	/**
+	 * Gets the sample's consumer store. Only call after {@link #start()}.
+	 *
+	 * @return the consumer store
+	 */
+	public ConsumerStore getConsumerStore() {
+		return OAuthConfiguration.getInstance(CONTEXT_PATH).getConsumerStore();
+	}
+}
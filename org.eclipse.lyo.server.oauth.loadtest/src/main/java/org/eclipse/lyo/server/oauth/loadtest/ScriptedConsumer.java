@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+
+/**
+ * A consumer that repeats the three-legged OAuth 1.0 handshake, then calls
+ * the protected resource with its access token. Each handshake is:
+ *
+ * <ol>
+ * <li>POST <code>/oauth/requestToken</code>, signed with the consumer secret</li>
+ * <li>POST <code>/oauth/login</code> with the user's ID and password, which
+ * authorizes the request token</li>
+ * <li>POST <code>/oauth/accessToken</code>, signed with the request token</li>
+ * </ol>
+ *
+ * followed by several GETs of <code>/hello</code> signed with the access
+ * token. The <code>/oauth/authorize</code> page is skipped since it's a JSP
+ * meant for a browser. Without it there's no verification code, so the
+ * consumer uses OAuth 1.0 rather than 1.0a.
+ *
+ * <p>
+ * Calls are only timed between {@link #startRecording()} and {@link #stop()}
+ * so the JVM can warm up first.
+ */
+public class ScriptedConsumer implements Runnable {
+	public static final String USER_ID = "loadtest";
+	public static final String PASSWORD = "loadtest";
+
+	final LatencyRecorder requestToken = new LatencyRecorder();
+	final LatencyRecorder login = new LatencyRecorder();
+	final LatencyRecorder accessToken = new LatencyRecorder();
+	final LatencyRecorder handshake = new LatencyRecorder();
+	final LatencyRecorder hello = new LatencyRecorder();
+
+	private final String baseURL;
+	private final OAuthConsumer consumer;
+	private final int callsPerHandshake;
+
+	private String sessionCookie = null;
+	private volatile Exception firstError = null;
+	private volatile boolean recording = false;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a consumer.
+	 *
+	 * @param baseURL
+	 *            the URL of the REST services from
+	 *            {@link SampleServer#getBaseURL()}
+	 * @param consumerKey
+	 *            the consumer key
+	 * @param consumerSecret
+	 *            the consumer secret
+	 * @param callsPerHandshake
+	 *            the number of protected resource calls after each handshake
+	 */
+	public ScriptedConsumer(String baseURL, String consumerKey,
+			String consumerSecret, int callsPerHandshake) {
+		this.baseURL = baseURL;
+		this.consumer = new OAuthConsumer(null, consumerKey, consumerSecret,
+				null);
+		this.consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD,
+				OAuth.HMAC_SHA1);
+		this.callsPerHandshake = callsPerHandshake;
+	}
+
+	public void startRecording() {
+		recording = true;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Gets the first error while recording, to show what went wrong.
+	 *
+	 * @return the error or null if there were no errors
+	 */
+	public Exception getFirstError() {
+		return firstError;
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				runHandshake();
+			} catch (Exception e) {
+				// The failed step was counted. Start a new handshake.
+				if (firstError == null && recording) {
+					firstError = e;
+				}
+			}
+		}
+	}
+
+	private void runHandshake() throws Exception {
+		long handshakeStart = System.nanoTime();
+
+		long start = System.nanoTime();
+		Map<String, String> token;
+		try {
+			token = OAuth.newMap(OAuth.decodeForm(call("POST",
+					"/oauth/requestToken", null, null, null,
+					HttpURLConnection.HTTP_OK)));
+			record(requestToken, start);
+		} catch (Exception e) {
+			recordError(requestToken);
+			throw e;
+		}
+		String requestTokenValue = token.get(OAuth.OAUTH_TOKEN);
+
+		start = System.nanoTime();
+		try {
+			call("POST", "/oauth/login", null, null, "id=" + USER_ID
+					+ "&password=" + PASSWORD + "&requestToken="
+					+ OAuth.percentEncode(requestTokenValue),
+					HttpURLConnection.HTTP_NO_CONTENT);
+			record(login, start);
+		} catch (Exception e) {
+			recordError(login);
+			throw e;
+		}
+
+		start = System.nanoTime();
+		try {
+			token = OAuth.newMap(OAuth.decodeForm(call("POST",
+					"/oauth/accessToken", requestTokenValue,
+					token.get(OAuth.OAUTH_TOKEN_SECRET), null,
+					HttpURLConnection.HTTP_OK)));
+			record(accessToken, start);
+		} catch (Exception e) {
+			recordError(accessToken);
+			throw e;
+		}
+		record(handshake, handshakeStart);
+
+		for (int i = 0; i < callsPerHandshake && !stopped; i++) {
+			start = System.nanoTime();
+			try {
+				call("GET", "/hello", token.get(OAuth.OAUTH_TOKEN),
+						token.get(OAuth.OAUTH_TOKEN_SECRET), null,
+						HttpURLConnection.HTTP_OK);
+				record(hello, start);
+			} catch (Exception e) {
+				recordError(hello);
+				throw e;
+			}
+		}
+	}
+
+	private void record(LatencyRecorder recorder, long start) {
+		if (recording && !stopped) {
+			recorder.record(start);
+		}
+	}
+
+	private void recordError(LatencyRecorder recorder) {
+		if (recording && !stopped) {
+			recorder.recordError();
+		}
+	}
+
+	/**
+	 * Makes an HTTP request and reads the whole response so the connection
+	 * can be kept alive.
+	 *
+	 * @param method
+	 *            the HTTP method
+	 * @param path
+	 *            the path relative to the base URL
+	 * @param token
+	 *            the token to sign with or null to sign with only the
+	 *            consumer secret, or to not sign if there's a form
+	 * @param tokenSecret
+	 *            the token secret
+	 * @param form
+	 *            the form-encoded body or null
+	 * @param expectedStatus
+	 *            the status of a successful response
+	 * @return the response body
+	 * @throws Exception
+	 *             on errors or if the response has a different status
+	 */
+	private String call(String method, String path, String token,
+			String tokenSecret, String form, int expectedStatus)
+			throws Exception {
+		String url = baseURL + path;
+		HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		connection.setRequestMethod(method);
+		if (sessionCookie != null) {
+			connection.setRequestProperty("Cookie", sessionCookie);
+		}
+
+		if (form == null) {
+			OAuthAccessor accessor = new OAuthAccessor(consumer);
+			accessor.accessToken = token;
+			accessor.tokenSecret = tokenSecret;
+			OAuthMessage message = accessor.newRequestMessage(method, url,
+					Collections.<Map.Entry<String, String>> emptyList());
+			connection.setRequestProperty("Authorization",
+					message.getAuthorizationHeader(null));
+		} else {
+			byte[] body = form.getBytes("UTF-8");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type",
+					"application/x-www-form-urlencoded");
+			connection.setFixedLengthStreamingMode(body.length);
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+
+		int status = connection.getResponseCode();
+		String cookie = connection.getHeaderField("Set-Cookie");
+		if (cookie != null) {
+			int semicolon = cookie.indexOf(';');
+			sessionCookie = (semicolon == -1) ? cookie : cookie.substring(0,
+					semicolon);
+		}
+
+		String body = read((status < 400) ? connection.getInputStream()
+				: connection.getErrorStream());
+		if (status != expectedStatus) {
+			throw new IOException(method + " " + path + " returned " + status
+					+ ": " + body);
+		}
+
+		return body;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
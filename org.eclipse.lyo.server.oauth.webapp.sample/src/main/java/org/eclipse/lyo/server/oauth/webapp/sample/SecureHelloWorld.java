@@ -15,28 +15,23 @@
  *******************************************************************************/
 package org.eclipse.lyo.server.oauth.webapp.sample;
 
-import java.io.IOException;
-
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
-import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.Status;
-
-import net.oauth.OAuthException;
-import net.oauth.server.OAuthServlet;
 
 import org.eclipse.lyo.server.oauth.consumerstore.RdfConsumerStore;
 import org.eclipse.lyo.server.oauth.core.Application;
 import org.eclipse.lyo.server.oauth.core.AuthenticationException;
 import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
-import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.WriteBehindConsumerStore;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
+import org.eclipse.lyo.server.oauth.core.token.CacheReaper;
 
 /**
  * A simple OAuth example using the Lyo OAuth provider framework.
@@ -46,12 +41,6 @@ import org.eclipse.lyo.server.oauth.core.OAuthRequest;
 @Path("/hello")
 public class SecureHelloWorld implements ServletContextListener {
 
-	@Context
-	private HttpServletRequest httpRequest;
-
-	@Context
-	private HttpServletResponse httpResponse;
-
 	/**
 	 * The OAuth realm for this application.
 	 */
@@ -68,7 +57,10 @@ public class SecureHelloWorld implements ServletContextListener {
 	 */
 	@Override
 	public void contextInitialized(ServletContextEvent event) {
-		OAuthConfiguration config = OAuthConfiguration.getInstance();
+		// Use a configuration of our own so other OAuth providers in the
+		// container don't share our tokens and consumers.
+		OAuthConfiguration config = OAuthConfiguration.getInstance(event
+				.getServletContext().getContextPath());
 
 		// Validates a user's ID and password.
 		config.setApplication(new Application() {
@@ -107,28 +99,57 @@ public class SecureHelloWorld implements ServletContextListener {
 		});
 		
 		try {
-			config.setConsumerStore(new RdfConsumerStore());
+			config.setConsumerStore(createConsumerStore());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+
+		// Make the OAuth latency timers visible in JMX. The timers and the
+		// token reaper are shared with other webapps when oauth-core is
+		// shared, so they're counted rather than owned.
+		OAuthMetrics.getInstance().registerMBeans();
+		CacheReaper.retain();
+	}
+
+	/**
+	 * Creates the store for registered consumers. Override to use a different
+	 * store, for instance an in-memory store for testing.
+	 * 
+	 * @return the consumer store
+	 * @throws Exception
+	 *             on errors opening the store
+	 */
+	protected ConsumerStore createConsumerStore() throws Exception {
+		// Save consumer changes in the background so that many
+		// consumers registering at once don't wait on the database.
+		return new WriteBehindConsumerStore(new RdfConsumerStore());
 	}
 
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
-	}
+		OAuthMetrics.getInstance().unregisterMBeans();
 
-	@GET
-	public Response helloWorld() throws IOException, ServletException {
-		try {
-			OAuthRequest request = new OAuthRequest(httpRequest);
-			request.validate();
-		} catch (OAuthException e) {
-			// Request failed validation. Send an unauthorized response.
-			OAuthServlet.handleException(httpResponse, e, REALM);
-			return Response.status(Status.UNAUTHORIZED).build();
+		// Save any pending consumer changes.
+		ConsumerStore store = OAuthConfiguration.removeInstance(
+				event.getServletContext().getContextPath()).getConsumerStore();
+		if (store instanceof WriteBehindConsumerStore) {
+			try {
+				((WriteBehindConsumerStore) store).close();
+			} catch (ConsumerStoreException e) {
+				e.printStackTrace();
+			}
 		}
 
-		// Validation passed. Respond with the secret message.
+		// Stop the token reaper thread so it doesn't keep our class loader
+		// alive after the application is undeployed. It keeps running if
+		// other webapps still use it.
+		CacheReaper.release();
+	}
+
+	@GET
+	public Response helloWorld() {
+		// OAuthFilter has already validated the request (see web.xml).
+		// Requests that fail validation never get here.
 		return Response.ok("Hello World!").type(MediaType.TEXT_PLAIN).build();
 	}
 }
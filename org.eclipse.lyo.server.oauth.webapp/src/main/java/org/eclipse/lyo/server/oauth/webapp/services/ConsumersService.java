@@ -15,7 +15,13 @@
  *******************************************************************************/
 package org.eclipse.lyo.server.oauth.webapp.services;
 
-import java.util.Collection;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,20 +33,25 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import net.oauth.OAuthException;
 import net.oauth.OAuthProblemException;
 
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerQuery;
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
 import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.consumer.QueryableConsumerStore;
 
 /**
  * Manages OAuth consumers for this provider.
@@ -53,35 +64,121 @@ public class ConsumersService {
 	@Context protected HttpServletRequest httpRequest;
 	@Context protected HttpServletResponse httpResponse;
 
+	/**
+	 * Gets a page of consumers as JSON. The response is written as it's
+	 * serialized, so large pages aren't held in memory as one string.
+	 * 
+	 * <pre>
+	 * {"consumers":[{"name":"...","key":"...","provisional":true,"trusted":false}],"next":"..."}
+	 * </pre>
+	 * 
+	 * <p>
+	 * <code>next</code> is only there if there might be more consumers. Pass
+	 * it back as <code>cursor</code> to get the next page.
+	 * 
+	 * @param provisional
+	 *            "true" for provisional consumers, "false" for approved
+	 *            consumers, or null for both
+	 * @param trusted
+	 *            "true" for trusted consumers, "false" for untrusted
+	 *            consumers, or null for both
+	 * @param namePrefix
+	 *            only consumers whose names start with this. Can be null.
+	 * @param sort
+	 *            "name" (the default) or "key"
+	 * @param order
+	 *            "asc" (the default) or "desc"
+	 * @param cursor
+	 *            the <code>next</code> value from the previous page or null
+	 *            for the first page
+	 * @param limit
+	 *            the page size or null for the default
+	 * @return the HTTP response
+	 */
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
-	public Response getAllConsumers() throws JSONException {
+	public Response getConsumers(@QueryParam("provisional") String provisional,
+			@QueryParam("trusted") String trusted,
+			@QueryParam("name") String namePrefix,
+			@QueryParam("sort") String sort,
+			@QueryParam("order") String order,
+			@QueryParam("cursor") String cursor,
+			@QueryParam("limit") String limit) {
 		try {
-			if (!OAuthConfiguration.getInstance().getApplication()
+			if (!OAuthConfiguration.getInstance(httpRequest).getApplication()
 					.isAdminSession(httpRequest)) {
 				return Response.status(Status.FORBIDDEN)
 						.type(MediaType.TEXT_PLAIN)
 						.entity("You must be an administrator.").build();
 			}
 
-			Collection<LyoOAuthConsumer> consumers = OAuthConfiguration
-					.getInstance().getConsumerStore().getAllConsumers();
-			JSONArray provisionalConsumers = new JSONArray();
-			JSONArray approvedConsumers = new JSONArray();
-
-			for (LyoOAuthConsumer consumer : consumers) {
-				if (consumer.isProvisional()) {
-					provisionalConsumers.add(asJson(consumer));
-				} else {
-					approvedConsumers.add(asJson(consumer));
+			final ConsumerQuery query = new ConsumerQuery();
+			try {
+				query.setProvisional(toBoolean(provisional));
+				query.setTrusted(toBoolean(trusted));
+				query.setNamePrefix(namePrefix);
+				if (sort != null) {
+					query.setSort(ConsumerQuery.Sort.valueOf(sort
+							.toUpperCase(Locale.ENGLISH)));
+				}
+				if (order != null) {
+					if (!"asc".equals(order) && !"desc".equals(order)) {
+						throw new IllegalArgumentException("Invalid order: "
+								+ order);
+					}
+					query.setDescending("desc".equals(order));
+				}
+				query.setCursor(cursor);
+				if (limit != null) {
+					query.setLimit(Integer.parseInt(limit));
 				}
+			} catch (IllegalArgumentException e) {
+				// Also catches NumberFormatException.
+				return Response.status(Status.BAD_REQUEST)
+						.type(MediaType.TEXT_PLAIN).entity(e.getMessage())
+						.build();
 			}
 
-			JSONObject response = new JSONObject();
-			response.put("provisional", provisionalConsumers);
-			response.put("approved", approvedConsumers);
+			ConsumerStore store = OAuthConfiguration.getInstance(httpRequest)
+					.getConsumerStore();
+			final List<LyoOAuthConsumer> page;
+			if (store instanceof QueryableConsumerStore) {
+				page = ((QueryableConsumerStore) store).getConsumers(query);
+			} else {
+				page = query.select(store.getAllConsumers());
+			}
+
+			StreamingOutput output = new StreamingOutput() {
+				@Override
+				public void write(OutputStream out) throws IOException {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(
+							out, "UTF-8"));
+					try {
+						writer.write("{\"consumers\":[");
+						for (int i = 0; i < page.size(); i++) {
+							if (i > 0) {
+								writer.write(',');
+							}
+							asJson(page.get(i)).write(writer);
+						}
+						writer.write(']');
+						if (page.size() == query.getLimit()) {
+							// Cursors are percent-encoded, so they need no
+							// escaping in JSON.
+							writer.write(",\"next\":\"");
+							writer.write(query.getCursor(page.get(page
+									.size() - 1)));
+							writer.write('"');
+						}
+						writer.write('}');
+						writer.flush();
+					} catch (JSONException e) {
+						throw new WebApplicationException(e);
+					}
+				}
+			};
 
-			return Response.ok(response.write()).type(MediaType.APPLICATION_JSON)
+			return Response.ok(output).type(MediaType.APPLICATION_JSON)
 					.build();
 		} catch (ConsumerStoreException e) {
 			return handleConsumerStoreException(e);
@@ -112,14 +209,14 @@ public class ConsumersService {
 			@FormParam("trusted") String trusted,
 			@FormParam("provisional") String provisional) {
 		try {
-			if (!OAuthConfiguration.getInstance().getApplication()
+			if (!OAuthConfiguration.getInstance(httpRequest).getApplication()
 					.isAdminSession(httpRequest)) {
 				return Response.status(Status.FORBIDDEN)
 						.type(MediaType.TEXT_PLAIN)
 						.entity("You must be an administrator.").build();
 			}
 			
-			ConsumerStore store = OAuthConfiguration.getInstance()
+			ConsumerStore store = OAuthConfiguration.getInstance(httpRequest)
 					.getConsumerStore();
 			LyoOAuthConsumer consumer = store.getConsumer(key);
 			if (consumer == null) {
@@ -155,19 +252,24 @@ public class ConsumersService {
 	@Path("/{key}")
 	public Response removeConsumer(@PathParam("key") String key) {
 		try {
-			if (!OAuthConfiguration.getInstance().getApplication()
+			if (!OAuthConfiguration.getInstance(httpRequest).getApplication()
 					.isAdminSession(httpRequest)) {
 				return Response.status(Status.FORBIDDEN)
 						.type(MediaType.TEXT_PLAIN)
 						.entity("You must be an administrator.").build();
 			}
 			
-			OAuthConfiguration.getInstance().getConsumerStore()
-					.removeConsumer(key);
+			OAuthConfiguration config = OAuthConfiguration
+					.getInstance(httpRequest);
+			config.getConsumerStore().removeConsumer(key);
+
+			// Don't leave tokens behind for the consumer in case it's added
+			// again with the same key.
+			config.getTokenStrategy().revokeConsumerTokens(key);
 			return Response.noContent().build();
 		} catch (ConsumerStoreException e) {
 			return handleConsumerStoreException(e);
-		} catch (OAuthProblemException e) {
+		} catch (OAuthException e) {
 			return Response.status(Status.SERVICE_UNAVAILABLE).build();
 		}
 	}
@@ -178,6 +280,18 @@ public class ConsumersService {
 				.entity(e.getMessage()).build();
 	}
 
+	private static Boolean toBoolean(String value) {
+		if (value == null) {
+			return null;
+		}
+		if (!"true".equals(value) && !"false".equals(value)) {
+			throw new IllegalArgumentException("Expected true or false: "
+					+ value);
+		}
+
+		return Boolean.valueOf(value);
+	}
+
 	protected JSONObject asJson(LyoOAuthConsumer consumer) throws JSONException {
 		JSONObject o = new JSONObject();
 		o.put("name", consumer.getName());
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.webapp.services;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
+import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.token.StripedLRUCache;
+
+/**
+ * Looks up host names for consumers that register without a name. A reverse
+ * DNS lookup can take seconds, so it's done on a background thread. The
+ * consumer is registered right away with its IP address as the name, and the
+ * name is replaced when the lookup finishes. Results are cached for
+ * {@value #TIME_TO_LIVE} ms so clients registering again from the same
+ * address are named immediately.
+ *
+ * <p>
+ * The lookup threads keep the web application's class loader reachable, so
+ * {@link OAuthServicesListener} calls {@link #close()} when the application
+ * stops.
+ */
+class HostNameResolver {
+	/**
+	 * How long a host name is cached in milliseconds (1 hour).
+	 */
+	static final long TIME_TO_LIVE = 60 * 60 * 1000L;
+
+	private static final int MAX_CACHED = 10000;
+	private static final int THREADS = 2;
+
+	/*
+	 * When more lookups than this are waiting, new ones are dropped and those
+	 * consumers keep their IP address as the name.
+	 */
+	private static final int MAX_QUEUED = 1000;
+
+	private static final HostNameResolver instance = new HostNameResolver();
+
+	private final StripedLRUCache<String, String> names = new StripedLRUCache<String, String>(
+			MAX_CACHED);
+
+	private ExecutorService executor = null;
+
+	private HostNameResolver() {}
+
+	static HostNameResolver getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Stops the lookup threads. Lookups still waiting are dropped, and those
+	 * consumers keep their IP address as the name. A lookup requested after
+	 * this starts new threads.
+	 */
+	synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = new ThreadPoolExecutor(THREADS, THREADS, 0L,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							MAX_QUEUED), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r,
+									"Lyo OAuth Host Name Resolver "
+											+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Gets the host name for an address if it's been looked up recently.
+	 *
+	 * @param address
+	 *            the IP address
+	 * @return the host name, the address itself if it has no host name, or
+	 *         null if it hasn't been looked up
+	 */
+	String getCachedName(String address) {
+		return names.get(address);
+	}
+
+	/**
+	 * Looks up the host name for an address in the background, then renames
+	 * the consumer. The consumer is only renamed if its name is still the
+	 * address, so names set by an administrator are kept.
+	 *
+	 * @param store
+	 *            the consumer store holding the consumer
+	 * @param consumerKey
+	 *            the consumer key
+	 * @param address
+	 *            the IP address, which is the consumer's current name
+	 */
+	void nameConsumerLater(final ConsumerStore store,
+			final String consumerKey, final String address) {
+		try {
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					nameConsumer(store, consumerKey, address,
+							resolve(address));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many lookups waiting. Keep the address as the name.
+		}
+	}
+
+	private String resolve(String address) {
+		// Another registration from the same address might have finished
+		// the lookup while this one was queued.
+		String name = names.get(address);
+		if (name != null) {
+			return name;
+		}
+
+		try {
+			name = InetAddress.getByName(address).getCanonicalHostName();
+		} catch (Exception e) {
+			// Remember the failure so it isn't looked up again right away.
+			name = address;
+		}
+		names.put(address, name, TIME_TO_LIVE);
+
+		return name;
+	}
+
+	private void nameConsumer(ConsumerStore store, String consumerKey,
+			String address, String name) {
+		if (name.equals(address)) {
+			return;
+		}
+
+		try {
+			LyoOAuthConsumer consumer = store.getConsumer(consumerKey);
+			if (consumer != null && address.equals(consumer.getName())) {
+				consumer.setName(name);
+				store.updateConsumer(consumer);
+			}
+		} catch (ConsumerStoreException e) {
+			e.printStackTrace();
+		}
+	}
+}
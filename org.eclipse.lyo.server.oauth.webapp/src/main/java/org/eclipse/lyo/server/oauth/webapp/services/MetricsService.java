@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.webapp.services;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import net.oauth.OAuthProblemException;
+
+import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
+
+/**
+ * Shows OAuth provider latency metrics in the Prometheus text format. Only
+ * administrators can see the metrics.
+ *
+ * @see OAuthMetrics
+ */
+@Path("/oauth/metrics")
+public class MetricsService {
+	/**
+	 * The content type of the Prometheus text exposition format.
+	 */
+	public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4";
+
+	@Context protected HttpServletRequest httpRequest;
+
+	@GET
+	@Produces({ PROMETHEUS_TEXT })
+	public Response getMetrics() throws IOException {
+		try {
+			if (!OAuthConfiguration.getInstance(httpRequest).getApplication()
+					.isAdminSession(httpRequest)) {
+				return Response.status(Status.FORBIDDEN)
+						.type(PROMETHEUS_TEXT)
+						.entity("You must be an administrator.").build();
+			}
+		} catch (OAuthProblemException e) {
+			return Response.status(Status.SERVICE_UNAVAILABLE).build();
+		}
+
+		StringWriter writer = new StringWriter();
+		OAuthMetrics.getInstance().writePrometheus(writer);
+
+		return Response.ok(writer.toString()).type(PROMETHEUS_TEXT).build();
+	}
+}
@@ -16,8 +16,8 @@
 package org.eclipse.lyo.server.oauth.webapp.services;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.URISyntaxException;
+import java.security.cert.CertificateException;
 import java.util.List;
 import java.util.UUID;
 
@@ -53,8 +53,11 @@ import org.eclipse.lyo.server.oauth.core.Application;
 import org.eclipse.lyo.server.oauth.core.AuthenticationException;
 import org.eclipse.lyo.server.oauth.core.OAuthConfiguration;
 import org.eclipse.lyo.server.oauth.core.OAuthRequest;
+import org.eclipse.lyo.server.oauth.core.RequestThrottle;
+import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStore;
 import org.eclipse.lyo.server.oauth.core.consumer.ConsumerStoreException;
 import org.eclipse.lyo.server.oauth.core.consumer.LyoOAuthConsumer;
+import org.eclipse.lyo.server.oauth.core.metrics.OAuthMetrics;
 import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
 
 /**
@@ -67,6 +70,15 @@ import org.eclipse.lyo.server.oauth.core.token.TokenStrategy;
  */
 @Path("/oauth")
 public class OAuthService {
+	/*
+	 * Names of the endpoint timers in OAuthMetrics.
+	 */
+	private static final String REQUEST_TOKEN_TIMER = "/oauth/requestToken";
+	private static final String AUTHORIZE_TIMER = "/oauth/authorize";
+	private static final String LOGIN_TIMER = "/oauth/login";
+	private static final String APPROVE_TOKEN_TIMER = "/oauth/internal/approveToken";
+	private static final String ACCESS_TOKEN_TIMER = "/oauth/accessToken";
+	private static final String REQUEST_KEY_TIMER = "/oauth/requestKey";
 
 	@Context
 	protected HttpServletRequest httpRequest;
@@ -92,11 +104,12 @@ public class OAuthService {
 	@POST
 	@Path("/requestToken")
 	public Response doPostRequestToken() throws IOException, ServletException {
+		long start = System.nanoTime();
 		try {
 			OAuthRequest oAuthRequest = validateRequest();
 
 			// Generate the token.
-			OAuthConfiguration.getInstance().getTokenStrategy()
+			OAuthConfiguration.getInstance(httpRequest).getTokenStrategy()
 					.generateRequestToken(oAuthRequest);
 
 			// Check for OAuth 1.0a authentication.
@@ -104,17 +117,18 @@ public class OAuthService {
 			
 			// Respond to the consumer.
 			OAuthAccessor accessor = oAuthRequest.getAccessor();
-			return respondWithToken(accessor.requestToken,
-					accessor.tokenSecret, callbackConfirmed);
+			return timed(REQUEST_TOKEN_TIMER, start, respondWithToken(
+					accessor.requestToken, accessor.tokenSecret,
+					callbackConfirmed));
 		} catch (OAuthException e) {
-			return respondWithOAuthProblem(e);
+			return timed(REQUEST_TOKEN_TIMER, start, respondWithOAuthProblem(e));
 		}
 	}
 
 	protected boolean confirmCallback(OAuthRequest oAuthRequest)
 			throws OAuthException {
 		boolean callbackConfirmed = OAuthConfiguration
-				.getInstance()
+				.getInstance(httpRequest)
 				.getTokenStrategy()
 				.getCallback(httpRequest,
 						oAuthRequest.getAccessor().requestToken) != null;
@@ -122,7 +136,7 @@ public class OAuthService {
 			oAuthRequest.getConsumer().setOAuthVersion(
 					LyoOAuthConsumer.OAuthVersion.OAUTH_1_0A);
 		} else {
-			if (!OAuthConfiguration.getInstance().isV1_0Allowed()) {
+			if (!OAuthConfiguration.getInstance(httpRequest).isV1_0Allowed()) {
 				throw new OAuthProblemException(
 						OAuth.Problems.OAUTH_PARAMETERS_ABSENT);
 			}
@@ -150,6 +164,7 @@ public class OAuthService {
 	@GET
 	@Path("/authorize")
 	public Response authorize() throws ServletException, IOException {
+		long start = System.nanoTime();
 		try {
 			/*
 			 * Check that the request token is valid and determine what consumer
@@ -157,12 +172,12 @@ public class OAuthService {
 			 * consumer key to the authorization page, so we must track this in
 			 * the TokenStrategy implementation.
 			 */
-			OAuthMessage message = OAuthServlet.getMessage(httpRequest, null);
-			OAuthConfiguration config = OAuthConfiguration.getInstance();
+			OAuthMessage message = OAuthRequest.getOAuthMessage(httpRequest);
+			OAuthConfiguration config = OAuthConfiguration.getInstance(httpRequest);
 			String consumerKey = config.getTokenStrategy()
 					.validateRequestToken(httpRequest, message);
 			
-			LyoOAuthConsumer consumer = OAuthConfiguration.getInstance()
+			LyoOAuthConsumer consumer = OAuthConfiguration.getInstance(httpRequest)
 					.getConsumerStore().getConsumer(consumerKey);
 
 			// Pass some data to the JSP.
@@ -189,9 +204,9 @@ public class OAuthService {
 						httpRequest, httpResponse);
 			}
 			
-			return null;
+			return timed(AUTHORIZE_TIMER, start, null);
 		} catch (OAuthException e) {
-			return respondWithOAuthProblem(e);
+			return timed(AUTHORIZE_TIMER, start, respondWithOAuthProblem(e));
 		}
 	}
 
@@ -200,7 +215,7 @@ public class OAuthService {
 		String callback = null;
 		switch (consumer.getOAuthVersion()) {
 		case OAUTH_1_0:
-			if (!OAuthConfiguration.getInstance().isV1_0Allowed()) {
+			if (!OAuthConfiguration.getInstance(httpRequest).isV1_0Allowed()) {
 				throw new OAuthProblemException(OAuth.Problems.VERSION_REJECTED);
 			}
 
@@ -212,7 +227,7 @@ public class OAuthService {
 			// If this is OAuth 1.0a, the callback was passed when the consumer
 			// asked for a request token.
 			String requestToken = message.getToken();
-			callback = OAuthConfiguration.getInstance().getTokenStrategy()
+			callback = OAuthConfiguration.getInstance(httpRequest).getTokenStrategy()
 					.getCallback(httpRequest, requestToken);
 		}
 
@@ -223,7 +238,7 @@ public class OAuthService {
 		UriBuilder uriBuilder = UriBuilder.fromUri(callback)
 				.queryParam(OAuth.OAUTH_TOKEN, message.getToken());
 		if (consumer.getOAuthVersion() == LyoOAuthConsumer.OAuthVersion.OAUTH_1_0A) {
-			String verificationCode = OAuthConfiguration.getInstance()
+			String verificationCode = OAuthConfiguration.getInstance(httpRequest)
 					.getTokenStrategy()
 					.generateVerificationCode(httpRequest, message.getToken());
 			uriBuilder.queryParam(OAuth.OAUTH_VERIFIER, verificationCode);
@@ -243,49 +258,54 @@ public class OAuthService {
 	public Response login(@FormParam("id") String id,
 			@FormParam("password") String password,
 			@FormParam("requestToken") String requestToken) {
+		long start = System.nanoTime();
 		try {
-			OAuthConfiguration.getInstance().getApplication()
+			OAuthConfiguration.getInstance(httpRequest).getApplication()
 					.login(httpRequest, id, password);
 		} catch (OAuthException e) {
-			return Response.status(Status.SERVICE_UNAVAILABLE).build();
+			return timed(LOGIN_TIMER, start,
+					Response.status(Status.SERVICE_UNAVAILABLE).build());
 		} catch (AuthenticationException e) {
 			String message = e.getMessage();
 			if (message == null || "".equals(message)) {
 				message = "Incorrect username or password.";
 			}
-			return Response.status(Status.CONFLICT).entity(message)
-					.type(MediaType.TEXT_PLAIN).build();
+			return timed(LOGIN_TIMER, start, Response.status(Status.CONFLICT)
+					.entity(message).type(MediaType.TEXT_PLAIN).build());
 		}
 
 		try {
-			OAuthConfiguration.getInstance().getTokenStrategy()
+			OAuthConfiguration.getInstance(httpRequest).getTokenStrategy()
 					.markRequestTokenAuthorized(httpRequest, requestToken);
 		} catch (OAuthException e) {
-			return Response.status(Status.CONFLICT)
+			return timed(LOGIN_TIMER, start, Response.status(Status.CONFLICT)
 					.entity("Request token invalid.")
-					.type(MediaType.TEXT_PLAIN).build();
+					.type(MediaType.TEXT_PLAIN).build());
 		}
 
-		return Response.noContent().build();
+		return timed(LOGIN_TIMER, start, Response.noContent().build());
 	}
 	
 	@POST
 	@Path("/internal/approveToken")
 	public Response authorize(@FormParam("requestToken") String requestToken) {
+		long start = System.nanoTime();
 		try {
-			if (!OAuthConfiguration.getInstance().getApplication().isAuthenticated(httpRequest)) {
-				return Response.status(Status.FORBIDDEN).build();
+			if (!OAuthConfiguration.getInstance(httpRequest).getApplication().isAuthenticated(httpRequest)) {
+				return timed(APPROVE_TOKEN_TIMER, start,
+						Response.status(Status.FORBIDDEN).build());
 			}
 		} catch (OAuthProblemException e) {
-			return Response.status(Status.SERVICE_UNAVAILABLE).build();
+			return timed(APPROVE_TOKEN_TIMER, start,
+					Response.status(Status.SERVICE_UNAVAILABLE).build());
 		}
 
-		return authorizeToken(requestToken);
+		return timed(APPROVE_TOKEN_TIMER, start, authorizeToken(requestToken));
 	}
 
 	private Response authorizeToken(String requestToken) {
 		try {
-			OAuthConfiguration.getInstance().getTokenStrategy()
+			OAuthConfiguration.getInstance(httpRequest).getTokenStrategy()
 					.markRequestTokenAuthorized(httpRequest, requestToken);
 		} catch (OAuthException e) {
 			return Response.status(Status.CONFLICT)
@@ -315,11 +335,12 @@ public class OAuthService {
 	@POST
 	@Path("/accessToken")
 	public Response doPostAccessToken() throws IOException, ServletException {
+		long start = System.nanoTime();
 		try {
 			// Validate the request is signed and check that the request token
 			// is valid.
 			OAuthRequest oAuthRequest = validateRequest();
-			OAuthConfiguration config = OAuthConfiguration.getInstance();
+			OAuthConfiguration config = OAuthConfiguration.getInstance(httpRequest);
 			TokenStrategy strategy = config.getTokenStrategy();
 			strategy.validateRequestToken(httpRequest,
 					oAuthRequest.getMessage());
@@ -336,15 +357,18 @@ public class OAuthService {
 			
 			// Send the new token and secret back to the consumer.
 			OAuthAccessor accessor = oAuthRequest.getAccessor();
-			return respondWithToken(accessor.accessToken, accessor.tokenSecret);
+			return timed(ACCESS_TOKEN_TIMER, start, respondWithToken(
+					accessor.accessToken, accessor.tokenSecret));
 		} catch (OAuthException e) {
-			return respondWithOAuthProblem(e);
+			return timed(ACCESS_TOKEN_TIMER, start, respondWithOAuthProblem(e));
 		}
 	}
 
 	/**
 	 * Generates a provisional consumer key. This request must be later approved
-	 * by an administrator.
+	 * by an administrator. Consumers that sign with RSA-SHA1 can pass their
+	 * PEM-encoded X.509 certificate in the <code>x509Certificate</code>
+	 * property.
 	 * 
 	 * @return a JSON response with the provisional key
 	 * @throws IOException
@@ -358,6 +382,7 @@ public class OAuthService {
 	@Produces({ MediaType.APPLICATION_JSON })
 	public Response provisionalKey()
 			throws NullPointerException, IOException {
+		long start = System.nanoTime();
 		try {
 			// Create the consumer from the request.
 			JSONObject request = (JSONObject) JSON.parse(httpRequest
@@ -368,8 +393,16 @@ public class OAuthService {
 				name = request.getString("name");
 			}
 			
+			// If there's no name, use the host name. Until it's looked up,
+			// use the IP address so the request isn't held up.
+			boolean lookUpName = false;
 			if (name == null || name.trim().equals("")) {
-				name = getRemoteHost();
+				name = HostNameResolver.getInstance().getCachedName(
+						httpRequest.getRemoteAddr());
+				if (name == null) {
+					name = httpRequest.getRemoteAddr();
+					lookUpName = true;
+				}
 			}
 
 			String secret = request.getString("secret");
@@ -384,22 +417,41 @@ public class OAuthService {
 			consumer.setName(name);
 			consumer.setProvisional(true);
 			consumer.setTrusted(trusted);
+			if (request.has("x509Certificate")) {
+				consumer.setX509Certificate(request
+						.getString("x509Certificate"));
+			}
 			
 			// Add the consumer to the store.
-			OAuthConfiguration.getInstance().getConsumerStore().addConsumer(consumer);
+			ConsumerStore store = OAuthConfiguration.getInstance(httpRequest)
+					.getConsumerStore();
+			store.addConsumer(consumer);
+			if (lookUpName) {
+				HostNameResolver.getInstance().nameConsumerLater(store, key,
+						name);
+			}
 
 			// Respond with the consumer key.
 			JSONObject response = new JSONObject();
 			response.put("key", key);
 			
-			return Response.ok(response.write()).build();
+			return timed(REQUEST_KEY_TIMER, start, Response.ok(response.write())
+					.build());
 		} catch (JSONException e) {
 			e.printStackTrace();
-			return Response.status(Status.BAD_REQUEST).build();
+			return timed(REQUEST_KEY_TIMER, start,
+					Response.status(Status.BAD_REQUEST).build());
+		} catch (CertificateException e) {
+			return timed(REQUEST_KEY_TIMER, start,
+					Response.status(Status.BAD_REQUEST)
+							.type(MediaType.TEXT_PLAIN)
+							.entity("Invalid X.509 certificate.").build());
 		} catch (ConsumerStoreException e) {
 			e.printStackTrace();
-			return Response.status(Status.SERVICE_UNAVAILABLE)
-					.type(MediaType.TEXT_PLAIN).entity(e.getMessage()).build();
+			return timed(REQUEST_KEY_TIMER, start,
+					Response.status(Status.SERVICE_UNAVAILABLE)
+							.type(MediaType.TEXT_PLAIN).entity(e.getMessage())
+							.build());
 		}
 	}
 
@@ -426,7 +478,8 @@ public class OAuthService {
 		}
 
 		try {
-			Application app = OAuthConfiguration.getInstance().getApplication();
+			Application app = OAuthConfiguration.getInstance(httpRequest)
+					.getApplication();
 			
 			// The application name is displayed on approval page.
 			httpRequest.setAttribute("applicationName", app.getName());
@@ -436,7 +489,7 @@ public class OAuthService {
 			}
 
 			LyoOAuthConsumer provisionalConsumer = OAuthConfiguration
-					.getInstance().getConsumerStore().getConsumer(key);
+					.getInstance(httpRequest).getConsumerStore().getConsumer(key);
 
 			if (provisionalConsumer == null) {
 				return Response.status(Status.BAD_REQUEST).build();
@@ -478,7 +531,8 @@ public class OAuthService {
 	public Response showConsumerKeyManagementPage() throws ServletException,
 			IOException {
 		try {
-			Application app = OAuthConfiguration.getInstance().getApplication();
+			Application app = OAuthConfiguration.getInstance(httpRequest)
+					.getApplication();
 
 			httpRequest.setAttribute("applicationName", app.getName());
 			if (!app.isAdminSession(httpRequest)) {
@@ -504,7 +558,8 @@ public class OAuthService {
 	public Response login(@FormParam("id") String id,
 			@FormParam("password") String password) {
 		try {
-			Application app = OAuthConfiguration.getInstance().getApplication();
+			Application app = OAuthConfiguration.getInstance(httpRequest)
+					.getApplication();
 			app.login(httpRequest, id, password);
 
 			if (app.isAdminSession(httpRequest)) {
@@ -540,7 +595,7 @@ public class OAuthService {
 	protected OAuthRequest validateRequest() throws OAuthException, IOException {
 		OAuthRequest oAuthRequest = new OAuthRequest(httpRequest);
 		try {
-			OAuthValidator validator = OAuthConfiguration.getInstance()
+			OAuthValidator validator = OAuthConfiguration.getInstance(httpRequest)
 					.getValidator();
 			validator.validateMessage(oAuthRequest.getMessage(),
 					oAuthRequest.getAccessor());
@@ -574,27 +629,40 @@ public class OAuthService {
 			throws IOException, ServletException {
 		try {
 			OAuthServlet.handleException(httpResponse, e, OAuthConfiguration
-					.getInstance().getApplication().getRealm(httpRequest));
+					.getInstance(httpRequest).getApplication().getRealm(httpRequest));
 		} catch (OAuthProblemException serviceUnavailableException) {
 			return Response.status(Status.SERVICE_UNAVAILABLE).build();
 		}
+
+		// Tell throttled clients when to try again.
+		String retryAfter = RequestThrottle.getRetryAfter(e);
+		if (retryAfter != null) {
+			return Response.status(RequestThrottle.SC_TOO_MANY_REQUESTS)
+					.header("Retry-After", retryAfter).build();
+		}
 		
 		return Response.status(Status.UNAUTHORIZED).build();
 	}
 
-	private String getRemoteHost() {
-		try {
-			// Try to get the hostname of the consumer.
-			return InetAddress.getByName(httpRequest.getRemoteHost())
-					.getCanonicalHostName();
-		} catch (Exception e) {
-			/*
-			 * Not fatal, and we shouldn't fail here. Fall back to returning
-			 * ServletRequest.getRemoveHost(). It might be the IP address, but
-			 * that's better than nothing.
-			 */
-			return httpRequest.getRemoteHost();
-		}
+	/**
+	 * Records how long an endpoint took in {@link OAuthMetrics}. Responses with
+	 * an error status count as rejected. A null response means the request
+	 * was forwarded to a JSP, which counts as success.
+	 * 
+	 * @param timer
+	 *            the endpoint timer name
+	 * @param start
+	 *            the start time from {@link System#nanoTime()}
+	 * @param response
+	 *            the response or null
+	 * @return the response
+	 */
+	protected Response timed(String timer, long start, Response response) {
+		boolean success = response == null
+				|| response.getStatus() < Status.BAD_REQUEST.getStatusCode();
+		OAuthMetrics.getInstance().getTimer(timer).record(start, success);
+
+		return response;
 	}
 
 	private Response showAdminLogin() throws ServletException, IOException {
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2012 IBM Corporation.
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Eclipse Distribution License v. 1.0 which accompanies this distribution.
+ *
+ *  The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ *  and the Eclipse Distribution License is available at
+ *  http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *  Contributors:
+ *
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.lyo.server.oauth.webapp.services;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stops the background threads the OAuth services start so they don't keep
+ * the web application's class loader alive after it's undeployed. Register
+ * it in <code>web.xml</code>:
+ *
+ * <pre>
+ * &lt;listener&gt;
+ * 	&lt;listener-class&gt;org.eclipse.lyo.server.oauth.webapp.services.OAuthServicesListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ */
+public class OAuthServicesListener implements ServletContextListener {
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		// The threads are started when they're first needed.
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		HostNameResolver.getInstance().close();
+	}
+}
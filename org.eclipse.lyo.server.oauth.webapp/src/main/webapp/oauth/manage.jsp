@@ -45,6 +45,7 @@
 			</thead>
 			<tbody></tbody>
 		</table>
+		<button id="morePending" style="display: none;">Show more</button>
 
 		<h2>Active</h2>
 
@@ -60,6 +61,7 @@
 			</thead>
 			<tbody></tbody>
 		</table>
+		<button id="moreApproved" style="display: none;">Show more</button>
 	</div>
 </body>
 
@@ -16,8 +16,11 @@
 require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 		"dojo/_base/array", "dojo/_base/xhr", "dojo/ready" ], function(dom,
 		domConstruct, domStyle, on, array, xhr, ready) {
+	var PAGE_SIZE = 100;
 	var pending = {};
 	var approved = {};
+	var nextPending = null;
+	var nextApproved = null;
 
 	function showError(message) {
 		var errorNode = dom.byId('error');
@@ -53,6 +56,24 @@ require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 		domStyle.set('approvedTable', 'display', 'none');
 		domStyle.set('noApprovedMessage', 'display', 'block');
 	}
+
+	// Called when the last loaded consumer in a table goes away. There might
+	// still be more on the server.
+	function pendingEmptied() {
+		if (nextPending) {
+			loadPage(true, nextPending);
+		} else {
+			showNoPending();
+		}
+	}
+
+	function approvedEmptied() {
+		if (nextApproved) {
+			loadPage(false, nextApproved);
+		} else {
+			showNoApproved();
+		}
+	}
 	
 	function approve(consumer) {
 		var name = dom.byId('name-' + consumer.key).value;
@@ -82,7 +103,7 @@ require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 				createTableRow(consumer, tbody);
 				
 				if (isEmpty(pending)) {
-					showNoPending();
+					pendingEmptied();
 				}
 				
 				domStyle.set('approvedTable', 'display', 'block');
@@ -105,12 +126,12 @@ require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 					if (consumer.provisional) {
 						delete pending[consumer.key];
 						if (isEmpty(pending)) {
-							showNoPending();
+							pendingEmptied();
 						}
 					} else {
 						delete approved[consumer.key];
 						if (isEmpty(approved)) {
-							showNoApproved();
+							approvedEmptied();
 						}
 					}
 				},
@@ -184,15 +205,15 @@ require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 	}
 
 	function populateTable(table, consumerArray) {
+		// The server sorts consumers by name.
 		var tbody = table.getElementsByTagName('tbody')[0];
-		consumerArray.sort(function(left, right) {
-			if (left.name === right.name) {
-				return 0;
+		array.forEach(consumerArray, function(consumer) {
+			// Skip consumers already on the page, like ones approved since
+			// the last page was loaded.
+			if (dom.byId('tableRow-' + consumer.key)) {
+				return;
 			}
 			
-			return (left.name < right.name) ? -1 : 1;
-		});
-		array.forEach(consumerArray, function(consumer) {
 			if (consumer.provisional) {
 				pending[consumer.key] = consumer;
 			} else {
@@ -203,36 +224,61 @@ require([ "dojo/dom", "dojo/dom-construct", "dojo/dom-style", "dojo/on",
 		domStyle.set(table, 'display', 'block');
 	}
 
-	function showConsumers(consumers) {
-		if (consumers.provisional.length === 0) {
-			showNoPending();
-		} else {
-			populateTable(dom.byId('pendingTable'), consumers.provisional);
-		}
-
-		if (consumers.approved.length === 0) {
-			showNoApproved();
-		} else {
-			populateTable(dom.byId('approvedTable'), consumers.approved);
+	function loadPage(provisional, cursor) {
+		var content = {
+			provisional : provisional ? 'true' : 'false',
+			limit : PAGE_SIZE
+		};
+		if (cursor) {
+			content.cursor = cursor;
 		}
-	}
 
-	function load() {
 		xhr.get({
 			url : 'consumers',
+			content : content,
 			headers : {
 				'Accept' : 'application/json'
 			},
 			handleAs : 'json',
 			preventCache: true,
-			load : showConsumers,
+			load : function(page) {
+				var table = dom.byId(provisional ? 'pendingTable' : 'approvedTable');
+				if (page.consumers.length > 0) {
+					populateTable(table, page.consumers);
+				} else if (isEmpty(provisional ? pending : approved)) {
+					if (provisional) {
+						showNoPending();
+					} else {
+						showNoApproved();
+					}
+				}
+
+				if (provisional) {
+					nextPending = page.next;
+				} else {
+					nextApproved = page.next;
+				}
+				domStyle.set(provisional ? 'morePending' : 'moreApproved',
+						'display', page.next ? 'block' : 'none');
+			},
 			error : function() {
 				showError();
 			}
 		});
 	}
 
+	function load() {
+		loadPage(true, null);
+		loadPage(false, null);
+	}
+
 	ready(function() {
+		on(dom.byId('morePending'), 'click', function() {
+			loadPage(true, nextPending);
+		});
+		on(dom.byId('moreApproved'), 'click', function() {
+			loadPage(false, nextApproved);
+		});
 		load();
 	});
 });